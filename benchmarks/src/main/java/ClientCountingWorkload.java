@@ -0,0 +1,49 @@
+import benchmarks.Workload;
+
+import java.util.Random;
+
+/**
+ * <h1>Client Counting Workload</h1>
+ * Offers client addresses to the HyperLogLog counters of the hosts they asked for, one address per operation. Most
+ * hosts stay sparse while the popular ones turn dense, as in a capture.
+ */
+public class ClientCountingWorkload implements Workload
+{
+    private HyperLogLogCounters clients = new HyperLogLogCounters();
+
+    private int[] hostIds;
+    private int[] clientHashes;
+    private int next = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        Random random = new Random(41);
+        byte[] address = new byte[4];
+
+        hostIds = new int[8192];
+        clientHashes = new int[hostIds.length];
+
+        for(int i = 0; i < hostIds.length; i++)
+        {
+            hostIds[i] = (int) (2000 * Math.pow(random.nextDouble(), 3));
+
+            address[0] = (byte) 192;
+            address[1] = (byte) 168;
+            address[2] = (byte) random.nextInt(4);
+            address[3] = (byte) random.nextInt(256);
+            clientHashes[i] = HyperLogLogCounters.hashAddress(address, 0, address.length);
+        }
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (hostIds.length - 1);
+
+        clients.offer(hostIds[index], clientHashes[index]);
+
+        return hostIds[index];
+    }
+}
@@ -0,0 +1,33 @@
+import benchmarks.Workload;
+
+/**
+ * <h1>DNS Aggregation Workload</h1>
+ * Passes synthetic DNS queries and responses through DNSAnalyser's pipeline stage, parsing them and adding them to the
+ * query type, response code, latency and top domain counts, one packet per operation.
+ */
+public class DnsAggregationWorkload implements Workload
+{
+    private PacketPipeline.Stage stage;
+    private SyntheticPackets packets;
+    private int next = 0;
+    private long timestamp = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        stage = DNSAnalyser.dnsStage(new DnsAggregator[]{new DnsAggregator(1000)}, false, 1000, null, Metrics.start("dns", AnalyserOptions.parse(new String[0])));
+        packets = new SyntheticPackets(8192, 2000, new int[]{SyntheticPackets.DNS_QUERY, SyntheticPackets.DNS_RESPONSE}, 41);
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (packets.size() - 1);
+        timestamp += 10;
+
+        stage.process(PcapReader.LINKTYPE_ETHERNET, packets.getFrame(index), 0, packets.getLength(index), packets.getLength(index), timestamp);
+
+        return index;
+    }
+}
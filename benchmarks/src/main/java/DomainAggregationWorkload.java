@@ -0,0 +1,35 @@
+import benchmarks.Workload;
+
+/**
+ * <h1>Domain Aggregation Workload</h1>
+ * Passes synthetic packets through DomainAnalyser's pipeline stage, decoding them, naming their hosts and adding
+ * them to the host, flow and client counts, one packet per operation.
+ */
+public class DomainAggregationWorkload implements Workload
+{
+    private PacketPipeline.Stage stage;
+    private SyntheticPackets packets;
+    private int next = 0;
+    private long timestamp = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        stage = DomainAnalyser.hostNameStage(new DomainAggregator(65536, 65536, SpillingHostCounter.NO_BUDGET, null, false), null, null,
+                Metrics.start("domain", AnalyserOptions.parse(new String[0])));
+        packets = new SyntheticPackets(8192, 2000, new int[]{SyntheticPackets.HTTP_REQUEST, SyntheticPackets.TLS_CLIENT_HELLO,
+                SyntheticPackets.DNS_RESPONSE, SyntheticPackets.DATA, SyntheticPackets.DATA, SyntheticPackets.DATA}, 41);
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (packets.size() - 1);
+        timestamp += 10;
+
+        stage.process(PcapReader.LINKTYPE_ETHERNET, packets.getFrame(index), 0, packets.getLength(index), packets.getLength(index), timestamp);
+
+        return index;
+    }
+}
@@ -0,0 +1,50 @@
+import benchmarks.Workload;
+
+import java.util.Random;
+
+/**
+ * <h1>Flow Tracking Workload</h1>
+ * Looks up flows in the flow table and adds the packet's bytes to them as the domain aggregator does for each web
+ * packet, one packet per operation. There are more flows than the table holds so evictions are included.
+ */
+public class FlowTrackingWorkload implements Workload
+{
+    private FlowTable flowTable = new FlowTable(32768);
+
+    private long[] flowKeys;
+    private int next = 0;
+    private long timestamp = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        Random random = new Random(41);
+        long[] flows = new long[49152];
+
+        for(int i = 0; i < flows.length; i++)
+        {
+            flows[i] = random.nextLong();
+        }
+
+        // packets of a flow mostly follow one another, so recent flows are picked more often
+        flowKeys = new long[1 << 16];
+
+        for(int i = 0; i < flowKeys.length; i++)
+        {
+            flowKeys[i] = flows[(int) (flows.length * Math.pow(random.nextDouble(), 2))];
+        }
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (flowKeys.length - 1);
+        timestamp += 10;
+
+        int slot = flowTable.findOrAdd(flowKeys[index], timestamp);
+        flowTable.addBytes(slot, (index & 1) == 0, 1400);
+
+        return slot;
+    }
+}
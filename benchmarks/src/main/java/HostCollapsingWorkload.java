@@ -0,0 +1,60 @@
+import benchmarks.Workload;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * <h1>Host Collapsing Workload</h1>
+ * Summarises a batch of host names to their registrable domains as DomainAnalyser does after each batch of packets,
+ * one batch per operation. The analyser's progress lines are dropped so they are not measured.
+ */
+public class HostCollapsingWorkload implements Workload
+{
+    private static final int BATCH_HOSTS = 2000;
+
+    private HostCounter batch = new HostCounter(DomainAggregator.VALUE_COLUMNS);
+    private HyperLogLogCounters batchClients = new HyperLogLogCounters();
+    private PublicSuffixList suffixList;
+    private AnalyserOptions options;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }));
+
+        suffixList = PublicSuffixList.getDefault();
+        options = AnalyserOptions.parse(new String[]{"--offline"}, "offline");
+
+        Random random = new Random(41);
+
+        for(int i = 0; i < BATCH_HOSTS; i++)
+        {
+            int id = batch.add(SyntheticPackets.host(random), 1 + random.nextInt(20));
+
+            batch.addValue(id, DomainAggregator.BYTES_UP_COLUMN, random.nextInt(100000));
+            batch.addValue(id, DomainAggregator.BYTES_DOWN_COLUMN, random.nextInt(10000000));
+            batchClients.offer(id, random.nextInt());
+        }
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        SpillingHostCounter domainCounter = new SpillingHostCounter(DomainAggregator.VALUE_COLUMNS, SpillingHostCounter.NO_BUDGET, null);
+
+        try {
+            DomainAnalyser.summariseHosts(batch, batchClients, domainCounter, suffixList, null, options);
+
+            return domainCounter.isOverBudget() ? 0 : 1;
+        } finally {
+            domainCounter.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import benchmarks.Workload;
+
+/**
+ * <h1>Host Counting Workload</h1>
+ * Adds host names to the open addressing host counter as the domain aggregator does for each request, one name per
+ * operation.
+ */
+public class HostCountingWorkload implements Workload
+{
+    private HostCounter counter = new HostCounter(2);
+
+    private byte[][] hosts;
+    private int next = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        String[] hostNames = new SyntheticPackets(0, 2000, new int[]{SyntheticPackets.DATA}, 41).getHosts();
+
+        // repeated picks so some names are far more common than others, as in a capture
+        hosts = new byte[8192][];
+
+        for(int i = 0; i < hosts.length; i++)
+        {
+            hosts[i] = hostNames[(int) (hostNames.length * Math.pow((i * 0x9e3779b9L & 0xffffL) / 65536.0, 3))].getBytes();
+        }
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (hosts.length - 1);
+
+        int id = counter.add(hosts[index], 0, hosts[index].length, 1);
+        counter.addValue(id, DomainAggregator.BYTES_UP_COLUMN, 512);
+
+        return id;
+    }
+}
@@ -0,0 +1,54 @@
+import benchmarks.Workload;
+
+/**
+ * <h1>Host Name Scanning Workload</h1>
+ * Finds the host names of synthetic http requests and TLS ClientHellos, one payload per operation. The packets are
+ * decoded up front so only the scanning is measured.
+ */
+public class HostNameScanningWorkload implements Workload
+{
+    private HostNameScanner scanner = new HostNameScanner();
+
+    private byte[][] frames;
+    private long[] flowHashes;
+    private long[] sequenceNumbers;
+    private int[] payloadOffsets;
+    private int[] payloadLengths;
+    private int next = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        SyntheticPackets packets = new SyntheticPackets(8192, 2000, new int[]{SyntheticPackets.HTTP_REQUEST,
+                SyntheticPackets.TLS_CLIENT_HELLO}, 41);
+        PacketDecoder decoder = new PacketDecoder();
+
+        frames = new byte[packets.size()][];
+        flowHashes = new long[packets.size()];
+        sequenceNumbers = new long[packets.size()];
+        payloadOffsets = new int[packets.size()];
+        payloadLengths = new int[packets.size()];
+
+        for(int i = 0; i < packets.size(); i++)
+        {
+            decoder.decode(PcapReader.LINKTYPE_ETHERNET, packets.getFrame(i), 0, packets.getLength(i));
+
+            frames[i] = packets.getFrame(i);
+            flowHashes[i] = decoder.directionalFlowHash();
+            sequenceNumbers[i] = decoder.getSequenceNumber();
+            payloadOffsets[i] = decoder.getPayloadOffset();
+            payloadLengths[i] = decoder.getPayloadLength();
+        }
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (frames.length - 1);
+
+        int result = scanner.scan(flowHashes[index], sequenceNumbers[index], frames[index], payloadOffsets[index], payloadLengths[index]);
+
+        return result == HostNameScanner.HOST_FOUND ? scanner.getHostLength() : -result;
+    }
+}
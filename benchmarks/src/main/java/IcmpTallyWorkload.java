@@ -0,0 +1,33 @@
+import benchmarks.Workload;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Scanner;
+
+/**
+ * <h1>ICMP Tally Workload</h1>
+ * Counts the ICMP messages of a recorded ipsumdump output per type and code as ICMPAnalyser does for each file, one
+ * output per operation.
+ */
+public class IcmpTallyWorkload implements Workload
+{
+    private byte[] output;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        output = RecordedOutputs.read("ipsumdump-icmp.txt");
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        HashMap<String, HashMap<String, Integer>> ICMPCategoryMap = new HashMap<String, HashMap<String, Integer>>();
+
+        Scanner scanner = new Scanner(new ByteArrayInputStream(output));
+        ICMPAnalyser.tallyICMPMessages(scanner, ICMPCategoryMap);
+        scanner.close();
+
+        return ICMPCategoryMap.size();
+    }
+}
@@ -0,0 +1,30 @@
+import benchmarks.Workload;
+
+/**
+ * <h1>Packet Decoding Workload</h1>
+ * Decodes the headers of synthetic web and DNS packets, one packet per operation.
+ */
+public class PacketDecodingWorkload implements Workload
+{
+    private PacketDecoder decoder = new PacketDecoder();
+    private SyntheticPackets packets;
+    private int next = 0;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        packets = new SyntheticPackets(8192, 2000, new int[]{SyntheticPackets.HTTP_REQUEST, SyntheticPackets.TLS_CLIENT_HELLO,
+                SyntheticPackets.DNS_QUERY, SyntheticPackets.DNS_RESPONSE, SyntheticPackets.DATA}, 41);
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        int index = next;
+        next = (index + 1) & (packets.size() - 1);
+
+        decoder.decode(PcapReader.LINKTYPE_ETHERNET, packets.getFrame(index), 0, packets.getLength(index));
+
+        return decoder.getPayloadLength() + decoder.getDestinationPort();
+    }
+}
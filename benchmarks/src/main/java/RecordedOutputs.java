@@ -0,0 +1,40 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <h1>Recorded Outputs</h1>
+ * Reads the tool outputs recorded next to the benchmarks, so parsing is measured on what tcpdstat and ipsumdump
+ * print without running them.
+ */
+public class RecordedOutputs
+{
+    /**
+     * Reads a recorded output
+     * @param name - resource name of the output e.g tcpdstat-output.txt
+     * @return the output
+     * @throws IOException on the output not being bundled
+     */
+    public static byte[] read(String name) throws IOException
+    {
+        InputStream inputStream = RecordedOutputs.class.getResourceAsStream("/" + name);
+
+        if(inputStream == null)
+            throw new IOException("Recorded output not found : " + name);
+
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while((read = inputStream.read(buffer)) != -1)
+            {
+                output.write(buffer, 0, read);
+            }
+
+            return output.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
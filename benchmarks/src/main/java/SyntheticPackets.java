@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <h1>Synthetic Packets</h1>
+ * Builds ethernet frames like the ones the analysers decode, local clients making http requests, TLS ClientHellos and
+ * DNS queries to outside servers and getting data and DNS responses back, so the decoding and counting hot paths can
+ * be measured without a capture file. The same seed always gives the same packets.
+ */
+public class SyntheticPackets
+{
+    public static final int HTTP_REQUEST = 0;
+    public static final int TLS_CLIENT_HELLO = 1;
+    public static final int DNS_QUERY = 2;
+    public static final int DNS_RESPONSE = 3;
+    public static final int DATA = 4;
+
+    private static final String[] LABELS = {"www", "api", "cdn", "static", "img", "mail", "login", "news", "video", "shop"};
+    private static final String[] DOMAINS = {"example", "google", "facebook", "wikipedia", "youtube", "amazon", "bbc",
+            "github", "twitter", "yahoo", "netflix", "reddit", "apple", "microsoft", "linkedin", "instagram"};
+    private static final String[] SUFFIXES = {"com", "org", "net", "co.uk", "com.au", "io", "ug", "co.ug", "de", "fr"};
+
+    private Random random;
+
+    private byte[][] frames;
+    private int[] lengths;
+    private String[] hosts;
+
+    /**
+     * Builds the packets
+     * @param count - number of packets
+     * @param hostCount - number of distinct host names asked for
+     * @param kinds - kinds of packet to make, picked between at random
+     * @param seed - seed of the random choices
+     */
+    public SyntheticPackets(int count, int hostCount, int[] kinds, long seed)
+    {
+        random = new Random(seed);
+
+        hosts = new String[hostCount];
+
+        for(int i = 0; i < hostCount; i++)
+        {
+            hosts[i] = host(random);
+        }
+
+        frames = new byte[count][];
+        lengths = new int[count];
+
+        byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+        int resolver = FrameBuilder.address(8, 8, 8, 8);
+
+        for(int i = 0; i < count; i++)
+        {
+            int client = FrameBuilder.address(192, 168, random.nextInt(2), random.nextInt(256));
+            int server = FrameBuilder.address(93, 184, random.nextInt(16), random.nextInt(256));
+            int clientPort = 1024 + random.nextInt(60000);
+            String host = hosts[random.nextInt(hostCount)];
+            byte[] payload;
+            int length;
+
+            switch(kinds[random.nextInt(kinds.length)])
+            {
+                case HTTP_REQUEST:
+                    payload = FrameBuilder.httpRequest(host);
+                    length = FrameBuilder.tcp(frame, client, server, clientPort, 80, 1000, FrameBuilder.TCP_ACK | FrameBuilder.TCP_PUSH,
+                            payload, payload.length);
+                    break;
+                case TLS_CLIENT_HELLO:
+                    payload = FrameBuilder.clientHello(host);
+                    length = FrameBuilder.tcp(frame, client, server, clientPort, 443, 1000, FrameBuilder.TCP_ACK | FrameBuilder.TCP_PUSH,
+                            payload, payload.length);
+                    break;
+                case DNS_QUERY:
+                    payload = FrameBuilder.dnsMessage(host, random.nextInt(65536), false, 0);
+                    length = FrameBuilder.udp(frame, client, resolver, clientPort, 53, payload, payload.length);
+                    break;
+                case DNS_RESPONSE:
+                    payload = FrameBuilder.dnsMessage(host, random.nextInt(65536), true, server);
+                    length = FrameBuilder.udp(frame, resolver, client, 53, clientPort, payload, payload.length);
+                    break;
+                default:
+                    length = FrameBuilder.tcp(frame, server, client, 443, clientPort, 1000, FrameBuilder.TCP_ACK, null,
+                            1200 + random.nextInt(200));
+                    break;
+            }
+
+            frames[i] = Arrays.copyOf(frame, length);
+            lengths[i] = length;
+        }
+    }
+
+    public int size()
+    {
+        return frames.length;
+    }
+
+    public byte[] getFrame(int index)
+    {
+        return frames[index];
+    }
+
+    public int getLength(int index)
+    {
+        return lengths[index];
+    }
+
+    public String[] getHosts()
+    {
+        return hosts;
+    }
+
+    /**
+     * Makes up a host name under a public suffix
+     * @param random - source of the random choices
+     * @return the host name
+     */
+    public static String host(Random random)
+    {
+        return LABELS[random.nextInt(LABELS.length)] + random.nextInt(50) + "." + DOMAINS[random.nextInt(DOMAINS.length)] +
+                random.nextInt(20) + "." + SUFFIXES[random.nextInt(SUFFIXES.length)];
+    }
+}
@@ -0,0 +1,33 @@
+import benchmarks.Workload;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+/**
+ * <h1>Tcpdstat Parsing Workload</h1>
+ * Reads the protocol breakdown out of a recorded tcpdstat output as PortAnalyser does for each file, one output per
+ * operation.
+ */
+public class TcpdstatParsingWorkload implements Workload
+{
+    private byte[] output;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        output = RecordedOutputs.read("tcpdstat-output.txt");
+    }
+
+    @Override
+    public long run() throws Exception
+    {
+        HashMap<String, HashMap<String, long[]>> portCounterMap = new HashMap<String, HashMap<String, long[]>>();
+
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output)));
+        PortAnalyser.readProtocolBreakdown(bufferedReader, portCounterMap, false);
+
+        return portCounterMap.get("tcp").size() + portCounterMap.get("udp").size();
+    }
+}
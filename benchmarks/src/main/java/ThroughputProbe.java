@@ -0,0 +1,66 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * <h1>Throughput Probe</h1>
+ * Runs one analysis in a JVM of its own for the throughput suite, then writes the peak resident set size the JVM
+ * reached to a file, as read from /proc/self/status. The tools the analysers start are not counted.
+ */
+public class ThroughputProbe
+{
+    public static void main(String[] args)
+    {
+        boolean succeeded = PacketAnalysisTools.run(Arrays.copyOfRange(args, 1, args.length));
+
+        try {
+            Writer writer = new FileWriter(new File(args[0]));
+
+            try {
+                writer.write(Long.toString(readPeakResidentKilobytes()));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    /**
+     * @return the peak resident set size of this JVM in kilobytes, or -1 where /proc is not available
+     */
+    public static long readPeakResidentKilobytes()
+    {
+        File status = new File("/proc/self/status");
+
+        if(!status.isFile())
+            return -1;
+
+        try {
+            BufferedReader bufferedReader = new BufferedReader(new FileReader(status));
+
+            try {
+                String line;
+
+                while((line = bufferedReader.readLine()) != null)
+                {
+                    // e.g VmHWM:	  123456 kB
+                    if(line.startsWith("VmHWM:"))
+                        return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            } finally {
+                bufferedReader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+}
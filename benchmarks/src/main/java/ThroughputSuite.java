@@ -0,0 +1,420 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * <h1>Throughput Suite</h1>
+ * Runs the analysers end to end over a folder of generated captures and fails when one has slowed down. Captures of
+ * the size asked for are generated once and kept for later runs. Each analysis then runs in a JVM of its own, as it
+ * would from its jar, and its MB/s, packets/s and peak resident set size are recorded once it has written a report
+ * with at least one row. The MB/s of each analysis is compared against a baseline kept in a file, an analysis more than
+ * the tolerance below its baseline, or without one, failing the suite. --update-baseline true records all of them
+ * anew, as after a deliberate change or on a new machine.
+ * <p>
+ * The icmp, port and bandwidth analyses need tcpdump, tcpdstat and ipsumdump, and are left out with a note where
+ * those are not installed.
+ */
+public class ThroughputSuite
+{
+    private static String OPTION_INSTRUCTION = "- Optionally set the size of the generated captures in MB i.e --size 4096, the " +
+            "number of files i.e --files 8 and their format i.e --format pcapng, the analyses to run i.e --analyses domain,dns, " +
+            "the heap of each i.e --heap 2g, the baseline file i.e --baseline throughput-baseline.properties, the percent an " +
+            "analysis may fall below its baseline i.e --tolerance 10, and whether to record new baselines i.e --update-baseline true";
+
+    private static final String[] ANALYSES = {"domain", "dns", "icmp", "port", "uplink", "downlink"};
+
+    private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
+
+    public static void main(String[] args)
+    {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the suite
+     * @param args - the suite's options
+     * @return false if an analysis failed or fell below its baseline
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options;
+        List<String> analyses;
+
+        try {
+            options = AnalyserOptions.parse(args);
+            analyses = Arrays.asList(options.getString("analyses", join(ANALYSES)).split(","));
+
+            for(String analysis : analyses)
+            {
+                if(!Arrays.asList(ANALYSES).contains(analysis))
+                    throw new IllegalArgumentException("Unknown analysis : " + analysis + ", expected some of " + join(ANALYSES));
+            }
+
+            if(options.getLong("size", 4096) < 1 || options.getInt("files", 8) < 1)
+                throw new IllegalArgumentException("Options --size and --files must be at least 1");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(OPTION_INSTRUCTION);
+            return false;
+        }
+
+        long size = options.getLong("size", 4096);
+        int files = options.getInt("files", 8);
+        String format = options.getString("format", "pcap");
+        long seed = options.getLong("seed", 1);
+        double tolerance = options.getInt("tolerance", 10) / 100.0;
+        boolean updateBaseline = Boolean.parseBoolean(options.getString("update-baseline", "false"));
+
+        File workFolder = new File(options.getString("work-dir", "target/throughput"));
+        File baselineFile = new File(options.getString("baseline", "throughput-baseline.properties"));
+
+        // the same captures are generated from the same settings, so they are kept and reused
+        String captureName = "captures-" + size + "mb-" + files + "-" + format + "-" + seed;
+        File captureFolder = new File(workFolder, captureName);
+        File captureSummary = new File(workFolder, captureName + ".properties");
+
+        Properties summary;
+        Properties baseline;
+
+        try {
+            summary = generateCaptures(captureFolder, captureSummary, size, files, format, seed);
+            baseline = readProperties(baselineFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        long captureBytes = Long.parseLong(summary.getProperty("bytes"));
+        long capturePackets = Long.parseLong(summary.getProperty("packets"));
+
+        ReportTable results = new ReportTable(
+                new String[]{"analysis", "seconds", "MB per second", "packets per second", "peak RSS MB", "baseline MB per second", "result"},
+                new byte[]{ReportTable.STRING, ReportTable.DOUBLE, ReportTable.DOUBLE, ReportTable.LONG, ReportTable.LONG,
+                        ReportTable.DOUBLE, ReportTable.STRING});
+
+        boolean failed = false;
+        boolean baselineChanged = false;
+        boolean baselineMissing = false;
+
+        for(String analysis : analyses)
+        {
+            String missingTool = findMissingTool(analysis);
+
+            if(missingTool != null)
+            {
+                System.out.println(DATA_DISPLAY_SEPARATOR);
+                System.out.println("Leaving out " + analysis + " as " + missingTool + " is not installed");
+                continue;
+            }
+
+            File runFolder = new File(workFolder, "run-" + analysis);
+            ICMPAnalyser.deleteDirectory(runFolder);
+            runFolder.mkdirs();
+
+            System.out.println(DATA_DISPLAY_SEPARATOR);
+            printCurrentTime();
+            System.out.println("Running " + analysis + " over " + captureBytes / (1 << 20) + " MB, logging to : " + new File(runFolder, "analysis.log"));
+
+            long startTime = System.nanoTime();
+            long peakKilobytes = -1;
+            boolean succeeded = false;
+
+            try {
+                peakKilobytes = runAnalysis(analysis, captureFolder, runFolder, options.getString("heap", "2g"));
+                succeeded = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            if(!succeeded)
+            {
+                printCurrentTime();
+                System.out.println("An error occurred in " + analysis + ", see " + new File(runFolder, "analysis.log"));
+                results.newRow().add(analysis).add(seconds).add(0.0).add(0).add(-1).add(0.0).add("failed");
+                failed = true;
+                continue;
+            }
+
+            double megabytesPerSecond = captureBytes / (double) (1 << 20) / seconds;
+            long packetsPerSecond = Math.round(capturePackets / seconds);
+
+            String baselineKey = analysis + ".mb-per-second";
+            String baselineValue = baseline.getProperty(baselineKey);
+            String result;
+
+            if(updateBaseline)
+            {
+                baselineValue = String.format(Locale.ROOT, "%.2f", megabytesPerSecond);
+                baseline.setProperty(baselineKey, baselineValue);
+                baselineChanged = true;
+                result = "recorded";
+            }
+            else if(baselineValue == null)
+            {
+                result = "no baseline";
+                baselineMissing = true;
+                failed = true;
+            }
+            else if(megabytesPerSecond < Double.parseDouble(baselineValue) * (1 - tolerance))
+            {
+                result = "regressed";
+                failed = true;
+            }
+            else
+            {
+                result = "passed";
+            }
+
+            printCurrentTime();
+            System.out.println(String.format("%s : %.1f seconds, %.1f MB/s, %d packets/s, peak RSS %d MB, %s", analysis, seconds,
+                    megabytesPerSecond, packetsPerSecond, peakKilobytes >> 10, result));
+
+            results.newRow().add(analysis).add(seconds).add(megabytesPerSecond).add(packetsPerSecond).add(peakKilobytes < 0 ? -1 : peakKilobytes >> 10)
+                    .add(baselineValue == null ? 0.0 : Double.parseDouble(baselineValue)).add(result);
+        }
+
+        try {
+            ReportWriter.writeCsv(results, new File(workFolder, "throughput-results.csv"));
+
+            if(baselineChanged)
+                writeProperties(baseline, baselineFile, "MB per second of each analysis over the generated captures");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        System.out.println(DATA_DISPLAY_SEPARATOR);
+
+        if(baselineMissing)
+            System.out.println("Some analyses have no baseline in " + baselineFile + ", record them with --update-baseline true");
+
+        System.out.println((failed ? "Throughput suite failed" : "Throughput suite passed") + ", results in : " + new File(workFolder, "throughput-results.csv"));
+
+        return !failed;
+    }
+
+    /**
+     * Generates the captures unless they were generated before with the same settings
+     * @return the number of bytes and packets of the captures
+     * @throws IOException on failing to write the captures
+     */
+    private static Properties generateCaptures(File captureFolder, File captureSummary, long size, int files, String format,
+                                               long seed) throws IOException
+    {
+        // the summary is written last, so captures left half written are generated again
+        if(captureSummary.isFile() && captureFolder.isDirectory())
+            return readProperties(captureSummary);
+
+        ICMPAnalyser.deleteDirectory(captureFolder);
+        captureFolder.mkdirs();
+
+        System.out.println(DATA_DISPLAY_SEPARATOR);
+        printCurrentTime();
+        System.out.println("Generating " + size + " MB of captures into : " + captureFolder);
+
+        CaptureGenerator generator = new CaptureGenerator(CaptureGenerator.loadMix(null), seed);
+        long packets = generator.write(captureFolder, files, (size << 20) / files, format.equals("pcapng"));
+
+        long bytes = 0;
+
+        for(File file : captureFolder.listFiles())
+        {
+            bytes += file.length();
+        }
+
+        Properties summary = new Properties();
+        summary.setProperty("bytes", Long.toString(bytes));
+        summary.setProperty("packets", Long.toString(packets));
+        writeProperties(summary, captureSummary, "Size of the generated captures");
+
+        return summary;
+    }
+
+    /**
+     * Runs an analysis in a JVM of its own, waiting for it to end
+     * @return the peak resident set size of the JVM in kilobytes, or -1 if it could not be read
+     * @throws IOException if the JVM could not be started, the analysis failed or its report has no rows
+     * @throws InterruptedException if interrupted while waiting for the analysis
+     */
+    private static long runAnalysis(String analysis, File captureFolder, File runFolder, String heap) throws IOException, InterruptedException
+    {
+        File peakFile = new File(runFolder, "peak-rss");
+
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-Xmx" + heap);
+        command.add("-cp");
+        command.add(new File(System.getProperty("java.class.path")).getAbsolutePath());
+        command.add("ThroughputProbe");
+        command.add(peakFile.getAbsolutePath());
+
+        if(analysis.equals("uplink") || analysis.equals("downlink"))
+        {
+            command.add("bandwidth");
+            command.add("-" + analysis);
+        }
+        else
+        {
+            command.add(analysis);
+            command.add("-d");
+        }
+
+        command.add(captureFolder.getAbsolutePath());
+
+        // no reverse lookups, which would measure the resolvers rather than the analyser
+        if(analysis.equals("domain"))
+            command.add("--offline");
+
+        command.add("--output-dir");
+        command.add(runFolder.getAbsolutePath());
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(runFolder);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(new File(runFolder, "analysis.log"));
+
+        int errorCode = processBuilder.start().waitFor();
+
+        if(errorCode != 0 || !peakFile.isFile())
+            throw new IOException("Analysis " + analysis + " exited with error code : " + errorCode);
+
+        // an analysis which read nothing, as when its tools fail on every file, is fast but measures nothing
+        File report = new File(runFolder, analysis + "-analysis.csv");
+
+        if(countLines(report) < 2)
+            throw new IOException("Analysis " + analysis + " wrote no rows into : " + report);
+
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(peakFile));
+
+        try {
+            return Long.parseLong(bufferedReader.readLine().trim());
+        } finally {
+            bufferedReader.close();
+        }
+    }
+
+    /**
+     * @return the first tool the analysis needs which is not on the path, or null if it has them all
+     */
+    private static String findMissingTool(String analysis)
+    {
+        String[] tools;
+
+        if(analysis.equals("icmp"))
+            tools = new String[]{"tcpdump", "ipsumdump"};
+        else if(analysis.equals("port") || analysis.equals("uplink") || analysis.equals("downlink"))
+            tools = new String[]{"tcpdump", "tcpdstat"};
+        else
+            tools = new String[0];
+
+        for(String tool : tools)
+        {
+            boolean found = false;
+
+            for(String folder : System.getenv("PATH").split(File.pathSeparator))
+            {
+                if(new File(folder, tool).canExecute())
+                    found = true;
+            }
+
+            if(!found)
+                return tool;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of lines in the file, 0 if there is no such file
+     * @throws IOException on failing to read the file
+     */
+    private static long countLines(File file) throws IOException
+    {
+        if(!file.isFile())
+            return 0;
+
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
+        long lines = 0;
+
+        try {
+            while(bufferedReader.readLine() != null)
+            {
+                lines++;
+            }
+        } finally {
+            bufferedReader.close();
+        }
+
+        return lines;
+    }
+
+    private static Properties readProperties(File file) throws IOException
+    {
+        Properties properties = new Properties();
+
+        if(!file.isFile())
+            return properties;
+
+        InputStream inputStream = new FileInputStream(file);
+
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+
+        return properties;
+    }
+
+    private static void writeProperties(Properties properties, File file, String comment) throws IOException
+    {
+        if(file.getAbsoluteFile().getParentFile() != null)
+            file.getAbsoluteFile().getParentFile().mkdirs();
+
+        OutputStream outputStream = new FileOutputStream(file);
+
+        try {
+            properties.store(outputStream, comment);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static String join(String[] values)
+    {
+        StringBuilder joined = new StringBuilder();
+
+        for(String value : values)
+        {
+            if(joined.length() > 0)
+                joined.append(',');
+
+            joined.append(value);
+        }
+
+        return joined.toString();
+    }
+
+    /**
+     * Prints the current system time
+     */
+    public static void printCurrentTime()
+    {
+        ICMPAnalyser.printCurrentTime();
+    }
+}
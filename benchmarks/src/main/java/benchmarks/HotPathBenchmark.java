@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Hot Path Benchmark</h1>
+ * Measures the operations per second of each workload, every workload running in a JVM of its own so the JIT only
+ * ever sees one of them behind the call site.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmark
+{
+    // the default package class of each workload is named after it, followed by Workload
+    @Param({"TcpdstatParsing", "IcmpTally", "HostCollapsing", "PacketDecoding", "HostNameScanning", "HostCounting",
+            "ClientCounting", "FlowTracking", "DomainAggregation", "DnsAggregation"})
+    public String workload;
+
+    private Workload target;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        target = (Workload) Class.forName(workload + "Workload").newInstance();
+        target.setUp();
+    }
+
+    @Benchmark
+    public long run() throws Exception
+    {
+        return target.run();
+    }
+}
@@ -0,0 +1,24 @@
+package benchmarks;
+
+/**
+ * <h1>Workload</h1>
+ * A hot path of the analysers set up for measuring. JMH only runs benchmarks in a package, while the analysers are in
+ * the default package which packaged classes cannot refer to, so each workload is written in the default package
+ * next to the analysers and loaded by name. The workload is then called through this interface from a single call
+ * site, which the JIT inlines like a direct call.
+ */
+public interface Workload
+{
+    /**
+     * Builds the inputs, outside of the measurement
+     * @throws Exception on failing to read an input
+     */
+    void setUp() throws Exception;
+
+    /**
+     * Runs one operation of the hot path, such as decoding one packet or parsing one tool output
+     * @return a value depending on the work done, so it cannot be left out as dead code
+     * @throws Exception on failing as the analyser would
+     */
+    long run() throws Exception;
+}
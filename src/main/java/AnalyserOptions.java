@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <h1>Analyser Options</h1>
+ * Separates the optional "--name value" settings given to an analyser from its usual arguments, so the analysers can
+ * keep checking their -d/-f style arguments as before
+ */
+public class AnalyserOptions
+{
+    private HashMap<String, String> values = new HashMap<String, String>();
+    private String[] arguments;
+
+    /**
+     * Splits the command line into options and remaining arguments
+     * @param args - the command line arguments
+     * @param switches - names of options which take no value e.g "quiet" for --quiet
+     * @return the parsed options
+     */
+    public static AnalyserOptions parse(String[] args, String... switches)
+    {
+        AnalyserOptions options = new AnalyserOptions();
+        List<String> switchList = Arrays.asList(switches);
+        ArrayList<String> remaining = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++)
+        {
+            if(args[i].startsWith("--") && args[i].length() > 2)
+            {
+                String name = args[i].substring(2);
+
+                if(switchList.contains(name))
+                {
+                    options.values.put(name, "true");
+                }
+                else if(i + 1 < args.length)
+                {
+                    options.values.put(name, args[i + 1]);
+                    i++;
+                }
+                else
+                {
+                    throw new IllegalArgumentException("No value provided for option : " + args[i]);
+                }
+            }
+            else
+            {
+                remaining.add(args[i]);
+            }
+        }
+
+        options.arguments = remaining.toArray(new String[remaining.size()]);
+
+        return options;
+    }
+
+    /**
+     * @return the arguments which were not options
+     */
+    public String[] getArguments()
+    {
+        return arguments;
+    }
+
+    /**
+     * @param name - option name without the leading dashes
+     * @return true if the option was provided
+     */
+    public boolean has(String name)
+    {
+        return values.containsKey(name);
+    }
+
+    /**
+     * @param name - option name without the leading dashes
+     * @param defaultValue - value to use when the option was not provided
+     * @return the option's value
+     */
+    public String getString(String name, String defaultValue)
+    {
+        String value = values.get(name);
+
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @param name - option name without the leading dashes
+     * @param defaultValue - value to use when the option was not provided
+     * @return the option's value as a number
+     */
+    public long getLong(String name, long defaultValue)
+    {
+        String value = values.get(name);
+
+        if(value == null)
+            return defaultValue;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number but was : " + value);
+        }
+    }
+
+    /**
+     * @param name - option name without the leading dashes
+     * @param defaultValue - value to use when the option was not provided
+     * @return the option's value as a number
+     */
+    public int getInt(String name, int defaultValue)
+    {
+        return (int) getLong(name, defaultValue);
+    }
+}
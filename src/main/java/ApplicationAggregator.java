@@ -0,0 +1,377 @@
+import java.io.IOException;
+
+/**
+ * <h1>Application Aggregator</h1>
+ * Counts the bytes and packets of TCP and UDP traffic per service, as tcpdstat names services from their ports, and
+ * per application, as classified from the payloads of each flow by PayloadClassifier. A flow is looked up in a flow
+ * table keyed the same way in both directions; while its first few payloads in each direction are classified its
+ * bytes are held as pending, and once a payload matches they are moved over to the application found. The two
+ * directions of a flow may fall under different services, as tcpdstat counts packets from port 80 as http(s) and
+ * packets to it as http(c), so each direction's pending bytes are kept apart along with their service. Flows which
+ * end or are evicted before matching stay pending and are reported as unknown.
+ * <p>
+ * Later fragments of a datagram are given the ports of its first fragment by a FragmentTracker, so they are counted
+ * against the service and flow they belong to; those whose first fragment was not seen are counted as unknown.
+ * <p>
+ * Given a FlowRecordWriter, each flow is also written out as a record labelled with its application once finished.
+ */
+public class ApplicationAggregator
+{
+    // services tcpdstat gives in its protocol breakdown, the last being everything else; any other service tcpdstat
+    // names, such as everque, is reported as unknown
+    public static final String[] TCP_SERVICES = {"http(s)", "http(c)", "squid", "smtp", "nntp", "ftp", "pop3", "imap", "telnet",
+            "ssh", "dns", "bgp", "napster", "realaud", "rtsp", "icecast", "hotline", "other"};
+    public static final String[] UDP_SERVICES = {"dns", "rip", "mcast", "realaud", "halflif", "starcra", "unreal", "quake",
+            "cuseeme", "other"};
+
+    // payloads looked at in each direction of a flow before it is left as unknown
+    private static final int MAX_INSPECTIONS = 2;
+
+    private static final int PENDING = PayloadClassifier.NAMES.length;
+
+    // datagrams whose fragments are tracked at once, and how long in microseconds their fragments are waited for
+    private static final int FRAGMENT_TABLE_SIZE = 4096;
+    private static final long FRAGMENT_TIMEOUT = 30L * 1000000;
+
+    private PayloadClassifier classifier = new PayloadClassifier();
+    private FlowTable flowTable;
+    private FragmentTracker fragmentTracker = new FragmentTracker(FRAGMENT_TABLE_SIZE, FRAGMENT_TIMEOUT);
+    private FlowExporter exporter = null;
+
+    // bytes and packets by service and application, the last application column holding pending flows
+    private long[][] tcpBytes = new long[TCP_SERVICES.length][PENDING + 1];
+    private long[][] tcpPackets = new long[TCP_SERVICES.length][PENDING + 1];
+    private long[][] udpBytes = new long[UDP_SERVICES.length][PENDING + 1];
+    private long[][] udpPackets = new long[UDP_SERVICES.length][PENDING + 1];
+
+    // bytes, packets and service of each direction of the pending flows, forward at twice the flow's slot and reverse
+    // just after
+    private long[] pendingBytes;
+    private int[] pendingPackets;
+    private byte[] pendingServices;
+
+    /**
+     * Creates an aggregator
+     * @param flowTableSize - number of flows to track at once
+     */
+    public ApplicationAggregator(int flowTableSize)
+    {
+        flowTable = new FlowTable(flowTableSize);
+
+        pendingBytes = new long[2 * flowTable.getCapacity()];
+        pendingPackets = new int[2 * flowTable.getCapacity()];
+        pendingServices = new byte[2 * flowTable.getCapacity()];
+    }
+
+    /**
+     * Writes each flow out as a record once finished
+     * @param writer - writer the records are handed to
+     */
+    public void exportFlows(FlowRecordWriter writer)
+    {
+        exporter = new FlowExporter(flowTable, writer);
+    }
+
+    /**
+     * Writes out the records of the flows still being tracked, when exporting flows
+     * @throws IOException - if the records could not be written
+     */
+    public void finish() throws IOException
+    {
+        if(exporter != null)
+            exporter.finish();
+    }
+
+    /**
+     * Adds a decoded packet to the counts
+     * @param decoder - decoder holding the packet
+     * @param timestamp - capture time of the packet in microseconds
+     * @param wireLength - length of the packet on the wire
+     */
+    public void process(PacketDecoder decoder, long timestamp, int wireLength)
+    {
+        boolean attributed = fragmentTracker.track(decoder, timestamp);
+
+        long[][] bytes;
+        long[][] packets;
+        int service;
+
+        if(decoder.getProtocol() == PacketDecoder.PROTOCOL_TCP)
+        {
+            bytes = tcpBytes;
+            packets = tcpPackets;
+            service = tcpService(decoder.getSourcePort(), decoder.getDestinationPort());
+        }
+        else if(decoder.getProtocol() == PacketDecoder.PROTOCOL_UDP)
+        {
+            bytes = udpBytes;
+            packets = udpPackets;
+            service = udpService(decoder);
+        }
+        else
+        {
+            return;
+        }
+
+        // a later fragment without the ports of its first fragment has no flow to be counted in
+        if(!attributed)
+        {
+            bytes[service][PayloadClassifier.UNKNOWN] += wireLength;
+            packets[service][PayloadClassifier.UNKNOWN]++;
+            return;
+        }
+
+        // a flow is keyed by the lower of its two directional hashes so both directions find it
+        long forwardKey = decoder.directionalFlowHash();
+        long reverseKey = decoder.reverseFlowHash();
+        boolean forward = forwardKey <= reverseKey;
+
+        int flow = flowTable.findOrAdd(forward ? forwardKey : reverseKey, timestamp);
+        int application = flowTable.getApplication(flow);
+
+        // only a first fragment starts with the payload of its datagram
+        if(application == FlowTable.UNCLASSIFIED && decoder.getFragmentOffset() == 0)
+            application = classify(decoder, flow, forward, bytes, packets);
+
+        if(application == FlowTable.UNCLASSIFIED)
+        {
+            addPending(flow, forward, service, wireLength);
+            application = PENDING;
+        }
+
+        bytes[service][application] += wireLength;
+        packets[service][application]++;
+
+        if(exporter != null)
+            exporter.update(flow, decoder, forward, timestamp, wireLength);
+    }
+
+    /**
+     * Holds a packet of a flow not yet classified as pending, under the service of its direction
+     */
+    private void addPending(int flow, boolean forward, int service, int wireLength)
+    {
+        // a flow with no packets counted in the table has just been added, so what its slot held is cleared
+        if(flowTable.getPackets(flow) == 0)
+        {
+            pendingBytes[2 * flow] = 0;
+            pendingBytes[2 * flow + 1] = 0;
+            pendingPackets[2 * flow] = 0;
+            pendingPackets[2 * flow + 1] = 0;
+        }
+
+        int direction = forward ? 2 * flow : 2 * flow + 1;
+
+        flowTable.addBytes(flow, forward, wireLength);
+        pendingBytes[direction] += wireLength;
+        pendingPackets[direction]++;
+        pendingServices[direction] = (byte) service;
+    }
+
+    /**
+     * Classifies a payload of a flow not yet classified, moving the flow's pending bytes over to its application once
+     * one is found or the flow has had its payloads looked at
+     * @return the application of the flow, or FlowTable.UNCLASSIFIED if it is still pending
+     */
+    private int classify(PacketDecoder decoder, int flow, boolean forward, long[][] bytes, long[][] packets)
+    {
+        if(decoder.getPayloadLength() <= 0)
+            return FlowTable.UNCLASSIFIED;
+
+        int application = classifier.classify(decoder.getProtocol(), decoder.getBuffer(), decoder.getPayloadOffset(),
+                decoder.getPayloadLength());
+
+        if(application == PayloadClassifier.UNKNOWN)
+        {
+            flowTable.addInspection(flow, forward);
+
+            int up = flowTable.getInspections(flow, true);
+            int down = flowTable.getInspections(flow, false);
+
+            // a flow seen mostly in one direction is given up on once it has had a few more payloads in all
+            if((up < MAX_INSPECTIONS || down < MAX_INSPECTIONS) && up + down < 3 * MAX_INSPECTIONS)
+                return FlowTable.UNCLASSIFIED;
+        }
+
+        flowTable.setApplication(flow, application);
+
+        // each direction's pending bytes go back to the service they were held under
+        for(int direction = 2 * flow; direction <= 2 * flow + 1 && flowTable.getPackets(flow) > 0; direction++)
+        {
+            if(pendingPackets[direction] == 0)
+                continue;
+
+            int service = pendingServices[direction];
+
+            bytes[service][PENDING] -= pendingBytes[direction];
+            packets[service][PENDING] -= pendingPackets[direction];
+            bytes[service][application] += pendingBytes[direction];
+            packets[service][application] += pendingPackets[direction];
+        }
+
+        return application;
+    }
+
+    /**
+     * Splits the bytes and packets tcpdstat gave a service over the applications found in it, in proportion to the
+     * bytes and packets counted here, so the totals stay those of tcpdstat
+     * @param protocol - "tcp" or "udp"
+     * @param service - name of the service as given by tcpdstat
+     * @param byteCount - bytes tcpdstat gave the service
+     * @param packetCount - packets tcpdstat gave the service
+     * @return bytes and packets per application by PayloadClassifier number, all given to unknown when nothing was
+     * counted here for the service
+     */
+    public long[][] split(String protocol, String service, long byteCount, long packetCount)
+    {
+        long[][] result = new long[2][PENDING];
+        long[][] bytes = protocol.equals("tcp") ? tcpBytes : udpBytes;
+        long[][] packets = protocol.equals("tcp") ? tcpPackets : udpPackets;
+        String[] services = protocol.equals("tcp") ? TCP_SERVICES : UDP_SERVICES;
+
+        int index = -1;
+
+        for(int i = 0; i < services.length; i++)
+        {
+            if(services[i].equals(service))
+                index = i;
+        }
+
+        if(index < 0)
+        {
+            result[0][PayloadClassifier.UNKNOWN] = byteCount;
+            result[1][PayloadClassifier.UNKNOWN] = packetCount;
+
+            return result;
+        }
+
+        result[0] = proportion(bytes[index], byteCount);
+        result[1] = proportion(packets[index], packetCount);
+
+        return result;
+    }
+
+    /**
+     * @return a total split in proportion to the counts, pending counts going to unknown and what rounding leaves
+     * over going to the largest share
+     */
+    private static long[] proportion(long[] counts, long total)
+    {
+        long[] shares = new long[PENDING];
+        long counted = 0;
+
+        // counts cannot go below zero, but a share is never given for one that did
+        for(long count : counts)
+        {
+            counted += Math.max(count, 0);
+        }
+
+        if(counted <= 0)
+        {
+            shares[PayloadClassifier.UNKNOWN] = total;
+            return shares;
+        }
+
+        long given = 0;
+        int largest = PayloadClassifier.UNKNOWN;
+
+        for(int application = 0; application <= PENDING; application++)
+        {
+            int share = application == PENDING ? PayloadClassifier.UNKNOWN : application;
+            long amount = (long) ((double) total * Math.max(counts[application], 0) / counted);
+
+            shares[share] += amount;
+            given += amount;
+
+            if(shares[share] > shares[largest])
+                largest = share;
+        }
+
+        shares[largest] += total - given;
+
+        return shares;
+    }
+
+    /**
+     * @return index in TCP_SERVICES of the service tcpdstat names for the ports
+     */
+    private static int tcpService(int sourcePort, int destinationPort)
+    {
+        if(sourcePort == 80)
+            return 0;
+
+        if(destinationPort == 80)
+            return 1;
+
+        int service = tcpServiceOfPort(sourcePort);
+
+        return service < TCP_SERVICES.length - 1 ? service : tcpServiceOfPort(destinationPort);
+    }
+
+    private static int tcpServiceOfPort(int port)
+    {
+        switch(port)
+        {
+            case 3128: return 2;
+            case 25: return 3;
+            case 119: return 4;
+            case 20: case 21: return 5;
+            case 110: return 6;
+            case 143: return 7;
+            case 23: return 8;
+            case 22: return 9;
+            case 53: return 10;
+            case 179: return 11;
+            case 6699: case 6700: case 6701: case 8888: return 12;
+            case 7070: return 13;
+            case 554: return 14;
+            case 8000: return 15;
+            case 5500: return 16;
+            default: return TCP_SERVICES.length - 1;
+        }
+    }
+
+    /**
+     * @return index in UDP_SERVICES of the service tcpdstat names for the ports and destination of the packet
+     */
+    private static int udpService(PacketDecoder decoder)
+    {
+        int first = decoder.getBuffer()[decoder.getDestinationAddressOffset()] & 0xff;
+
+        if(decoder.getIpVersion() == 4 ? (first & 0xf0) == 0xe0 : first == 0xff)
+            return 2;
+
+        int service = udpServiceOfPort(decoder.getSourcePort());
+
+        return service < UDP_SERVICES.length - 1 ? service : udpServiceOfPort(decoder.getDestinationPort());
+    }
+
+    private static int udpServiceOfPort(int port)
+    {
+        if(port == 53)
+            return 0;
+
+        if(port == 520)
+            return 1;
+
+        if(port >= 6970 && port <= 7170)
+            return 3;
+
+        if(port == 27015)
+            return 4;
+
+        if(port == 6112)
+            return 5;
+
+        if(port == 7777)
+            return 6;
+
+        if(port == 26000 || (port >= 27910 && port <= 27961))
+            return 7;
+
+        if(port == 7648 || port == 7649)
+            return 8;
+
+        return UDP_SERVICES.length - 1;
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>ASCII Sequence</h1>
+ * Reusable CharSequence view of ASCII text held in a byte buffer, letting text code such as the public suffix lookup
+ * run over packet bytes without making a String for each name
+ */
+public class AsciiSequence implements CharSequence
+{
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    /**
+     * Points the view at some text
+     * @param buffer - buffer holding the text
+     * @param offset - offset of the text
+     * @param length - length of the text
+     * @return this view
+     */
+    public AsciiSequence set(byte[] buffer, int offset, int length)
+    {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+
+        return this;
+    }
+
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        return (char) (buffer[offset + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return new AsciiSequence().set(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(buffer, offset, length, StandardCharsets.US_ASCII);
+    }
+}
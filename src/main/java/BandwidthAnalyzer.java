@@ -1,4 +1,8 @@
 import java.io.*;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * <h1>Bandwidth Analyzer</h1>
@@ -11,110 +15,275 @@ public class BandwidthAnalyzer {
 
     private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
 
+    private static Pattern QUANTITY_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)(.*)");
+
     private static String TEMP_FOLDER_NAME = "band_temp";
+    private static String RANGE_FOLDER_NAME = "range";
+    private static String SAMPLE_FOLDER_NAME = "sample";
+    private static String DEDUP_FOLDER_NAME = "dedup";
+    private static String UNWRAP_FOLDER_NAME = "unwrap";
 
     public static void main(String[] args)
     {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the analysis with the given command line, as main() does, without ending the JVM so several analyses can
+     * be run one after another
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options = null;
+        TimeRange range = null;
+        PacketSampler sampler = null;
+        DuplicateFilter duplicates = null;
+        CaptureShards shard = null;
+        CaptureUnwrapper unwrapper = null;
+
+        try {
+            options = AnalyserOptions.parse(args, "index", "cache", "quiet", "unwrap", "per-vlan", "dedup", "histograms");
+            range = TimeRange.parse(options);
+            sampler = PacketSampler.parse(options, "packet");
+            duplicates = DuplicateFilter.parse(options);
+            shard = CaptureShards.parse(options);
+            unwrapper = CaptureUnwrapper.parse(options);
+            ReportWriter.checkFormat(options);
+            CaptureCache.checkOptions(options);
+            Metrics.checkOptions(options);
+            ConsoleLog.configure(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printInstructions();
+            return false;
+        }
+
+        args = options.getArguments();
+
+        //set when a file or step fails, the rest of the analysis still being carried out
+        boolean failed = false;
+
         if(args.length == 0)
         {
             System.out.println("No arguments provided. Please do one of the following:");
-            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
         }
         else if(args.length == 2)
         {
             if(args[0].equals("-uplink") || args[0].equals("-downlink"))
             {
                 boolean doUplinkAnalysis = args[0].equals("-uplink");
-                System.out.println(DATA_DISPLAY_SEPARATOR);
+                ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
                 String folderName = args[1];
 
+                //the dumps in the provided folder, a worker analysing only its shard of them in a temp folder of its own
+                File folder = new File(folderName);
+                File[] files = folder.listFiles();
+                String tempFolderName = folderName + "/" + TEMP_FOLDER_NAME;
+
+                if(shard != null)
+                {
+                    files = shard.select(files);
+                    tempFolderName += "_" + shard.getIndex();
+                }
+
                 //setup folder to hold temporary files during analysis
 
-                File tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+                File tempFolder = new File(tempFolderName);
 
                 if(tempFolder.exists())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Deleting temp folder in : " + folderName);
+                    ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                    ConsoleLog.info("Deleting temp folder in : " + folderName);
                     deleteDirectory(tempFolder);
                 }
 
-                tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+                tempFolder = new File(tempFolderName);
 
-                System.out.println(DATA_DISPLAY_SEPARATOR);
-                printCurrentTime();
+                ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
                 if(tempFolder.mkdir())
                 {
-                    System.out.println("Created temp folder in : " + folderName);
+                    ConsoleLog.info("Created temp folder in : " + folderName);
                 }
                 else
                 {
-                    System.out.println("Failed to make temp folder in : " + folderName);
-                    System.exit(1);
+                    ConsoleLog.error("Failed to make temp folder in : " + folderName);
+                    ConsoleLog.flush();
+                    return false;
                 }
 
-                //iterate through the dumps in the provided folder in order to filter them
-                File folder = new File(folderName);
+                //index of the capture times, and folders for the copies of the packets within a time range, without
+                //duplicates or in a sample
+                CaptureIndex index = CaptureIndex.load(new File(folderName), options);
+                File rangeFolder = new File(tempFolder, RANGE_FOLDER_NAME);
+                File sampleFolder = new File(tempFolder, SAMPLE_FOLDER_NAME);
+                File dedupFolder = new File(tempFolder, DEDUP_FOLDER_NAME);
+                File unwrapFolder = new File(tempFolder, UNWRAP_FOLDER_NAME);
+
+                //filtered captures and tcpdstat outputs kept from earlier runs
+                CaptureCache cache = CaptureCache.load(new File(folderName), options);
 
-                for(File file : folder.listFiles())
+                //time of each tool and stage, written out as the analysis goes when asked for
+                Metrics metrics = Metrics.start(doUplinkAnalysis ? "uplink" : "downlink", options);
+                Metrics.Stage rangeStage = metrics.stage("range");
+                Metrics.Stage sampleStage = metrics.stage("sample");
+                Metrics.Stage dedupStage = metrics.stage("dedup");
+                Metrics.Stage unwrapStage = metrics.stage("unwrap");
+
+                ConsoleLog.startProgress("Filtering captures", files);
+
+                //iterate through the dumps in order to filter them
+                for(File file : files)
                 {
                     if(file.isFile() && !file.isHidden())
                     {
-                        System.out.println(DATA_DISPLAY_SEPARATOR);
-                        printCurrentTime();
-                        System.out.println("Preparing to process file : " + file.getName());
+                        ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                        ConsoleLog.info("Preparing to process file : " + file.getName());
+
+                        long fileStart = System.nanoTime();
+                        File capture = index.limitToRange(file, range, rangeFolder);
+
+                        rangeStage.addTime(System.nanoTime() - fileStart);
+
+                        if(capture == null)
+                        {
+                            ConsoleLog.info("No packets within the time range, skipping file : " + file.getName());
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+
+                        //copies of the same packets, as from two taps, are left out before sampling so they are not
+                        //counted twice
+                        if(duplicates != null)
+                        {
+                            long dedupStart = System.nanoTime();
+                            File deduped = duplicates.dedupCapture(capture, dedupFolder);
+
+                            dedupStage.addTime(System.nanoTime() - dedupStart);
+                            ICMPAnalyser.deleteCopy(capture, file, deduped);
+                            capture = deduped;
+
+                            if(capture == null)
+                            {
+                                ConsoleLog.error("Failed to leave out the duplicate packets of file : " + file.getName());
+                                failed = true;
+                                ConsoleLog.fileDone(file);
+                                continue;
+                            }
+                        }
+
+                        if(sampler != null)
+                        {
+                            long sampleStart = System.nanoTime();
+                            File sampled = sampler.sampleCapture(capture, sampleFolder);
+
+                            sampleStage.addTime(System.nanoTime() - sampleStart);
+                            ICMPAnalyser.deleteCopy(capture, file, sampled);
+                            capture = sampled;
+
+                            if(capture == null)
+                            {
+                                ConsoleLog.fileDone(file);
+                                continue;
+                            }
+                        }
+
+                        File[] captures = {capture};
+
+                        //the packets inside VLAN tags and tunnels are copied out for tcpdump to see, a copy per VLAN
+                        //when broken down by VLAN
+                        if(unwrapper != null)
+                        {
+                            long unwrapStart = System.nanoTime();
+                            captures = unwrapper.unwrapCapture(capture, unwrapFolder);
+
+                            unwrapStage.addTime(System.nanoTime() - unwrapStart);
+                            ICMPAnalyser.deleteCopy(capture, file, null);
+
+                            if(captures == null)
+                            {
+                                ConsoleLog.error("Failed to unwrap the packets of file : " + file.getName());
+                                failed = true;
+                                ConsoleLog.fileDone(file);
+                                continue;
+                            }
+                        }
+
+                        for(File unwrapped : captures)
+                        {
+                            if(!generateRequiredLinkFiles(doUplinkAnalysis, unwrapped.getParent(), unwrapped.getName(), tempFolderName,
+                                    cache, metrics))
+                                failed = true;
+
+                            ICMPAnalyser.deleteCopy(unwrapped, file, null);
+                        }
 
-                        generateRequiredLinkFiles(doUplinkAnalysis, folderName, file.getName(), folderName + "/" + TEMP_FOLDER_NAME);
+                        metrics.fileFinished(file, System.nanoTime() - fileStart);
+                        ConsoleLog.fileDone(file);
                     }
                 }
 
+                index.save();
+
                 //do analysis on files in the temp folder
 
-                System.out.println(DATA_DISPLAY_SEPARATOR);
-                System.out.println(DATA_DISPLAY_SEPARATOR);
+                ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
-                String analysedDataFileName = null;
+                String[] columnNames = reportColumns(sampler, options);
 
-                if(doUplinkAnalysis)
-                {
-                    analysedDataFileName = "uplink-analysis.csv";
-                }
-                else
-                {
-                    analysedDataFileName = "downlink-analysis.csv";
-                }
+                byte[] columnTypes = new byte[columnNames.length];
+                Arrays.fill(columnTypes, ReportTable.STRING);
 
-                FileWriter analysedDataWriter = null;
+                ReportTable table = new ReportTable(columnNames, columnTypes);
 
-                try {
-                    analysedDataWriter = new FileWriter(analysedDataFileName);
+                File[] filteredFiles = tempFolder.listFiles();
 
-                    //the column heads
-                    analysedDataWriter.append("Id, StartDay, StartTime, EndDay, EndTime, TotalTime(s), TotalCapSize, Caplen (bytes), AvgRate, PeakRate");
-                    analysedDataWriter.append("\n");
+                //lengths of the link's packets and the time between them, read from the filtered files when asked for
+                TrafficHistograms histograms = options.has("histograms") ? new TrafficHistograms() : null;
 
-                    for(File file : tempFolder.listFiles())
+                ConsoleLog.startProgress("Running tcpdstat", filteredFiles);
+
+                for(File file : filteredFiles)
+                {
+                    if(file.isFile() && !file.isHidden())
                     {
-                        if(file.isFile() && !file.isHidden())
-                        {
-                            System.out.println(DATA_DISPLAY_SEPARATOR);
-                            printCurrentTime();
-                            System.out.println("Analysing file : " + file.getName());
+                        ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                        ConsoleLog.info("Analysing file : " + file.getName());
 
-                            doAnalysisForGeneratedFiles(folderName + "/" + TEMP_FOLDER_NAME, file.getName(), analysedDataWriter);
-                        }
-                    }
+                        String vlan = CaptureUnwrapper.isPerVlan(options) ? CaptureUnwrapper.vlanOf(file.getName(), options) : null;
 
-                    analysedDataWriter.flush();
-                    analysedDataWriter.close();
+                        if(!doAnalysisForGeneratedFiles(tempFolderName, file.getName(), table, vlan, sampler, cache, metrics))
+                            failed = true;
 
-                } catch (IOException e) {
-                    e.printStackTrace();
+                        if(histograms != null && !countHistograms(file, histograms, metrics))
+                            failed = true;
+
+                        ConsoleLog.fileDone(file);
+                    }
                 }
 
+                Metrics.Stage writeStage = metrics.stage("write");
+                long writeStart = System.nanoTime();
+
+                //a worker's rows are already complete, the reducer only putting the shards' rows together
+                if(options.has("partial"))
+                    PartialAggregate.write(table, new File(options.getString("partial", null)));
+                else
+                    writeReport(table, doUplinkAnalysis, options);
+
+                if(histograms != null)
+                    histograms.write(doUplinkAnalysis ? "uplink-histograms" : "downlink-histograms", sampler, options);
+
+                writeStage.addTime(System.nanoTime() - writeStart);
+                metrics.finish();
+
                 //delete all evidence
                 deleteDirectory(tempFolder);
 
@@ -122,14 +291,79 @@ public class BandwidthAnalyzer {
             else
             {
                 System.out.println("Wrong arguments provided. Please do one of the following:");
-                System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+                printInstructions();
+                return false;
             }
         }
         else
         {
             System.out.println("More arguments provided than needed. Please do one of the following:");
-            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
+        }
+
+        //every line logged is printed before the caller goes on
+        ConsoleLog.flush();
+
+        return !failed;
+    }
+
+    /**
+     * Prints the arguments and options the analyser takes
+     */
+    private static void printInstructions()
+    {
+        System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+        System.out.println(ReportWriter.FORMAT_OPTION_INSTRUCTION);
+        System.out.println(TimeRange.OPTION_INSTRUCTION);
+        System.out.println(PacketSampler.OPTION_INSTRUCTION);
+        System.out.println(DuplicateFilter.OPTION_INSTRUCTION);
+        System.out.println(CaptureShards.OPTION_INSTRUCTION);
+        System.out.println(CaptureCache.OPTION_INSTRUCTION);
+        System.out.println(CaptureUnwrapper.OPTION_INSTRUCTION);
+        System.out.println(TrafficHistograms.OPTION_INSTRUCTION);
+        System.out.println(Metrics.OPTION_INSTRUCTION);
+        System.out.println(ConsoleLog.OPTION_INSTRUCTION);
+    }
+
+    /**
+     * @param sampler - sampler the files are analysed with, or null if all packets are analysed
+     * @param options - the options given to the analyser
+     * @return the column heads of the report, with the confidence interval of the capture size when sampling and the
+     * vlan of each file when broken down by VLAN
+     */
+    public static String[] reportColumns(PacketSampler sampler, AnalyserOptions options)
+    {
+        String[] columnNames = {"Id", "StartDay", "StartTime", "EndDay", "EndTime", "TotalTime(s)", "TotalCapSize",
+                "Caplen (bytes)", "AvgRate", "PeakRate", "TotalCapSize low", "TotalCapSize high"};
+
+        if(sampler == null)
+            columnNames = Arrays.copyOf(columnNames, 10);
+
+        return CaptureUnwrapper.reportColumns(columnNames, options);
+    }
+
+    /**
+     * Writes the rows of the analysed files to the uplink or downlink report
+     * @param table - a row per file, as in a partial aggregate
+     * @param isUplinkAnalysis - whether uplink or downlink analysis was done
+     * @param options - the options given to the analyser
+     */
+    public static void writeReport(ReportTable table, boolean isUplinkAnalysis, AnalyserOptions options)
+    {
+        String reportName = null;
+
+        if(isUplinkAnalysis)
+        {
+            reportName = "uplink-analysis";
         }
+        else
+        {
+            reportName = "downlink-analysis";
+        }
+
+        table.sort();
+        ReportWriter.write(table, reportName, options);
     }
 
     /**
@@ -138,90 +372,147 @@ public class BandwidthAnalyzer {
      * @param folderName - folder containing the pcap file
      * @param fileName - the pcap file to be filtered
      * @param tempFolderName - the folder to write the filtered pcap file to
+     * @param cache - cache the filtered file is reused from or kept in
+     * @param metrics - metrics timing the runs of tcpdump
+     * @return false if tcpdump failed on the file
      */
-    public static void generateRequiredLinkFiles(boolean isUplinkAnalysis, String folderName, String fileName, String tempFolderName)
+    public static boolean generateRequiredLinkFiles(boolean isUplinkAnalysis, String folderName, String fileName, String tempFolderName,
+                                                    CaptureCache cache, Metrics metrics)
     {
         //generate the right filter string depending on whether uplink or downlink analysis is being done
 
         String filterString = null;
         if(isUplinkAnalysis)
         {
-            filterString = "(src net 192.168.0.0/16 or 10.0.0.0/8) and not ((src net 192.168.0.0/16 or 10.0.0.0/8) and (dst net 192.168.0.0/16 or 10.0.0.0/8))";
+            filterString = "(src net 192.168.0.0/16 or 10.0.0.0/8) and " + CaptureCache.NOT_LOCAL_FILTER;
         }
         else
         {
-            filterString = "(dst net 192.168.0.0/16 or 10.0.0.0/8) and not ((src net 192.168.0.0/16 or 10.0.0.0/8) and (dst net 192.168.0.0/16 or 10.0.0.0/8))";
+            filterString = "(dst net 192.168.0.0/16 or 10.0.0.0/8) and " + CaptureCache.NOT_LOCAL_FILTER;
+        }
+
+        File inputFile = new File(folderName + "/" + fileName);
+        File outputFile = new File(tempFolderName + "/temp_" + fileName);
+        String outputKey = cache.key(inputFile, "tcpdump", filterString);
+
+        if(cache.restore(outputKey, outputFile))
+        {
+            ConsoleLog.info("Reusing cached tcpdump output for file: " + folderName + "/" + fileName);
+            return true;
         }
 
-        ProcessBuilder processBuilder = new ProcessBuilder("tcpdump", filterString, "-r", (folderName + "/" + fileName), "-w",
-                (tempFolderName + "/temp_" + fileName));
+        //the link filters only narrow down the traffic left once local traffic is left out, so a copy of that traffic
+        //kept by the port analysis gives the same output from a smaller read
+        File notLocalFile = cache.find(cache.key(inputFile, "tcpdump", CaptureCache.NOT_LOCAL_FILTER));
+
+        if(notLocalFile != null)
+            inputFile = notLocalFile;
+
+        ProcessBuilder processBuilder = new ProcessBuilder("tcpdump", filterString, "-r", inputFile.getPath(), "-w",
+                outputFile.getPath());
 
         try
         {
-            printCurrentTime();
-            System.out.println("Processing file : " + fileName);
+            ConsoleLog.info("Processing file : " + fileName);
 
+            long toolStart = System.nanoTime();
             Process process = processBuilder.start();
 
             int errorCode = process.waitFor();
 
-            printCurrentTime();
+            metrics.stage("tcpdump").addTime(System.nanoTime() - toolStart);
+            metrics.stage("tcpdump").count(0, inputFile.length());
             if(errorCode == 0)
             {
-                System.out.println("No error occured on running tcpdump command for file: " + folderName + "/" + fileName);
+                ConsoleLog.info("No error occured on running tcpdump command for file: " + folderName + "/" + fileName);
+                cache.store(outputKey, outputFile);
             }
             else
             {
-                System.out.println("An error occurred while running tcpdump command for file: " + folderName + "/" + fileName);
+                ConsoleLog.error("An error occurred while running tcpdump command for file: " + folderName + "/" + fileName);
 
                 BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
                 String line = null;
 
                 while((line = bufferedReader.readLine()) != null)
                 {
-                    System.out.println(line);
+                    ConsoleLog.error(line);
                 }
+
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        return true;
     }
 
     /**
      * Applies tcpdstat to a pcap file in order to read the stats returned and write the required fields to file
      * @param folderName - the folder containing the pcap file
      * @param fileName - the name of the pcap file
-     * @param writer - writer to file for the required fields
+     * @param table - table the required fields are added to as a row
+     * @param vlan - VLAN of the pcap file's packets, or null when the report is not broken down by VLAN
+     * @param sampler - sampler the pcap file's packets were picked with, or null if it holds all packets
+     * @param cache - cache the tcpdstat output is reused from or kept in
+     * @param metrics - metrics timing the runs of tcpdstat
+     * @return false if tcpdstat failed on the file
      */
-    public static void doAnalysisForGeneratedFiles(String folderName, String fileName, FileWriter writer)
+    public static boolean doAnalysisForGeneratedFiles(String folderName, String fileName, ReportTable table, String vlan,
+                                                      PacketSampler sampler, CaptureCache cache, Metrics metrics)
     {
         ProcessBuilder processBuilder = new ProcessBuilder("tcpdstat", folderName + "/" + fileName);
 
+        //tcpdstat prints the file name, so it is part of the key
+        String outputKey = cache.key(new File(folderName + "/" + fileName), "tcpdstat", fileName);
+        byte[] output = cache.restoreOutput(outputKey);
+
         try {
-            printCurrentTime();
-            System.out.println("Processing file : " + fileName);
-            Process process = processBuilder.start();
+            ConsoleLog.info("Processing file : " + fileName);
 
-            int errorCode = process.waitFor();
+            Process process = null;
+            int errorCode = 0;
+
+            if(output == null)
+            {
+                long toolStart = System.nanoTime();
+                process = processBuilder.start();
+
+                //read the output before waiting so a long output cannot fill the pipe
+                output = CaptureCache.readFully(process.getInputStream());
+                errorCode = process.waitFor();
+
+                metrics.stage("tcpdstat").addTime(System.nanoTime() - toolStart);
+                metrics.stage("tcpdstat").count(0, new File(folderName + "/" + fileName).length());
+
+                if(errorCode == 0)
+                    cache.storeOutput(outputKey, output);
+            }
 
             BufferedReader bufferedReader = null;
             String line = null;
 
             if(errorCode == 0)
             {
-                printCurrentTime();
-                System.out.println("No error occurred on running tcpdstat command for file : " + fileName);
+                if(process == null)
+                    ConsoleLog.info("Reusing cached tcpdstat output for file : " + fileName);
+                else
+                    ConsoleLog.info("No error occurred on running tcpdstat command for file : " + fileName);
 
-                printCurrentTime();
-                System.out.println("Printing out obtained input : ");
+                ConsoleLog.debug("Printing out obtained input : ");
 
                 //display the dimensions to be stored
-                System.out.println("Id, StartDay, StartTime, EndDay, EndTime, TotalTime(s), TotalCapSize, Caplen (bytes), AvgRate, PeakRate");
-                bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                ConsoleLog.debug("Id, StartDay, StartTime, EndDay, EndTime, TotalTime(s), TotalCapSize, Caplen (bytes), AvgRate, PeakRate");
+                bufferedReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output)));
 
-                String[] dataFields = new String[10];
+                String[] dataFields = new String[sampler == null ? 10 : 12];
+                long packetCount = 0;
 
                 int lineCounter = 1;
                 while((line = bufferedReader.readLine()) != null)
@@ -260,6 +551,12 @@ public class BandwidthAnalyzer {
                         dataFields[6] = tempArr[1];
                         dataFields[7] = tempArr[3];
 
+                    }
+                    else if (lineCounter == 9 && tempArr.length > 3 && tempArr[3].matches("\\d+"))
+                    {
+                        //get the number of packets
+                        packetCount = Long.parseLong(tempArr[3]);
+
                     }
                     else if (lineCounter == 10)
                     {
@@ -273,38 +570,121 @@ public class BandwidthAnalyzer {
 
                 }
 
+                //scale the sizes and rates of a sampled file up to the whole file
+                if(sampler != null)
+                {
+                    dataFields[10] = scaleQuantity(dataFields[6], sampler.lowerFactor(packetCount));
+                    dataFields[11] = scaleQuantity(dataFields[6], sampler.upperFactor(packetCount));
+                    dataFields[6] = scaleQuantity(dataFields[6], sampler.getRate());
+                    dataFields[8] = scaleQuantity(dataFields[8], sampler.getRate());
+                    dataFields[9] = scaleQuantity(dataFields[9], sampler.getRate());
+                }
+
                 String outStr = dataFields[0] + ", " + dataFields[1] + ", " + dataFields[2] + ", " + dataFields[3] + ", " + dataFields[4] + ", "
                         + dataFields[5] + ", " + dataFields[6] + ", " + dataFields[7] + ", " + dataFields[8] + ", " + dataFields[9];
 
-                System.out.println(outStr);
-                writer.append(outStr);
-                writer.append("\n");
+                ConsoleLog.row(outStr);
+
+                table.newRow();
+
+                if(vlan != null)
+                    table.add(vlan);
+
+                for(String dataField : dataFields)
+                {
+                    table.add(dataField);
+                }
             }
             else
             {
-                printCurrentTime();
-                System.out.println("An error occurred on running the tcpdstat command for file : " + fileName);
+                ConsoleLog.error("An error occurred on running the tcpdstat command for file : " + fileName);
 
                 bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
 
                 while((line = bufferedReader.readLine()) != null)
                 {
-                    System.out.println(line);
+                    ConsoleLog.error(line);
                 }
 
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        return true;
     }
 
     /**
-     * Prints the current time
+     * Reads a filtered pcap file, counting its packets in the histograms
+     * @param file - the filtered pcap file
+     * @param histograms - histograms the packets are counted in
+     * @param metrics - metrics counting and timing the packets read
+     * @return false if the file could not be read
      */
-    public static void printCurrentTime() {
-        ICMPAnalyser.printCurrentTime();}
+    public static boolean countHistograms(File file, TrafficHistograms histograms, Metrics metrics)
+    {
+        Metrics.Stage histogramStage = metrics.stage("histograms");
+        PacketDecoder decoder = new PacketDecoder();
+        PcapReader reader = null;
+
+        try {
+            reader = new PcapReader(file);
+
+            long histogramStart = System.nanoTime();
+
+            histograms.startFile();
+
+            while(reader.next())
+            {
+                histogramStage.count(1, reader.getCapturedLength());
+
+                if(decoder.decode(reader.getLinkType(), reader.getBuffer(), reader.getPacketOffset(), reader.getCapturedLength()))
+                    histograms.record(decoder, reader.getTimestampMicros(), reader.getOriginalLength());
+            }
+
+            histogramStage.addTime(System.nanoTime() - histogramStart);
+        } catch (IOException e) {
+            ConsoleLog.error("An error occurred on reading the packets of file : " + file.getName());
+            e.printStackTrace();
+            return false;
+        } finally {
+            if(reader != null)
+            {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Multiplies a quantity given by tcpdstat with its unit, such as 2.93MB or 14.79Kbps
+     * @param quantity - the quantity
+     * @param factor - the factor to multiply it by
+     * @return the multiplied quantity with the same unit, or the quantity as it was if it does not start with a number
+     */
+    public static String scaleQuantity(String quantity, double factor)
+    {
+        if(quantity == null)
+            return null;
+
+        Matcher matcher = QUANTITY_PATTERN.matcher(quantity);
+
+        if(!matcher.matches())
+            return quantity;
+
+        return String.format(Locale.ROOT, "%.2f", Double.parseDouble(matcher.group(1)) * factor) + matcher.group(2);
+    }
 
     /**
      * Deletes the provided directory or file
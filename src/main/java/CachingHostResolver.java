@@ -0,0 +1,358 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Caching Host Resolver</h1>
+ * Wraps another resolver with a pool of lookup threads, a timeout per lookup, an in-memory LRU of recent results and a
+ * cache file backing it, which keeps results between runs until their time to live runs out. Addresses missing from
+ * the LRU are looked for in the cache file, a single read for all the misses of a call, and new results are appended
+ * to it as they are found. Addresses with no name are cached too, for a shorter time, while failed or timed out
+ * lookups are not cached at all.
+ * <p>
+ * The system resolver cannot be interrupted, so a lookup which times out is given up on and its thread left to finish
+ * on its own, a new thread taking its place. At most STUCK_THREAD_FACTOR times the lookup threads are kept; once that
+ * many are stuck, the addresses left are not looked up.
+ */
+public class CachingHostResolver implements HostResolver, Closeable
+{
+    private static final String NO_NAME = "-";
+
+    private static final int STUCK_THREAD_FACTOR = 4;
+
+    private HostResolver delegate;
+    private File cacheFile;
+
+    private int threads;
+    private long timeoutMillis;
+    private long positiveTtlMillis;
+    private long negativeTtlMillis;
+
+    private ThreadPoolExecutor executor;
+    private LinkedHashMap<String, CacheEntry> recentEntries;
+
+    /**
+     * Creates the resolver
+     * @param delegate - resolver used for addresses missing from the caches
+     * @param cacheFile - file results are kept in between runs
+     * @param threads - number of lookups that may run at the same time
+     * @param timeoutMillis - how long to wait for a single lookup
+     * @param capacity - number of results kept in memory
+     * @param positiveTtlMillis - how long a found name stays valid
+     * @param negativeTtlMillis - how long the absence of a name stays valid
+     */
+    public CachingHostResolver(HostResolver delegate, File cacheFile, int threads, long timeoutMillis, final int capacity,
+                               long positiveTtlMillis, long negativeTtlMillis)
+    {
+        if(threads < 1 || capacity < 1)
+            throw new IllegalArgumentException("Resolver threads and cache size must be at least 1 but were : " + threads + ", " + capacity);
+
+        this.delegate = delegate;
+        this.cacheFile = cacheFile;
+        this.threads = threads;
+        this.timeoutMillis = timeoutMillis;
+        this.positiveTtlMillis = positiveTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+
+        recentEntries = new LinkedHashMap<String, CacheEntry>(Math.min(capacity, 1 << 16), 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+
+        // threads are made as lookups start, so one stuck in the system resolver is replaced rather than waited on,
+        // and lookups stuck there must not keep the JVM alive
+        executor = new ThreadPoolExecutor(0, threads * STUCK_THREAD_FACTOR, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "host-resolver");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    @Override
+    public String resolve(String address)
+    {
+        return resolveAll(Collections.singleton(address)).get(address);
+    }
+
+    /**
+     * Resolves many addresses, looking up those missing from the caches concurrently
+     * @param addresses - the addresses to resolve
+     * @return map of address to host name, the name being null for addresses without one
+     */
+    public HashMap<String, String> resolveAll(Collection<String> addresses)
+    {
+        long now = System.currentTimeMillis();
+
+        HashMap<String, String> results = new HashMap<String, String>();
+        HashSet<String> misses = new HashSet<String>();
+
+        for(String address : addresses)
+        {
+            CacheEntry entry = recentEntries.get(address);
+
+            if(entry != null && entry.expiry > now)
+                results.put(address, entry.host);
+            else
+                misses.add(address);
+        }
+
+        if(!misses.isEmpty())
+            readCacheFile(misses, results, now);
+
+        if(!misses.isEmpty())
+            lookup(misses, results, now);
+
+        return results;
+    }
+
+    /**
+     * Fills in results from the cache file for the addresses missed in memory
+     * @param misses - addresses still to resolve, found addresses are removed
+     * @param results - map the names found are put into
+     * @param now - current time in milliseconds
+     */
+    private void readCacheFile(HashSet<String> misses, HashMap<String, String> results, long now)
+    {
+        if(!cacheFile.isFile())
+            return;
+
+        BufferedReader bufferedReader = null;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(cacheFile));
+            String line = null;
+
+            // later lines replace earlier ones for the same address
+            while((line = bufferedReader.readLine()) != null)
+            {
+                String[] strArr = line.split("\t");
+
+                if(strArr.length != 3 || !misses.contains(strArr[0]))
+                    continue;
+
+                long expiry = Long.parseLong(strArr[1]);
+
+                if(expiry <= now)
+                    continue;
+
+                String host = strArr[2].equals(NO_NAME) ? null : strArr[2];
+
+                recentEntries.put(strArr[0], new CacheEntry(host, expiry));
+                results.put(strArr[0], host);
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(bufferedReader);
+        }
+
+        misses.removeAll(results.keySet());
+    }
+
+    /**
+     * Looks up addresses with the delegate resolver, keeping up to the given number of lookups going and giving each
+     * the timeout from its own start. The results are appended to the cache file
+     * @param misses - addresses to look up
+     * @param results - map the names found are put into
+     * @param now - current time in milliseconds
+     */
+    private void lookup(HashSet<String> misses, HashMap<String, String> results, long now)
+    {
+        ArrayDeque<String> pending = new ArrayDeque<String>(misses);
+        ExecutorCompletionService<String> completions = new ExecutorCompletionService<String>(executor);
+
+        // lookups going, in the order they started, with their addresses and start times
+        LinkedHashMap<Future<String>, String> running = new LinkedHashMap<Future<String>, String>();
+        HashMap<Future<String>, Long> starts = new HashMap<Future<String>, Long>();
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        BufferedWriter writer = null;
+
+        try {
+            writer = new BufferedWriter(new FileWriter(cacheFile, true));
+
+            while(!pending.isEmpty() || !running.isEmpty())
+            {
+                while(running.size() < threads && !pending.isEmpty())
+                {
+                    final String address = pending.poll();
+
+                    try {
+                        Future<String> future = completions.submit(new Callable<String>()
+                        {
+                            @Override
+                            public String call() throws Exception
+                            {
+                                return delegate.resolve(address);
+                            }
+                        });
+
+                        running.put(future, address);
+                        starts.put(future, System.nanoTime());
+                    } catch (RejectedExecutionException e) {
+                        // every thread is stuck, so the addresses left are not looked up
+                        ConsoleLog.error("All host lookup threads are stuck, leaving " + (pending.size() + 1) + " addresses unresolved");
+                        results.put(address, null);
+
+                        for(String left : pending)
+                        {
+                            results.put(left, null);
+                        }
+
+                        pending.clear();
+                    }
+                }
+
+                if(running.isEmpty())
+                    break;
+
+                // the lookup started first is the first to run out of time
+                Future<String> oldest = running.keySet().iterator().next();
+                long wait = starts.get(oldest) + timeoutNanos - System.nanoTime();
+                Future<String> future = wait > 0 ? completions.poll(wait, TimeUnit.NANOSECONDS) : null;
+
+                if(future == null)
+                {
+                    // given up on, its thread being left to the system resolver and replaced for the next lookup
+                    oldest.cancel(true);
+                    results.put(running.remove(oldest), null);
+                    starts.remove(oldest);
+                    continue;
+                }
+
+                String address = running.remove(future);
+                starts.remove(future);
+
+                // a lookup given up on may still turn up here once cancelled
+                if(address == null)
+                    continue;
+
+                try {
+                    String host = future.get();
+                    long expiry = now + (host == null ? negativeTtlMillis : positiveTtlMillis);
+
+                    recentEntries.put(address, new CacheEntry(host, expiry));
+                    results.put(address, host);
+
+                    writer.append(address + "\t" + expiry + "\t" + (host == null ? NO_NAME : host));
+                    writer.append("\n");
+                } catch (ExecutionException e) {
+                    results.put(address, null);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for(Future<String> future : running.keySet())
+            {
+                future.cancel(true);
+            }
+
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Stops the lookup threads and rewrites the cache file without expired entries, a line at a time
+     */
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+
+        if(!cacheFile.isFile())
+            return;
+
+        long now = System.currentTimeMillis();
+        File compacted = new File(cacheFile.getPath() + ".tmp");
+        BufferedReader bufferedReader = null;
+        BufferedWriter writer = null;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(cacheFile));
+            writer = new BufferedWriter(new FileWriter(compacted));
+            String line = null;
+
+            while((line = bufferedReader.readLine()) != null)
+            {
+                String[] strArr = line.split("\t");
+
+                if(strArr.length == 3 && Long.parseLong(strArr[1]) > now)
+                {
+                    writer.append(line);
+                    writer.append("\n");
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            closeQuietly(writer);
+            compacted.delete();
+            return;
+        } finally {
+            closeQuietly(bufferedReader);
+            closeQuietly(writer);
+        }
+
+        if(!cacheFile.delete() || !compacted.renameTo(cacheFile))
+            ConsoleLog.error("Failed to rewrite the DNS cache file : " + cacheFile.getPath());
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A cached result with the time it expires at
+     */
+    private static class CacheEntry
+    {
+        private String host;
+        private long expiry;
+
+        private CacheEntry(String host, long expiry)
+        {
+            this.host = host;
+            this.expiry = expiry;
+        }
+    }
+}
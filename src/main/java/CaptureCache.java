@@ -0,0 +1,522 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * <h1>Capture Cache</h1>
+ * Cache of the filtered captures and tool outputs the analysers get from tcpdump, tcpdstat and ipsumdump, so running
+ * the same or another analyser over the same captures again can reuse them instead of running the tools again. An
+ * entry is found by a key made from the content of the input, the tool with its version and the tool's arguments, so
+ * an entry is never reused for a changed capture, filter or tool, wherever the capture is kept.
+ * <p>
+ * The content key of a capture is a SHA-256 hash of the file, remembered with the file's size and modification time
+ * so unchanged captures are only hashed once. The output of a tool run through the cache is keyed by the key it was
+ * stored under, so a filtered capture is not hashed again before being passed on to the next tool. The version of a
+ * tool is taken as the path, size and modification time of its executable, as tcpdstat has no way of printing it.
+ * <p>
+ * Entries are files in the cache folder, each written under a temporary name and renamed into place so processes
+ * analysing shards of the same folder can share the cache. The least recently used entries are deleted once the
+ * entries take up more than the size given.
+ */
+public class CaptureCache
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally keep the filtered captures and tool outputs to reuse in later runs " +
+            "i.e --cache, in a folder of at most a size in MB i.e --cache-dir cache_folder --cache-size 2048";
+
+    public static final String CACHE_FOLDER_NAME = ".analysis-cache";
+
+    // tcpdump filter leaving out traffic between two local addresses, which the filters of all the analysers build on
+    public static final String NOT_LOCAL_FILTER = "not ((src net 192.168.0.0/16 or 10.0.0.0/8) and (dst net 192.168.0.0/16 or 10.0.0.0/8))";
+
+    // changed along with the way keys are made or entries are stored, so older entries are no longer found
+    private static final String CACHE_VERSION = "1";
+
+    private static final String ENTRY_EXTENSION = ".entry";
+    private static final String CONTENT_KEYS_FILE_NAME = "content-keys";
+
+    private File cacheFolder;
+    private boolean enabled;
+    private long maxBytes;
+
+    // content keys by file path, with the size and modification time each was worked out for
+    private HashMap<String, String[]> contentKeys = new HashMap<String, String[]>();
+
+    // keys of the tool outputs restored or stored through this cache, by file path
+    private HashMap<String, String> outputKeys = new HashMap<String, String>();
+
+    private HashMap<String, String> toolVersions = new HashMap<String, String>();
+
+    /**
+     * Loads the cache for a folder of captures, the cache being used when --cache is given
+     * @param folder - folder holding the capture files, in which the cache is kept unless given --cache-dir
+     * @param options - the options given to the analyser
+     * @return the cache, which runs every tool again when not enabled
+     */
+    public static CaptureCache load(File folder, AnalyserOptions options)
+    {
+        File cacheFolder = options.has("cache-dir") ? new File(options.getString("cache-dir", null)) : new File(folder, CACHE_FOLDER_NAME);
+
+        return new CaptureCache(cacheFolder, options.has("cache"), options.getLong("cache-size", 2048) << 20);
+    }
+
+    /**
+     * Checks the cache options, so a mistake is found before any capture is read
+     * @param options - the options given to the analyser
+     */
+    public static void checkOptions(AnalyserOptions options)
+    {
+        if(options.getLong("cache-size", 2048) < 1)
+            throw new IllegalArgumentException("Option --cache-size must be at least 1 MB");
+    }
+
+    /**
+     * Creates a cache
+     * @param cacheFolder - folder the entries are kept in
+     * @param enabled - whether to use the cache at all
+     * @param maxBytes - most bytes the entries may take up before the least recently used are deleted
+     */
+    public CaptureCache(File cacheFolder, boolean enabled, long maxBytes)
+    {
+        this.cacheFolder = cacheFolder;
+        this.maxBytes = maxBytes;
+        this.enabled = enabled && (cacheFolder.isDirectory() || cacheFolder.mkdirs());
+
+        // the size may have been lowered since the last run
+        if(this.enabled)
+        {
+            readContentKeys();
+            evict();
+        }
+    }
+
+    /**
+     * @return true if tool outputs are kept and reused
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Makes the key of the output of a tool run over a file
+     * @param input - the file the tool reads
+     * @param tool - name of the tool's executable
+     * @param arguments - the arguments which change the output, leaving out where the input and output are
+     * @return the key, or null if the cache is not enabled or the input or tool cannot be read
+     */
+    public String key(File input, String tool, String... arguments)
+    {
+        if(!enabled)
+            return null;
+
+        String inputKey = contentKey(input);
+        String toolVersion = toolVersion(tool);
+
+        if(inputKey == null || toolVersion == null)
+            return null;
+
+        StringBuilder key = new StringBuilder(CACHE_VERSION).append('\0').append(inputKey).append('\0').append(toolVersion);
+
+        for(String argument : arguments)
+        {
+            key.append('\0').append(argument);
+        }
+
+        return hash(key.toString());
+    }
+
+    /**
+     * Looks for an entry without using it, such as an earlier filtered copy of a capture which a narrower filter can
+     * read instead of the capture itself
+     * @param key - the entry's key, or null
+     * @return the entry's file, which is not to be changed, or null if there is no such entry
+     */
+    public File find(String key)
+    {
+        if(key == null)
+            return null;
+
+        File entry = entryFile(key);
+
+        return entry.isFile() ? entry : null;
+    }
+
+    /**
+     * Puts the file of an entry in place of a tool's output
+     * @param key - the entry's key, or null
+     * @param output - where the tool would have written its output
+     * @return true if the entry was found, false if the tool needs to be run
+     */
+    public boolean restore(String key, File output)
+    {
+        File entry = find(key);
+
+        if(entry == null)
+            return false;
+
+        try {
+            Files.deleteIfExists(output.toPath());
+            linkOrCopy(entry, output);
+        } catch (IOException e) {
+            // an entry deleted by another process in the meantime is a miss like any other
+            e.printStackTrace();
+            return false;
+        }
+
+        entry.setLastModified(System.currentTimeMillis());
+        outputKeys.put(output.getAbsolutePath(), key);
+
+        return true;
+    }
+
+    /**
+     * Keeps a tool's output
+     * @param key - key of the output, or null to keep nothing
+     * @param output - the file written by the tool
+     */
+    public void store(String key, File output)
+    {
+        if(key == null || !output.isFile() || output.length() > maxBytes)
+            return;
+
+        File temporary = new File(cacheFolder, key + "." + System.nanoTime() + ".tmp");
+
+        try {
+            linkOrCopy(output, temporary);
+            Files.move(temporary.toPath(), entryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+            return;
+        }
+
+        outputKeys.put(output.getAbsolutePath(), key);
+        evict();
+    }
+
+    /**
+     * Reads an entry holding what a tool printed
+     * @param key - the entry's key, or null
+     * @return what the tool printed, or null if the tool needs to be run
+     */
+    public byte[] restoreOutput(String key)
+    {
+        File entry = find(key);
+
+        if(entry == null)
+            return null;
+
+        try {
+            byte[] output = Files.readAllBytes(entry.toPath());
+            entry.setLastModified(System.currentTimeMillis());
+
+            return output;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Keeps what a tool printed
+     * @param key - key of the output, or null to keep nothing
+     * @param output - what the tool printed
+     */
+    public void storeOutput(String key, byte[] output)
+    {
+        if(key == null || output.length > maxBytes)
+            return;
+
+        File temporary = new File(cacheFolder, key + "." + System.nanoTime() + ".tmp");
+
+        try {
+            Files.write(temporary.toPath(), output);
+            Files.move(temporary.toPath(), entryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+            return;
+        }
+
+        evict();
+    }
+
+    /**
+     * Reads everything a stream holds, such as what a tool printed
+     * @param stream - the stream, which is left open
+     * @return the bytes read
+     * @throws IOException on failing to read the stream
+     */
+    public static byte[] readFully(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while((read = stream.read(buffer)) != -1)
+        {
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deletes the least recently used entries until the entries fit in the cache's size
+     */
+    private void evict()
+    {
+        File[] entries = cacheFolder.listFiles();
+
+        if(entries == null)
+            return;
+
+        long totalBytes = 0;
+
+        for(File entry : entries)
+        {
+            if(entry.getName().endsWith(ENTRY_EXTENSION))
+                totalBytes += entry.length();
+        }
+
+        if(totalBytes <= maxBytes)
+            return;
+
+        Arrays.sort(entries, new Comparator<File>()
+        {
+            @Override
+            public int compare(File first, File second)
+            {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+
+        for(int i = 0; i < entries.length && totalBytes > maxBytes; i++)
+        {
+            if(!entries[i].getName().endsWith(ENTRY_EXTENSION))
+                continue;
+
+            long length = entries[i].length();
+
+            if(entries[i].delete())
+                totalBytes -= length;
+        }
+    }
+
+    /**
+     * Gives the key of a file's content, hashing the file only if it is not an output of this cache and has changed
+     * since last hashed
+     * @param file - the file
+     * @return the key, or null if the file cannot be read
+     */
+    private String contentKey(File file)
+    {
+        String path = file.getAbsolutePath();
+        String outputKey = outputKeys.get(path);
+
+        if(outputKey != null)
+            return outputKey;
+
+        String length = Long.toString(file.length());
+        String lastModified = Long.toString(file.lastModified());
+        String[] known = contentKeys.get(path);
+
+        if(known != null && known[0].equals(length) && known[1].equals(lastModified))
+            return known[2];
+
+        FileInputStream inputStream = null;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            inputStream = new FileInputStream(file);
+            byte[] buffer = new byte[1 << 16];
+            int read;
+
+            while((read = inputStream.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, read);
+            }
+
+            String key = toHex(digest.digest());
+            contentKeys.put(path, new String[]{length, lastModified, key});
+
+            // appended a line at a time, a later line for the same path replacing an earlier one on reading
+            BufferedWriter writer = new BufferedWriter(new FileWriter(new File(cacheFolder, CONTENT_KEYS_FILE_NAME), true));
+
+            try {
+                writer.write(path + "\t" + length + "\t" + lastModified + "\t" + key + "\n");
+            } finally {
+                writer.close();
+            }
+
+            return key;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(inputStream != null)
+            {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void readContentKeys()
+    {
+        File file = new File(cacheFolder, CONTENT_KEYS_FILE_NAME);
+
+        if(!file.isFile())
+            return;
+
+        BufferedReader bufferedReader = null;
+        int lineCount = 0;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(file));
+            String line = null;
+
+            while((line = bufferedReader.readLine()) != null)
+            {
+                String[] strArr = line.split("\t");
+                lineCount++;
+
+                if(strArr.length == 4)
+                    contentKeys.put(strArr[0], new String[]{strArr[1], strArr[2], strArr[3]});
+            }
+        } catch (IOException e) {
+            // captures are hashed again if their keys cannot be read
+            e.printStackTrace();
+            contentKeys.clear();
+        } finally {
+            if(bufferedReader != null)
+            {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // copies of captures made for each run, such as samples, are hashed again under the same path every run, so
+        // the file is rewritten with only the latest line of each path once most of its lines are out of date. A line
+        // appended by another process meanwhile may be lost, its file then just being hashed again
+        if(lineCount > 2 * contentKeys.size() + 100)
+            writeContentKeys();
+    }
+
+    private void writeContentKeys()
+    {
+        File temporary = new File(cacheFolder, CONTENT_KEYS_FILE_NAME + "." + System.nanoTime() + ".tmp");
+
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(temporary));
+
+            try {
+                for(String path : contentKeys.keySet())
+                {
+                    String[] known = contentKeys.get(path);
+                    writer.write(path + "\t" + known[0] + "\t" + known[1] + "\t" + known[2] + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+
+            Files.move(temporary.toPath(), new File(cacheFolder, CONTENT_KEYS_FILE_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Finds a tool's executable on the path
+     * @param tool - name of the tool's executable
+     * @return the executable's path, size and modification time, or null if it is not on the path
+     */
+    private String toolVersion(String tool)
+    {
+        if(toolVersions.containsKey(tool))
+            return toolVersions.get(tool);
+
+        String version = null;
+        String path = System.getenv("PATH");
+
+        if(path != null)
+        {
+            for(String folder : path.split(File.pathSeparator))
+            {
+                File executable = new File(folder, tool);
+
+                if(executable.isFile() && executable.canExecute())
+                {
+                    version = executable.getAbsolutePath() + "\t" + executable.length() + "\t" + executable.lastModified();
+                    break;
+                }
+            }
+        }
+
+        toolVersions.put(tool, version);
+
+        return version;
+    }
+
+    private File entryFile(String key)
+    {
+        return new File(cacheFolder, key + ENTRY_EXTENSION);
+    }
+
+    /**
+     * Makes a second name for a file where possible, copying it otherwise, such as when the cache is on another disk
+     */
+    private static void linkOrCopy(File source, File target) throws IOException
+    {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String hash(String text)
+    {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for(byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+}
@@ -0,0 +1,793 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * <h1>Capture Generator</h1>
+ * Writes a folder of pcap or pcapng captures of made up traffic, for trying the analysers at scale without real
+ * captures. Local clients make http and https requests naming hosts, DNS queries for those hosts answered with the
+ * servers' addresses, ICMP messages and traffic to other TCP and UDP services, with some traffic kept between local
+ * addresses. The mix of traffic, the ICMP types and codes, the service ports and how packets are spread over time
+ * are read from a mix file over the defaults in generator-mix.properties. The same seed and mix always give the same
+ * captures. Packets are ethernet frames with the IPv4 header checksum filled in and transport checksums left at zero,
+ * as in captures taken with checksum offloading.
+ */
+public class CaptureGenerator
+{
+    private static String FOLDER_ARGUMENT_INSTRUCTION = "- Provide the folder to write the captures into i.e output_folder";
+    private static String SIZE_OPTION_INSTRUCTION = "- Optionally set the number of files i.e --files 4 and the size of each in MB i.e " +
+            "--file-size 256, and write pcapng rather than pcap files i.e --format pcapng";
+    private static String MIX_OPTION_INSTRUCTION = "- Optionally change the default traffic mix with a mix file i.e --mix mix.properties " +
+            "and pick other random traffic i.e --seed 2";
+
+    private static final String MIX_RESOURCE = "/generator-mix.properties";
+
+    private static final int SNAP_LENGTH = 65535;
+    private static final int MAX_SEGMENT_LENGTH = 1460;
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int ICMP_HEADER_LENGTH = 8;
+
+    private static final int MAX_FRAME_LENGTH = ETHERNET_HEADER_LENGTH + 65535;
+
+    private static final int TCP_ACK = 0x10;
+    private static final int TCP_PUSH = 0x08;
+
+    private static final int PROTOCOL_ICMP = 1;
+
+    private static final int WEB = 0;
+    private static final int DNS = 1;
+    private static final int ICMP = 2;
+    private static final int TCP = 3;
+    private static final int UDP = 4;
+
+    private static final String[] KINDS = {"web", "dns", "icmp", "tcp", "udp"};
+
+    // first parts of the public addresses servers are given, none in a private or reserved range
+    private static final int[] SERVER_NETWORKS = {23, 31, 34, 52, 64, 74, 81, 93, 104, 142, 151, 157, 185, 203};
+
+    private static final int DNS_SERVER = address(8, 8, 8, 8);
+
+    private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
+
+    private Random random;
+
+    private int[] kindWeights;
+    private int[] icmpTypes;
+    private int[] icmpCodes;
+    private int[] icmpWeights;
+    private int[] tcpPorts;
+    private int[] tcpWeights;
+    private int[] udpPorts;
+    private int[] udpWeights;
+
+    private String[] hosts;
+    private int httpsPercent;
+    private int webResponses;
+    private int clients;
+    private int servers;
+    private int localPercent;
+
+    private String rateProfile;
+    private double packetsPerSecond;
+    private long startMicros;
+
+    // seconds since the first packet
+    private double time = 0;
+
+    private byte[] frame = new byte[MAX_FRAME_LENGTH];
+
+    public static void main(String[] args)
+    {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Writes the captures asked for on the command line, as main() does, without ending the JVM
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the captures could not be written
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options;
+        Properties mix;
+
+        try {
+            options = AnalyserOptions.parse(args);
+
+            if(options.getInt("files", 4) < 1 || options.getLong("file-size", 256) < 1)
+                throw new IllegalArgumentException("Options --files and --file-size must be at least 1");
+
+            String format = options.getString("format", "pcap");
+
+            if(!format.equals("pcap") && !format.equals("pcapng"))
+                throw new IllegalArgumentException("Option --format must be pcap or pcapng but was : " + format);
+
+            mix = loadMix(options.has("mix") ? new File(options.getString("mix", null)) : null);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(SIZE_OPTION_INSTRUCTION);
+            System.out.println(MIX_OPTION_INSTRUCTION);
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if(options.getArguments().length != 1)
+        {
+            System.out.println("Wrong arguments provided. Please do the following:");
+            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+            System.out.println(SIZE_OPTION_INSTRUCTION);
+            System.out.println(MIX_OPTION_INSTRUCTION);
+            return false;
+        }
+
+        File folder = new File(options.getArguments()[0]);
+        folder.mkdirs();
+
+        try {
+            CaptureGenerator generator = new CaptureGenerator(mix, options.getLong("seed", 1));
+            generator.write(folder, options.getInt("files", 4), options.getLong("file-size", 256) << 20,
+                    options.getString("format", "pcap").equals("pcapng"));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(MIX_OPTION_INSTRUCTION);
+            return false;
+        } catch (IOException e) {
+            printCurrentTime();
+            System.out.println("An error occurred on writing captures to : " + folder);
+            e.printStackTrace();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a traffic mix over the defaults
+     * @param mixFile - file of the entries to change, or null for the defaults alone
+     * @return the mix
+     * @throws IOException on failing to read the mix
+     */
+    public static Properties loadMix(File mixFile) throws IOException
+    {
+        Properties mix = new Properties();
+        InputStream inputStream = CaptureGenerator.class.getResourceAsStream(MIX_RESOURCE);
+
+        try {
+            mix.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+
+        if(mixFile != null)
+        {
+            inputStream = new FileInputStream(mixFile);
+
+            try {
+                mix.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        return mix;
+    }
+
+    /**
+     * Creates a generator
+     * @param mix - the traffic mix
+     * @param seed - seed of the random traffic
+     * @throws IllegalArgumentException on a mix entry which is not a number where one is needed
+     */
+    public CaptureGenerator(Properties mix, long seed)
+    {
+        random = new Random(seed);
+
+        kindWeights = new int[KINDS.length];
+
+        for(int kind = 0; kind < KINDS.length; kind++)
+        {
+            kindWeights[kind] = readInt(mix, "mix." + KINDS[kind]);
+        }
+
+        ArrayList<String> icmpMessages = keys(mix, "icmp.");
+        icmpTypes = new int[icmpMessages.size()];
+        icmpCodes = new int[icmpMessages.size()];
+        icmpWeights = new int[icmpMessages.size()];
+
+        for(int i = 0; i < icmpMessages.size(); i++)
+        {
+            String[] typeCode = icmpMessages.get(i).split("/");
+
+            if(typeCode.length != 2)
+                throw new IllegalArgumentException("ICMP messages of the mix must be given as icmp.type/code but was : icmp." + icmpMessages.get(i));
+
+            icmpTypes[i] = parseInt("icmp." + icmpMessages.get(i), typeCode[0]);
+            icmpCodes[i] = parseInt("icmp." + icmpMessages.get(i), typeCode[1]);
+            icmpWeights[i] = readInt(mix, "icmp." + icmpMessages.get(i));
+        }
+
+        ArrayList<String> tcpServices = keys(mix, "tcp.");
+        tcpPorts = new int[tcpServices.size()];
+        tcpWeights = new int[tcpServices.size()];
+
+        for(int i = 0; i < tcpServices.size(); i++)
+        {
+            tcpPorts[i] = parseInt("tcp." + tcpServices.get(i), tcpServices.get(i));
+            tcpWeights[i] = readInt(mix, "tcp." + tcpServices.get(i));
+        }
+
+        ArrayList<String> udpServices = keys(mix, "udp.");
+        udpPorts = new int[udpServices.size()];
+        udpWeights = new int[udpServices.size()];
+
+        for(int i = 0; i < udpServices.size(); i++)
+        {
+            udpPorts[i] = parseInt("udp." + udpServices.get(i), udpServices.get(i));
+            udpWeights[i] = readInt(mix, "udp." + udpServices.get(i));
+        }
+
+        httpsPercent = readInt(mix, "https");
+        webResponses = Math.max(1, readInt(mix, "web.responses"));
+        clients = Math.max(1, readInt(mix, "clients"));
+        servers = Math.max(1, readInt(mix, "servers"));
+        localPercent = readInt(mix, "local");
+
+        hosts = new String[Math.max(1, readInt(mix, "hosts"))];
+
+        for(int host = 0; host < hosts.length; host++)
+        {
+            hosts[host] = hostName(random);
+        }
+
+        rateProfile = mix.getProperty("rate", "poisson").trim();
+
+        if(!rateProfile.equals("constant") && !rateProfile.equals("poisson") && !rateProfile.equals("bursty") && !rateProfile.equals("diurnal"))
+            throw new IllegalArgumentException("Mix entry rate must be constant, poisson, bursty or diurnal but was : " + rateProfile);
+
+        packetsPerSecond = Math.max(1, readInt(mix, "packets-per-second"));
+        startMicros = readInt(mix, "start") * 1000000L;
+
+        if(total(kindWeights) == 0 || (kindWeights[ICMP] > 0 && total(icmpWeights) == 0)
+                || (kindWeights[TCP] > 0 && total(tcpWeights) == 0) || (kindWeights[UDP] > 0 && total(udpWeights) == 0))
+            throw new IllegalArgumentException("The mix must give some weight to a kind of traffic and to the messages or ports of each kind used");
+    }
+
+    /**
+     * Writes the captures, each file holding whole requests and their responses so it ends a little past its size
+     * @param folder - folder to write the captures into
+     * @param files - number of capture files
+     * @param fileBytes - size of each file in bytes
+     * @param pcapng - true to write pcapng files, false for pcap files
+     * @return number of packets written
+     * @throws IOException on failing to write a file
+     */
+    public long write(File folder, int files, long fileBytes, boolean pcapng) throws IOException
+    {
+        long packets = 0;
+
+        for(int file = 1; file <= files; file++)
+        {
+            File captureFile = new File(folder, String.format("capture-%04d", file) + (pcapng ? ".pcapng" : ".pcap"));
+
+            System.out.println(DATA_DISPLAY_SEPARATOR);
+            printCurrentTime();
+            System.out.println("Writing capture file : " + captureFile.getName());
+
+            CaptureWriter writer = new CaptureWriter(captureFile, pcapng, SNAP_LENGTH);
+
+            try {
+                while(writer.getBytesWritten() < fileBytes)
+                {
+                    writeExchange(writer);
+                }
+            } finally {
+                writer.close();
+            }
+
+            packets += writer.getPacketsWritten();
+        }
+
+        System.out.println(DATA_DISPLAY_SEPARATOR);
+        printCurrentTime();
+        System.out.println("Wrote " + packets + " packets into " + files + " files");
+
+        return packets;
+    }
+
+    /**
+     * Writes one exchange of the mix, such as a web request and its responses
+     * @param writer - writer of the current file
+     * @throws IOException on failing to write a packet
+     */
+    private void writeExchange(CaptureWriter writer) throws IOException
+    {
+        int client = clientAddress(random.nextInt(clients));
+        int clientPort = 1024 + random.nextInt(64512);
+        boolean local = random.nextInt(100) < localPercent;
+        long sequenceNumber = random.nextInt() & 0xffffffffL;
+
+        int kind = pick(kindWeights);
+
+        if(kind == WEB)
+        {
+            int host = (int) (hosts.length * Math.pow(random.nextDouble(), 2));
+            int server = local ? clientAddress(random.nextInt(clients)) : serverAddress(host % servers);
+            boolean https = random.nextInt(100) < httpsPercent;
+            int serverPort = https ? 443 : 80;
+
+            byte[] request = https ? clientHello(hosts[host]) : httpRequest(hosts[host]);
+            writePacket(writer, tcp(frame, client, server, clientPort, serverPort, sequenceNumber,
+                    TCP_ACK | TCP_PUSH, request, request.length));
+
+            int responses = 1 + random.nextInt(webResponses);
+            long serverSequence = random.nextInt() & 0xffffffffL;
+
+            for(int response = 0; response < responses; response++)
+            {
+                int length = response + 1 < responses ? MAX_SEGMENT_LENGTH : 1 + random.nextInt(MAX_SEGMENT_LENGTH);
+
+                writePacket(writer, tcp(frame, server, client, serverPort, clientPort, serverSequence,
+                        TCP_ACK, null, length));
+                serverSequence += length;
+            }
+        }
+        else if(kind == DNS)
+        {
+            int host = (int) (hosts.length * Math.pow(random.nextDouble(), 2));
+            int resolver = local ? clientAddress(random.nextInt(clients)) : DNS_SERVER;
+            int id = random.nextInt(65536);
+
+            byte[] query = dnsMessage(hosts[host], id, false, 0);
+            writePacket(writer, udp(frame, client, resolver, clientPort, 53, query, query.length));
+
+            byte[] answer = dnsMessage(hosts[host], id, true, serverAddress(host % servers));
+            writePacket(writer, udp(frame, resolver, client, 53, clientPort, answer, answer.length));
+        }
+        else if(kind == ICMP)
+        {
+            int message = pick(icmpWeights);
+            int remote = local ? clientAddress(random.nextInt(clients)) : serverAddress(random.nextInt(servers));
+
+            // echo requests go out, everything else comes back in
+            if(icmpTypes[message] == 8)
+                writePacket(writer, icmp(frame, client, remote, icmpTypes[message], icmpCodes[message], 56));
+            else
+                writePacket(writer, icmp(frame, remote, client, icmpTypes[message], icmpCodes[message],
+                        icmpTypes[message] == 0 ? 56 : 28));
+        }
+        else
+        {
+            boolean tcp = kind == TCP;
+            int serverPort = tcp ? tcpPorts[pick(tcpWeights)] : udpPorts[pick(udpWeights)];
+            int server = local ? clientAddress(random.nextInt(clients)) : serverAddress(random.nextInt(servers));
+            boolean up = random.nextBoolean();
+
+            // half the TCP segments are bare acknowledgements
+            int length = tcp && random.nextBoolean() ? 0 : 1 + random.nextInt(tcp ? MAX_SEGMENT_LENGTH : 1200);
+
+            if(tcp)
+                writePacket(writer, tcp(frame, up ? client : server, up ? server : client, up ? clientPort : serverPort,
+                        up ? serverPort : clientPort, sequenceNumber, TCP_ACK | (length > 0 ? TCP_PUSH : 0),
+                        null, length));
+            else
+                writePacket(writer, udp(frame, up ? client : server, up ? server : client, up ? clientPort : serverPort,
+                        up ? serverPort : clientPort, null, length));
+        }
+    }
+
+    private void writePacket(CaptureWriter writer, int length) throws IOException
+    {
+        writer.write(frame, 0, length, startMicros + (long) (time * 1000000L));
+
+        time += nextGap();
+    }
+
+    /**
+     * Gives the time to the next packet following the rate profile
+     * @return the time in seconds
+     */
+    private double nextGap()
+    {
+        if(rateProfile.equals("constant"))
+            return 1 / packetsPerSecond;
+
+        double rate = packetsPerSecond;
+
+        if(rateProfile.equals("bursty"))
+            rate = time % 1 < 0.25 ? packetsPerSecond * 3.5 : packetsPerSecond / 6;
+        else if(rateProfile.equals("diurnal"))
+            rate = packetsPerSecond * (1 + 0.8 * Math.sin(2 * Math.PI * time / 86400));
+
+        return -Math.log(1 - random.nextDouble()) / rate;
+    }
+
+    /**
+     * Gives a client an address, half of them in 10.0.0.0/8 and half in 192.168.0.0/16
+     * @param client - number of the client
+     * @return the address
+     */
+    private static int clientAddress(int client)
+    {
+        if((client & 1) == 0)
+            return address(10, 0, (client >> 9) & 0xff, (client >> 1) & 0xff);
+        else
+            return address(192, 168, (client >> 9) & 0xff, (client >> 1) & 0xff);
+    }
+
+    /**
+     * Gives a server a public address
+     * @param server - number of the server
+     * @return the address
+     */
+    private static int serverAddress(int server)
+    {
+        int hash = server * 0x9e3779b9;
+
+        return (SERVER_NETWORKS[(server & 0x7fffffff) % SERVER_NETWORKS.length] << 24) | (hash >>> 8);
+    }
+
+    private static String hostName(Random random)
+    {
+        String[] labels = {"www", "api", "cdn", "static", "img", "mail", "login", "news", "video", "shop"};
+        String[] suffixes = {"com", "org", "net", "co.uk", "com.au", "io", "ug", "co.ug", "de", "fr"};
+
+        return labels[random.nextInt(labels.length)] + random.nextInt(50) + ".site" + random.nextInt(100000) + "."
+                + suffixes[random.nextInt(suffixes.length)];
+    }
+
+    private int pick(int[] weights)
+    {
+        int choice = random.nextInt(total(weights));
+
+        for(int i = 0; i < weights.length; i++)
+        {
+            choice -= weights[i];
+
+            if(choice < 0)
+                return i;
+        }
+
+        return weights.length - 1;
+    }
+
+    private static int total(int[] weights)
+    {
+        int total = 0;
+
+        for(int weight : weights)
+        {
+            total += weight;
+        }
+
+        return total;
+    }
+
+    private static ArrayList<String> keys(Properties mix, String prefix)
+    {
+        ArrayList<String> keys = new ArrayList<String>();
+
+        for(String name : mix.stringPropertyNames())
+        {
+            if(name.startsWith(prefix))
+                keys.add(name.substring(prefix.length()));
+        }
+
+        // the properties are in no order, so they are sorted for the same seed to give the same captures
+        Collections.sort(keys);
+
+        return keys;
+    }
+
+    private static int readInt(Properties mix, String name)
+    {
+        String value = mix.getProperty(name);
+
+        if(value == null)
+            throw new IllegalArgumentException("Mix entry missing : " + name);
+
+        int number = parseInt(name, value);
+
+        if(number < 0)
+            throw new IllegalArgumentException("Mix entry " + name + " must not be negative but was : " + value);
+
+        return number;
+    }
+
+    private static int parseInt(String name, String value)
+    {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Mix entry " + name + " must be a whole number but was : " + value);
+        }
+    }
+
+    /**
+     * Writes a TCP segment
+     * @param frame - buffer to write the frame into, at offset 0
+     * @param source - source IPv4 address
+     * @param destination - destination IPv4 address
+     * @param sourcePort - source port
+     * @param destinationPort - destination port
+     * @param sequenceNumber - TCP sequence number
+     * @param flags - TCP flags e.g TCP_ACK | TCP_PUSH
+     * @param payload - bytes to carry, or null for a payload of zeros
+     * @param payloadLength - number of payload bytes
+     * @return length of the frame
+     */
+    private static int tcp(byte[] frame, int source, int destination, int sourcePort, int destinationPort, long sequenceNumber,
+                          int flags, byte[] payload, int payloadLength)
+    {
+        int position = ipv4(frame, source, destination, PacketDecoder.PROTOCOL_TCP, TCP_HEADER_LENGTH + payloadLength);
+
+        writeShort(frame, position, sourcePort);
+        writeShort(frame, position + 2, destinationPort);
+        writeInt(frame, position + 4, (int) sequenceNumber);
+        writeInt(frame, position + 8, 0);
+        frame[position + 12] = (byte) ((TCP_HEADER_LENGTH / 4) << 4);
+        frame[position + 13] = (byte) flags;
+        writeShort(frame, position + 14, 65535);
+        writeInt(frame, position + 16, 0);
+
+        return writePayload(frame, position + TCP_HEADER_LENGTH, payload, payloadLength);
+    }
+
+    /**
+     * Writes a UDP datagram
+     * @param frame - buffer to write the frame into, at offset 0
+     * @param source - source IPv4 address
+     * @param destination - destination IPv4 address
+     * @param sourcePort - source port
+     * @param destinationPort - destination port
+     * @param payload - bytes to carry, or null for a payload of zeros
+     * @param payloadLength - number of payload bytes
+     * @return length of the frame
+     */
+    private static int udp(byte[] frame, int source, int destination, int sourcePort, int destinationPort, byte[] payload,
+                          int payloadLength)
+    {
+        int position = ipv4(frame, source, destination, PacketDecoder.PROTOCOL_UDP, UDP_HEADER_LENGTH + payloadLength);
+
+        writeShort(frame, position, sourcePort);
+        writeShort(frame, position + 2, destinationPort);
+        writeShort(frame, position + 4, UDP_HEADER_LENGTH + payloadLength);
+        writeShort(frame, position + 6, 0);
+
+        return writePayload(frame, position + UDP_HEADER_LENGTH, payload, payloadLength);
+    }
+
+    /**
+     * Writes an ICMP message
+     * @param frame - buffer to write the frame into, at offset 0
+     * @param source - source IPv4 address
+     * @param destination - destination IPv4 address
+     * @param type - ICMP type e.g 8 for an echo request
+     * @param code - ICMP code
+     * @param payloadLength - number of payload bytes following the ICMP header, all zeros
+     * @return length of the frame
+     */
+    private static int icmp(byte[] frame, int source, int destination, int type, int code, int payloadLength)
+    {
+        int position = ipv4(frame, source, destination, PROTOCOL_ICMP, ICMP_HEADER_LENGTH + payloadLength);
+
+        frame[position] = (byte) type;
+        frame[position + 1] = (byte) code;
+        writeShort(frame, position + 2, 0);
+        writeInt(frame, position + 4, 0);
+
+        return writePayload(frame, position + ICMP_HEADER_LENGTH, null, payloadLength);
+    }
+
+    /**
+     * @param host - host name asked for
+     * @return an http GET request for the host
+     */
+    private static byte[] httpRequest(String host)
+    {
+        return ("GET /index.html HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: Mozilla/5.0\r\nAccept: */*\r\n\r\n").getBytes();
+    }
+
+    /**
+     * @param host - host name asked for
+     * @return a TLS record holding a ClientHello naming the host in its server name indication
+     */
+    private static byte[] clientHello(String host)
+    {
+        byte[] name = host.getBytes();
+        int extensionLength = 2 + 1 + 2 + name.length;
+        int helloLength = 2 + 32 + 1 + 2 + 2 + 1 + 1 + 2 + 4 + extensionLength;
+        byte[] record = new byte[5 + 4 + helloLength];
+        int position = 0;
+
+        // handshake record of TLS 1.0, as ClientHellos are sent
+        record[position++] = 22;
+        record[position++] = 3;
+        record[position++] = 1;
+        writeShort(record, position, 4 + helloLength);
+        position += 2;
+
+        record[position++] = 1;
+        record[position++] = 0;
+        writeShort(record, position, helloLength);
+        position += 2;
+
+        // TLS 1.2 client version and a random of zeros
+        record[position++] = 3;
+        record[position++] = 3;
+        position += 32;
+
+        // no session id, one cipher suite and null compression
+        record[position++] = 0;
+        writeShort(record, position, 2);
+        position += 2;
+        writeShort(record, position, 0x1301);
+        position += 2;
+        record[position++] = 1;
+        record[position++] = 0;
+
+        // the server name extension alone
+        writeShort(record, position, 4 + extensionLength);
+        position += 2;
+        writeShort(record, position, 0);
+        position += 2;
+        writeShort(record, position, extensionLength);
+        position += 2;
+        writeShort(record, position, 1 + 2 + name.length);
+        position += 2;
+        record[position++] = 0;
+        writeShort(record, position, name.length);
+        position += 2;
+
+        System.arraycopy(name, 0, record, position, name.length);
+
+        return record;
+    }
+
+    /**
+     * @param host - host name asked about
+     * @param id - id of the DNS message
+     * @param response - true for a response with one A record, false for the query
+     * @param answerAddress - IPv4 address given in the answer of a response
+     * @return a DNS message asking for the A record of the host
+     */
+    private static byte[] dnsMessage(String host, int id, boolean response, int answerAddress)
+    {
+        byte[] name = host.getBytes();
+        byte[] message = new byte[12 + name.length + 2 + 4 + (response ? 16 : 0)];
+
+        writeShort(message, 0, id);
+        writeShort(message, 2, response ? 0x8180 : 0x0100);
+        writeShort(message, 4, 1);
+        writeShort(message, 6, response ? 1 : 0);
+
+        // the name as labels, each preceded by its length
+        int position = 12;
+        int labelStart = 0;
+
+        for(int i = 0; i <= name.length; i++)
+        {
+            if(i == name.length || name[i] == '.')
+            {
+                message[position++] = (byte) (i - labelStart);
+                System.arraycopy(name, labelStart, message, position, i - labelStart);
+                position += i - labelStart;
+                labelStart = i + 1;
+            }
+        }
+
+        message[position++] = 0;
+        writeShort(message, position, 1);
+        writeShort(message, position + 2, 1);
+        position += 4;
+
+        if(response)
+        {
+            // the answer names the question with a compression pointer
+            writeShort(message, position, 0xc00c);
+            writeShort(message, position + 2, 1);
+            writeShort(message, position + 4, 1);
+            writeInt(message, position + 6, 300);
+            writeShort(message, position + 10, 4);
+            writeInt(message, position + 12, answerAddress);
+        }
+
+        return message;
+    }
+
+    /**
+     * Makes an IPv4 address from its four parts
+     * @return the address
+     */
+    private static int address(int first, int second, int third, int fourth)
+    {
+        return (first << 24) | (second << 16) | (third << 8) | fourth;
+    }
+
+    /**
+     * Writes the ethernet and IPv4 headers
+     * @return offset of the transport header
+     */
+    private static int ipv4(byte[] frame, int source, int destination, int protocol, int transportLength)
+    {
+        // locally administered mac addresses
+        writeInt(frame, 0, 0x02000000);
+        writeShort(frame, 4, 1);
+        writeInt(frame, 6, 0x02000000);
+        writeShort(frame, 10, 2);
+        writeShort(frame, 12, 0x0800);
+
+        int position = ETHERNET_HEADER_LENGTH;
+
+        frame[position] = 0x45;
+        frame[position + 1] = 0;
+        writeShort(frame, position + 2, IPV4_HEADER_LENGTH + transportLength);
+        writeInt(frame, position + 4, 0x4000);
+        frame[position + 8] = 64;
+        frame[position + 9] = (byte) protocol;
+        writeShort(frame, position + 10, 0);
+        writeInt(frame, position + 12, source);
+        writeInt(frame, position + 16, destination);
+
+        int sum = 0;
+
+        for(int i = 0; i < IPV4_HEADER_LENGTH; i += 2)
+        {
+            sum += PacketDecoder.readShort(frame, position + i);
+        }
+
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum += sum >>> 16;
+        writeShort(frame, position + 10, ~sum);
+
+        return position + IPV4_HEADER_LENGTH;
+    }
+
+    private static int writePayload(byte[] frame, int position, byte[] payload, int payloadLength)
+    {
+        if(payload == null)
+        {
+            for(int i = position; i < position + payloadLength; i++)
+            {
+                frame[i] = 0;
+            }
+        }
+        else
+        {
+            System.arraycopy(payload, 0, frame, position, payloadLength);
+        }
+
+        return position + payloadLength;
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value)
+    {
+        writeShort(buffer, offset, value >>> 16);
+        writeShort(buffer, offset + 2, value);
+    }
+
+    /**
+     * Prints the current system time
+     */
+    public static void printCurrentTime()
+    {
+        ICMPAnalyser.printCurrentTime();
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * <h1>Capture Index</h1>
+ * Index of the capture files in a folder, kept in a hidden file in that folder. For each capture it holds the earliest
+ * and latest packet times and splits the file into segments of a few megabytes, recording where each segment starts
+ * and the earliest and latest packet times within it. A time range can then skip whole captures and start and stop
+ * reading a capture at segment boundaries, even when packets are not stored in strict time order.
+ * <p>
+ * Captures are added to the index as they are read from start to end, and an entry is dropped once its capture's
+ * size or modification time changes. Saving merges with entries other processes saved in the meantime, under a lock,
+ * so workers analysing shards of the same folder can share the index.
+ */
+public class CaptureIndex
+{
+    public static final String INDEX_FILE_NAME = ".capture-index";
+
+    // no record starts before the end of a pcap global header, a pcapng section header being longer still
+    private static final int GLOBAL_HEADER_LENGTH = 24;
+
+    // written in place of the segment list of a capture with no packets
+    private static final String NO_SEGMENTS = "-";
+
+    private File indexFile;
+    private boolean enabled;
+    private long segmentLength;
+
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    // names of the captures indexed since loading
+    private HashSet<String> addedNames = new HashSet<String>();
+
+    /**
+     * Loads the index of a folder, the index being used and built when --index, --from or --to is given
+     * @param folder - folder holding the capture files
+     * @param options - the options given to the analyser
+     * @return the index, which just opens captures from the start when not enabled
+     */
+    public static CaptureIndex load(File folder, AnalyserOptions options)
+    {
+        boolean enabled = options.has("index") || options.has("from") || options.has("to");
+
+        return new CaptureIndex(new File(folder, INDEX_FILE_NAME), enabled, options.getLong("index-interval", 16) << 20);
+    }
+
+    /**
+     * Creates an index
+     * @param indexFile - file the index is kept in
+     * @param enabled - whether to use and build the index at all
+     * @param segmentLength - number of bytes of capture covered by each segment
+     */
+    public CaptureIndex(File indexFile, boolean enabled, long segmentLength)
+    {
+        this.indexFile = indexFile;
+        this.enabled = enabled;
+        this.segmentLength = Math.max(segmentLength, 1);
+
+        if(enabled && indexFile.isFile())
+            readIndexFile(entries);
+    }
+
+    private void readIndexFile(LinkedHashMap<String, Entry> entries)
+    {
+        BufferedReader bufferedReader = null;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(indexFile));
+            String line = null;
+
+            while((line = bufferedReader.readLine()) != null)
+            {
+                String[] strArr = line.split("\t");
+
+                if(strArr.length != 6)
+                    continue;
+
+                String[] segments = strArr[5].equals(NO_SEGMENTS) ? new String[0] : strArr[5].split(",");
+                Entry entry = new Entry(Long.parseLong(strArr[1]), Long.parseLong(strArr[2]), segments.length);
+
+                for(int segment = 0; segment < segments.length; segment++)
+                {
+                    String[] fields = segments[segment].split(":");
+
+                    entry.positions[segment] = Long.parseLong(fields[0]);
+                    entry.earliest[segment] = Long.parseLong(fields[1]);
+                    entry.latest[segment] = Long.parseLong(fields[2]);
+                }
+
+                entries.put(strArr[0], entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            // a damaged index is rebuilt as the captures are read again
+            e.printStackTrace();
+            entries.clear();
+        } finally {
+            closeQuietly(bufferedReader);
+        }
+    }
+
+    /**
+     * Opens a capture for reading the packets of a time range. With an up to date entry the reader starts at the
+     * first segment that may hold packets in the range and stops after the last one, otherwise the whole capture is
+     * read and added to the index. Packets outside the range may still be returned and should be checked with
+     * TimeRange.contains.
+     * @param file - the capture file
+     * @param range - the time range, or null to read all packets
+     * @return reader for the capture, or null if the index shows it has no packets in the range
+     * @throws IOException - if the file cannot be read or is not a pcap file
+     */
+    public PcapReader open(File file, TimeRange range) throws IOException
+    {
+        Entry entry = getEntry(file);
+
+        if(entry != null && range != null && !range.overlaps(entry.getFirstTimestamp(), entry.getLastTimestamp()))
+            return null;
+
+        PcapReader reader = new PcapReader(file);
+
+        if(!enabled)
+            return reader;
+
+        if(entry == null)
+        {
+            reader.setIndexBuilder(new Builder(segmentLength));
+        }
+        else if(range != null)
+        {
+            reader.seek(entry.startPosition(range.getFromMicros()));
+            reader.setEndPosition(entry.endPosition(range.getToMicros()));
+        }
+
+        return reader;
+    }
+
+    /**
+     * Closes a reader from open(), adding its capture to the index if it was read to the end
+     * @param file - the capture file
+     * @param reader - the reader
+     */
+    public void close(File file, PcapReader reader)
+    {
+        if(reader.getIndexBuilder() != null && reader.isEndOfFile())
+        {
+            entries.put(file.getName(), reader.getIndexBuilder().build(file.length(), file.lastModified()));
+            addedNames.add(file.getName());
+        }
+
+        closeQuietly(reader);
+    }
+
+    /**
+     * Reads a capture to add it to the index, unless it is already there
+     * @param file - the capture file
+     */
+    public void update(File file)
+    {
+        if(!enabled || getEntry(file) != null)
+            return;
+
+        PcapReader reader = null;
+
+        try {
+            reader = open(file, null);
+
+            while(reader.next())
+            {
+                //records are only read for the index
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(reader != null)
+                close(file, reader);
+        }
+    }
+
+    /**
+     * Copies the packets of a capture that fall within a time range into a new capture, so tools which read whole
+     * files only see the range
+     * @param file - the capture file
+     * @param range - the time range
+     * @param output - file to write the copied packets to
+     * @return number of packets copied, or -1 if the index shows the capture has none in the range and no file was
+     * written
+     * @throws IOException - if the capture cannot be read or the copy written
+     */
+    public long extract(File file, TimeRange range, File output) throws IOException
+    {
+        PcapReader reader = open(file, range);
+
+        if(reader == null)
+            return -1;
+
+        long copied = 0;
+        OutputStream outputStream = null;
+
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+
+            // the file header is copied as it is so the byte order and time resolution stay the same
+            reader.writeHeader(outputStream);
+
+            while(reader.next())
+            {
+                if(range.contains(reader.getTimestampMicros()))
+                {
+                    reader.writeRecord(outputStream);
+                    copied++;
+                }
+            }
+        } finally {
+            closeQuietly(outputStream);
+            close(file, reader);
+        }
+
+        return copied;
+    }
+
+    /**
+     * Gives the capture to hand to a tool such as tcpdump, which reads whole files: the capture itself when there is
+     * no time range, otherwise a copy of its packets within the range
+     * @param file - the capture file
+     * @param range - the time range, or null for all packets
+     * @param folder - folder to write the copy into
+     * @return the capture to use, or null if it has no packets in the range
+     */
+    public File limitToRange(File file, TimeRange range, File folder)
+    {
+        if(range == null)
+        {
+            update(file);
+            return file;
+        }
+
+        folder.mkdirs();
+        File output = new File(folder, file.getName());
+
+        try {
+            long copied = extract(file, range, output);
+
+            if(copied > 0)
+                return output;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        output.delete();
+        return null;
+    }
+
+    /**
+     * @param file - the capture file
+     * @return the index entry of the capture, or null if it has none or the capture changed since it was indexed
+     */
+    public Entry getEntry(File file)
+    {
+        Entry entry = entries.get(file.getName());
+
+        if(entry == null || entry.fileLength != file.length() || entry.lastModified != file.lastModified())
+            return null;
+
+        return entry;
+    }
+
+    /**
+     * Writes the index file if entries were added, keeping entries saved by other processes since it was loaded
+     */
+    public void save()
+    {
+        if(addedNames.isEmpty())
+            return;
+
+        RandomAccessFile lockFile = null;
+        BufferedWriter writer = null;
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+
+        try {
+            lockFile = new RandomAccessFile(new File(indexFile.getParentFile(), indexFile.getName() + ".lock"), "rw");
+            FileLock lock = lockFile.getChannel().lock();
+
+            try {
+                LinkedHashMap<String, Entry> saved = new LinkedHashMap<String, Entry>();
+
+                if(indexFile.isFile())
+                    readIndexFile(saved);
+
+                for(String name : addedNames)
+                {
+                    saved.put(name, entries.get(name));
+                }
+
+                // written beside the index and moved over it so readers never see half an index
+                writer = new BufferedWriter(new FileWriter(tempFile));
+
+                for(String name : saved.keySet())
+                {
+                    Entry entry = saved.get(name);
+
+                    writer.append(name + "\t" + entry.fileLength + "\t" + entry.lastModified + "\t" + entry.getFirstTimestamp()
+                            + "\t" + entry.getLastTimestamp() + "\t");
+
+                    if(entry.positions.length == 0)
+                        writer.append(NO_SEGMENTS);
+
+                    for(int segment = 0; segment < entry.positions.length; segment++)
+                    {
+                        if(segment > 0)
+                            writer.append(",");
+
+                        writer.append(entry.positions[segment] + ":" + entry.earliest[segment] + ":" + entry.latest[segment]);
+                    }
+
+                    writer.append("\n");
+                }
+
+                writer.close();
+                writer = null;
+
+                if(!tempFile.renameTo(indexFile))
+                    throw new IOException("Failed to replace index file : " + indexFile);
+
+                addedNames.clear();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(writer);
+            closeQuietly(lockFile);
+            tempFile.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Index entry of one capture file
+     */
+    public static class Entry
+    {
+        private long fileLength;
+        private long lastModified;
+
+        private long[] positions;
+        private long[] earliest;
+        private long[] latest;
+
+        private Entry(long fileLength, long lastModified, int segments)
+        {
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+
+            positions = new long[segments];
+            earliest = new long[segments];
+            latest = new long[segments];
+        }
+
+        /**
+         * @return earliest packet time in microseconds, or Long.MAX_VALUE for a capture with no packets
+         */
+        public long getFirstTimestamp()
+        {
+            long first = Long.MAX_VALUE;
+
+            for(long timestamp : earliest)
+                first = Math.min(first, timestamp);
+
+            return first;
+        }
+
+        /**
+         * @return latest packet time in microseconds, or Long.MIN_VALUE for a capture with no packets
+         */
+        public long getLastTimestamp()
+        {
+            long last = Long.MIN_VALUE;
+
+            for(long timestamp : latest)
+                last = Math.max(last, timestamp);
+
+            return last;
+        }
+
+        /**
+         * @param fromMicros - start of a time range
+         * @return file offset of the first segment holding a packet at or after the start
+         */
+        public long startPosition(long fromMicros)
+        {
+            for(int segment = 0; segment < positions.length; segment++)
+            {
+                if(latest[segment] >= fromMicros)
+                    return positions[segment];
+            }
+
+            return fileLength;
+        }
+
+        /**
+         * @param toMicros - end of a time range
+         * @return file offset just past the last segment holding a packet before the end
+         */
+        public long endPosition(long toMicros)
+        {
+            for(int segment = positions.length - 1; segment >= 0; segment--)
+            {
+                if(earliest[segment] < toMicros)
+                    return segment + 1 < positions.length ? positions[segment + 1] : Long.MAX_VALUE;
+            }
+
+            return GLOBAL_HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Builds an index entry from the records of a capture as they are read in file order
+     */
+    public static class Builder
+    {
+        private long segmentLength;
+
+        private int segments = 0;
+        private long[] positions = new long[16];
+        private long[] earliest = new long[16];
+        private long[] latest = new long[16];
+
+        public Builder(long segmentLength)
+        {
+            this.segmentLength = segmentLength;
+        }
+
+        /**
+         * Adds a record
+         * @param position - file offset of the record header
+         * @param timestamp - packet time in microseconds
+         */
+        public void add(long position, long timestamp)
+        {
+            if(segments == 0 || position - positions[segments - 1] >= segmentLength)
+            {
+                if(segments == positions.length)
+                {
+                    positions = Arrays.copyOf(positions, segments * 2);
+                    earliest = Arrays.copyOf(earliest, segments * 2);
+                    latest = Arrays.copyOf(latest, segments * 2);
+                }
+
+                positions[segments] = position;
+                earliest[segments] = timestamp;
+                latest[segments] = timestamp;
+                segments++;
+            }
+            else
+            {
+                earliest[segments - 1] = Math.min(earliest[segments - 1], timestamp);
+                latest[segments - 1] = Math.max(latest[segments - 1], timestamp);
+            }
+        }
+
+        /**
+         * @param fileLength - length of the capture file
+         * @param lastModified - modification time of the capture file
+         * @return the entry for the records added
+         */
+        public Entry build(long fileLength, long lastModified)
+        {
+            Entry entry = new Entry(fileLength, lastModified, segments);
+
+            System.arraycopy(positions, 0, entry.positions, 0, segments);
+            System.arraycopy(earliest, 0, entry.earliest, 0, segments);
+            System.arraycopy(latest, 0, entry.latest, 0, segments);
+
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <h1>Capture Shards</h1>
+ * Splits the capture files of a folder into shards of about equal size for separate worker processes. Files are taken
+ * from largest to smallest and each given to the shard with the fewest bytes so far, ties going by file name, so any
+ * worker given --shard i/N works out the same split on its own from the folder listing.
+ */
+public class CaptureShards
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally analyse only one of N shards of the capture files i.e --shard 2/4, " +
+            "writing partial counts for a reducer i.e --partial part-2.pktc";
+
+    private int index;
+    private int count;
+
+    /**
+     * Creates a shard
+     * @param index - number of the shard, from 1 to the count
+     * @param count - number of shards the files are split into
+     */
+    public CaptureShards(int index, int count)
+    {
+        if(count < 1 || index < 1 || index > count)
+            throw new IllegalArgumentException("Shard must be between 1/" + Math.max(count, 1) + " and " + count + "/" + count
+                    + " but was : " + index + "/" + count);
+
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Reads the shard given with --shard
+     * @param options - the options given to the analyser
+     * @return the shard, or null if the option was not given
+     */
+    public static CaptureShards parse(AnalyserOptions options)
+    {
+        if(!options.has("shard"))
+            return null;
+
+        String shard = options.getString("shard", null);
+
+        if(!shard.matches("\\d+/\\d+"))
+            throw new IllegalArgumentException("Option --shard expects a shard and count i.e 2/4 but was : " + shard);
+
+        String[] parts = shard.split("/");
+
+        return new CaptureShards(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Splits capture files into shards
+     * @param files - the files, anything which is not a visible file being left out
+     * @param count - number of shards
+     * @return the files of each shard, in name order within a shard
+     */
+    public static ArrayList<ArrayList<File>> plan(File[] files, int count)
+    {
+        ArrayList<File> captures = new ArrayList<File>();
+
+        for(File file : files)
+        {
+            if(file.isFile() && !file.isHidden())
+                captures.add(file);
+        }
+
+        File[] sorted = captures.toArray(new File[captures.size()]);
+
+        Arrays.sort(sorted, new Comparator<File>()
+        {
+            @Override
+            public int compare(File first, File second)
+            {
+                int comparison = Long.compare(second.length(), first.length());
+
+                return comparison != 0 ? comparison : first.getName().compareTo(second.getName());
+            }
+        });
+
+        ArrayList<ArrayList<File>> shards = new ArrayList<ArrayList<File>>();
+        long[] shardBytes = new long[count];
+
+        for(int shard = 0; shard < count; shard++)
+        {
+            shards.add(new ArrayList<File>());
+        }
+
+        for(File file : sorted)
+        {
+            int smallest = 0;
+
+            for(int shard = 1; shard < count; shard++)
+            {
+                if(shardBytes[shard] < shardBytes[smallest])
+                    smallest = shard;
+            }
+
+            shards.get(smallest).add(file);
+            shardBytes[smallest] += file.length();
+        }
+
+        for(ArrayList<File> shard : shards)
+        {
+            File[] shardFiles = shard.toArray(new File[shard.size()]);
+            Arrays.sort(shardFiles);
+
+            shard.clear();
+            shard.addAll(Arrays.asList(shardFiles));
+        }
+
+        return shards;
+    }
+
+    /**
+     * @param files - the capture files of the folder
+     * @return the files of this shard
+     */
+    public File[] select(File[] files)
+    {
+        ArrayList<File> shard = plan(files, count).get(index - 1);
+
+        return shard.toArray(new File[shard.size()]);
+    }
+
+    /**
+     * @return number of the shard, from 1 to the count
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+}
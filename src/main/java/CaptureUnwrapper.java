@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * <h1>Capture Unwrapper</h1>
+ * Copies the packets of a capture into plain ethernet captures for tools which read whole files, such as tcpdump,
+ * tcpdstat and ipsumdump, and whose filters do not look inside VLAN tags, GRE or VXLAN tunnels or linux cooked
+ * headers. Each packet is decoded and written as its innermost IP packet behind an ethernet header of its own, so a
+ * filter like src net sees the addresses of the traffic actually carried.
+ * <p>
+ * Given --per-vlan, the packets of each VLAN are copied into a capture of their own, named after the VLAN, so the
+ * reports can be broken down by VLAN from the names of the files the tools were run on.
+ */
+public class CaptureUnwrapper
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally analyse the packets inside VLAN tags, GRE and VXLAN tunnels and linux " +
+            "cooked captures i.e --unwrap, and break the report down by VLAN i.e --per-vlan";
+    public static final String VLAN_OPTION_INSTRUCTION = "- Optionally break the report down by VLAN i.e --per-vlan, the packets " +
+            "inside VLAN tags, GRE and VXLAN tunnels and linux cooked captures being analysed either way";
+
+    // VLAN of the rows of a report not broken down by VLAN, and of the packets without a tag
+    public static final String ALL_VLANS = "all";
+    public static final String UNTAGGED = "untagged";
+
+    private static final String VLAN_PREFIX = "vlan-";
+
+    private static final int SNAP_LENGTH = 262144;
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+
+    private boolean perVlan;
+    private byte[] frame = new byte[ETHERNET_HEADER_LENGTH + 65536];
+
+    /**
+     * Creates an unwrapper
+     * @param perVlan - whether to copy the packets of each VLAN into a capture of their own
+     */
+    public CaptureUnwrapper(boolean perVlan)
+    {
+        this.perVlan = perVlan;
+    }
+
+    /**
+     * Reads the unwrapping given with --unwrap or --per-vlan, the latter needing the VLAN of each packet
+     * @param options - the options given to the analyser, parsed with unwrap and per-vlan as switches
+     * @return the unwrapper, or null if neither was given
+     */
+    public static CaptureUnwrapper parse(AnalyserOptions options)
+    {
+        if(!options.has("unwrap") && !options.has("per-vlan"))
+            return null;
+
+        return new CaptureUnwrapper(isPerVlan(options));
+    }
+
+    /**
+     * @param options - the options given to the analyser
+     * @return whether the reports are to be broken down by VLAN
+     */
+    public static boolean isPerVlan(AnalyserOptions options)
+    {
+        return options.has("per-vlan");
+    }
+
+    /**
+     * @param vlanId - VLAN given by PacketDecoder.getVlanId()
+     * @return the VLAN as written to the reports
+     */
+    public static String vlanName(int vlanId)
+    {
+        return vlanId == PacketDecoder.NO_VLAN ? UNTAGGED : Integer.toString(vlanId);
+    }
+
+    /**
+     * Finds the VLAN of a capture written by unwrapCapture(), or of a file the tools made from it and whose name
+     * still holds the capture's
+     * @param fileName - name of the file
+     * @param options - the options given to the analyser
+     * @return the VLAN as written to the reports, or ALL_VLANS if the report is not broken down by VLAN
+     */
+    public static String vlanOf(String fileName, AnalyserOptions options)
+    {
+        // the VLAN is put in front of the capture's own name, so it is the first found
+        int start = fileName.indexOf(VLAN_PREFIX);
+
+        if(!isPerVlan(options) || start < 0)
+            return ALL_VLANS;
+
+        start += VLAN_PREFIX.length();
+        int end = fileName.indexOf('.', start);
+
+        return end < 0 ? ALL_VLANS : fileName.substring(start, end);
+    }
+
+    /**
+     * Puts the vlan column in front of a report's columns when the report is broken down by VLAN
+     * @param columnNames - the report's other columns
+     * @param options - the options given to the analyser
+     * @return the columns of the report
+     */
+    public static String[] reportColumns(String[] columnNames, AnalyserOptions options)
+    {
+        if(!isPerVlan(options))
+            return columnNames;
+
+        String[] columns = new String[columnNames.length + 1];
+        columns[0] = "vlan";
+        System.arraycopy(columnNames, 0, columns, 1, columnNames.length);
+
+        return columns;
+    }
+
+    /**
+     * Puts the type of the vlan column in front of a report's column types when the report is broken down by VLAN
+     * @param columnTypes - the types of the report's other columns
+     * @param options - the options given to the analyser
+     * @return the column types of the report
+     */
+    public static byte[] reportTypes(byte[] columnTypes, AnalyserOptions options)
+    {
+        if(!isPerVlan(options))
+            return columnTypes;
+
+        byte[] types = new byte[columnTypes.length + 1];
+        types[0] = ReportTable.STRING;
+        System.arraycopy(columnTypes, 0, types, 1, columnTypes.length);
+
+        return types;
+    }
+
+    /**
+     * Copies the packets of a capture into plain ethernet captures. Packets which are not IP are copied as they are
+     * when the capture is ethernet, and left out otherwise
+     * @param file - the capture file
+     * @param folder - folder to write the copies into
+     * @return the copy, or a copy per VLAN in VLAN order when broken down by VLAN, or null if the copies could not be made
+     */
+    public File[] unwrapCapture(File file, File folder)
+    {
+        folder.mkdirs();
+
+        PacketDecoder decoder = new PacketDecoder();
+        TreeMap<Integer, CaptureWriter> writers = new TreeMap<Integer, CaptureWriter>();
+        TreeMap<Integer, File> outputs = new TreeMap<Integer, File>();
+        PcapReader reader = null;
+        boolean failed = false;
+
+        try {
+            reader = new PcapReader(file);
+
+            while(reader.next())
+            {
+                byte[] buffer = reader.getBuffer();
+                int offset = reader.getPacketOffset();
+                int length = reader.getCapturedLength();
+                int linkType = reader.getLinkType();
+
+                boolean decoded = decoder.decode(linkType, buffer, offset, length);
+
+                if(!decoded && linkType != PcapReader.LINKTYPE_ETHERNET)
+                    continue;
+
+                int vlanId = perVlan ? decoder.getVlanId() : PacketDecoder.NO_VLAN;
+                CaptureWriter writer = writers.get(vlanId);
+
+                if(writer == null)
+                {
+                    File output = new File(folder, perVlan ? VLAN_PREFIX + vlanName(vlanId) + "." + file.getName() : file.getName());
+
+                    writer = new CaptureWriter(output, false, SNAP_LENGTH);
+                    writers.put(vlanId, writer);
+                    outputs.put(vlanId, output);
+                }
+
+                if(!decoded)
+                {
+                    writer.write(buffer, offset, length, reader.getOriginalLength(), reader.getTimestampMicros());
+                    continue;
+                }
+
+                int packetLength = Math.min(decoder.getNetworkEnd(), offset + length) - decoder.getNetworkOffset();
+
+                if(frame.length < ETHERNET_HEADER_LENGTH + packetLength)
+                    frame = new byte[ETHERNET_HEADER_LENGTH + packetLength];
+
+                // the hardware addresses of an ethernet capture are kept as they are, the tools not looking at them
+                if(linkType == PcapReader.LINKTYPE_ETHERNET)
+                    System.arraycopy(buffer, offset, frame, 0, 12);
+                else
+                    Arrays.fill(frame, 0, 12, (byte) 0);
+
+                frame[12] = (byte) (decoder.getIpVersion() == 6 ? 0x86 : 0x08);
+                frame[13] = (byte) (decoder.getIpVersion() == 6 ? 0xdd : 0x00);
+                System.arraycopy(buffer, decoder.getNetworkOffset(), frame, ETHERNET_HEADER_LENGTH, packetLength);
+
+                // bytes of the packet which were not captured stay uncounted in the copy
+                int uncaptured = reader.getOriginalLength() - length;
+
+                writer.write(frame, 0, ETHERNET_HEADER_LENGTH + packetLength,
+                        ETHERNET_HEADER_LENGTH + packetLength + Math.max(uncaptured, 0), reader.getTimestampMicros());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        } finally {
+            if(reader != null)
+            {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            for(CaptureWriter writer : writers.values())
+            {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failed = true;
+                }
+            }
+        }
+
+        if(failed)
+            return null;
+
+        return outputs.values().toArray(new File[outputs.size()]);
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * <h1>Capture Writer</h1>
+ * Writes ethernet packets into a new libpcap or pcapng capture file with microsecond timestamps. A pcapng file is
+ * written as a single section with a single interface.
+ */
+public class CaptureWriter implements Closeable
+{
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+
+    private static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+
+    private static final byte[] PADDING = new byte[4];
+
+    private DataOutputStream output;
+    private boolean pcapng;
+    private int snapLength;
+
+    private long bytesWritten;
+    private long packetsWritten = 0;
+
+    /**
+     * Creates a capture file, replacing any file of the same name
+     * @param file - the file to write
+     * @param pcapng - true for the pcapng format, false for libpcap
+     * @param snapLength - most bytes of a packet to keep
+     * @throws IOException - if the file cannot be written
+     */
+    public CaptureWriter(File file, boolean pcapng, int snapLength) throws IOException
+    {
+        this.pcapng = pcapng;
+        this.snapLength = snapLength;
+
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+        if(pcapng)
+        {
+            // section header of unknown length, then the interface every packet is captured on
+            output.writeInt(SECTION_HEADER_BLOCK);
+            output.writeInt(28);
+            output.writeInt(BYTE_ORDER_MAGIC);
+            output.writeShort(1);
+            output.writeShort(0);
+            output.writeLong(-1);
+            output.writeInt(28);
+
+            output.writeInt(INTERFACE_DESCRIPTION_BLOCK);
+            output.writeInt(20);
+            output.writeShort(PcapReader.LINKTYPE_ETHERNET);
+            output.writeShort(0);
+            output.writeInt(snapLength);
+            output.writeInt(20);
+        }
+        else
+        {
+            output.writeInt(PCAP_MAGIC);
+            output.writeShort(2);
+            output.writeShort(4);
+            output.writeInt(0);
+            output.writeInt(0);
+            output.writeInt(snapLength);
+            output.writeInt(PcapReader.LINKTYPE_ETHERNET);
+        }
+
+        bytesWritten = output.size();
+    }
+
+    /**
+     * Writes a packet, cutting it to the snapshot length
+     * @param buffer - buffer holding the packet
+     * @param offset - offset of the packet in the buffer
+     * @param length - length of the packet
+     * @param timestampMicros - capture time of the packet in microseconds since the epoch
+     * @throws IOException - if the packet cannot be written
+     */
+    public void write(byte[] buffer, int offset, int length, long timestampMicros) throws IOException
+    {
+        write(buffer, offset, length, length, timestampMicros);
+    }
+
+    /**
+     * Writes a packet of which only part was captured, cutting it to the snapshot length
+     * @param buffer - buffer holding the captured bytes of the packet
+     * @param offset - offset of the packet in the buffer
+     * @param length - number of captured bytes of the packet
+     * @param originalLength - length of the packet on the wire
+     * @param timestampMicros - capture time of the packet in microseconds since the epoch
+     * @throws IOException - if the packet cannot be written
+     */
+    public void write(byte[] buffer, int offset, int length, int originalLength, long timestampMicros) throws IOException
+    {
+        int capturedLength = Math.min(length, snapLength);
+
+        if(pcapng)
+        {
+            int padding = -capturedLength & 3;
+            int blockLength = 32 + capturedLength + padding;
+
+            output.writeInt(ENHANCED_PACKET_BLOCK);
+            output.writeInt(blockLength);
+            output.writeInt(0);
+            output.writeInt((int) (timestampMicros >>> 32));
+            output.writeInt((int) timestampMicros);
+            output.writeInt(capturedLength);
+            output.writeInt(originalLength);
+            output.write(buffer, offset, capturedLength);
+            output.write(PADDING, 0, padding);
+            output.writeInt(blockLength);
+
+            bytesWritten += blockLength;
+        }
+        else
+        {
+            output.writeInt((int) (timestampMicros / 1000000L));
+            output.writeInt((int) (timestampMicros % 1000000L));
+            output.writeInt(capturedLength);
+            output.writeInt(originalLength);
+            output.write(buffer, offset, capturedLength);
+
+            bytesWritten += 16 + capturedLength;
+        }
+
+        packetsWritten++;
+    }
+
+    /**
+     * @return number of bytes written to the file so far
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of packets written to the file so far
+     */
+    public long getPacketsWritten()
+    {
+        return packetsWritten;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        output.close();
+    }
+}
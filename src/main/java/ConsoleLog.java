@@ -0,0 +1,395 @@
+import java.io.File;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>Console Log</h1>
+ * Prints the progress of an analysis to the console from a thread of its own, so the threads analysing packets only
+ * put a line on a queue instead of waiting on the console. Lines below the level set with --log-level are left out
+ * before being queued, the rows of the reports being printed at the debug level only, and --quiet leaves out all but
+ * warnings and errors.
+ * <p>
+ * The queue holds a bounded number of lines. A thread logging a debug line while the queue is full leaves the line out
+ * and carries on, a count of the lines left out being printed once the console has caught up, while other lines wait
+ * for room so no warning or error is lost. Times are formatted on the printing thread, so lines can be logged from
+ * any thread.
+ * <p>
+ * A progress line giving the files done, the rate and the time left is printed every few seconds while files are
+ * analysed, and once all of them are done.
+ */
+public class ConsoleLog
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally print only warnings and errors i.e --quiet, or set how much is printed " +
+            "i.e --log-level debug to print each row of the reports too, out of error, warn, info and debug";
+
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+
+    private static final String[] LEVEL_NAMES = {"error", "warn", "info", "debug"};
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long POLL_MILLIS = 250;
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        }
+    };
+
+    /**
+     * A line waiting to be printed, or a request to be told once the lines before it are printed
+     */
+    private static class Entry
+    {
+        private long time;
+        private String text;
+        private boolean timestamped;
+        private CountDownLatch printed;
+
+        private Entry(long time, String text, boolean timestamped, CountDownLatch printed)
+        {
+            this.time = time;
+            this.text = text;
+            this.timestamped = timestamped;
+            this.printed = printed;
+        }
+    }
+
+    private static volatile int level = INFO;
+
+    private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private static final AtomicLong droppedLines = new AtomicLong();
+
+    private static Thread writerThread = null;
+
+    // files of the analysis under way, only read by the printing thread
+    private static volatile String progressName = null;
+    private static volatile int progressFiles;
+    private static volatile long progressBytes;
+    private static volatile long progressStart;
+    private static final AtomicLong filesDone = new AtomicLong();
+    private static final AtomicLong bytesDone = new AtomicLong();
+
+    /**
+     * Sets the level from --quiet or --log-level, info by default
+     * @param options - the options given to the analyser, parsed with quiet as a switch
+     */
+    public static void configure(AnalyserOptions options)
+    {
+        if(options.has("quiet"))
+        {
+            level = WARN;
+            return;
+        }
+
+        String name = options.getString("log-level", LEVEL_NAMES[INFO]).toLowerCase(Locale.ROOT);
+
+        for(int i = 0; i < LEVEL_NAMES.length; i++)
+        {
+            if(LEVEL_NAMES[i].equals(name))
+            {
+                level = i;
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException("Option --log-level must be one of error, warn, info or debug but was : " + name);
+    }
+
+    /**
+     * @param lineLevel - level of a line e.g DEBUG
+     * @return whether lines of the level are printed, so a caller can skip building lines which would be left out
+     */
+    public static boolean isEnabled(int lineLevel)
+    {
+        return lineLevel <= level;
+    }
+
+    /**
+     * Logs an error, printed after the time
+     * @param text - the line
+     */
+    public static void error(String text)
+    {
+        log(ERROR, text, true);
+    }
+
+    /**
+     * Logs a warning, printed after the time
+     * @param text - the line
+     */
+    public static void warn(String text)
+    {
+        log(WARN, text, true);
+    }
+
+    /**
+     * Logs a step of the analysis, printed after the time
+     * @param text - the line
+     */
+    public static void info(String text)
+    {
+        log(INFO, text, true);
+    }
+
+    /**
+     * Logs a detail of the analysis, printed after the time
+     * @param text - the line
+     */
+    public static void debug(String text)
+    {
+        log(DEBUG, text, true);
+    }
+
+    /**
+     * Logs a line without the time, such as a separator
+     * @param text - the line
+     */
+    public static void print(String text)
+    {
+        log(INFO, text, false);
+    }
+
+    /**
+     * Logs a row of a report, printed without the time at the debug level only
+     * @param text - the row
+     */
+    public static void row(String text)
+    {
+        log(DEBUG, text, false);
+    }
+
+    /**
+     * Starts counting the progress of an analysis through its files
+     * @param name - what is being done to the files e.g "Getting hosts"
+     * @param files - the files, anything which is not a visible file being left out
+     */
+    public static void startProgress(String name, File[] files)
+    {
+        int count = 0;
+        long bytes = 0;
+
+        for(File file : files)
+        {
+            if(file.isFile() && !file.isHidden())
+            {
+                count++;
+                bytes += file.length();
+            }
+        }
+
+        filesDone.set(0);
+        bytesDone.set(0);
+        progressFiles = count;
+        progressBytes = bytes;
+        progressStart = System.currentTimeMillis();
+        progressName = name;
+
+        start();
+    }
+
+    /**
+     * Counts a file of the analysis as done
+     * @param file - the file
+     */
+    public static void fileDone(File file)
+    {
+        bytesDone.addAndGet(file.length());
+        filesDone.incrementAndGet();
+    }
+
+    /**
+     * Waits until every line logged so far is printed, and stops counting progress. Called once an analysis is done,
+     * before anything else is printed
+     */
+    public static void flush()
+    {
+        synchronized(ConsoleLog.class)
+        {
+            if(writerThread == null)
+                return;
+        }
+
+        CountDownLatch printed = new CountDownLatch(1);
+
+        try {
+            queue.put(new Entry(0, null, false, printed));
+
+            // the printing thread is not waited for after it has died, e.g when the JVM is shutting down
+            while(!printed.await(POLL_MILLIS, TimeUnit.MILLISECONDS))
+            {
+                if(!writerThread.isAlive())
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        progressName = null;
+    }
+
+    /**
+     * @return the current time as printed at the start of a line
+     */
+    public static String timestamp()
+    {
+        return DATE_FORMAT.get().format(new Date());
+    }
+
+    private static void log(int lineLevel, String text, boolean timestamped)
+    {
+        if(lineLevel > level)
+            return;
+
+        start();
+
+        Entry entry = new Entry(System.currentTimeMillis(), text, timestamped, null);
+
+        if(lineLevel == DEBUG)
+        {
+            if(!queue.offer(entry))
+                droppedLines.incrementAndGet();
+
+            return;
+        }
+
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized void start()
+    {
+        if(writerThread != null)
+            return;
+
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runWriter();
+            }
+        }, "console-log");
+
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // lines still queued when the analysis ends in an exception are printed before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flush();
+            }
+        }, "console-log-flush"));
+    }
+
+    private static void runWriter()
+    {
+        DateFormat format = DATE_FORMAT.get();
+        ArrayList<Entry> batch = new ArrayList<Entry>();
+        StringBuilder text = new StringBuilder();
+        long lastProgress = System.currentTimeMillis();
+        long lastFilesDone = -1;
+
+        while(true)
+        {
+            try {
+                Entry entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                if(entry != null)
+                {
+                    batch.add(entry);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for(Entry entry : batch)
+            {
+                if(entry.text == null)
+                    continue;
+
+                if(entry.timestamped)
+                    text.append(format.format(new Date(entry.time))).append(' ');
+
+                text.append(entry.text).append(System.lineSeparator());
+            }
+
+            long dropped = droppedLines.getAndSet(0);
+
+            if(dropped > 0)
+                text.append(format.format(new Date())).append(" Left out ").append(dropped)
+                        .append(" debug lines while the console was behind").append(System.lineSeparator());
+
+            // progress is printed every few seconds while files are being done, and once they are all done
+            String name = progressName;
+            long now = System.currentTimeMillis();
+            long done = filesDone.get();
+
+            if(name != null && level >= INFO && done != lastFilesDone
+                    && (now - lastProgress >= PROGRESS_INTERVAL_MILLIS || done == progressFiles))
+            {
+                text.append(format.format(new Date(now))).append(' ').append(progressLine(name, done, now))
+                        .append(System.lineSeparator());
+
+                lastProgress = now;
+                lastFilesDone = done;
+            }
+
+            if(text.length() > 0)
+            {
+                System.out.print(text);
+                System.out.flush();
+                text.setLength(0);
+            }
+
+            for(Entry entry : batch)
+            {
+                if(entry.printed != null)
+                    entry.printed.countDown();
+            }
+
+            batch.clear();
+        }
+    }
+
+    private static String progressLine(String name, long done, long now)
+    {
+        long bytes = bytesDone.get();
+        double seconds = Math.max(now - progressStart, 1) / 1000.0;
+        double megabytesPerSecond = bytes / seconds / (1024 * 1024);
+
+        StringBuilder line = new StringBuilder(name).append(" : ").append(done).append(" of ").append(progressFiles)
+                .append(" files, ").append(bytes / (1024 * 1024)).append(" of ").append(progressBytes / (1024 * 1024))
+                .append(" MB, ").append(String.format(Locale.ROOT, "%.1f", megabytesPerSecond)).append(" MB/s");
+
+        if(bytes > 0 && done < progressFiles)
+        {
+            long secondsLeft = (long) ((progressBytes - bytes) / (bytes / seconds));
+
+            line.append(String.format(Locale.ROOT, ", about %d:%02d:%02d left", secondsLeft / 3600, (secondsLeft / 60) % 60,
+                    secondsLeft % 60));
+        }
+
+        return line.toString();
+    }
+}
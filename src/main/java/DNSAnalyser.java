@@ -0,0 +1,434 @@
+import java.io.*;
+
+/**
+ * <h1>DNS Analyser</h1>
+ * Gives a breakdown of the DNS queries and responses in pcap files: query types, response codes, response times and the
+ * most queried domains. DNS messages are parsed in-process as the files are read.
+ */
+public class DNSAnalyser
+{
+    private static String FOLDER_ARGUMENT_INSTRUCTION = "- Provide a folder to read pcap files from i.e -d sample_folder";
+    private static String FILE_ARGUMENT_INSTRUCTION = "- Provide a pcap file to read from i.e -d file_directory -f sample_file";
+    private static String TOP_DOMAINS_OPTION_INSTRUCTION = "- Optionally set how many of the most queried domains to track i.e --top-domains 1000";
+
+    private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
+
+    private static String[] RESPONSE_CODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED",
+            "YXDOMAIN", "YXRRSET", "NXRRSET", "NOTAUTH", "NOTZONE", "DSOTYPENI", "RCODE12", "RCODE13", "RCODE14", "RCODE15"};
+
+    //an aggregator for each of the 4096 VLAN ids and one for untagged packets
+    private static final int VLAN_SLOTS = 4097;
+
+    public static void main(String[] args)
+    {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the analysis with the given command line, as main() does, without ending the JVM so several analyses can
+     * be run one after another
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options = null;
+        TimeRange range = null;
+        int pipelineSlots = 0;
+        DuplicateFilter duplicates = null;
+        int topDomainCount = 0;
+
+        try {
+            options = AnalyserOptions.parse(args, "index", "quiet", "per-vlan", "dedup");
+            topDomainCount = options.getInt("top-domains", 1000);
+
+            if(topDomainCount < 1)
+                throw new IllegalArgumentException("Option --top-domains must be at least 1 but was : " + topDomainCount);
+
+            range = TimeRange.parse(options);
+            duplicates = DuplicateFilter.parse(options);
+            pipelineSlots = PacketPipeline.parseSlots(options);
+            Metrics.checkOptions(options);
+            ConsoleLog.configure(options);
+            ReportWriter.checkFormat(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printInstructions();
+            return false;
+        }
+
+        args = options.getArguments();
+
+        if(args.length == 0)
+        {
+            System.out.println("No arguments provided. Please do one of the following:");
+            printInstructions();
+            return false;
+        }
+        else if(args.length == 2 || args.length == 4)
+        {
+            String folderName = args[1];
+            File[] files = null;
+
+            //directory submitted
+            if(args.length == 2 && args[0].equals("-d"))
+            {
+                File folder = new File(folderName);
+                files = folder.listFiles();
+            }
+            else if(args.length == 4 && args[0].equals("-d") && args[2].equals("-f")) // a file and its directory submitted
+            {
+                String fileName = args[3];
+
+                File file = new File(folderName + "/" + fileName);
+
+                File[] tempFiles = new File[1];
+                tempFiles[0] = file;
+
+                files = tempFiles;
+            }
+            else
+            {
+                System.out.println("Wrong arguments provided. Please do one of the following:");
+                printInstructions();
+                return false;
+            }
+
+            //packets, bytes and time of each stage, written out as the analysis goes when asked for
+            Metrics metrics = Metrics.start("dns", options);
+
+            //the counts of all VLANs are kept together unless broken down by VLAN, each VLAN's aggregator being made
+            //once the VLAN is seen
+            boolean perVlan = CaptureUnwrapper.isPerVlan(options);
+            DnsAggregator[] aggregators = new DnsAggregator[VLAN_SLOTS];
+
+            if(!perVlan)
+                aggregators[0] = new DnsAggregator(topDomainCount);
+
+            //index of the capture times used to skip files and jump into them for a time range
+            CaptureIndex index = CaptureIndex.load(new File(folderName), options);
+
+            //the packets read are parsed and counted on a thread of their own
+            final PacketPipeline pipeline = new PacketPipeline(pipelineSlots, dnsStage(aggregators, perVlan, topDomainCount, duplicates,
+                    metrics));
+
+            metrics.gauge("pipeline", new Metrics.Gauge()
+            {
+                @Override
+                public long read()
+                {
+                    return pipeline.getQueueDepth();
+                }
+            });
+
+            ConsoleLog.startProgress("Analysing DNS messages", files);
+
+            //parse the DNS messages in each pcap file
+            try {
+                for(File file : files)
+                {
+                    if(file.isFile() && !file.isHidden())
+                    {
+                        ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                        ConsoleLog.info("Preparing to analyse DNS messages from file : " + file.getName());
+
+                        long fileStart = System.nanoTime();
+
+                        analyseFile(file, pipeline, index, range, metrics);
+
+                        metrics.fileFinished(file, System.nanoTime() - fileStart);
+                        ConsoleLog.fileDone(file);
+                    }
+                }
+            } finally {
+                pipeline.finish();
+            }
+
+            index.save();
+
+            if(duplicates != null)
+                ConsoleLog.info("Left out " + duplicates.getDuplicates() + " duplicate packets");
+
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.info("Writing DNS breakdown to file");
+
+            Metrics.Stage writeStage = metrics.stage("write");
+            long writeStart = System.nanoTime();
+
+            writeBreakdown(aggregators, "dns-analysis", options);
+            writeTopDomains(aggregators, "dns-domain-analysis", options);
+
+            writeStage.addTime(System.nanoTime() - writeStart);
+            metrics.finish();
+        }
+        else
+        {
+            System.out.println("More arguments provided than needed. Please do one of the following:");
+            printInstructions();
+            return false;
+        }
+
+        //every line logged is printed before the caller goes on
+        ConsoleLog.flush();
+
+        return true;
+    }
+
+    /**
+     * Prints the arguments and options the analyser takes
+     */
+    private static void printInstructions()
+    {
+        System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+        System.out.println(FILE_ARGUMENT_INSTRUCTION);
+        System.out.println(TOP_DOMAINS_OPTION_INSTRUCTION);
+        System.out.println(ReportWriter.FORMAT_OPTION_INSTRUCTION);
+        System.out.println(TimeRange.OPTION_INSTRUCTION);
+        System.out.println(PacketPipeline.OPTION_INSTRUCTION);
+        System.out.println(DuplicateFilter.OPTION_INSTRUCTION);
+        System.out.println(CaptureUnwrapper.VLAN_OPTION_INSTRUCTION);
+        System.out.println(Metrics.OPTION_INSTRUCTION);
+        System.out.println(ConsoleLog.OPTION_INSTRUCTION);
+    }
+
+    /**
+     * Reads a pcap file and adds its DNS messages to the aggregates
+     * @param file - the pcap file
+     * @param pipeline - pipeline passing the packets to the stage made by dnsStage
+     * @param index - index of the capture times in the file's folder
+     * @param range - time range of the packets to analyse, or null for all packets
+     * @param metrics - metrics counting the packets read and those within the time range
+     */
+    public static void analyseFile(File file, PacketPipeline pipeline, CaptureIndex index, TimeRange range, Metrics metrics)
+    {
+        Metrics.Stage readStage = metrics.stage("read");
+        Metrics.Stage filterStage = metrics.stage("filter");
+        PcapReader reader = null;
+
+        try {
+            ConsoleLog.info("Analysing file : " + file.getName());
+
+            reader = index.open(file, range);
+
+            if(reader == null)
+            {
+                ConsoleLog.info("No packets within the time range, skipping file : " + file.getName());
+                return;
+            }
+
+            while(reader.next())
+            {
+                readStage.count(1, reader.getCapturedLength());
+
+                if(range != null && !range.contains(reader.getTimestampMicros()))
+                    continue;
+
+                filterStage.count(1, reader.getCapturedLength());
+
+                pipeline.publish(reader.getLinkType(), reader.getBuffer(), reader.getPacketOffset(), reader.getCapturedLength(),
+                        reader.getOriginalLength(), reader.getTimestampMicros());
+            }
+
+            ConsoleLog.info("No error occurred on analysing file : " + file.getName());
+        } catch (IOException e) {
+            ConsoleLog.error("An error occurred on analysing file : " + file.getName());
+            e.printStackTrace();
+        } finally {
+            if(reader != null)
+                index.close(file, reader);
+        }
+    }
+
+    /**
+     * Makes the pipeline stage decoding the packets read and adding their DNS messages to the aggregates
+     * @param aggregators - aggregators keeping the DNS counts by VLAN id plus one, or all counts at 0 when not broken
+     * down by VLAN
+     * @param perVlan - whether to keep the counts of each VLAN apart
+     * @param topDomainCount - number of most queried domains tracked by the aggregator made for a VLAN
+     * @param duplicates - filter leaving out copies of packets already counted, or null to count all packets
+     * @param metrics - metrics counting and timing the packets decoded and aggregated
+     * @return the stage
+     */
+    public static PacketPipeline.Stage dnsStage(final DnsAggregator[] aggregators, final boolean perVlan, final int topDomainCount,
+                                                final DuplicateFilter duplicates, Metrics metrics)
+    {
+        final PacketDecoder decoder = new PacketDecoder();
+        final Metrics.Stage decodeStage = metrics.stage("decode");
+        final Metrics.Stage aggregateStage = metrics.stage("aggregate-dns");
+
+        return new PacketPipeline.Stage()
+        {
+            @Override
+            public void process(int linkType, byte[] buffer, int offset, int length, int originalLength, long timestamp)
+            {
+                long start = decodeStage.startTiming();
+                boolean decoded = decoder.decode(linkType, buffer, offset, length);
+                decodeStage.stopTiming(start);
+
+                if(!decoded)
+                    return;
+
+                decodeStage.count(1, length);
+
+                //copies of a packet already counted, as from two taps, are left out
+                if(duplicates != null && duplicates.isDuplicate(decoder, timestamp))
+                    return;
+
+                int slot = perVlan ? decoder.getVlanId() + 1 : 0;
+                DnsAggregator aggregator = aggregators[slot];
+
+                if(aggregator == null)
+                {
+                    aggregator = new DnsAggregator(topDomainCount);
+                    aggregators[slot] = aggregator;
+                }
+
+                start = aggregateStage.startTiming();
+                aggregator.process(decoder, timestamp);
+                aggregateStage.stopTiming(start);
+
+                aggregateStage.count(1, originalLength);
+            }
+        };
+    }
+
+    /**
+     * Writes the query type, response code and latency counts to file, a group of rows per VLAN when broken down by VLAN
+     * @param aggregators - aggregators holding the counts, as kept by the stage made by dnsStage
+     * @param reportName - the report file name without its extension
+     * @param options - the options given to the analyser
+     */
+    public static void writeBreakdown(DnsAggregator[] aggregators, String reportName, AnalyserOptions options)
+    {
+        ReportTable table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"category", "name", "count"}, options),
+                CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.STRING, ReportTable.LONG}, options));
+
+        for(int slot = 0; slot < aggregators.length; slot++)
+        {
+            DnsAggregator aggregator = aggregators[slot];
+
+            if(aggregator == null)
+                continue;
+
+            String vlan = CaptureUnwrapper.isPerVlan(options) ? CaptureUnwrapper.vlanName(slot - 1) : null;
+
+            newRow(table, vlan).add("total").add("queries").add(aggregator.getQueries());
+            newRow(table, vlan).add("total").add("responses").add(aggregator.getResponses());
+            newRow(table, vlan).add("total").add("unanswered").add(aggregator.getUnansweredQueries());
+            newRow(table, vlan).add("total").add("unmatched").add(aggregator.getUnmatchedResponses());
+
+            long[] queryTypeCounts = aggregator.getQueryTypeCounts();
+
+            for(int type = 0; type < queryTypeCounts.length; type++)
+            {
+                if(queryTypeCounts[type] > 0)
+                    newRow(table, vlan).add("qtype").add(queryTypeName(type)).add(queryTypeCounts[type]);
+            }
+
+            long[] responseCodeCounts = aggregator.getResponseCodeCounts();
+
+            for(int code = 0; code < responseCodeCounts.length; code++)
+            {
+                if(responseCodeCounts[code] > 0)
+                    newRow(table, vlan).add("rcode").add(RESPONSE_CODE_NAMES[code]).add(responseCodeCounts[code]);
+            }
+
+            long[] latencyCounts = aggregator.getLatencyCounts();
+
+            for(int bucket = 0; bucket < latencyCounts.length; bucket++)
+            {
+                String bucketName = bucket == latencyCounts.length - 1 ? (">=" + (1L << (bucket - 1)) + "ms") : ("<" + (1L << bucket) + "ms");
+
+                newRow(table, vlan).add("latency").add(bucketName).add(latencyCounts[bucket]);
+            }
+        }
+
+        //rows stay in the order above, which is already the same from run to run
+        ReportWriter.write(table, reportName, options);
+    }
+
+    /**
+     * Writes the most queried domains to file, most queried first within each VLAN when broken down by VLAN
+     * @param aggregators - aggregators holding the domains, as kept by the stage made by dnsStage
+     * @param reportName - the report file name without its extension
+     * @param options - the options given to the analyser
+     */
+    public static void writeTopDomains(DnsAggregator[] aggregators, String reportName, AnalyserOptions options)
+    {
+        ReportTable table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"domain", "queries", "max overcount"}, options),
+                CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.LONG, ReportTable.LONG}, options));
+
+        for(int slot = 0; slot < aggregators.length; slot++)
+        {
+            if(aggregators[slot] == null)
+                continue;
+
+            HeavyHitters topDomains = aggregators[slot].getTopDomains();
+            String vlan = CaptureUnwrapper.isPerVlan(options) ? CaptureUnwrapper.vlanName(slot - 1) : null;
+
+            for(int counter = 0; counter < topDomains.size(); counter++)
+            {
+                newRow(table, vlan).add(topDomains.getKey(counter)).add(topDomains.getCount(counter)).add(topDomains.getError(counter));
+            }
+        }
+
+        if(CaptureUnwrapper.isPerVlan(options))
+            table.sort(ReportTable.ascending(0), ReportTable.descending(2), ReportTable.ascending(1));
+        else
+            table.sort(ReportTable.descending(1), ReportTable.ascending(0));
+
+        ReportWriter.write(table, reportName, options);
+    }
+
+    /**
+     * Starts a row of a report, with its VLAN first when broken down by VLAN
+     * @param table - the report
+     * @param vlan - VLAN of the row, or null when not broken down by VLAN
+     * @return the table, for the rest of the row to be added to
+     */
+    private static ReportTable newRow(ReportTable table, String vlan)
+    {
+        table.newRow();
+
+        if(vlan != null)
+            table.add(vlan);
+
+        return table;
+    }
+
+    /**
+     * @param type - DNS query type number
+     * @return the mnemonic of the type, or TYPE followed by the number for uncommon types
+     */
+    public static String queryTypeName(int type)
+    {
+        switch(type)
+        {
+            case 1: return "A";
+            case 2: return "NS";
+            case 5: return "CNAME";
+            case 6: return "SOA";
+            case 10: return "NULL";
+            case 12: return "PTR";
+            case 13: return "HINFO";
+            case 15: return "MX";
+            case 16: return "TXT";
+            case 28: return "AAAA";
+            case 33: return "SRV";
+            case 35: return "NAPTR";
+            case 43: return "DS";
+            case 46: return "RRSIG";
+            case 47: return "NSEC";
+            case 48: return "DNSKEY";
+            case 64: return "SVCB";
+            case 65: return "HTTPS";
+            case 99: return "SPF";
+            case 252: return "AXFR";
+            case 255: return "ANY";
+            case 257: return "CAA";
+            default: return "TYPE" + type;
+        }
+    }
+
+}
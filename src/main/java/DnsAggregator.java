@@ -0,0 +1,212 @@
+/**
+ * <h1>DNS Aggregator</h1>
+ * Aggregates the DNS traffic of a capture: queries per query type, responses per response code, the most queried
+ * registrable domains and the time between each query and its response. Queries awaiting a response are kept in a
+ * fixed size table keyed by client address, client port and transaction id, a query being counted as unanswered if
+ * its response never comes or another query takes its slot first.
+ */
+public class DnsAggregator
+{
+    // latency bucket i holds responses taking under 2^i milliseconds, the last bucket holding the rest
+    public static final int LATENCY_BUCKETS = 14;
+
+    private static final int PENDING_SLOTS = 1 << 16;
+
+    private DnsMessageParser parser = new DnsMessageParser();
+    private PublicSuffixList suffixList = PublicSuffixList.getDefault();
+    private AsciiSequence nameSequence = new AsciiSequence();
+    private byte[] name = new byte[DnsMessageParser.MAX_NAME_LENGTH];
+
+    private long[] queryTypeCounts = new long[1 << 16];
+    private long[] responseCodeCounts = new long[16];
+    private long[] latencyCounts = new long[LATENCY_BUCKETS];
+    private HeavyHitters topDomains;
+
+    private long[] pendingKeys = new long[PENDING_SLOTS];
+    private long[] pendingTimes = new long[PENDING_SLOTS];
+
+    private long queries = 0;
+    private long responses = 0;
+    private long overwrittenQueries = 0;
+    private long unmatchedResponses = 0;
+
+    /**
+     * Creates an aggregator
+     * @param topDomainCount - number of most queried domains to track
+     */
+    public DnsAggregator(int topDomainCount)
+    {
+        topDomains = new HeavyHitters(topDomainCount);
+    }
+
+    /**
+     * Adds a decoded packet to the aggregates if it is a DNS message
+     * @param decoder - decoder holding the packet
+     * @param timestamp - capture time of the packet in microseconds
+     */
+    public void process(PacketDecoder decoder, long timestamp)
+    {
+        boolean toServer = decoder.getDestinationPort() == 53;
+        boolean fromServer = decoder.getSourcePort() == 53;
+
+        if(!toServer && !fromServer)
+            return;
+
+        int offset = decoder.getPayloadOffset();
+        int length = decoder.getPayloadLength();
+
+        // DNS over TCP prefixes each message with its length
+        if(decoder.getProtocol() == PacketDecoder.PROTOCOL_TCP)
+        {
+            offset += 2;
+            length -= 2;
+        }
+        else if(decoder.getProtocol() != PacketDecoder.PROTOCOL_UDP)
+        {
+            return;
+        }
+
+        if(length <= 0 || !parser.parse(decoder.getBuffer(), offset, length))
+            return;
+
+        if(!parser.isResponse() && toServer)
+        {
+            queries++;
+            queryTypeCounts[parser.getQuestionType()]++;
+
+            countDomain();
+
+            int slot = pendingSlot(pendingKey(decoder, decoder.getSourceAddressOffset(), decoder.getSourcePort()));
+
+            if(pendingKeys[slot] != 0)
+                overwrittenQueries++;
+
+            pendingKeys[slot] = pendingKey(decoder, decoder.getSourceAddressOffset(), decoder.getSourcePort());
+            pendingTimes[slot] = timestamp;
+        }
+        else if(parser.isResponse() && fromServer)
+        {
+            responses++;
+            responseCodeCounts[parser.getResponseCode()]++;
+
+            long key = pendingKey(decoder, decoder.getDestinationAddressOffset(), decoder.getDestinationPort());
+            int slot = pendingSlot(key);
+
+            if(pendingKeys[slot] == key)
+            {
+                long latencyMillis = Math.max(0, timestamp - pendingTimes[slot]) / 1000;
+                int bucket = 64 - Long.numberOfLeadingZeros(latencyMillis);
+
+                latencyCounts[Math.min(bucket, LATENCY_BUCKETS - 1)]++;
+                pendingKeys[slot] = 0;
+            }
+            else
+            {
+                unmatchedResponses++;
+            }
+        }
+    }
+
+    /**
+     * Counts the registrable domain of the question being asked
+     */
+    private void countDomain()
+    {
+        int length = parser.readName(parser.getQuestionNameOffset(), name);
+
+        if(length < 0)
+            return;
+
+        // the root name is counted as "."
+        if(length == 0)
+        {
+            name[0] = '.';
+            length = 1;
+        }
+
+        int start = suffixList.registrableDomainStart(nameSequence.set(name, 0, length));
+
+        topDomains.add(name, start, length - start);
+    }
+
+    private long pendingKey(PacketDecoder decoder, int clientAddressOffset, int clientPort)
+    {
+        long key = ((long) HyperLogLogCounters.hashAddress(decoder.getBuffer(), clientAddressOffset, decoder.getAddressLength()) << 32)
+                | ((long) clientPort << 16) | parser.getId();
+
+        return key == 0 ? 1 : key;
+    }
+
+    private static int pendingSlot(long key)
+    {
+        long hash = key * 0x9e3779b97f4a7c15L;
+
+        return (int) (hash >>> 48) & (PENDING_SLOTS - 1);
+    }
+
+    /**
+     * @return number of queries seen per query type, indexed by type number
+     */
+    public long[] getQueryTypeCounts()
+    {
+        return queryTypeCounts;
+    }
+
+    /**
+     * @return number of responses seen per response code, indexed by code
+     */
+    public long[] getResponseCodeCounts()
+    {
+        return responseCodeCounts;
+    }
+
+    /**
+     * @return number of responses matched to their query per latency bucket
+     */
+    public long[] getLatencyCounts()
+    {
+        return latencyCounts;
+    }
+
+    /**
+     * @return the most queried registrable domains
+     */
+    public HeavyHitters getTopDomains()
+    {
+        return topDomains;
+    }
+
+    public long getQueries()
+    {
+        return queries;
+    }
+
+    public long getResponses()
+    {
+        return responses;
+    }
+
+    /**
+     * @return number of queries with no matching response seen
+     */
+    public long getUnansweredQueries()
+    {
+        long waiting = 0;
+
+        for(long key : pendingKeys)
+        {
+            if(key != 0)
+                waiting++;
+        }
+
+        return waiting + overwrittenQueries;
+    }
+
+    /**
+     * @return number of responses with no matching query seen
+     */
+    public long getUnmatchedResponses()
+    {
+        return unmatchedResponses;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * <h1>DNS Message Parser</h1>
+ * Parses DNS messages in place. The header and first question are decoded on parse, and the resource records of the
+ * answer section are indexed by offset so their names and data can be read from the packet buffer when needed.
+ * Compressed names are followed through their pointers with a limit on the number of jumps.
+ */
+public class DnsMessageParser
+{
+    public static final int TYPE_A = 1;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_AAAA = 28;
+
+    public static final int MAX_NAME_LENGTH = 255;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_ANSWERS = 64;
+    private static final int MAX_POINTER_JUMPS = 16;
+
+    private byte[] buffer;
+    private int messageOffset;
+    private int messageEnd;
+
+    private int id;
+    private boolean response;
+    private int opcode;
+    private int responseCode;
+    private int questionCount;
+    private int answerCount;
+
+    private int questionNameOffset;
+    private int questionType;
+
+    private int parsedAnswers;
+    private int[] answerNameOffsets = new int[MAX_ANSWERS];
+    private int[] answerTypes = new int[MAX_ANSWERS];
+    private long[] answerTtls = new long[MAX_ANSWERS];
+    private int[] answerDataOffsets = new int[MAX_ANSWERS];
+    private int[] answerDataLengths = new int[MAX_ANSWERS];
+
+    /**
+     * Parses the header, first question and answer records of a DNS message
+     * @param buffer - buffer holding the message
+     * @param offset - offset of the message i.e of its transaction id
+     * @param length - length of the message
+     * @return true if at least the header and first question could be read
+     */
+    public boolean parse(byte[] buffer, int offset, int length)
+    {
+        this.buffer = buffer;
+        messageOffset = offset;
+        messageEnd = offset + length;
+        parsedAnswers = 0;
+        questionNameOffset = -1;
+        questionType = -1;
+
+        if(length < HEADER_LENGTH)
+            return false;
+
+        id = PacketDecoder.readShort(buffer, offset);
+
+        int flags = PacketDecoder.readShort(buffer, offset + 2);
+        response = (flags & 0x8000) != 0;
+        opcode = (flags >> 11) & 0x0f;
+        responseCode = flags & 0x0f;
+
+        questionCount = PacketDecoder.readShort(buffer, offset + 4);
+        answerCount = PacketDecoder.readShort(buffer, offset + 6);
+
+        int position = offset + HEADER_LENGTH;
+
+        for(int i = 0; i < questionCount; i++)
+        {
+            int nameEnd = skipName(position);
+
+            if(nameEnd < 0 || nameEnd + 4 > messageEnd)
+                return i > 0;
+
+            if(i == 0)
+            {
+                questionNameOffset = position;
+                questionType = PacketDecoder.readShort(buffer, nameEnd);
+            }
+
+            position = nameEnd + 4;
+        }
+
+        for(int i = 0; i < answerCount && parsedAnswers < MAX_ANSWERS; i++)
+        {
+            int nameEnd = skipName(position);
+
+            if(nameEnd < 0 || nameEnd + 10 > messageEnd)
+                break;
+
+            int dataLength = PacketDecoder.readShort(buffer, nameEnd + 8);
+
+            if(nameEnd + 10 + dataLength > messageEnd)
+                break;
+
+            answerNameOffsets[parsedAnswers] = position;
+            answerTypes[parsedAnswers] = PacketDecoder.readShort(buffer, nameEnd);
+            answerTtls[parsedAnswers] = PacketDecoder.readInt(buffer, nameEnd + 4) & 0xffffffffL;
+            answerDataOffsets[parsedAnswers] = nameEnd + 10;
+            answerDataLengths[parsedAnswers] = dataLength;
+            parsedAnswers++;
+
+            position = nameEnd + 10 + dataLength;
+        }
+
+        return questionCount > 0 && questionNameOffset >= 0;
+    }
+
+    /**
+     * Finds the end of the name starting at a position without following compression pointers
+     * @param position - start of the name
+     * @return the position just after the name, or -1 if the name is malformed
+     */
+    private int skipName(int position)
+    {
+        while(position < messageEnd)
+        {
+            int length = buffer[position] & 0xff;
+
+            if(length == 0)
+                return position + 1;
+
+            if((length & 0xc0) == 0xc0)
+                return position + 2 <= messageEnd ? position + 2 : -1;
+
+            if((length & 0xc0) != 0)
+                return -1;
+
+            position += 1 + length;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decodes a name from the message into dotted lower case form
+     * @param position - offset of the name in the buffer
+     * @param out - array of at least MAX_NAME_LENGTH bytes to write the name into
+     * @return the length of the decoded name, or -1 if the name is malformed
+     */
+    public int readName(int position, byte[] out)
+    {
+        int length = 0;
+        int jumps = 0;
+
+        while(position >= messageOffset && position < messageEnd)
+        {
+            int labelLength = buffer[position] & 0xff;
+
+            if(labelLength == 0)
+                return length;
+
+            if((labelLength & 0xc0) == 0xc0)
+            {
+                if(position + 1 >= messageEnd || ++jumps > MAX_POINTER_JUMPS)
+                    return -1;
+
+                position = messageOffset + (((labelLength & 0x3f) << 8) | (buffer[position + 1] & 0xff));
+                continue;
+            }
+
+            if((labelLength & 0xc0) != 0 || position + 1 + labelLength > messageEnd)
+                return -1;
+
+            if(length + labelLength + 1 > MAX_NAME_LENGTH)
+                return -1;
+
+            if(length > 0)
+                out[length++] = '.';
+
+            for(int i = 1; i <= labelLength; i++)
+            {
+                byte b = buffer[position + i];
+
+                if(b >= 'A' && b <= 'Z')
+                    b += 'a' - 'A';
+
+                out[length++] = b;
+            }
+
+            position += 1 + labelLength;
+        }
+
+        return -1;
+    }
+
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public boolean isResponse()
+    {
+        return response;
+    }
+
+    public int getOpcode()
+    {
+        return opcode;
+    }
+
+    public int getResponseCode()
+    {
+        return responseCode;
+    }
+
+    public int getQuestionCount()
+    {
+        return questionCount;
+    }
+
+    public int getQuestionNameOffset()
+    {
+        return questionNameOffset;
+    }
+
+    public int getQuestionType()
+    {
+        return questionType;
+    }
+
+    /**
+     * @return number of answer records indexed, at most 64
+     */
+    public int getParsedAnswerCount()
+    {
+        return parsedAnswers;
+    }
+
+    public int getAnswerNameOffset(int index)
+    {
+        return answerNameOffsets[index];
+    }
+
+    public int getAnswerType(int index)
+    {
+        return answerTypes[index];
+    }
+
+    public long getAnswerTtl(int index)
+    {
+        return answerTtls[index];
+    }
+
+    public int getAnswerDataOffset(int index)
+    {
+        return answerDataOffsets[index];
+    }
+
+    public int getAnswerDataLength(int index)
+    {
+        return answerDataLengths[index];
+    }
+}
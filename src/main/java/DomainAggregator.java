@@ -0,0 +1,246 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Domain Aggregator</h1>
+ * Aggregates the web traffic of local clients per requested host. Each http request or https ClientHello is counted
+ * against the host it names, and the flow carrying it is linked to that host so the bytes of the whole flow, in both
+ * directions, are added to the host's totals. The distinct clients of each host are estimated with HyperLogLog.
+ * The hosts are kept within a memory budget, being spilled to disk when it is passed.
+ * <p>
+ * When broken down by VLAN, each host is counted under its VLAN, the VLAN being put in front of the host name with
+ * VLAN_SEPARATOR in between, so the hosts of a VLAN are merged, spilled and summarised together as any other host.
+ */
+public class DomainAggregator
+{
+    public static final int BYTES_UP_COLUMN = 0;
+    public static final int BYTES_DOWN_COLUMN = 1;
+
+    // sum over the flows of a host of the square of each flow's requests, giving the variance of a sample of flows
+    public static final int COUNT_SQUARES_COLUMN = 2;
+    public static final int VALUE_COLUMNS = 3;
+
+    // separates the VLAN from the host name in the keys of hosts counted per VLAN
+    public static final char VLAN_SEPARATOR = ' ';
+
+    private HostNameScanner scanner = new HostNameScanner();
+    private DnsMessageParser dnsParser = new DnsMessageParser();
+    private byte[] addressText = new byte[39];
+
+    // the VLAN and separator put in front of the hosts of each VLAN, by VLAN id plus one, and the key being built
+    private boolean perVlan;
+    private byte[][] vlanPrefixes = new byte[4097][];
+    private byte[] keyBuffer = new byte[256];
+
+    private PassiveDnsTable passiveDnsTable;
+    private FlowTable flowTable;
+
+    private SpillingHostCounter hostCounter;
+
+    /**
+     * Creates an aggregator
+     * @param passiveDnsSize - number of addresses to keep names for from DNS responses
+     * @param flowTableSize - number of web flows to track at once
+     * @param memoryBudget - bytes the hosts may take up before being spilled, or SpillingHostCounter.NO_BUDGET
+     * @param scratchFolder - folder to spill hosts into
+     * @param perVlan - whether to count each host under the VLAN of its requests
+     */
+    public DomainAggregator(int passiveDnsSize, int flowTableSize, long memoryBudget, File scratchFolder, boolean perVlan)
+    {
+        this.perVlan = perVlan;
+        passiveDnsTable = new PassiveDnsTable(passiveDnsSize);
+        flowTable = new FlowTable(flowTableSize);
+        hostCounter = new SpillingHostCounter(VALUE_COLUMNS, memoryBudget, scratchFolder);
+    }
+
+    /**
+     * Adds a decoded packet to the aggregates
+     * @param decoder - decoder holding the packet
+     * @param timestamp - capture time of the packet in microseconds
+     * @param wireLength - length of the packet on the wire
+     */
+    public void process(PacketDecoder decoder, long timestamp, int wireLength)
+    {
+        // spilling changes the host ids, so it is done before any are looked up for this packet
+        if(hostCounter.isOverBudget())
+            spillHosts();
+
+        if(decoder.getSourcePort() == 53)
+        {
+            learnDnsResponse(decoder);
+            return;
+        }
+
+        if(decoder.getProtocol() != PacketDecoder.PROTOCOL_TCP || LocalNetwork.isLocalTraffic(decoder))
+            return;
+
+        int sourcePort = decoder.getSourcePort();
+        int destinationPort = decoder.getDestinationPort();
+
+        if(sourcePort != 80 && sourcePort != 443 && destinationPort != 80 && destinationPort != 443)
+            return;
+
+        boolean up = LocalNetwork.isLocal(decoder.getBuffer(), decoder.getSourceAddressOffset(), decoder.getAddressLength());
+
+        if(!up && !LocalNetwork.isLocal(decoder.getBuffer(), decoder.getDestinationAddressOffset(), decoder.getAddressLength()))
+            return;
+
+        // flows are keyed in the client to server direction
+        long flowKey = up ? decoder.directionalFlowHash() : decoder.reverseFlowHash();
+        int flow = flowTable.findOrAdd(flowKey, timestamp);
+        int flowHostId = flowTable.getHostId(flow);
+
+        if(flowHostId >= 0)
+            hostCounter.addValue(flowHostId, up ? BYTES_UP_COLUMN : BYTES_DOWN_COLUMN, wireLength);
+        else
+            flowTable.addBytes(flow, up, wireLength);
+
+        if(!up)
+            return;
+
+        int hostId = scanHostName(decoder);
+
+        if(hostId < 0)
+            return;
+
+        hostCounter.offer(hostId, HyperLogLogCounters.hashAddress(decoder.getBuffer(),
+                decoder.getSourceAddressOffset(), decoder.getAddressLength()));
+
+        // bytes seen before the first request are credited to the host it names
+        if(flowHostId < 0)
+        {
+            flowTable.setHostId(flow, hostId);
+            hostCounter.addValue(hostId, BYTES_UP_COLUMN, flowTable.getBytesUp(flow));
+            hostCounter.addValue(hostId, BYTES_DOWN_COLUMN, flowTable.getBytesDown(flow));
+        }
+
+        // a flow going from k to k + 1 requests adds 2k + 1 to the square of its requests, while a request for a
+        // host other than the flow's is taken as a flow of its own
+        int previousRequests = flowHostId < 0 || flowHostId == hostId ? flowTable.addRequest(flow) : 0;
+        hostCounter.addValue(hostId, COUNT_SQUARES_COLUMN, 2L * previousRequests + 1);
+    }
+
+    /**
+     * Spills the hosts counted so far, carrying the hosts of the flows being tracked over to the new ids so the
+     * rest of their bytes are still added to them
+     */
+    private void spillHosts()
+    {
+        HostCounter spilled = hostCounter.spill();
+
+        if(spilled == null)
+            return;
+
+        for(int slot = 0; slot < flowTable.getCapacity(); slot++)
+        {
+            if(flowTable.isUsed(slot) && flowTable.getHostId(slot) >= 0)
+                flowTable.setHostId(slot, hostCounter.addKey(spilled, flowTable.getHostId(slot), 0));
+        }
+
+        hostCounter.afterSpill();
+    }
+
+    /**
+     * Scans a packet from a client for the host it requests and counts the request
+     * @param decoder - decoder holding the packet
+     * @return id of the host requested, or -1 if the packet holds no request
+     */
+    private int scanHostName(PacketDecoder decoder)
+    {
+        int result = scanner.scan(decoder.directionalFlowHash(), decoder.getSequenceNumber(), decoder.getBuffer(),
+                decoder.getPayloadOffset(), decoder.getPayloadLength());
+
+        if(result == HostNameScanner.HOST_FOUND)
+        {
+            String name = passiveDnsTable.getByAddressText(scanner.getHostBuffer(), scanner.getHostOffset(), scanner.getHostLength());
+
+            if(name != null)
+                return addHost(decoder, name);
+            else
+                return addHost(decoder, scanner.getHostBuffer(), scanner.getHostOffset(), scanner.getHostLength());
+        }
+        else if(result == HostNameScanner.NO_HOST)
+        {
+            String name = passiveDnsTable.get(decoder.getBuffer(), decoder.getDestinationAddressOffset(), decoder.getAddressLength());
+
+            if(name != null)
+                return addHost(decoder, name);
+
+            int length = decoder.formatAddress(decoder.getDestinationAddressOffset(), addressText);
+
+            return addHost(decoder, addressText, 0, length);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Counts a request for a host, under the VLAN of the packet when broken down by VLAN
+     * @return id of the host
+     */
+    private int addHost(PacketDecoder decoder, String name)
+    {
+        if(!perVlan)
+            return hostCounter.add(name, 1);
+
+        return hostCounter.add(CaptureUnwrapper.vlanName(decoder.getVlanId()) + VLAN_SEPARATOR + name, 1);
+    }
+
+    /**
+     * Counts a request for a host held in a buffer, under the VLAN of the packet when broken down by VLAN
+     * @return id of the host
+     */
+    private int addHost(PacketDecoder decoder, byte[] buffer, int offset, int length)
+    {
+        if(!perVlan)
+            return hostCounter.add(buffer, offset, length, 1);
+
+        byte[] prefix = vlanPrefixes[decoder.getVlanId() + 1];
+
+        if(prefix == null)
+        {
+            prefix = (CaptureUnwrapper.vlanName(decoder.getVlanId()) + VLAN_SEPARATOR).getBytes(StandardCharsets.US_ASCII);
+            vlanPrefixes[decoder.getVlanId() + 1] = prefix;
+        }
+
+        if(keyBuffer.length < prefix.length + length)
+            keyBuffer = new byte[prefix.length + length];
+
+        System.arraycopy(prefix, 0, keyBuffer, 0, prefix.length);
+        System.arraycopy(buffer, offset, keyBuffer, prefix.length, length);
+
+        return hostCounter.add(keyBuffer, 0, prefix.length + length, 1);
+    }
+
+    /**
+     * Adds the addresses of a DNS response over UDP or TCP to the passive DNS table
+     * @param decoder - decoder holding a packet from port 53
+     */
+    private void learnDnsResponse(PacketDecoder decoder)
+    {
+        int offset = decoder.getPayloadOffset();
+        int length = decoder.getPayloadLength();
+
+        // DNS over TCP prefixes each message with its length
+        if(decoder.getProtocol() == PacketDecoder.PROTOCOL_TCP)
+        {
+            offset += 2;
+            length -= 2;
+        }
+        else if(decoder.getProtocol() != PacketDecoder.PROTOCOL_UDP)
+        {
+            return;
+        }
+
+        if(length > 0 && dnsParser.parse(decoder.getBuffer(), offset, length))
+            passiveDnsTable.learn(dnsParser);
+    }
+
+    /**
+     * @return requests, bytes up, bytes down and distinct clients per host
+     */
+    public SpillingHostCounter getHostCounter()
+    {
+        return hostCounter;
+    }
+}
@@ -1,8 +1,9 @@
 import java.io.*;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <h1>Domain Analyser</h1>
@@ -14,20 +15,85 @@ public class DomainAnalyser
 {
     private static String FOLDER_ARGUMENT_INSTRUCTION = "- Provide a folder to read pcap files from i.e -d sample_folder.";
     private static String FILE_ARGUMENT_INSTRUCTION = "- Provide a pcap file to read from i.e -d file_directory -f sample_file";
+    private static String RESOLVER_OPTION_INSTRUCTION = "- Optionally resolve ip addresses from a hosts file instead of DNS i.e --hosts-file hosts.txt, " +
+            "or set the DNS lookup cache file, results it keeps in memory, threads and timeout of each lookup i.e --dns-cache cache.txt " +
+            "--dns-cache-size 10000 --resolver-threads 16 --resolver-timeout 2000, " +
+            "or use only the DNS answers in the capture i.e --offline, holding at most --passive-dns-size 100000 addresses " +
+            "and tracking at most --flow-table-size 262144 web flows at once";
 
-    private static String TEMP_FOLDER_NAME = "domain_temp";
-    private static String SUB_TEMP_FOLDER_NAME = "data";
+    //hosts resolved and converted to domains at a time when keeping within a memory budget
+    private static int HOST_BATCH_SIZE = 10000;
+
+    private static String DNS_CACHE_FILE_NAME = "domain-dns-cache.txt";
 
     private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
 
+    //columns of the partial counts written by a worker for --partial, the clients being the domain's encoded sketch
+    public static final String[] PARTIAL_COLUMNS = {"host", "count", "bytes up", "bytes down", "count squares", "clients"};
+    public static final byte[] PARTIAL_TYPES = {ReportTable.STRING, ReportTable.LONG, ReportTable.LONG, ReportTable.LONG, ReportTable.LONG,
+            ReportTable.STRING};
+
 
     public static void main(String[] args)
     {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the analysis with the given command line, as main() does, without ending the JVM so several analyses can
+     * be run one after another
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options = null;
+        TimeRange range = null;
+        PacketSampler sampler = null;
+        long memoryBudget = 0;
+        CaptureShards shard = null;
+        int pipelineSlots = 0;
+        DuplicateFilter duplicates = null;
+        int passiveDnsSize = 0;
+
+        try {
+            options = AnalyserOptions.parse(args, "offline", "index", "quiet", "per-vlan", "dedup");
+            passiveDnsSize = options.getInt("passive-dns-size", 100000);
+
+            if(passiveDnsSize < 1)
+                throw new IllegalArgumentException("Option --passive-dns-size must be at least 1 but was : " + passiveDnsSize);
+
+            if(options.getInt("dns-cache-size", 10000) < 1 || options.getInt("resolver-threads", 16) < 1
+                    || options.getLong("resolver-timeout", 2000L) < 1)
+                throw new IllegalArgumentException("Options --dns-cache-size, --resolver-threads and --resolver-timeout must be at least 1");
+
+            memoryBudget = SpillingHostCounter.parseBudget(options);
+            shard = CaptureShards.parse(options);
+            range = TimeRange.parse(options);
+            //whole flows are sampled by default so the bytes of a request and its response stay together
+            sampler = PacketSampler.parse(options, "flow");
+            duplicates = DuplicateFilter.parse(options);
+            pipelineSlots = PacketPipeline.parseSlots(options);
+            Metrics.checkOptions(options);
+            ConsoleLog.configure(options);
+            ReportWriter.checkFormat(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printInstructions();
+            return false;
+        }
+
+        args = options.getArguments();
+
+        //set when a file or step fails, the rest of the analysis still being carried out
+        boolean failed = false;
+
         if(args.length == 0)
         {
             System.out.println("No arguments provided. Please do one of the following:");
-            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
-            System.out.println(FILE_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
         }
         else if (args.length == 2 || args.length == 4)
         {
@@ -54,335 +120,619 @@ public class DomainAnalyser
             else
             {
                 System.out.println("Wrong arguments provided. Please do one of the following:");
-                System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
-                System.out.println(FILE_ARGUMENT_INSTRUCTION);
-                System.exit(1);
+                printInstructions();
+                return false;
             }
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
+            //a worker analyses only its shard of the files
+            if(shard != null)
+                files = shard.select(files);
 
-            //setup temp folder to temporary files during analysis
-            File tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+            //packets, bytes and time of each stage, written out as the analysis goes when asked for
+            Metrics metrics = Metrics.start("domain", options);
 
-            if(tempFolder.exists())
-            {
-                System.out.println(DATA_DISPLAY_SEPARATOR);
-                printCurrentTime();
-                System.out.println("Deleting temp folder in : " + folderName);
-                deleteDirectory(tempFolder);
-            }
+            //requests, bytes and clients of the different host names read from the pcap files, spilled to the
+            //scratch folder when over the memory budget
+            File scratchFolder = SpillingHostCounter.parseScratchFolder(options);
+            DomainAggregator aggregator = new DomainAggregator(passiveDnsSize,
+                    options.getInt("flow-table-size", 262144), memoryBudget, scratchFolder, CaptureUnwrapper.isPerVlan(options));
 
-            tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+            //index of the capture times used to skip files and jump into them for a time range
+            CaptureIndex index = CaptureIndex.load(new File(folderName), options);
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
+            //the packets read are counted on a thread of their own
+            final PacketPipeline pipeline = new PacketPipeline(pipelineSlots, hostNameStage(aggregator, sampler, duplicates, metrics));
 
-            if(tempFolder.mkdir())
+            metrics.gauge("pipeline", new Metrics.Gauge()
             {
-                System.out.println("Create temp folder in : " + folderName);
-            }
-            else
-            {
-                System.out.println("Failed to make temp folder in : " + folderName);
-                System.exit(1);
-            }
+                @Override
+                public long read()
+                {
+                    return pipeline.getQueueDepth();
+                }
+            });
 
-            //iterate through the pcap files
+            ConsoleLog.startProgress("Getting hosts", files);
 
-            for(File file : files)
-            {
-                if(file.isFile() && !file.isHidden())
+            //scan each pcap file for the hosts requested over http and https
+            try {
+                for(File file : files)
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Preparing to process file : " + file.getName());
+                    if(file.isFile() && !file.isHidden())
+                    {
+                        ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                        ConsoleLog.info("Preparing to get host names from file : " + file.getName());
 
-                    generateFilteredPcapFile(folderName, file.getName(), (folderName + "/" + TEMP_FOLDER_NAME));
+                        long fileStart = System.nanoTime();
+
+                        if(!countHostNames(file, pipeline, index, range, sampler, metrics))
+                            failed = true;
+
+                        metrics.fileFinished(file, System.nanoTime() - fileStart);
+                        ConsoleLog.fileDone(file);
+                    }
                 }
+            } finally {
+                pipeline.finish();
             }
 
-            // start analysis on generated files
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
-            System.out.println("Beginning host name breakdown");
+            index.save();
 
-            files = tempFolder.listFiles();
+            if(duplicates != null)
+                ConsoleLog.info("Left out " + duplicates.getDuplicates() + " duplicate packets");
 
-            File subTempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME + "/" + SUB_TEMP_FOLDER_NAME);
-            subTempFolder.mkdir();
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.info("Doing conversion");
 
-            //for each pcap file, apply the httpry tool to obtain the hosts and write to file
-            for(File file : files)
-            {
-                if(file.isFile() && !file.isHidden())
+            SpillingHostCounter dataCounter = aggregator.getHostCounter();
+
+            //counting the different domains
+            SpillingHostCounter domainCounter = new SpillingHostCounter(DomainAggregator.VALUE_COLUMNS, memoryBudget, scratchFolder);
+
+            Metrics.Stage summariseStage = metrics.stage("summarise");
+            long summariseStart = System.nanoTime();
+            HostResolver resolver = null;
+
+            try {
+                //the hosts come back in name order, merged from any spilled runs
+                dataCounter.finish();
+
+                if(dataCounter.getRunCount() > 0)
+                {
+                    ConsoleLog.info("Merging " + dataCounter.getRunCount() + " runs of hosts spilled to : " + scratchFolder);
+                }
+
+                //the hosts are resolved and summarised a batch at a time so only a batch of them is held at once
+                int batchSize = memoryBudget == SpillingHostCounter.NO_BUDGET ? Integer.MAX_VALUE : HOST_BATCH_SIZE;
+                PublicSuffixList suffixList = PublicSuffixList.getDefault();
+
+                HostCounter batch = new HostCounter(DomainAggregator.VALUE_COLUMNS);
+                HyperLogLogCounters batchClients = new HyperLogLogCounters();
+
+                //one resolver serves every batch, its cache file being read and written once
+                resolver = openResolver(options);
+
+                while(dataCounter.next())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Preparing to get host names from file : " + file.getName());
+                    int id = batch.add(dataCounter.getKey(), dataCounter.getCount());
 
-                    generateHostNameFiles((folderName + "/" + TEMP_FOLDER_NAME), file.getName(), (folderName + "/" + TEMP_FOLDER_NAME + "/" + SUB_TEMP_FOLDER_NAME));
+                    batch.addValue(id, DomainAggregator.BYTES_UP_COLUMN, dataCounter.getValue(DomainAggregator.BYTES_UP_COLUMN));
+                    batch.addValue(id, DomainAggregator.BYTES_DOWN_COLUMN, dataCounter.getValue(DomainAggregator.BYTES_DOWN_COLUMN));
+                    batch.addValue(id, DomainAggregator.COUNT_SQUARES_COLUMN, dataCounter.getValue(DomainAggregator.COUNT_SQUARES_COLUMN));
+                    batchClients.merge(dataCounter.getClients(), 0, id);
+
+                    if(batch.size() == batchSize)
+                    {
+                        summariseHosts(batch, batchClients, domainCounter, suffixList, resolver, options);
+
+                        batch = new HostCounter(DomainAggregator.VALUE_COLUMNS);
+                        batchClients = new HyperLogLogCounters();
+                    }
                 }
+
+                summariseHosts(batch, batchClients, domainCounter, suffixList, resolver, options);
+                dataCounter.close();
+
+                domainCounter.finish();
+
+                summariseStage.addTime(System.nanoTime() - summariseStart);
+
+                Metrics.Stage writeStage = metrics.stage("write");
+                long writeStart = System.nanoTime();
+
+                //a worker leaves its counts unscaled for the reducer to combine with the other shards
+                if(options.has("partial"))
+                    writePartial(domainCounter, new File(options.getString("partial", null)));
+                else
+                    writeDomains(domainCounter, sampler, options);
+
+                writeStage.addTime(System.nanoTime() - writeStart);
+            } catch (IOException e) {
+                ConsoleLog.error("An error occurred on merging the hosts");
+                failed = true;
+                e.printStackTrace();
+            } finally {
+                dataCounter.close();
+                domainCounter.close();
+
+                if(resolver instanceof CachingHostResolver)
+                    ((CachingHostResolver) resolver).close();
             }
 
-            //read in the files with host breakdowns and tally up the counts
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
-            System.out.println("Beginning host name retrieval");
+            metrics.finish();
+        }
+        else
+        {
+            System.out.println("More arguments provided than needed. Please do one of the following:");
+            printInstructions();
+            return false;
+        }
 
-            files = subTempFolder.listFiles();
+        //every line logged is printed before the caller goes on
+        ConsoleLog.flush();
 
-            Scanner scanner = null;
+        return !failed;
+    }
 
-            //counting the different domains
-            HashMap<String, Long> domainCounterMap = new HashMap<String, Long>();
+    /**
+     * Prints the arguments and options the analyser takes
+     */
+    private static void printInstructions()
+    {
+        System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+        System.out.println(FILE_ARGUMENT_INSTRUCTION);
+        System.out.println(RESOLVER_OPTION_INSTRUCTION);
+        System.out.println(ReportWriter.FORMAT_OPTION_INSTRUCTION);
+        System.out.println(TimeRange.OPTION_INSTRUCTION);
+        System.out.println(PacketSampler.OPTION_INSTRUCTION);
+        System.out.println(DuplicateFilter.OPTION_INSTRUCTION);
+        System.out.println(SpillingHostCounter.OPTION_INSTRUCTION);
+        System.out.println(CaptureShards.OPTION_INSTRUCTION);
+        System.out.println(PacketPipeline.OPTION_INSTRUCTION);
+        System.out.println(CaptureUnwrapper.VLAN_OPTION_INSTRUCTION);
+        System.out.println(Metrics.OPTION_INSTRUCTION);
+        System.out.println(ConsoleLog.OPTION_INSTRUCTION);
+    }
 
-            //map to hold the different domains read from the httpry output files
-            HashMap<String, Long> dataCounterMap = new HashMap<String, Long>();
+    /**
+     * Summarises a batch of host names to their respective registrable domains, resolving the names of hosts given
+     * as ip addresses all at once rather than one by one
+     * @param batch - requests, bytes up and bytes down of the hosts
+     * @param batchClients - distinct clients of the hosts, indexed by their ids in the batch
+     * @param domainCounter - counter to add the domains to
+     * @param suffixList - public suffixes used to find the registrable domains
+     * @param resolver - resolver from openResolver, or null to leave the addresses unresolved
+     * @param options - the options given to the analyser
+     */
+    public static void summariseHosts(HostCounter batch, HyperLogLogCounters batchClients, SpillingHostCounter domainCounter,
+                                      PublicSuffixList suffixList, HostResolver resolver, AnalyserOptions options)
+    {
+        //the host names are only made into strings here, once per distinct host
+        String[] hosts = new String[batch.size()];
+
+        //the VLAN and separator in front of each host when broken down by VLAN, kept in front of its domain
+        String[] vlanPrefixes = new String[batch.size()];
+        boolean perVlan = CaptureUnwrapper.isPerVlan(options);
+
+        HashSet<String> addresses = new HashSet<String>();
+
+        for(int id = 0; id < hosts.length; id++)
+        {
+            hosts[id] = batch.getKey(id);
+            vlanPrefixes[id] = "";
 
-            // read the input from the files written by httpry for host names
-            for(File file : files)
+            if(perVlan)
             {
-                if(file.isFile() && !file.isHidden())
-                {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Hosts from file : " + file.getName());
-                    try {
-                        scanner = new Scanner(file);
-
-                        String line = null;
-                        while(scanner.hasNextLine())
-                        {
-                            line = scanner.nextLine();
-
-                            if(!line.contains("#"))
-                            {
-                                String temp = line.trim();
-
-                                if(!dataCounterMap.containsKey(temp))
-                                {
-                                    dataCounterMap.put(temp, 0L);
-                                }
-
-                                long currentCount = dataCounterMap.get(temp);
-                                dataCounterMap.put(temp, (currentCount + 1));
-
-                            }
-                        }
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
+                int split = hosts[id].indexOf(DomainAggregator.VLAN_SEPARATOR) + 1;
+
+                vlanPrefixes[id] = hosts[id].substring(0, split);
+                hosts[id] = hosts[id].substring(split);
             }
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
-            System.out.println("Doing conversion");
+            if(isAddressLiteral(hosts[id]))
+                addresses.add(hosts[id]);
+        }
+
+        HashMap<String, String> resolvedAddresses = resolveAddresses(addresses, resolver);
 
-            InetAddress inetAddress = null;
+        for(int id = 0; id < hosts.length; id++)
+        {
+            String tempDomain = hosts[id];
+            String hostName = null;
+
+            if(addresses.contains(tempDomain))
+            {
+                String host = resolvedAddresses.get(tempDomain);
 
-            //summarise the different host names to their respective domains.
-            for(String tempDomain : dataCounterMap.keySet())
+                //on failing to get a host name, stick to the ip address as domain
+                if(host == null || isAddressLiteral(host))
+                    hostName = tempDomain;
+                else
+                    hostName = suffixList.collapse(host);
+            }
+            else
             {
-                String[] strArr = tempDomain.split("\\.");
+                hostName = suffixList.collapse(tempDomain);
+            }
+
+            int domainId = domainCounter.add(vlanPrefixes[id] + hostName, batch.getCount(id));
+
+            domainCounter.addValue(domainId, DomainAggregator.BYTES_UP_COLUMN, batch.getValue(id, DomainAggregator.BYTES_UP_COLUMN));
+            domainCounter.addValue(domainId, DomainAggregator.BYTES_DOWN_COLUMN, batch.getValue(id, DomainAggregator.BYTES_DOWN_COLUMN));
+            domainCounter.addValue(domainId, DomainAggregator.COUNT_SQUARES_COLUMN, batch.getValue(id, DomainAggregator.COUNT_SQUARES_COLUMN));
+            domainCounter.mergeClients(batchClients, id, domainId);
+
+            //no domain ids are held between hosts, so the domains can be spilled whenever over budget
+            if(domainCounter.isOverBudget() && domainCounter.spill() != null)
+                domainCounter.afterSpill();
+        }
+    }
 
-                String hostName = null;
+    /**
+     * Writes the domains to file in name order as they come from the counter, a row group at a time, sampled counts
+     * being scaled up and given a confidence interval
+     * @param domainCounter - the finished domain counter
+     * @param sampler - sampler the counts were taken with, or null if all packets were counted
+     * @param options - the options given to the analyser
+     * @throws IOException on failing to read the domains or write the report
+     */
+    public static void writeDomains(SpillingHostCounter domainCounter, PacketSampler sampler, AnalyserOptions options) throws IOException
+    {
+        ReportTable table = null;
+        boolean perVlan = CaptureUnwrapper.isPerVlan(options);
+
+        if(sampler == null)
+            table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"host", "count", "bytes up", "bytes down", "clients"}, options),
+                    CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.LONG, ReportTable.LONG, ReportTable.LONG,
+                            ReportTable.LONG}, options));
+        else
+            table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"host", "count", "count low", "count high", "bytes up",
+                    "bytes down", "clients"}, options), CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.LONG,
+                    ReportTable.LONG, ReportTable.LONG, ReportTable.LONG, ReportTable.LONG, ReportTable.LONG}, options));
+
+        ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+
+        ConsoleLog.info("Writing host counts to file");
+
+        ConsoleLog.debug("host, count, bytes up, bytes down, clients");
+
+        ReportWriter writer = ReportWriter.open("domain-analysis", table, options);
+
+        try {
+            while(domainCounter.next())
+            {
+                String domainName = domainCounter.getKey();
+                long count = domainCounter.getCount();
+                long bytesUp = domainCounter.getValue(DomainAggregator.BYTES_UP_COLUMN);
+                long bytesDown = domainCounter.getValue(DomainAggregator.BYTES_DOWN_COLUMN);
+                long clients = domainCounter.getClients().estimate(0);
 
-                String lastItem = strArr[strArr.length-1];
+                table.newRow();
 
-                if(lastItem.matches("[a-zA-Z]+"))
+                //the domains of each VLAN come together, their keys starting with the VLAN
+                if(perVlan)
                 {
-                    if(strArr.length >= 2)
-                        hostName = "*." + (strArr[strArr.length - 2] + "." + strArr[strArr.length -1]);
-                    else
-                        hostName = "*." + lastItem;
+                    int split = domainName.indexOf(DomainAggregator.VLAN_SEPARATOR);
+
+                    table.add(domainName.substring(0, split));
+                    domainName = domainName.substring(split + 1);
                 }
-                else if(lastItem.matches("[0-9]+")) // if an ip address, try to lookup the host name
+
+                if(sampler == null)
                 {
-                    try {
-                        inetAddress = InetAddress.getByName(tempDomain);
-                        String host = inetAddress.getHostName();
-                        String[] tempArr = host.split("\\.");
-
-                        //on failing to get a host name, stick to the ip address as domain
-                        if(tempArr[tempArr.length - 1].matches("[0-9]+"))
-                        {
-                            hostName = host;
-                        }
-                        else
-                        {
-                            if(tempArr.length >= 2)
-                                hostName = "*." + (tempArr[tempArr.length - 2] + "." + tempArr[tempArr.length -1]);
-                            else
-                                hostName = "*." + (tempArr[tempArr.length - 1]);
-                        }
-                    } catch (UnknownHostException e) {
-                        e.printStackTrace();
-                    }
+                    table.add(domainName).add(count).add(bytesUp).add(bytesDown).add(clients);
                 }
                 else
                 {
-                    hostName = tempDomain;
-                }
+                    //distinct clients are not scaled, those seen in the sample being a lower bound
+                    long countSquares = domainCounter.getValue(DomainAggregator.COUNT_SQUARES_COLUMN);
 
-                if(!domainCounterMap.containsKey(hostName))
-                {
-                    domainCounterMap.put(hostName, 0L);
+                    table.add(domainName).add(sampler.scale(count)).add(sampler.lowerBound(count, countSquares))
+                            .add(sampler.upperBound(count, countSquares))
+                            .add(sampler.scale(bytesUp)).add(sampler.scale(bytesDown)).add(clients);
+
+                    count = sampler.scale(count);
+                    bytesUp = sampler.scale(bytesUp);
+                    bytesDown = sampler.scale(bytesDown);
                 }
 
-                long currentCount = domainCounterMap.get(hostName);
-                long countToAdd = dataCounterMap.get(tempDomain);
+                ConsoleLog.row(domainName + ", " + count + ", " + bytesUp + ", " + bytesDown + ", " + clients);
 
-                domainCounterMap.put(hostName, (currentCount + countToAdd));
+                //the domains already come in name order, so each full row group can be written as it is
+                if(table.getRowCount() == ReportWriter.ROW_GROUP_SIZE)
+                {
+                    writer.append(table);
+                    table.clear();
+                }
             }
 
-            // write the domains to file
-            String analysedDataFileName = "domain-analysis.csv";
+            writer.append(table);
+        } finally {
+            writer.close();
+        }
+    }
 
-            FileWriter writer = null;
+    /**
+     * Writes the domains with their unscaled counts and client sketches as a partial aggregate, a row group at a time
+     * @param domainCounter - the finished domain counter
+     * @param file - the file to write
+     * @throws IOException on failing to read the domains or write the file
+     */
+    public static void writePartial(SpillingHostCounter domainCounter, File file) throws IOException
+    {
+        ReportTable table = new ReportTable(PARTIAL_COLUMNS, PARTIAL_TYPES);
+        ReportWriter writer = ReportWriter.openColumnar(file, table);
+
+        try {
+            while(domainCounter.next())
+            {
+                table.newRow().add(domainCounter.getKey()).add(domainCounter.getCount())
+                        .add(domainCounter.getValue(DomainAggregator.BYTES_UP_COLUMN))
+                        .add(domainCounter.getValue(DomainAggregator.BYTES_DOWN_COLUMN))
+                        .add(domainCounter.getValue(DomainAggregator.COUNT_SQUARES_COLUMN))
+                        .add(encodeClients(domainCounter.getClients()));
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
+                if(table.getRowCount() == ReportWriter.ROW_GROUP_SIZE)
+                {
+                    writer.append(table);
+                    table.clear();
+                }
+            }
 
-            printCurrentTime();
-            System.out.println("Writing host counts to file");
+            writer.append(table);
+        } finally {
+            writer.close();
+        }
+    }
 
-            try {
-                writer = new FileWriter(analysedDataFileName);
+    /**
+     * Combines the partial aggregates of the workers into the domain report
+     * @param partials - the partial aggregates
+     * @param sampler - sampler the counts were taken with, or null if all packets were counted
+     * @param options - the options given to the analyser
+     * @throws IOException on failing to read the partial aggregates or write the report
+     */
+    public static void reducePartials(File[] partials, PacketSampler sampler, AnalyserOptions options) throws IOException
+    {
+        SpillingHostCounter domainCounter = new SpillingHostCounter(DomainAggregator.VALUE_COLUMNS, SpillingHostCounter.parseBudget(options),
+                SpillingHostCounter.parseScratchFolder(options));
+        HyperLogLogCounters clients = new HyperLogLogCounters();
 
-                printCurrentTime();
-                System.out.println("host, count");
-                //the column heads
-                writer.append("host, count");
-                writer.append("\n");
+        try {
+            for(File partial : partials)
+            {
+                ReportTable table = PartialAggregate.read(partial, PARTIAL_COLUMNS, PARTIAL_TYPES);
 
-                for(String domainName : domainCounterMap.keySet())
+                for(int row = 0; row < table.getRowCount(); row++)
                 {
-                    long count = domainCounterMap.get(domainName);
+                    int domainId = domainCounter.add(table.getString(row, 0), table.getLong(row, 1));
 
-                    printCurrentTime();
-                    System.out.println(domainName + ", " + count);
+                    domainCounter.addValue(domainId, DomainAggregator.BYTES_UP_COLUMN, table.getLong(row, 2));
+                    domainCounter.addValue(domainId, DomainAggregator.BYTES_DOWN_COLUMN, table.getLong(row, 3));
+                    domainCounter.addValue(domainId, DomainAggregator.COUNT_SQUARES_COLUMN, table.getLong(row, 4));
 
-                    writer.append(domainName + ", " + count);
-                    writer.append("\n");
-                }
+                    clients.clear();
+                    decodeClients(table.getString(row, 5), clients);
+                    domainCounter.mergeClients(clients, 0, domainId);
 
-                writer.flush();
-                writer.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                    if(domainCounter.isOverBudget() && domainCounter.spill() != null)
+                        domainCounter.afterSpill();
+                }
             }
-            //delete temporary folder
-            deleteDirectory(tempFolder);
-        }
-        else
-        {
-            System.out.println("More arguments provided than needed. Please do one of the following:");
-            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
-            System.out.println(FILE_ARGUMENT_INSTRUCTION);
+
+            domainCounter.finish();
+            writeDomains(domainCounter, sampler, options);
+        } finally {
+            domainCounter.close();
         }
     }
 
     /**
-     * Filters pcap files removing local traffic and leaving only packets destined outside the local network i.e incoming traffic removed
-     * @param folderName - folder where pcap file to be filtered is held
-     * @param fileName - name of the pcap file to filter
-     * @param tempFolderName - folder where tcpdump filtered pcap file will be placed
+     * @param clients - sketches holding a domain's clients under id 0
+     * @return the sketch as Base64 text
      */
-    public static void generateFilteredPcapFile(String folderName, String fileName, String tempFolderName)
+    private static String encodeClients(HyperLogLogCounters clients) throws IOException
     {
-        String filterString = "(src net 192.168.0.0/16 or 10.0.0.0/8) and (port http or https) and not ((src net 192.168.0.0/16 or 10.0.0.0/8) and (dst net 192.168.0.0/16 or 10.0.0.0/8))";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        clients.write(0, new DataOutputStream(bytes));
 
-        ProcessBuilder processBuilder = new ProcessBuilder("tcpdump", filterString, "-r", (folderName + "/" + fileName), "-w",
-                (tempFolderName + "/temp_" + fileName));
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @param text - a sketch made by encodeClients()
+     * @param clients - sketches to merge it into under id 0
+     */
+    private static void decodeClients(String text, HyperLogLogCounters clients) throws IOException
+    {
+        clients.read(new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(text))), 0);
+    }
+
+    /**
+     * Reads a pcap file and aggregates the hosts requested by local clients from outside servers. Host headers are
+     * taken from http requests and server names from the ClientHello of https connections.
+     * @param file - the pcap file to read
+     * @param pipeline - pipeline passing the packets to the stage made by hostNameStage
+     * @param index - index of the capture times in the file's folder
+     * @param range - time range of the packets to count, or null for all packets
+     * @param sampler - sampler picking the packets to count, or null to count all packets
+     * @param metrics - metrics counting the packets read and those within the time range
+     * @return false if the file could not be read
+     */
+    public static boolean countHostNames(File file, PacketPipeline pipeline, CaptureIndex index, TimeRange range,
+                                         PacketSampler sampler, Metrics metrics)
+    {
+        Metrics.Stage readStage = metrics.stage("read");
+        Metrics.Stage filterStage = metrics.stage("filter");
+        PcapReader reader = null;
 
         try {
-            printCurrentTime();
-            System.out.println("Processing file : " + fileName);
+            ConsoleLog.info("Getting hosts for file : " + file.getName());
 
-            Process process = processBuilder.start();
-            int errorCode = process.waitFor();
+            reader = index.open(file, range);
 
-            printCurrentTime();
-            if(errorCode == 0)
-                System.out.println("No error occurred on running tcpdump commannd for file: " + folderName + "/" + fileName);
-            else
+            if(reader == null)
             {
-                System.out.println("An error occurred while running tcpdump command for file: " + folderName + "/" + fileName);
+                ConsoleLog.info("No packets within the time range, skipping file : " + file.getName());
+                return true;
+            }
 
-                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-                String line = null;
+            reader.setSampler(sampler);
 
-                while((line = bufferedReader.readLine()) != null)
-                {
-                    System.out.println(line);
-                }
+            while(reader.next())
+            {
+                readStage.count(1, reader.getCapturedLength());
+
+                if(range != null && !range.contains(reader.getTimestampMicros()))
+                    continue;
+
+                filterStage.count(1, reader.getCapturedLength());
+
+                pipeline.publish(reader.getLinkType(), reader.getBuffer(), reader.getPacketOffset(), reader.getCapturedLength(),
+                        reader.getOriginalLength(), reader.getTimestampMicros());
             }
+
+            ConsoleLog.info("No error occurred on getting hosts for file : " + file.getName());
         } catch (IOException e) {
+            ConsoleLog.error("An error occurred on getting hosts for file : " + file.getName());
             e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            return false;
+        } finally {
+            if(reader != null)
+                index.close(file, reader);
         }
 
+        return true;
     }
 
     /**
-     * Applies httpry tool to pcap files to get the host names then write them to file
-     * @param folderName - folder where the pcap file is located
-     * @param fileName - the name of the pcap file
-     * @param tempFolderName - the folder where the httpry output file with hosts is to be placed
+     * Makes the pipeline stage decoding the packets read and adding them to the hosts
+     * @param aggregator - aggregator keeping the requests, bytes and clients per host
+     * @param sampler - sampler picking the flows to count, or null to count all packets
+     * @param duplicates - filter leaving out copies of packets already counted, or null to count all packets
+     * @param metrics - metrics counting and timing the packets decoded and aggregated
+     * @return the stage
      */
-    public static void generateHostNameFiles(String folderName, String fileName, String tempFolderName)
+    public static PacketPipeline.Stage hostNameStage(final DomainAggregator aggregator, final PacketSampler sampler,
+                                                     final DuplicateFilter duplicates, Metrics metrics)
     {
-        ProcessBuilder processBuilder = new ProcessBuilder("httpry", "-f", "host" , "-r", (folderName + "/" + fileName), "-o", (tempFolderName + "/data_" + fileName));
+        final PacketDecoder decoder = new PacketDecoder();
+        final Metrics.Stage decodeStage = metrics.stage("decode");
+        final Metrics.Stage aggregateStage = metrics.stage("aggregate-hosts");
 
-        try {
-            printCurrentTime();
-            System.out.println("Getting hosts for file : " + fileName);
+        return new PacketPipeline.Stage()
+        {
+            @Override
+            public void process(int linkType, byte[] buffer, int offset, int length, int originalLength, long timestamp)
+            {
+                long start = decodeStage.startTiming();
+                boolean decoded = decoder.decode(linkType, buffer, offset, length);
+                decodeStage.stopTiming(start);
 
-            Process process = processBuilder.start();
+                if(!decoded)
+                    return;
 
-            int errorCode = process.waitFor();
+                decodeStage.count(1, length);
 
-            printCurrentTime();
-            if(errorCode == 0)
-            {
-                System.out.println("No error occurred on running httpry command for file : " + fileName);
-            }
-            else
-            {
-                System.out.println("An error occurred on running httpry command for file : " + fileName);
-
-                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-                String line = null;
+                //copies of a packet already counted, as from two taps, are left out
+                if(duplicates != null && duplicates.isDuplicate(decoder, timestamp))
+                    return;
 
-                while((line = bufferedReader.readLine()) != null)
+                //DNS answers are kept whatever flow they are in so sampled hosts can still be named
+                if(sampler == null || sampler.acceptPacket(decoder) || decoder.getSourcePort() == 53)
                 {
-                    System.out.println(line);
+                    start = aggregateStage.startTiming();
+                    aggregator.process(decoder, timestamp, originalLength);
+                    aggregateStage.stopTiming(start);
+
+                    aggregateStage.count(1, originalLength);
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        };
+    }
+
+    /**
+     * Creates the resolver the host names of ip addresses are looked up with, either from the hosts file given with
+     * --hosts-file or with cached concurrent reverse DNS lookups
+     * @param options - the options given to the analyser
+     * @return the resolver, or null if no lookups are to be made
+     */
+    public static HostResolver openResolver(AnalyserOptions options)
+    {
+        if(options.has("offline"))
+        {
+            //no lookups, addresses without a passive DNS name are reported as they are
+            return null;
         }
+        else if(options.has("hosts-file"))
+        {
+            try {
+                return new FileHostResolver(new File(options.getString("hosts-file", null)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        return new CachingHostResolver(new SystemHostResolver(), new File(options.getString("dns-cache", DNS_CACHE_FILE_NAME)),
+                options.getInt("resolver-threads", 16), options.getLong("resolver-timeout", 2000L), options.getInt("dns-cache-size", 10000),
+                TimeUnit.DAYS.toMillis(1), TimeUnit.HOURS.toMillis(1));
     }
 
     /**
-     * Prints the current system time
+     * Looks up the host names of ip addresses, all at once where the resolver can look them up concurrently
+     * @param addresses - the ip addresses to resolve
+     * @param resolver - resolver from openResolver, or null to leave the addresses unresolved
+     * @return map of address to host name, the name being null where none was found
      */
-    public static void printCurrentTime()
+    public static HashMap<String, String> resolveAddresses(Collection<String> addresses, HostResolver resolver)
     {
-        ICMPAnalyser.printCurrentTime();
+        HashMap<String, String> resolvedAddresses = new HashMap<String, String>();
+
+        ConsoleLog.info("Resolving host names for " + addresses.size() + " addresses");
+
+        if(resolver == null || addresses.isEmpty())
+            return resolvedAddresses;
+
+        if(resolver instanceof CachingHostResolver)
+            return ((CachingHostResolver) resolver).resolveAll(addresses);
+
+        for(String address : addresses)
+        {
+            try {
+                resolvedAddresses.put(address, resolver.resolve(address));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return resolvedAddresses;
     }
 
     /**
-     * Deletes the provided file/directory
-     * @param file - the file to delete
+     * Checks whether a host is an IPv4 or IPv6 address rather than a name
+     * @param host - the host to check
+     * @return true if the host's last label is numeric or the host contains a colon
      */
-    public static void deleteDirectory(File file)
+    public static boolean isAddressLiteral(String host)
     {
-        ICMPAnalyser.deleteDirectory(file);
+        int end = host.length();
+
+        if(end == 0)
+            return false;
+
+        if(host.indexOf(':') >= 0)
+            return true;
+
+        for(int i = end - 1; i >= 0 && host.charAt(i) != '.'; i--)
+        {
+            char c = host.charAt(i);
+
+            if(c < '0' || c > '9')
+                return false;
+        }
+
+        return true;
     }
-}
+
+}
\ No newline at end of file
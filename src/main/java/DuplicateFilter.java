@@ -0,0 +1,254 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <h1>Duplicate Filter</h1>
+ * Drops packets seen twice within a short window, as in captures merged from two taps on the same link or from a
+ * SPAN port mirroring both directions. A packet is known by a hash of what stays the same between its copies - its
+ * addresses, protocol, IP identification and length, ports, TCP sequence number, transport checksum and the first
+ * bytes of its payload - leaving out the link header, VLAN tags, TTL and IP checksum, which a copy taken elsewhere on
+ * the path may not share. IPv6 has no IP identification outside its fragment header, so an IPv6 packet is only
+ * compared when it is a fragment: a retransmission or duplicate ACK sent by a host is otherwise the same as a tap's
+ * copy of it and would be dropped.
+ * <p>
+ * The hashes are kept in two Bloom filters of fixed size, one for the current window and one for the window before,
+ * so a packet is compared with at least the last window of packets and memory never grows. Windows follow the latest
+ * capture time seen: when a packet is a window past the start of the current one, the older filter is cleared and
+ * becomes the current one. Packets going back in time, such as those of a second tap's file read after the first,
+ * start no window and are compared with both filters. A packet is taken as a duplicate when all its bits are set
+ * in either filter, so at a million packets per second and the default window fewer than one packet in 100000 is
+ * dropped wrongly.
+ */
+public class DuplicateFilter
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally drop duplicate packets, as in captures merged from two taps, i.e --dedup, " +
+            "comparing packets within a window of milliseconds i.e --dedup-window 100";
+
+    private static final int DEFAULT_WINDOW_MILLIS = 100;
+
+    // bits of each filter, 1 MB, and bits set per packet
+    private static final int FILTER_BITS = 1 << 23;
+    private static final int HASH_COUNT = 4;
+
+    // bytes of the payload taken into the hash
+    private static final int PAYLOAD_PREFIX_LENGTH = 16;
+
+    private long window;
+    // start of the current window, only ever moving forward
+    private long windowStart = 0;
+
+    private long[] current = new long[FILTER_BITS / 64];
+    private long[] previous = new long[FILTER_BITS / 64];
+
+    private long duplicates = 0;
+
+    /**
+     * Creates a filter
+     * @param window - time in microseconds within which a packet is taken as a copy of one seen before
+     */
+    public DuplicateFilter(long window)
+    {
+        if(window < 1)
+            throw new IllegalArgumentException("Duplicate window must be at least 1 microsecond but was : " + window);
+
+        this.window = window;
+    }
+
+    /**
+     * Reads the filtering given with --dedup and --dedup-window
+     * @param options - the options given to the analyser, parsed with dedup as a switch
+     * @return the filter, or null if --dedup was not given
+     */
+    public static DuplicateFilter parse(AnalyserOptions options)
+    {
+        if(!options.has("dedup"))
+            return null;
+
+        return new DuplicateFilter(options.getInt("dedup-window", DEFAULT_WINDOW_MILLIS) * 1000L);
+    }
+
+    /**
+     * Checks whether a decoded packet is a copy of one seen within the window, remembering it if not
+     * @param decoder - decoder holding the packet
+     * @param timestamp - capture time of the packet in microseconds
+     * @return true if the packet was seen before
+     */
+    public boolean isDuplicate(PacketDecoder decoder, long timestamp)
+    {
+        if(decoder.getIpVersion() == 6 && !decoder.isFragment())
+            return false;
+
+        long elapsed = timestamp - windowStart;
+
+        // a packet going back in time starts no window, so the filters still hold the packets its copy may be among
+        if(elapsed >= window)
+        {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0);
+
+            // nothing in the current filter is within a window of a packet more than two windows on
+            if(elapsed >= 2 * window)
+                Arrays.fill(current, 0);
+
+            previous = current;
+            current = cleared;
+            windowStart = timestamp;
+        }
+
+        long hash = signature(decoder);
+        int first = (int) hash;
+        int step = (int) (hash >>> 32) | 1;
+
+        boolean inCurrent = true;
+        boolean inPrevious = true;
+
+        for(int i = 0; i < HASH_COUNT; i++)
+        {
+            int bit = (first + i * step) & (FILTER_BITS - 1);
+            long mask = 1L << bit;
+
+            inCurrent &= (current[bit >>> 6] & mask) != 0;
+            inPrevious &= (previous[bit >>> 6] & mask) != 0;
+
+            current[bit >>> 6] |= mask;
+        }
+
+        if(inCurrent || inPrevious)
+        {
+            duplicates++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return 64 bit hash of the fields a packet's copies share
+     */
+    private static long signature(PacketDecoder decoder)
+    {
+        byte[] buffer = decoder.getBuffer();
+        long hash = decoder.getProtocol();
+
+        for(int i = 0; i < decoder.getAddressLength(); i += 4)
+        {
+            hash = mix(hash, PacketDecoder.readInt(buffer, decoder.getSourceAddressOffset() + i));
+            hash = mix(hash, PacketDecoder.readInt(buffer, decoder.getDestinationAddressOffset() + i));
+        }
+
+        hash = mix(hash, decoder.getIpVersion() == 4 ? PacketDecoder.readShort(buffer, decoder.getNetworkOffset() + 4) : decoder.getFragmentId());
+        hash = mix(hash, ((long) decoder.getFragmentOffset() << 32) | decoder.getFragmentLength());
+        hash = mix(hash, ((long) decoder.getSourcePort() << 32) | (decoder.getDestinationPort() & 0xffffffffL));
+        hash = mix(hash, decoder.getSequenceNumber());
+
+        int transport = decoder.getTransportOffset();
+        int end = decoder.getPayloadOffset() + decoder.getPayloadLength();
+        int checksumOffset = -1;
+
+        if(decoder.getFragmentOffset() == 0)
+        {
+            if(decoder.getProtocol() == PacketDecoder.PROTOCOL_TCP)
+                checksumOffset = transport + 16;
+            else if(decoder.getProtocol() == PacketDecoder.PROTOCOL_UDP)
+                checksumOffset = transport + 6;
+            else if(decoder.getProtocol() == PacketDecoder.PROTOCOL_ICMP || decoder.getProtocol() == PacketDecoder.PROTOCOL_ICMPV6)
+                checksumOffset = transport + 2;
+        }
+
+        if(checksumOffset >= 0 && checksumOffset + 2 <= end)
+            hash = mix(hash, PacketDecoder.readShort(buffer, checksumOffset));
+
+        int payloadEnd = decoder.getPayloadOffset() + Math.min(decoder.getPayloadLength(), PAYLOAD_PREFIX_LENGTH);
+        int position = decoder.getPayloadOffset();
+
+        for(; position + 4 <= payloadEnd; position += 4)
+        {
+            hash = mix(hash, PacketDecoder.readInt(buffer, position));
+        }
+
+        for(; position < payloadEnd; position++)
+        {
+            hash = mix(hash, buffer[position]);
+        }
+
+        return hash ^ (hash >>> 29);
+    }
+
+    private static long mix(long hash, long value)
+    {
+        hash = (hash ^ value) * 0x9e3779b97f4a7c15L;
+
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Copies the packets of a capture other than duplicates into a new capture, for tools which read whole files.
+     * Packets which cannot be decoded are all copied
+     * @param file - the capture file
+     * @param folder - folder to write the copy into
+     * @return the copy, or null if the copy could not be made
+     */
+    public File dedupCapture(File file, File folder)
+    {
+        folder.mkdirs();
+        File output = new File(folder, file.getName());
+
+        PcapReader reader = null;
+        PacketDecoder decoder = new PacketDecoder();
+        OutputStream outputStream = null;
+        long dropped = duplicates;
+
+        try {
+            reader = new PcapReader(file);
+
+            outputStream = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+
+            // the file header is copied as it is so the byte order and time resolution stay the same
+            reader.writeHeader(outputStream);
+
+            while(reader.next())
+            {
+                if(decoder.decode(reader.getLinkType(), reader.getBuffer(), reader.getPacketOffset(), reader.getCapturedLength())
+                        && isDuplicate(decoder, reader.getTimestampMicros()))
+                    continue;
+
+                reader.writeRecord(outputStream);
+            }
+
+            ConsoleLog.info("Left out " + (duplicates - dropped) + " duplicate packets of file : " + file.getName());
+        } catch (IOException e) {
+            e.printStackTrace();
+            output = null;
+        } finally {
+            closeQuietly(reader);
+            closeQuietly(outputStream);
+        }
+
+        return output;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of packets taken as duplicates
+     */
+    public long getDuplicates()
+    {
+        return duplicates;
+    }
+}
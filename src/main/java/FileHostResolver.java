@@ -0,0 +1,52 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * <h1>File Host Resolver</h1>
+ * Resolves addresses from a file in hosts file format i.e "address name [aliases]" lines with # comments. Used in place
+ * of DNS for offline runs and for repeatable results.
+ */
+public class FileHostResolver implements HostResolver
+{
+    private HashMap<String, String> hostMap = new HashMap<String, String>();
+
+    /**
+     * Reads the address to name mappings from file, the first name listed for an address being used
+     * @param file - the hosts file
+     * @throws IOException - if the file cannot be read
+     */
+    public FileHostResolver(File file) throws IOException
+    {
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
+
+        try {
+            String line = null;
+
+            while((line = bufferedReader.readLine()) != null)
+            {
+                int comment = line.indexOf('#');
+
+                if(comment >= 0)
+                    line = line.substring(0, comment);
+
+                String[] strArr = line.trim().split("\\s+");
+
+                if(strArr.length >= 2 && !hostMap.containsKey(strArr[0]))
+                {
+                    hostMap.put(strArr[0], strArr[1]);
+                }
+            }
+        } finally {
+            bufferedReader.close();
+        }
+    }
+
+    @Override
+    public String resolve(String address)
+    {
+        return hostMap.get(address);
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+
+/**
+ * <h1>Flow Exporter</h1>
+ * Keeps what a flow record needs for each flow of a FlowTable - its addresses and ports as seen in its first packet,
+ * its first and last times, TCP flags and the packets and bytes of each direction - in arrays indexed by the table's
+ * slots, and hands each flow to a FlowRecordWriter once it is finished: when it is evicted from the table, when it has
+ * been going for longer than the active timeout, and at the end of the analysis. Like the active timeout of IPFIX
+ * exporters, the last splits long flows into several records so no record's duration overflows.
+ */
+public class FlowExporter implements FlowTable.EvictionListener
+{
+    // time in microseconds after which a flow still going is written out and counted afresh
+    private static final long ACTIVE_TIMEOUT = 30L * 60 * 1000000;
+
+    private FlowTable flowTable;
+    private FlowRecordWriter writer;
+
+    private long[] starts;
+    private long[] ends;
+    private byte[] addresses;
+    private int[] ports;
+    private byte[] protocols;
+    private byte[] ipVersions;
+    private byte[] tcpFlags;
+    private byte[] directions;
+    private boolean[] sourceForward;
+    private long[] packets;
+    private long[] reversePackets;
+    private long[] octets;
+    private long[] reverseOctets;
+
+    private IOException failure = null;
+
+    /**
+     * Creates an exporter for the flows of a table, listening for the flows it evicts
+     * @param flowTable - table the flows are tracked in
+     * @param writer - writer the records are handed to
+     */
+    public FlowExporter(FlowTable flowTable, FlowRecordWriter writer)
+    {
+        this.flowTable = flowTable;
+        this.writer = writer;
+
+        int capacity = flowTable.getCapacity();
+
+        starts = new long[capacity];
+        ends = new long[capacity];
+        addresses = new byte[capacity * 32];
+        ports = new int[capacity];
+        protocols = new byte[capacity];
+        ipVersions = new byte[capacity];
+        tcpFlags = new byte[capacity];
+        directions = new byte[capacity];
+        sourceForward = new boolean[capacity];
+        packets = new long[capacity];
+        reversePackets = new long[capacity];
+        octets = new long[capacity];
+        reverseOctets = new long[capacity];
+
+        flowTable.setEvictionListener(this);
+    }
+
+    /**
+     * Adds a packet to its flow's record
+     * @param slot - slot of the packet's flow in the table
+     * @param decoder - decoder holding the packet
+     * @param forward - true if the packet travels in the direction the flow is keyed in
+     * @param timestamp - capture time of the packet in microseconds
+     * @param wireLength - length of the packet on the wire
+     */
+    public void update(int slot, PacketDecoder decoder, boolean forward, long timestamp, int wireLength)
+    {
+        if(packets[slot] == 0 && reversePackets[slot] == 0)
+        {
+            start(slot, decoder, forward, timestamp);
+        }
+        else if(timestamp - starts[slot] > ACTIVE_TIMEOUT)
+        {
+            // the packet after the active timeout starts the next record as if it were the flow's first
+            export(slot);
+            start(slot, decoder, forward, timestamp);
+        }
+        else
+        {
+            // files are not always read in time order, so a late packet is folded into the record being gathered
+            starts[slot] = Math.min(starts[slot], timestamp);
+            ends[slot] = Math.max(ends[slot], timestamp);
+        }
+
+        tcpFlags[slot] |= (byte) decoder.getTcpFlags();
+
+        if(forward == sourceForward[slot])
+        {
+            packets[slot]++;
+            octets[slot] += wireLength;
+        }
+        else
+        {
+            reversePackets[slot]++;
+            reverseOctets[slot] += wireLength;
+        }
+    }
+
+    /**
+     * Starts the record of a flow from its first packet, whose source is taken as the flow's source
+     */
+    private void start(int slot, PacketDecoder decoder, boolean forward, long timestamp)
+    {
+        byte[] buffer = decoder.getBuffer();
+        int addressLength = decoder.getAddressLength();
+
+        System.arraycopy(buffer, decoder.getSourceAddressOffset(), addresses, slot * 32, addressLength);
+        System.arraycopy(buffer, decoder.getDestinationAddressOffset(), addresses, slot * 32 + addressLength, addressLength);
+
+        ports[slot] = (decoder.getSourcePort() & 0xffff) << 16 | (decoder.getDestinationPort() & 0xffff);
+        protocols[slot] = (byte) decoder.getProtocol();
+        ipVersions[slot] = (byte) decoder.getIpVersion();
+        tcpFlags[slot] = 0;
+        directions[slot] = (byte) (LocalNetwork.isLocal(buffer, decoder.getSourceAddressOffset(), addressLength)
+                ? FlowRecordWriter.EGRESS : FlowRecordWriter.INGRESS);
+        sourceForward[slot] = forward;
+        starts[slot] = timestamp;
+        ends[slot] = timestamp;
+    }
+
+    @Override
+    public void evicted(int slot)
+    {
+        export(slot);
+    }
+
+    /**
+     * Writes out the flows still in the table and any set still being gathered
+     * @throws IOException - if a record could not be written, now or when a flow was evicted
+     */
+    public void finish() throws IOException
+    {
+        for(int slot = 0; slot < packets.length; slot++)
+        {
+            export(slot);
+        }
+
+        if(failure != null)
+            throw failure;
+
+        writer.flush();
+    }
+
+    /**
+     * Writes out a flow's record and clears its counts. Evictions happen in the middle of counting a packet, so a
+     * failure to write is kept for finish() to report rather than thrown
+     */
+    private void export(int slot)
+    {
+        if(packets[slot] == 0 && reversePackets[slot] == 0)
+            return;
+
+        int application = flowTable.getApplication(slot);
+
+        if(failure == null)
+        {
+            try {
+                writer.write(ipVersions[slot], addresses, slot * 32, ports[slot] >>> 16, ports[slot] & 0xffff, protocols[slot] & 0xff,
+                        tcpFlags[slot] & 0xff, directions[slot], application == FlowTable.UNCLASSIFIED ? PayloadClassifier.UNKNOWN : application,
+                        starts[slot], ends[slot], packets[slot], reversePackets[slot], octets[slot], reverseOctets[slot]);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        packets[slot] = 0;
+        reversePackets[slot] = 0;
+        octets[slot] = 0;
+        reverseOctets[slot] = 0;
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * <h1>Flow Record Reader</h1>
+ * Reads back the flow records written by FlowRecordWriter. The offset of each element within a record is found from
+ * the templates at the start of the stream, so records are read in place from a direct buffer filled a megabyte at a
+ * time, without a copy or an object per record. Sets of templates the reader does not know are skipped.
+ * <p>
+ * Run as the flows subcommand, prints the records of a file as csv.
+ */
+public class FlowRecordReader implements Closeable
+{
+    private static String ARGUMENT_INSTRUCTION = "- Provide a file of flow records written with --flow-export to print as csv i.e flows flows.bin";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // elements read from a record, by position in these arrays
+    private static final int[] ELEMENTS = {
+            FlowRecordWriter.FLOW_START_MICROSECONDS, FlowRecordWriter.FLOW_DURATION_MICROSECONDS, FlowRecordWriter.SOURCE_PORT,
+            FlowRecordWriter.DESTINATION_PORT, FlowRecordWriter.PROTOCOL, FlowRecordWriter.TCP_FLAGS, FlowRecordWriter.DIRECTION,
+            FlowRecordWriter.APPLICATION, FlowRecordWriter.PACKETS, FlowRecordWriter.REVERSE | FlowRecordWriter.PACKETS,
+            FlowRecordWriter.OCTETS, FlowRecordWriter.REVERSE | FlowRecordWriter.OCTETS
+    };
+
+    private static final int START = 0;
+    private static final int DURATION = 1;
+    private static final int SOURCE_PORT = 2;
+    private static final int DESTINATION_PORT = 3;
+    private static final int PROTOCOL = 4;
+    private static final int TCP_FLAGS = 5;
+    private static final int DIRECTION = 6;
+    private static final int APPLICATION = 7;
+    private static final int PACKETS = 8;
+    private static final int REVERSE_PACKETS = 9;
+    private static final int OCTETS = 10;
+    private static final int REVERSE_OCTETS = 11;
+
+    private ReadableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // per template number: the record length, and offset and length of each element and the addresses, -1 if absent
+    private int[] recordLengths = new int[65536];
+    private int[][] offsets = new int[65536][];
+    private int[][] lengths = new int[65536][];
+
+    private int template;
+    private int setRemaining = 0;
+    private int recordOffset;
+
+    /**
+     * Opens a file of flow records, reading its templates
+     * @param file - the file
+     * @throws IOException - if the file cannot be read or is not a file of flow records
+     */
+    public FlowRecordReader(File file) throws IOException
+    {
+        this(new FileInputStream(file).getChannel());
+    }
+
+    /**
+     * Starts reading flow records from a channel, such as the socket a FlowRecordWriter writes to, reading the
+     * templates
+     * @param channel - the channel
+     * @throws IOException - if the channel cannot be read or does not hold flow records
+     */
+    public FlowRecordReader(ReadableByteChannel channel) throws IOException
+    {
+        this.channel = channel;
+
+        buffer.flip();
+
+        if(!fill(8) || buffer.getInt() != FlowRecordWriter.MAGIC)
+            throw new IOException("Not a file of flow records");
+
+        int version = buffer.getShort() & 0xffff;
+        int templateCount = buffer.getShort() & 0xffff;
+
+        if(version != FlowRecordWriter.VERSION)
+            throw new IOException("Flow records of version " + version + " cannot be read");
+
+        for(int i = 0; i < templateCount; i++)
+        {
+            if(!fill(4))
+                throw new EOFException("Flow record templates end early");
+
+            int number = buffer.getShort() & 0xffff;
+            int fieldCount = buffer.getShort() & 0xffff;
+
+            if(!fill(fieldCount * 4))
+                throw new EOFException("Flow record templates end early");
+
+            readTemplate(number, fieldCount);
+        }
+    }
+
+    /**
+     * Reads the elements of a template, noting where each known element lies in a record. The addresses are kept
+     * after the other elements
+     */
+    private void readTemplate(int number, int fieldCount)
+    {
+        int[] elementOffsets = new int[ELEMENTS.length + 2];
+        int[] elementLengths = new int[ELEMENTS.length + 2];
+        int offset = 0;
+
+        Arrays.fill(elementOffsets, -1);
+
+        for(int field = 0; field < fieldCount; field++)
+        {
+            int element = buffer.getShort() & 0xffff;
+            int length = buffer.getShort() & 0xffff;
+            int index = -1;
+
+            if(element == FlowRecordWriter.SOURCE_IPV4 || element == FlowRecordWriter.SOURCE_IPV6)
+                index = ELEMENTS.length;
+            else if(element == FlowRecordWriter.DESTINATION_IPV4 || element == FlowRecordWriter.DESTINATION_IPV6)
+                index = ELEMENTS.length + 1;
+
+            for(int i = 0; i < ELEMENTS.length && index < 0; i++)
+            {
+                if(ELEMENTS[i] == element)
+                    index = i;
+            }
+
+            if(index >= 0)
+            {
+                elementOffsets[index] = offset;
+                elementLengths[index] = length;
+            }
+
+            offset += length;
+        }
+
+        recordLengths[number] = offset;
+        offsets[number] = elementOffsets;
+        lengths[number] = elementLengths;
+    }
+
+    /**
+     * Makes sure the buffer holds at least the given number of bytes, reading more from the channel if not
+     * @return false if the channel ended first
+     */
+    private boolean fill(int length) throws IOException
+    {
+        if(buffer.remaining() >= length)
+            return true;
+
+        if(length > buffer.capacity())
+            throw new IOException("Flow record of " + length + " bytes is longer than the buffer");
+
+        buffer.compact();
+
+        while(buffer.position() < length)
+        {
+            if(channel.read(buffer) < 0)
+            {
+                buffer.flip();
+                return false;
+            }
+        }
+
+        buffer.flip();
+
+        return true;
+    }
+
+    /**
+     * Moves on to the next record
+     * @return false at the end of the records
+     * @throws IOException - if the records cannot be read or end in the middle of a record
+     */
+    public boolean next() throws IOException
+    {
+        while(setRemaining == 0)
+        {
+            if(!fill(FlowRecordWriter.SET_HEADER_LENGTH))
+            {
+                if(buffer.hasRemaining())
+                    throw new EOFException("Flow records end in the middle of a set header");
+
+                return false;
+            }
+
+            template = buffer.getShort() & 0xffff;
+            setRemaining = (buffer.getShort() & 0xffff) - FlowRecordWriter.SET_HEADER_LENGTH;
+
+            // a set of a template not in the header is skipped whole
+            if(offsets[template] == null || recordLengths[template] == 0)
+            {
+                if(!fill(setRemaining))
+                    throw new EOFException("Flow records end in the middle of a set");
+
+                buffer.position(buffer.position() + setRemaining);
+                setRemaining = 0;
+            }
+        }
+
+        int recordLength = recordLengths[template];
+
+        if(setRemaining < recordLength || !fill(recordLength))
+            throw new EOFException("Flow records end in the middle of a record");
+
+        recordOffset = buffer.position();
+        buffer.position(recordOffset + recordLength);
+        setRemaining -= recordLength;
+
+        return true;
+    }
+
+    /**
+     * @return the unsigned value of an element of the current record, 0 if the template does not have it
+     */
+    private long read(int index)
+    {
+        int offset = offsets[template][index];
+
+        if(offset < 0)
+            return 0;
+
+        long value = 0;
+
+        for(int i = 0; i < lengths[template][index]; i++)
+        {
+            value = (value << 8) | (buffer.get(recordOffset + offset + i) & 0xff);
+        }
+
+        return value;
+    }
+
+    /**
+     * @return 4 or 6
+     */
+    public int getIpVersion()
+    {
+        return lengths[template][ELEMENTS.length] == 16 ? 6 : 4;
+    }
+
+    /**
+     * Copies an address of the current record
+     * @param source - true for the source address, false for the destination address
+     * @param out - array of at least 16 bytes to copy the address into
+     * @return length of the address
+     */
+    public int getAddress(boolean source, byte[] out)
+    {
+        int index = source ? ELEMENTS.length : ELEMENTS.length + 1;
+        int length = lengths[template][index];
+
+        for(int i = 0; i < length; i++)
+        {
+            out[i] = buffer.get(recordOffset + offsets[template][index] + i);
+        }
+
+        return length;
+    }
+
+    public long getStart()
+    {
+        return read(START);
+    }
+
+    public long getDuration()
+    {
+        return read(DURATION);
+    }
+
+    public int getSourcePort()
+    {
+        return (int) read(SOURCE_PORT);
+    }
+
+    public int getDestinationPort()
+    {
+        return (int) read(DESTINATION_PORT);
+    }
+
+    public int getProtocol()
+    {
+        return (int) read(PROTOCOL);
+    }
+
+    public int getTcpFlags()
+    {
+        return (int) read(TCP_FLAGS);
+    }
+
+    /**
+     * @return FlowRecordWriter.INGRESS or FlowRecordWriter.EGRESS
+     */
+    public int getDirection()
+    {
+        return (int) read(DIRECTION);
+    }
+
+    /**
+     * @return application of the flow, a PayloadClassifier number
+     */
+    public int getApplication()
+    {
+        return (int) read(APPLICATION);
+    }
+
+    public long getPackets()
+    {
+        return read(PACKETS);
+    }
+
+    public long getReversePackets()
+    {
+        return read(REVERSE_PACKETS);
+    }
+
+    public long getOctets()
+    {
+        return read(OCTETS);
+    }
+
+    public long getReverseOctets()
+    {
+        return read(REVERSE_OCTETS);
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Prints the records of a file as csv
+     * @param args - the file
+     * @return false if the arguments were wrong or the file could not be read
+     */
+    public static boolean run(String[] args)
+    {
+        if(args.length != 1)
+        {
+            System.out.println("Wrong arguments provided. Please do the following:");
+            System.out.println(ARGUMENT_INSTRUCTION);
+            return false;
+        }
+
+        FlowRecordReader reader = null;
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        byte[] address = new byte[16];
+
+        try {
+            reader = new FlowRecordReader(new File(args[0]));
+
+            out.write("start, duration, source, destination, source port, destination port, protocol, tcp flags, direction, " +
+                    "application, packets, reverse packets, bytes, reverse bytes\n");
+
+            while(reader.next())
+            {
+                int length = reader.getAddress(true, address);
+                String source = InetAddress.getByAddress(Arrays.copyOf(address, length)).getHostAddress();
+
+                length = reader.getAddress(false, address);
+                String destination = InetAddress.getByAddress(Arrays.copyOf(address, length)).getHostAddress();
+
+                int application = reader.getApplication();
+
+                out.write(reader.getStart() + ", " + reader.getDuration() + ", " + source + ", " + destination + ", "
+                        + reader.getSourcePort() + ", " + reader.getDestinationPort() + ", " + reader.getProtocol() + ", "
+                        + reader.getTcpFlags() + ", " + (reader.getDirection() == FlowRecordWriter.EGRESS ? "egress" : "ingress") + ", "
+                        + (application < PayloadClassifier.NAMES.length ? PayloadClassifier.NAMES[application] : Integer.toString(application))
+                        + ", " + reader.getPackets() + ", " + reader.getReversePackets() + ", " + reader.getOctets() + ", "
+                        + reader.getReverseOctets() + "\n");
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if(reader != null)
+            {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return true;
+    }
+
+    public static void main(String[] args)
+    {
+        if(!run(args))
+            System.exit(1);
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <h1>Flow Record Writer</h1>
+ * Writes flows as fixed width binary records, laid out in the manner of IPFIX: the stream starts with a header giving
+ * the template of each kind of record, as pairs of IPFIX information element number and length, followed by sets of
+ * records each headed by the number of their template and the length of the set. IPv4 and IPv6 flows have templates
+ * of their own so IPv4 records do not carry the room of IPv6 addresses; counts are given in as few bytes as they
+ * need, as IPFIX allows with its reduced size encoding. Reverse counts use the numbers of their forward counts with
+ * the top bit set, taking the place of the enterprise number RFC 5103 gives them.
+ * <p>
+ * Records of each template are gathered in a direct buffer of their own and written as a set once the buffer is
+ * full, so a file or socket is written a set of over a thousand flows at a time. FlowRecordReader reads the records
+ * back.
+ */
+public class FlowRecordWriter implements Closeable
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally export each flow as a binary record to a file i.e --flow-export flows.bin " +
+            "or to a local port i.e --flow-export tcp://localhost:4739, read back with the flows subcommand";
+
+    public static final int MAGIC = 0x50415446;
+    public static final int VERSION = 1;
+
+    public static final int IPV4_TEMPLATE = 256;
+    public static final int IPV6_TEMPLATE = 257;
+
+    // IPFIX information elements of the records
+    public static final int OCTETS = 1;
+    public static final int PACKETS = 2;
+    public static final int PROTOCOL = 4;
+    public static final int TCP_FLAGS = 6;
+    public static final int SOURCE_PORT = 7;
+    public static final int SOURCE_IPV4 = 8;
+    public static final int DESTINATION_PORT = 11;
+    public static final int DESTINATION_IPV4 = 12;
+    public static final int SOURCE_IPV6 = 27;
+    public static final int DESTINATION_IPV6 = 28;
+    public static final int DIRECTION = 61;
+    public static final int APPLICATION = 95;
+    public static final int FLOW_START_MICROSECONDS = 154;
+    public static final int FLOW_DURATION_MICROSECONDS = 161;
+    public static final int REVERSE = 0x8000;
+
+    // values of the direction element, from the point of view of the local network
+    public static final int INGRESS = 0;
+    public static final int EGRESS = 1;
+
+    // elements and lengths of each template, in the order they are written
+    public static final int[][] IPV4_FIELDS = {
+            {FLOW_START_MICROSECONDS, 8}, {FLOW_DURATION_MICROSECONDS, 4}, {SOURCE_IPV4, 4}, {DESTINATION_IPV4, 4},
+            {SOURCE_PORT, 2}, {DESTINATION_PORT, 2}, {PROTOCOL, 1}, {TCP_FLAGS, 1}, {DIRECTION, 1}, {APPLICATION, 1},
+            {PACKETS, 4}, {REVERSE | PACKETS, 4}, {OCTETS, 6}, {REVERSE | OCTETS, 6}
+    };
+    public static final int[][] IPV6_FIELDS = {
+            {FLOW_START_MICROSECONDS, 8}, {FLOW_DURATION_MICROSECONDS, 4}, {SOURCE_IPV6, 16}, {DESTINATION_IPV6, 16},
+            {SOURCE_PORT, 2}, {DESTINATION_PORT, 2}, {PROTOCOL, 1}, {TCP_FLAGS, 1}, {DIRECTION, 1}, {APPLICATION, 1},
+            {PACKETS, 4}, {REVERSE | PACKETS, 4}, {OCTETS, 6}, {REVERSE | OCTETS, 6}
+    };
+
+    public static final int SET_HEADER_LENGTH = 4;
+
+    // a set's length is held in 16 bits as in IPFIX
+    private static final int MAX_SET_LENGTH = 65535;
+
+    private static final String SOCKET_PREFIX = "tcp://";
+
+    private WritableByteChannel channel;
+    private ByteBuffer ipv4Set;
+    private ByteBuffer ipv6Set;
+
+    private long records = 0;
+
+    /**
+     * Creates a writer, writing the header with the templates
+     * @param channel - file or socket channel to write to
+     * @throws IOException - if the header cannot be written
+     */
+    public FlowRecordWriter(WritableByteChannel channel) throws IOException
+    {
+        this.channel = channel;
+
+        ipv4Set = newSet(recordLength(IPV4_FIELDS));
+        ipv6Set = newSet(recordLength(IPV6_FIELDS));
+
+        ByteBuffer header = ByteBuffer.allocate(8 + templateLength(IPV4_FIELDS) + templateLength(IPV6_FIELDS));
+
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) 2);
+        putTemplate(header, IPV4_TEMPLATE, IPV4_FIELDS);
+        putTemplate(header, IPV6_TEMPLATE, IPV6_FIELDS);
+        header.flip();
+
+        writeFully(header);
+    }
+
+    /**
+     * Opens the writer given with --flow-export. A worker given --shard adds its shard to the file name, as Metrics
+     * does, so workers do not write over each other's flows
+     * @param options - the options given to the analyser
+     * @return the writer, or null if --flow-export was not given
+     * @throws IOException - if the file or socket cannot be opened
+     */
+    public static FlowRecordWriter open(AnalyserOptions options) throws IOException
+    {
+        if(!options.has("flow-export"))
+            return null;
+
+        String target = options.getString("flow-export", null);
+
+        if(target.startsWith(SOCKET_PREFIX))
+        {
+            String address = target.substring(SOCKET_PREFIX.length());
+            int colon = address.lastIndexOf(':');
+
+            if(colon < 0)
+                throw new IOException("Option --flow-export expects tcp://host:port but was : " + target);
+
+            return new FlowRecordWriter(SocketChannel.open(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1)))));
+        }
+
+        String shard = options.has("shard") ? "shard-" + options.getString("shard", null).replace('/', '-') : null;
+
+        return new FlowRecordWriter(new FileOutputStream(Metrics.shardFile(target, shard)).getChannel());
+    }
+
+    /**
+     * @return length of a record of the fields
+     */
+    public static int recordLength(int[][] fields)
+    {
+        int length = 0;
+
+        for(int[] field : fields)
+        {
+            length += field[1];
+        }
+
+        return length;
+    }
+
+    private static int templateLength(int[][] fields)
+    {
+        return 4 + fields.length * 4;
+    }
+
+    private static void putTemplate(ByteBuffer header, int template, int[][] fields)
+    {
+        header.putShort((short) template).putShort((short) fields.length);
+
+        for(int[] field : fields)
+        {
+            header.putShort((short) field[0]).putShort((short) field[1]);
+        }
+    }
+
+    /**
+     * @return a direct buffer holding as many whole records as fit a set, with room left for the set header
+     */
+    private static ByteBuffer newSet(int recordLength)
+    {
+        int capacity = SET_HEADER_LENGTH + (MAX_SET_LENGTH - SET_HEADER_LENGTH) / recordLength * recordLength;
+        ByteBuffer set = ByteBuffer.allocateDirect(capacity);
+
+        set.position(SET_HEADER_LENGTH);
+
+        return set;
+    }
+
+    /**
+     * Adds a flow to the records, writing out the set of its template once full
+     * @param ipVersion - 4 or 6
+     * @param addresses - buffer holding the source address followed by the destination address
+     * @param addressOffset - offset of the source address in the buffer
+     * @param sourcePort - port of the flow's source, the end which sent its first packet
+     * @param destinationPort - port of the flow's destination
+     * @param protocol - IP protocol of the flow
+     * @param tcpFlags - flags of all the flow's TCP headers ored together
+     * @param direction - INGRESS or EGRESS
+     * @param application - application the flow was classified as, a PayloadClassifier number
+     * @param start - capture time of the flow's first packet in microseconds
+     * @param end - capture time of the flow's last packet in microseconds
+     * @param packets - packets sent from the source
+     * @param reversePackets - packets sent from the destination
+     * @param octets - bytes sent from the source
+     * @param reverseOctets - bytes sent from the destination
+     * @throws IOException - if a full set cannot be written
+     */
+    public void write(int ipVersion, byte[] addresses, int addressOffset, int sourcePort, int destinationPort, int protocol,
+                      int tcpFlags, int direction, int application, long start, long end, long packets, long reversePackets,
+                      long octets, long reverseOctets) throws IOException
+    {
+        int addressLength = ipVersion == 4 ? 4 : 16;
+        ByteBuffer set = ipVersion == 4 ? ipv4Set : ipv6Set;
+
+        set.putLong(start);
+        set.putInt((int) Math.min(end - start, 0xffffffffL));
+        set.put(addresses, addressOffset, 2 * addressLength);
+        set.putShort((short) sourcePort);
+        set.putShort((short) destinationPort);
+        set.put((byte) protocol);
+        set.put((byte) tcpFlags);
+        set.put((byte) direction);
+        set.put((byte) application);
+        set.putInt((int) Math.min(packets, 0xffffffffL));
+        set.putInt((int) Math.min(reversePackets, 0xffffffffL));
+        putCount(set, octets);
+        putCount(set, reverseOctets);
+
+        records++;
+
+        if(!set.hasRemaining())
+            writeSet(set, ipVersion == 4 ? IPV4_TEMPLATE : IPV6_TEMPLATE);
+    }
+
+    /**
+     * Puts a count in 6 bytes
+     */
+    private static void putCount(ByteBuffer set, long count)
+    {
+        count = Math.min(count, 0xffffffffffffL);
+
+        set.putShort((short) (count >>> 32));
+        set.putInt((int) count);
+    }
+
+    /**
+     * Writes out the records gathered for a template as a set, leaving the buffer empty
+     */
+    private void writeSet(ByteBuffer set, int template) throws IOException
+    {
+        if(set.position() == SET_HEADER_LENGTH)
+            return;
+
+        set.putShort(0, (short) template);
+        set.putShort(2, (short) set.position());
+        set.flip();
+
+        writeFully(set);
+
+        set.clear();
+        set.position(SET_HEADER_LENGTH);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes out the sets still being gathered
+     * @throws IOException - if the sets cannot be written
+     */
+    public void flush() throws IOException
+    {
+        writeSet(ipv4Set, IPV4_TEMPLATE);
+        writeSet(ipv6Set, IPV6_TEMPLATE);
+    }
+
+    /**
+     * Writes out the sets still being gathered and closes the file or socket
+     * @throws IOException - if the sets cannot be written
+     */
+    public void close() throws IOException
+    {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return number of flows written
+     */
+    public long getRecords()
+    {
+        return records;
+    }
+}
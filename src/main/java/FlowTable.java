@@ -0,0 +1,265 @@
+/**
+ * <h1>Flow Table</h1>
+ * Fixed size table of the flows being tracked, keyed by a 64 bit flow hash. A flow is kept within a short window of
+ * slots from its home slot; when the window is full the flow seen least recently in it is evicted, so the table never
+ * grows however many flows a capture holds. Flows are referred to by slot number while they are in the table.
+ * <p>
+ * Besides the bytes of a flow, the table keeps the application its payloads were classified as and how many payloads
+ * of each direction were looked at, so a flow is only classified from its first few payloads and each later packet
+ * costs a single lookup.
+ */
+public class FlowTable
+{
+    public static final int UNCLASSIFIED = -1;
+
+    /**
+     * Told of each flow pushed out of the table, before its slot is given to another flow
+     */
+    public interface EvictionListener
+    {
+        /**
+         * @param slot - slot of the flow being evicted, still holding the flow's values
+         */
+        void evicted(int slot);
+    }
+
+    private static final int PROBE_WINDOW = 16;
+
+    // zero keys mark empty slots, so a flow hashing to zero is stored under this instead
+    private static final long ZERO_KEY = 0x9e3779b97f4a7c15L;
+
+    private int mask;
+
+    private long[] keys;
+    private long[] lastSeen;
+    private int[] hostIds;
+    private long[] bytesUp;
+    private long[] bytesDown;
+    private int[] packets;
+    private int[] requests;
+    private byte[] applications;
+    private byte[] inspections;
+
+    private long evictions = 0;
+    private EvictionListener evictionListener = null;
+
+    /**
+     * Creates a table
+     * @param capacity - number of flows to hold, rounded up to a power of two
+     */
+    public FlowTable(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, PROBE_WINDOW) - 1) << 1;
+        mask = size - 1;
+
+        keys = new long[size];
+        lastSeen = new long[size];
+        hostIds = new int[size];
+        bytesUp = new long[size];
+        bytesDown = new long[size];
+        packets = new int[size];
+        requests = new int[size];
+        applications = new byte[size];
+        inspections = new byte[size];
+    }
+
+    /**
+     * Finds the slot of a flow, adding the flow if it is not in the table
+     * @param flowKey - hash identifying the flow
+     * @param timestamp - time the flow was seen, in microseconds
+     * @return slot number of the flow
+     */
+    public int findOrAdd(long flowKey, long timestamp)
+    {
+        if(flowKey == 0)
+            flowKey = ZERO_KEY;
+
+        int home = (int) (flowKey ^ (flowKey >>> 32)) & mask;
+        int empty = -1;
+        int oldest = home;
+
+        for(int i = 0; i < PROBE_WINDOW; i++)
+        {
+            int slot = (home + i) & mask;
+
+            if(keys[slot] == flowKey)
+            {
+                lastSeen[slot] = timestamp;
+                return slot;
+            }
+
+            if(keys[slot] == 0)
+            {
+                if(empty < 0)
+                    empty = slot;
+            }
+            else if(lastSeen[slot] < lastSeen[oldest] || keys[oldest] == 0)
+            {
+                oldest = slot;
+            }
+        }
+
+        int slot = empty;
+
+        if(slot < 0)
+        {
+            slot = oldest;
+            evictions++;
+
+            if(evictionListener != null)
+                evictionListener.evicted(slot);
+        }
+
+        keys[slot] = flowKey;
+        lastSeen[slot] = timestamp;
+        hostIds[slot] = -1;
+        bytesUp[slot] = 0;
+        bytesDown[slot] = 0;
+        packets[slot] = 0;
+        requests[slot] = 0;
+        applications[slot] = UNCLASSIFIED;
+        inspections[slot] = 0;
+
+        return slot;
+    }
+
+    /**
+     * @param evictionListener - listener told of each flow evicted, or null for none
+     */
+    public void setEvictionListener(EvictionListener evictionListener)
+    {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @return number of slots in the table
+     */
+    public int getCapacity()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @param slot - slot number
+     * @return true if the slot holds a flow
+     */
+    public boolean isUsed(int slot)
+    {
+        return keys[slot] != 0;
+    }
+
+    /**
+     * @param slot - slot of the flow
+     * @return id of the host the flow was found to be requesting, or -1 if not yet known
+     */
+    public int getHostId(int slot)
+    {
+        return hostIds[slot];
+    }
+
+    /**
+     * @param slot - slot of the flow
+     * @param hostId - id of the host the flow is requesting
+     */
+    public void setHostId(int slot, int hostId)
+    {
+        hostIds[slot] = hostId;
+    }
+
+    /**
+     * Adds a packet to the bytes carried by a flow
+     * @param slot - slot of the flow
+     * @param up - true for bytes sent by the client, false for bytes received by it
+     * @param bytes - number of bytes
+     */
+    public void addBytes(int slot, boolean up, long bytes)
+    {
+        if(up)
+            bytesUp[slot] += bytes;
+        else
+            bytesDown[slot] += bytes;
+
+        packets[slot]++;
+    }
+
+    public long getBytesUp(int slot)
+    {
+        return bytesUp[slot];
+    }
+
+    public long getBytesDown(int slot)
+    {
+        return bytesDown[slot];
+    }
+
+    /**
+     * @param slot - slot of the flow
+     * @return number of packets added to the flow's bytes
+     */
+    public int getPackets(int slot)
+    {
+        return packets[slot];
+    }
+
+    /**
+     * Counts a request made over the flow
+     * @param slot - slot of the flow
+     * @return number of requests counted for the flow before this one
+     */
+    public int addRequest(int slot)
+    {
+        return requests[slot]++;
+    }
+
+    /**
+     * @param slot - slot of the flow
+     * @return application the flow was classified as, or UNCLASSIFIED while it is still being looked at
+     */
+    public int getApplication(int slot)
+    {
+        return applications[slot];
+    }
+
+    /**
+     * @param slot - slot of the flow
+     * @param application - application the flow was classified as, a PayloadClassifier number
+     */
+    public void setApplication(int slot, int application)
+    {
+        applications[slot] = (byte) application;
+    }
+
+    /**
+     * Counts a payload of the flow as looked at
+     * @param slot - slot of the flow
+     * @param forward - true for the direction the flow is keyed in, false for the other
+     * @return number of payloads looked at in that direction, including this one
+     */
+    public int addInspection(int slot, boolean forward)
+    {
+        int shift = forward ? 0 : 4;
+        int count = Math.min(((inspections[slot] >>> shift) & 0xf) + 1, 15);
+
+        inspections[slot] = (byte) ((inspections[slot] & ~(0xf << shift)) | (count << shift));
+
+        return count;
+    }
+
+    /**
+     * @param slot - slot of the flow
+     * @param forward - true for the direction the flow is keyed in, false for the other
+     * @return number of payloads looked at in that direction
+     */
+    public int getInspections(int slot, boolean forward)
+    {
+        return (inspections[slot] >>> (forward ? 0 : 4)) & 0xf;
+    }
+
+    /**
+     * @return number of flows pushed out of the table to make room for others
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * <h1>Fragment Tracker</h1>
+ * Carries the ports of the first fragment of an IP datagram forward to its later fragments, which hold no transport
+ * header of their own, so their bytes are counted against the flow they belong to. Datagrams are keyed by their
+ * addresses, identification and protocol in a fixed size table, kept within a short window of slots from their home
+ * slot like the flows of FlowTable. A datagram is let go once all of its bytes have been seen, and one not completed
+ * within the timeout is taken as lost and its slot reused, so a flood of fragments that never complete only ever
+ * cycles through the same table.
+ * <p>
+ * Fragments arriving before the first fragment of their datagram cannot be given its ports and are left without.
+ */
+public class FragmentTracker
+{
+    private static final int PROBE_WINDOW = 8;
+
+    // zero keys mark empty slots, so a datagram hashing to zero is stored under this instead
+    private static final long ZERO_KEY = 0x9e3779b97f4a7c15L;
+
+    private int mask;
+    private long timeout;
+
+    private long[] keys;
+    private long[] lastSeen;
+    private int[] sourcePorts;
+    private int[] destinationPorts;
+    private int[] receivedLengths;
+    private int[] totalLengths;
+
+    private long fragments = 0;
+    private long unattributed = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a tracker
+     * @param capacity - number of datagrams to track at once, rounded up to a power of two
+     * @param timeout - time in microseconds after which a datagram still missing fragments is let go
+     */
+    public FragmentTracker(int capacity, long timeout)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, PROBE_WINDOW) - 1) << 1;
+        mask = size - 1;
+        this.timeout = timeout;
+
+        keys = new long[size];
+        lastSeen = new long[size];
+        sourcePorts = new int[size];
+        destinationPorts = new int[size];
+        receivedLengths = new int[size];
+        totalLengths = new int[size];
+    }
+
+    /**
+     * Tracks a decoded packet, giving it the ports of its datagram's first fragment if it is a later fragment
+     * @param decoder - decoder holding the packet
+     * @param timestamp - capture time of the packet in microseconds
+     * @return false if the packet is a later fragment whose first fragment has not been seen, true otherwise
+     */
+    public boolean track(PacketDecoder decoder, long timestamp)
+    {
+        if(!decoder.isFragment())
+            return true;
+
+        fragments++;
+
+        int slot = findOrAdd(datagramKey(decoder), timestamp);
+        boolean first = decoder.getFragmentOffset() == 0;
+
+        if(first)
+        {
+            sourcePorts[slot] = decoder.getSourcePort();
+            destinationPorts[slot] = decoder.getDestinationPort();
+        }
+        else if(sourcePorts[slot] >= 0)
+        {
+            decoder.setPorts(sourcePorts[slot], destinationPorts[slot]);
+        }
+
+        boolean attributed = first || sourcePorts[slot] >= 0;
+
+        if(!attributed)
+            unattributed++;
+
+        // the last fragment gives the length of the datagram, which is done once that many bytes were seen
+        receivedLengths[slot] += decoder.getFragmentLength();
+
+        if(!decoder.hasMoreFragments())
+            totalLengths[slot] = decoder.getFragmentOffset() + decoder.getFragmentLength();
+
+        if(totalLengths[slot] > 0 && receivedLengths[slot] >= totalLengths[slot])
+            keys[slot] = 0;
+
+        return attributed;
+    }
+
+    /**
+     * Finds the slot of a datagram, adding it if it is not in the table or has timed out
+     */
+    private int findOrAdd(long datagramKey, long timestamp)
+    {
+        if(datagramKey == 0)
+            datagramKey = ZERO_KEY;
+
+        int home = (int) (datagramKey ^ (datagramKey >>> 32)) & mask;
+        int empty = -1;
+        int oldest = home;
+
+        for(int i = 0; i < PROBE_WINDOW; i++)
+        {
+            int slot = (home + i) & mask;
+
+            // a datagram not completed within the timeout is taken as lost
+            if(keys[slot] != 0 && timestamp - lastSeen[slot] > timeout)
+                keys[slot] = 0;
+
+            if(keys[slot] == datagramKey)
+            {
+                lastSeen[slot] = timestamp;
+                return slot;
+            }
+
+            if(keys[slot] == 0)
+            {
+                if(empty < 0)
+                    empty = slot;
+            }
+            else if(lastSeen[slot] < lastSeen[oldest] || keys[oldest] == 0)
+            {
+                oldest = slot;
+            }
+        }
+
+        int slot = empty;
+
+        if(slot < 0)
+        {
+            slot = oldest;
+            evictions++;
+        }
+
+        keys[slot] = datagramKey;
+        lastSeen[slot] = timestamp;
+        sourcePorts[slot] = -1;
+        destinationPorts[slot] = -1;
+        receivedLengths[slot] = 0;
+        totalLengths[slot] = 0;
+
+        return slot;
+    }
+
+    /**
+     * @return 64 bit hash of the addresses, identification and protocol shared by the fragments of a datagram
+     */
+    private static long datagramKey(PacketDecoder decoder)
+    {
+        byte[] buffer = decoder.getBuffer();
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < decoder.getAddressLength(); i++)
+        {
+            hash = (hash ^ (buffer[decoder.getSourceAddressOffset() + i] & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (buffer[decoder.getDestinationAddressOffset() + i] & 0xff)) * 0x100000001b3L;
+        }
+
+        hash = (hash ^ decoder.getProtocol()) * 0x100000001b3L;
+        hash = (hash ^ (decoder.getFragmentId() & 0xffffffffL)) * 0x100000001b3L;
+
+        return hash;
+    }
+
+    /**
+     * @return number of fragments tracked
+     */
+    public long getFragments()
+    {
+        return fragments;
+    }
+
+    /**
+     * @return number of later fragments seen before, or without, the first fragment of their datagram
+     */
+    public long getUnattributed()
+    {
+        return unattributed;
+    }
+
+    /**
+     * @return number of datagrams pushed out of the table to make room for others
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+}
@@ -0,0 +1,250 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Heavy Hitters</h1>
+ * Space-Saving sketch tracking the most frequent keys of a stream in a fixed number of counters. When a key that is
+ * not tracked arrives and all counters are taken, the key with the smallest count is replaced and the new key starts
+ * from that count, which is recorded as its possible overcount. Keys are byte strings of up to 255 bytes held in a
+ * preallocated arena, counters are kept in a min-heap and found through an open addressing index, so adding a key
+ * allocates nothing.
+ */
+public class HeavyHitters
+{
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private int capacity;
+    private int size = 0;
+
+    private byte[] keys;
+    private int[] keyLengths;
+    private int[] hashes;
+    private long[] counts;
+    private long[] errors;
+
+    // min-heap of counter numbers ordered by count, and each counter's position in it
+    private int[] heap;
+    private int[] heapPositions;
+
+    // open addressing index of counter number plus one, zero marking an empty slot
+    private int[] slots;
+    private int mask;
+
+    /**
+     * Creates a sketch
+     * @param capacity - number of keys to track
+     */
+    public HeavyHitters(int capacity)
+    {
+        this.capacity = capacity;
+
+        keys = new byte[capacity * MAX_KEY_LENGTH];
+        keyLengths = new int[capacity];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        heapPositions = new int[capacity];
+
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Counts an occurrence of a key
+     * @param buffer - buffer holding the key
+     * @param offset - offset of the key
+     * @param length - length of the key, longer keys being cut to 255 bytes
+     */
+    public void add(byte[] buffer, int offset, int length)
+    {
+        length = Math.min(length, MAX_KEY_LENGTH);
+
+        int hash = hash(buffer, offset, length);
+        int slot = findSlot(buffer, offset, length, hash);
+
+        if(slots[slot] != 0)
+        {
+            int counter = slots[slot] - 1;
+            counts[counter]++;
+            siftDown(heapPositions[counter]);
+            return;
+        }
+
+        int counter;
+        long floor = 0;
+
+        if(size < capacity)
+        {
+            counter = size;
+            heap[size] = counter;
+            heapPositions[counter] = size;
+            size++;
+        }
+        else
+        {
+            // replace the key with the smallest count
+            counter = heap[0];
+            floor = counts[counter];
+            removeSlot(findSlot(keys, counter * MAX_KEY_LENGTH, keyLengths[counter], hashes[counter]));
+            slot = findSlot(buffer, offset, length, hash);
+        }
+
+        System.arraycopy(buffer, offset, keys, counter * MAX_KEY_LENGTH, length);
+        keyLengths[counter] = length;
+        hashes[counter] = hash;
+        counts[counter] = floor + 1;
+        errors[counter] = floor;
+        slots[slot] = counter + 1;
+
+        siftUp(heapPositions[counter]);
+        siftDown(heapPositions[counter]);
+    }
+
+    /**
+     * @return number of keys tracked
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param counter - counter number, from zero to one less than size()
+     * @return the key tracked by the counter
+     */
+    public String getKey(int counter)
+    {
+        return new String(keys, counter * MAX_KEY_LENGTH, keyLengths[counter], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param counter - counter number, from zero to one less than size()
+     * @return the estimated count, never below the true count
+     */
+    public long getCount(int counter)
+    {
+        return counts[counter];
+    }
+
+    /**
+     * @param counter - counter number, from zero to one less than size()
+     * @return the most the count may exceed the true count by
+     */
+    public long getError(int counter)
+    {
+        return errors[counter];
+    }
+
+    private int findSlot(byte[] buffer, int offset, int length, int hash)
+    {
+        int slot = hash & mask;
+
+        while(slots[slot] != 0)
+        {
+            int counter = slots[slot] - 1;
+
+            if(hashes[counter] == hash && keyLengths[counter] == length && equalsKey(counter, buffer, offset, length))
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private boolean equalsKey(int counter, byte[] buffer, int offset, int length)
+    {
+        int keyOffset = counter * MAX_KEY_LENGTH;
+
+        for(int i = 0; i < length; i++)
+        {
+            if(keys[keyOffset + i] != buffer[offset + i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Empties an index slot, shifting back later keys of the same probe run so lookups still find them
+     */
+    private void removeSlot(int slot)
+    {
+        slots[slot] = 0;
+
+        int current = (slot + 1) & mask;
+
+        while(slots[current] != 0)
+        {
+            int home = hashes[slots[current] - 1] & mask;
+
+            if(((current - home) & mask) >= ((current - slot) & mask))
+            {
+                slots[slot] = slots[current];
+                slots[current] = 0;
+                slot = current;
+            }
+
+            current = (current + 1) & mask;
+        }
+    }
+
+    private void siftUp(int position)
+    {
+        while(position > 0)
+        {
+            int parent = (position - 1) / 2;
+
+            if(counts[heap[parent]] <= counts[heap[position]])
+                return;
+
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position)
+    {
+        while(true)
+        {
+            int smallest = position;
+            int left = position * 2 + 1;
+            int right = left + 1;
+
+            if(left < size && counts[heap[left]] < counts[heap[smallest]])
+                smallest = left;
+
+            if(right < size && counts[heap[right]] < counts[heap[smallest]])
+                smallest = right;
+
+            if(smallest == position)
+                return;
+
+            swap(smallest, position);
+            position = smallest;
+        }
+    }
+
+    private void swap(int first, int second)
+    {
+        int counter = heap[first];
+        heap[first] = heap[second];
+        heap[second] = counter;
+
+        heapPositions[heap[first]] = first;
+        heapPositions[heap[second]] = second;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length)
+    {
+        int hash = 0x811c9dc5;
+
+        for(int i = 0; i < length; i++)
+        {
+            hash = (hash ^ buffer[offset + i]) * 0x01000193;
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+}
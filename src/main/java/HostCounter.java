@@ -0,0 +1,350 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <h1>Host Counter</h1>
+ * Counts occurrences of host names read straight from packet bytes. Names are hashed and compared in place, regardless
+ * of ASCII case, in an open addressing table; each distinct name is copied once in lower case into a shared byte
+ * arena and its count kept in a primitive array. Each distinct name is given an id, in order of first appearance,
+ * which other per host data can be indexed by, and may carry extra primitive value columns such as byte totals.
+ * Strings are only made when the names are read back for output.
+ */
+public class HostCounter
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] arena = new byte[INITIAL_CAPACITY * 16];
+    private int arenaSize = 0;
+
+    private int[] keyOffsets = new int[INITIAL_CAPACITY];
+    private int[] keyLengths = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[][] values;
+    private int size = 0;
+
+    // open addressing index of id plus one, zero marking an empty slot
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int mask = slots.length - 1;
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Creates a counter with no value columns
+     */
+    public HostCounter()
+    {
+        this(0);
+    }
+
+    /**
+     * Creates a counter
+     * @param valueColumns - number of extra values kept per host
+     */
+    public HostCounter(int valueColumns)
+    {
+        values = new long[valueColumns][INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds to the count of a host name held in a buffer
+     * @param buffer - buffer holding the name
+     * @param offset - offset of the name
+     * @param length - length of the name
+     * @param delta - amount to add to the count
+     * @return the id of the name
+     */
+    public int add(byte[] buffer, int offset, int length, long delta)
+    {
+        int hash = hash(buffer, offset, length);
+        int slot = hash & mask;
+
+        while(slots[slot] != 0)
+        {
+            int id = slots[slot] - 1;
+
+            if(hashes[id] == hash && equalsKey(id, buffer, offset, length))
+            {
+                counts[id] += delta;
+                return id;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        int id = insert(buffer, offset, length, hash);
+        slots[slot] = id + 1;
+        counts[id] = delta;
+
+        if(size * 2 > slots.length)
+            rehash();
+
+        return id;
+    }
+
+    /**
+     * Adds to the count of a host name held as text
+     * @param host - the host name, expected to be ASCII
+     * @param delta - amount to add to the count
+     * @return the id of the name
+     */
+    public int add(CharSequence host, long delta)
+    {
+        int length = host.length();
+
+        if(scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+
+        for(int i = 0; i < length; i++)
+        {
+            scratch[i] = (byte) host.charAt(i);
+        }
+
+        return add(scratch, 0, length, delta);
+    }
+
+    /**
+     * Adds to the count of a host name already counted
+     * @param id - id of the name
+     * @param delta - amount to add to the count
+     */
+    public void addById(int id, long delta)
+    {
+        counts[id] += delta;
+    }
+
+    /**
+     * Adds to one of the extra values kept for a host
+     * @param id - id of the name
+     * @param column - index of the value column
+     * @param delta - amount to add to the value
+     */
+    public void addValue(int id, int column, long delta)
+    {
+        values[column][id] += delta;
+    }
+
+    /**
+     * @param id - id of the name
+     * @param column - index of the value column
+     * @return the value
+     */
+    public long getValue(int id, int column)
+    {
+        return values[column][id];
+    }
+
+    /**
+     * @return number of distinct host names counted, ids running from zero to one less than this
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param id - id of the name
+     * @return the count of the name
+     */
+    public long getCount(int id)
+    {
+        return counts[id];
+    }
+
+    /**
+     * @param id - id of the name
+     * @return the host name in lower case
+     */
+    public String getKey(int id)
+    {
+        return new String(arena, keyOffsets[id], keyLengths[id], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Adds to the count of a host name held by another counter
+     * @param source - counter holding the name
+     * @param sourceId - id of the name in the source counter
+     * @param delta - amount to add to the count
+     * @return the id of the name in this counter
+     */
+    public int addKey(HostCounter source, int sourceId, long delta)
+    {
+        return add(source.arena, source.keyOffsets[sourceId], source.keyLengths[sourceId], delta);
+    }
+
+    /**
+     * Writes a host name as its length followed by its bytes
+     * @param id - id of the name
+     * @param output - output to write to
+     * @throws IOException on failing to write
+     */
+    public void writeKey(int id, DataOutput output) throws IOException
+    {
+        output.writeShort(keyLengths[id]);
+        output.write(arena, keyOffsets[id], keyLengths[id]);
+    }
+
+    /**
+     * @param id - id of the name
+     * @return length of the name in bytes
+     */
+    public int getKeyLength(int id)
+    {
+        return keyLengths[id];
+    }
+
+    /**
+     * Copies a host name into a buffer
+     * @param id - id of the name
+     * @param target - buffer with room for getKeyLength() bytes from the offset
+     * @param offset - offset to copy the name to
+     */
+    public void copyKey(int id, byte[] target, int offset)
+    {
+        System.arraycopy(arena, keyOffsets[id], target, offset, keyLengths[id]);
+    }
+
+    /**
+     * @return the ids of the names ordered by name, comparing bytes as unsigned values
+     */
+    public int[] sortedIds()
+    {
+        Integer[] ids = new Integer[size];
+
+        for(int id = 0; id < size; id++)
+        {
+            ids[id] = id;
+        }
+
+        Arrays.sort(ids, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer first, Integer second)
+            {
+                return compareKeys(arena, keyOffsets[first], keyLengths[first], arena, keyOffsets[second], keyLengths[second]);
+            }
+        });
+
+        int[] sorted = new int[size];
+
+        for(int i = 0; i < size; i++)
+        {
+            sorted[i] = ids[i];
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Compares two names byte by byte as unsigned values, a name coming before the longer names it starts
+     * @return negative, zero or positive as the first name comes before, equals or comes after the second
+     */
+    public static int compareKeys(byte[] first, int firstOffset, int firstLength, byte[] second, int secondOffset, int secondLength)
+    {
+        int length = Math.min(firstLength, secondLength);
+
+        for(int i = 0; i < length; i++)
+        {
+            int comparison = (first[firstOffset + i] & 0xff) - (second[secondOffset + i] & 0xff);
+
+            if(comparison != 0)
+                return comparison;
+        }
+
+        return firstLength - secondLength;
+    }
+
+    /**
+     * @return approximate number of bytes held by the counter's arrays
+     */
+    public long estimateMemory()
+    {
+        // offset, length, hash, count and values per id, and the id itself in the slots
+        return arena.length + (long) slots.length * 4 + (long) keyOffsets.length * (20 + 8 * values.length);
+    }
+
+    private int insert(byte[] buffer, int offset, int length, int hash)
+    {
+        if(size == keyOffsets.length)
+        {
+            int capacity = size * 2;
+            keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+            keyLengths = Arrays.copyOf(keyLengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+
+            for(int i = 0; i < values.length; i++)
+            {
+                values[i] = Arrays.copyOf(values[i], capacity);
+            }
+        }
+
+        if(arenaSize + length > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arenaSize + length, arena.length * 2));
+
+        for(int i = 0; i < length; i++)
+        {
+            arena[arenaSize + i] = toLowerCase(buffer[offset + i]);
+        }
+
+        int id = size++;
+        keyOffsets[id] = arenaSize;
+        keyLengths[id] = length;
+        hashes[id] = hash;
+        arenaSize += length;
+
+        return id;
+    }
+
+    private void rehash()
+    {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+
+        for(int id = 0; id < size; id++)
+        {
+            int slot = hashes[id] & mask;
+
+            while(slots[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            slots[slot] = id + 1;
+        }
+    }
+
+    private boolean equalsKey(int id, byte[] buffer, int offset, int length)
+    {
+        if(keyLengths[id] != length)
+            return false;
+
+        int keyOffset = keyOffsets[id];
+
+        for(int i = 0; i < length; i++)
+        {
+            if(arena[keyOffset + i] != toLowerCase(buffer[offset + i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length)
+    {
+        int hash = 0x811c9dc5;
+
+        for(int i = 0; i < length; i++)
+        {
+            hash = (hash ^ toLowerCase(buffer[offset + i])) * 0x01000193;
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte toLowerCase(byte b)
+    {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
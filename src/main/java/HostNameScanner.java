@@ -0,0 +1,342 @@
+/**
+ * <h1>Host Name Scanner</h1>
+ * Finds the host name a client asked for by scanning TCP payloads in place. The Host header is read from HTTP requests
+ * and the server name indication from TLS ClientHello messages. Requests split over consecutive segments are held in
+ * a fixed number of per-flow buffers until they are complete, with a new flow evicting whatever shares its slot.
+ */
+public class HostNameScanner
+{
+    public static final int NOT_FOUND = 0;
+    public static final int HOST_FOUND = 1;
+    public static final int NO_HOST = 2;
+    public static final int INCOMPLETE = 3;
+
+    private static final int PENDING_SLOTS = 1024;
+
+    // largest TLS record plus its header
+    private static final int MAX_PENDING_BYTES = 16384 + 5;
+
+    private static final byte[][] HTTP_METHODS = {
+            "GET ".getBytes(), "POST ".getBytes(), "HEAD ".getBytes(), "PUT ".getBytes(), "DELETE ".getBytes(),
+            "OPTIONS ".getBytes(), "CONNECT ".getBytes(), "PATCH ".getBytes(), "TRACE ".getBytes()
+    };
+
+    private static final byte[] HOST_HEADER = "host:".getBytes();
+
+    private long[] pendingFlows = new long[PENDING_SLOTS];
+    private long[] pendingNextSequence = new long[PENDING_SLOTS];
+    private int[] pendingLengths = new int[PENDING_SLOTS];
+    private byte[][] pendingData = new byte[PENDING_SLOTS][];
+
+    private byte[] hostBuffer;
+    private int hostOffset;
+    private int hostLength;
+
+    /**
+     * Scans a TCP payload for a host name. When HOST_FOUND is returned the name can be read from getHostBuffer() at
+     * getHostOffset() for getHostLength() bytes until the next call to scan.
+     * @param flowHash - hash identifying the flow the segment belongs to in its direction of travel
+     * @param sequenceNumber - TCP sequence number of the segment
+     * @param buffer - buffer holding the payload
+     * @param offset - offset of the payload in the buffer
+     * @param length - length of the payload
+     * @return HOST_FOUND, NO_HOST for a request without a host name, INCOMPLETE when the request was buffered waiting
+     * for the next segment, or NOT_FOUND when the payload is not the start of a request
+     */
+    public int scan(long flowHash, long sequenceNumber, byte[] buffer, int offset, int length)
+    {
+        if(length <= 0)
+            return NOT_FOUND;
+
+        int slot = (int) (flowHash ^ (flowHash >>> 32)) & (PENDING_SLOTS - 1);
+
+        // continue a request started in an earlier segment of this flow
+        if(pendingLengths[slot] > 0 && pendingFlows[slot] == flowHash)
+        {
+            int pendingLength = pendingLengths[slot];
+            pendingLengths[slot] = 0;
+
+            if(sequenceNumber == pendingNextSequence[slot] && pendingLength + length <= MAX_PENDING_BYTES)
+            {
+                byte[] data = pendingData[slot];
+                System.arraycopy(buffer, offset, data, pendingLength, length);
+
+                int result = scanMessage(data, 0, pendingLength + length);
+
+                if(result == INCOMPLETE)
+                {
+                    pendingLengths[slot] = pendingLength + length;
+                    pendingNextSequence[slot] = (sequenceNumber + length) & 0xffffffffL;
+                }
+
+                return result;
+            }
+        }
+
+        int result = scanMessage(buffer, offset, length);
+
+        if(result == INCOMPLETE)
+        {
+            if(length > MAX_PENDING_BYTES)
+                return NO_HOST;
+
+            if(pendingData[slot] == null)
+                pendingData[slot] = new byte[MAX_PENDING_BYTES];
+
+            System.arraycopy(buffer, offset, pendingData[slot], 0, length);
+            pendingFlows[slot] = flowHash;
+            pendingLengths[slot] = length;
+            pendingNextSequence[slot] = (sequenceNumber + length) & 0xffffffffL;
+        }
+
+        return result;
+    }
+
+    /**
+     * Scans a complete or partial message for a host name
+     * @param buffer - buffer holding the message
+     * @param offset - offset of the message
+     * @param length - number of bytes of the message available
+     * @return the scan result
+     */
+    private int scanMessage(byte[] buffer, int offset, int length)
+    {
+        if(buffer[offset] == 0x16)
+            return scanClientHello(buffer, offset, length);
+
+        for(byte[] method : HTTP_METHODS)
+        {
+            if(startsWith(buffer, offset, length, method, false))
+                return scanHttpRequest(buffer, offset + method.length, offset + length);
+        }
+
+        return NOT_FOUND;
+    }
+
+    /**
+     * Reads the Host header of an HTTP request
+     * @param buffer - buffer holding the request
+     * @param position - position just after the request method
+     * @param end - end of the available bytes
+     * @return the scan result
+     */
+    private int scanHttpRequest(byte[] buffer, int position, int end)
+    {
+        // skip the request line
+        while(position < end && buffer[position] != '\n')
+            position++;
+
+        position++;
+
+        while(position < end)
+        {
+            // a blank line ends the headers
+            if(buffer[position] == '\n' || (buffer[position] == '\r' && position + 1 < end && buffer[position + 1] == '\n'))
+                return NO_HOST;
+
+            int lineEnd = position;
+
+            while(lineEnd < end && buffer[lineEnd] != '\n')
+                lineEnd++;
+
+            if(lineEnd == end)
+                return INCOMPLETE;
+
+            if(startsWith(buffer, position, lineEnd - position, HOST_HEADER, true))
+            {
+                int start = position + HOST_HEADER.length;
+                int stop = lineEnd;
+
+                while(start < stop && (buffer[start] == ' ' || buffer[start] == '\t'))
+                    start++;
+
+                while(stop > start && (buffer[stop - 1] == '\r' || buffer[stop - 1] == ' ' || buffer[stop - 1] == '\t'))
+                    stop--;
+
+                // drop the port, keeping bracketed IPv6 literals intact
+                if(start < stop && buffer[start] == '[')
+                {
+                    int close = start + 1;
+
+                    while(close < stop && buffer[close] != ']')
+                        close++;
+
+                    start++;
+                    stop = close;
+                }
+                else
+                {
+                    for(int i = start; i < stop; i++)
+                    {
+                        if(buffer[i] == ':')
+                        {
+                            stop = i;
+                            break;
+                        }
+                    }
+                }
+
+                if(start == stop)
+                    return NO_HOST;
+
+                return setHost(buffer, start, stop - start);
+            }
+
+            position = lineEnd + 1;
+        }
+
+        return INCOMPLETE;
+    }
+
+    /**
+     * Reads the server name indication extension of a TLS ClientHello
+     * @param buffer - buffer holding the TLS record
+     * @param offset - offset of the record header
+     * @param length - number of bytes of the record available
+     * @return the scan result
+     */
+    private int scanClientHello(byte[] buffer, int offset, int length)
+    {
+        if(length < 6)
+            return INCOMPLETE;
+
+        // handshake record of a TLS or SSL 3 connection carrying a ClientHello
+        if(buffer[offset + 1] != 3 || buffer[offset + 5] != 1)
+            return NOT_FOUND;
+
+        int recordEnd = offset + 5 + PacketDecoder.readShort(buffer, offset + 3);
+
+        if(recordEnd - offset > MAX_PENDING_BYTES)
+            return NOT_FOUND;
+
+        if(recordEnd > offset + length)
+            return INCOMPLETE;
+
+        int position = offset + 5;
+
+        if(recordEnd - position < 4)
+            return NO_HOST;
+
+        int handshakeLength = ((buffer[position + 1] & 0xff) << 16) | PacketDecoder.readShort(buffer, position + 2);
+        int end = Math.min(recordEnd, position + 4 + handshakeLength);
+
+        // client version and random
+        position += 4 + 2 + 32;
+
+        // session id
+        if(position + 1 > end)
+            return NO_HOST;
+
+        position += 1 + (buffer[position] & 0xff);
+
+        // cipher suites
+        if(position + 2 > end)
+            return NO_HOST;
+
+        position += 2 + PacketDecoder.readShort(buffer, position);
+
+        // compression methods
+        if(position + 1 > end)
+            return NO_HOST;
+
+        position += 1 + (buffer[position] & 0xff);
+
+        if(position + 2 > end)
+            return NO_HOST;
+
+        int extensionsEnd = Math.min(end, position + 2 + PacketDecoder.readShort(buffer, position));
+        position += 2;
+
+        while(position + 4 <= extensionsEnd)
+        {
+            int type = PacketDecoder.readShort(buffer, position);
+            int extensionLength = PacketDecoder.readShort(buffer, position + 2);
+            int extensionEnd = Math.min(extensionsEnd, position + 4 + extensionLength);
+
+            if(type == 0)
+            {
+                // skip the server name list length
+                int entry = position + 6;
+
+                while(entry + 3 <= extensionEnd)
+                {
+                    int nameType = buffer[entry] & 0xff;
+                    int nameLength = PacketDecoder.readShort(buffer, entry + 1);
+
+                    if(entry + 3 + nameLength > extensionEnd)
+                        break;
+
+                    if(nameType == 0 && nameLength > 0)
+                        return setHost(buffer, entry + 3, nameLength);
+
+                    entry += 3 + nameLength;
+                }
+
+                return NO_HOST;
+            }
+
+            position += 4 + extensionLength;
+        }
+
+        return NO_HOST;
+    }
+
+    /**
+     * Records where the host name found lies
+     * @param buffer - buffer holding the name
+     * @param offset - offset of the name
+     * @param length - length of the name
+     * @return HOST_FOUND
+     */
+    private int setHost(byte[] buffer, int offset, int length)
+    {
+        hostBuffer = buffer;
+        hostOffset = offset;
+        hostLength = length;
+
+        return HOST_FOUND;
+    }
+
+    /**
+     * Checks whether the bytes at a position start with the provided prefix
+     * @param buffer - buffer to check
+     * @param offset - position to check from
+     * @param length - number of bytes available from the position
+     * @param prefix - the prefix to look for
+     * @param ignoreCase - whether to compare ASCII letters regardless of case, the prefix being lower case
+     * @return true if the prefix is present
+     */
+    private static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix, boolean ignoreCase)
+    {
+        if(length < prefix.length)
+            return false;
+
+        for(int i = 0; i < prefix.length; i++)
+        {
+            int b = buffer[offset + i];
+
+            if(ignoreCase && b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+
+            if(b != prefix[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    public byte[] getHostBuffer()
+    {
+        return hostBuffer;
+    }
+
+    public int getHostOffset()
+    {
+        return hostOffset;
+    }
+
+    public int getHostLength()
+    {
+        return hostLength;
+    }
+}
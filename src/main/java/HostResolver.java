@@ -0,0 +1,14 @@
+/**
+ * <h1>Host Resolver</h1>
+ * Looks up the host name behind an IP address
+ */
+public interface HostResolver
+{
+    /**
+     * Looks up the host name of an address
+     * @param address - the IPv4 or IPv6 address in textual form
+     * @return the host name, or null if the address has none
+     * @throws Exception - if the lookup failed rather than finding no name
+     */
+    String resolve(String address) throws Exception;
+}
@@ -0,0 +1,293 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <h1>HyperLogLog Counters</h1>
+ * A set of HyperLogLog sketches estimating the number of distinct values seen per id, e.g distinct clients per host.
+ * Each id starts out holding up to four value hashes exactly and is only given a dense sketch of 256 registers (a
+ * standard error of about 6.5%) once it sees a fifth distinct value, so the many ids seen by few clients cost a few
+ * bytes each. Sketches merge losslessly, letting per host counts be combined into per domain counts.
+ */
+public class HyperLogLogCounters
+{
+    private static final int PRECISION = 8;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int SPARSE_VALUES = 4;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    // value hashes per id while sparse, zero marking an unused entry
+    private int[] sparse = new int[1024 * SPARSE_VALUES];
+
+    // offset of an id's registers in the dense arena plus one, zero while the id is sparse
+    private int[] denseOffsets = new int[1024];
+    private byte[] dense = new byte[64 * REGISTERS];
+    private int denseSize = 0;
+
+    /**
+     * Records a value against an id
+     * @param id - the id e.g of a host
+     * @param valueHash - well mixed 32 bit hash of the value e.g of a client address
+     */
+    public void offer(int id, int valueHash)
+    {
+        ensureCapacity(id);
+
+        // zero marks unused sparse entries
+        if(valueHash == 0)
+            valueHash = 1;
+
+        if(denseOffsets[id] != 0)
+        {
+            offerDense(denseOffsets[id] - 1, valueHash);
+            return;
+        }
+
+        int base = id * SPARSE_VALUES;
+
+        for(int i = 0; i < SPARSE_VALUES; i++)
+        {
+            if(sparse[base + i] == valueHash)
+                return;
+
+            if(sparse[base + i] == 0)
+            {
+                sparse[base + i] = valueHash;
+                return;
+            }
+        }
+
+        int offset = toDense(id);
+        offerDense(offset, valueHash);
+    }
+
+    /**
+     * Merges the values seen by an id of another set of counters into an id of this one
+     * @param source - counters to merge from
+     * @param sourceId - id in the source counters
+     * @param id - id in these counters
+     */
+    public void merge(HyperLogLogCounters source, int sourceId, int id)
+    {
+        ensureCapacity(id);
+
+        if(sourceId >= source.denseOffsets.length)
+            return;
+
+        if(source.denseOffsets[sourceId] == 0)
+        {
+            int base = sourceId * SPARSE_VALUES;
+
+            for(int i = 0; i < SPARSE_VALUES && source.sparse[base + i] != 0; i++)
+            {
+                offer(id, source.sparse[base + i]);
+            }
+
+            return;
+        }
+
+        int offset = denseOffsets[id] != 0 ? denseOffsets[id] - 1 : toDense(id);
+        int sourceOffset = source.denseOffsets[sourceId] - 1;
+
+        for(int i = 0; i < REGISTERS; i++)
+        {
+            if(source.dense[sourceOffset + i] > dense[offset + i])
+                dense[offset + i] = source.dense[sourceOffset + i];
+        }
+    }
+
+    /**
+     * @param id - the id
+     * @return estimated number of distinct values seen by the id, exact up to four
+     */
+    public long estimate(int id)
+    {
+        if(id >= denseOffsets.length)
+            return 0;
+
+        if(denseOffsets[id] == 0)
+        {
+            int base = id * SPARSE_VALUES;
+            int count = 0;
+
+            while(count < SPARSE_VALUES && sparse[base + count] != 0)
+                count++;
+
+            return count;
+        }
+
+        int offset = denseOffsets[id] - 1;
+        double sum = 0;
+        int zeros = 0;
+
+        for(int i = 0; i < REGISTERS; i++)
+        {
+            sum += 1.0 / (1L << dense[offset + i]);
+
+            if(dense[offset + i] == 0)
+                zeros++;
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+
+        // linear counting is more accurate for small cardinalities
+        if(estimate <= 2.5 * REGISTERS && zeros > 0)
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+
+        return Math.round(estimate);
+    }
+
+    /**
+     * Writes the values seen by an id, as the number of values held exactly followed by their hashes, or as -1
+     * followed by the registers of its dense sketch
+     * @param id - the id
+     * @param output - output to write to
+     * @throws IOException on failing to write
+     */
+    public void write(int id, DataOutput output) throws IOException
+    {
+        if(id < denseOffsets.length && denseOffsets[id] != 0)
+        {
+            output.writeByte(-1);
+            output.write(dense, denseOffsets[id] - 1, REGISTERS);
+            return;
+        }
+
+        int base = id * SPARSE_VALUES;
+        int count = 0;
+
+        while(id < denseOffsets.length && count < SPARSE_VALUES && sparse[base + count] != 0)
+            count++;
+
+        output.writeByte(count);
+
+        for(int i = 0; i < count; i++)
+        {
+            output.writeInt(sparse[base + i]);
+        }
+    }
+
+    /**
+     * Reads values written by write() and merges them into an id
+     * @param input - input to read from
+     * @param id - the id to merge into
+     * @throws IOException on failing to read
+     */
+    public void read(DataInput input, int id) throws IOException
+    {
+        ensureCapacity(id);
+
+        int count = input.readByte();
+
+        if(count >= 0)
+        {
+            for(int i = 0; i < count; i++)
+            {
+                offer(id, input.readInt());
+            }
+
+            return;
+        }
+
+        int offset = denseOffsets[id] != 0 ? denseOffsets[id] - 1 : toDense(id);
+
+        for(int i = 0; i < REGISTERS; i++)
+        {
+            byte register = input.readByte();
+
+            if(register > dense[offset + i])
+                dense[offset + i] = register;
+        }
+    }
+
+    /**
+     * Forgets the values seen by every id, keeping the arrays for reuse
+     */
+    public void clear()
+    {
+        Arrays.fill(sparse, 0);
+        Arrays.fill(denseOffsets, 0);
+        Arrays.fill(dense, 0, denseSize, (byte) 0);
+        denseSize = 0;
+    }
+
+    /**
+     * @return approximate number of bytes held by the counters' arrays
+     */
+    public long estimateMemory()
+    {
+        return (long) sparse.length * 4 + (long) denseOffsets.length * 4 + dense.length;
+    }
+
+    /**
+     * Mixes the bytes of an address into a hash suitable for offering
+     * @param buffer - buffer holding the address
+     * @param offset - offset of the address
+     * @param length - length of the address
+     * @return 32 bit hash of the address
+     */
+    public static int hashAddress(byte[] buffer, int offset, int length)
+    {
+        long hash = 0;
+
+        for(int i = 0; i < length; i++)
+        {
+            hash = (hash << 8 | (buffer[offset + i] & 0xff)) * 0x9e3779b97f4a7c15L + i;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return (int) hash;
+    }
+
+    private void offerDense(int offset, int valueHash)
+    {
+        int register = valueHash >>> (32 - PRECISION);
+        int rank = Integer.numberOfLeadingZeros((valueHash << PRECISION) | (1 << (PRECISION - 1))) + 1;
+
+        if(rank > dense[offset + register])
+            dense[offset + register] = (byte) rank;
+    }
+
+    /**
+     * Gives an id a dense sketch holding the values it had seen so far
+     * @return offset of the id's registers
+     */
+    private int toDense(int id)
+    {
+        if(denseSize + REGISTERS > dense.length)
+            dense = Arrays.copyOf(dense, dense.length * 2);
+
+        int offset = denseSize;
+        denseSize += REGISTERS;
+        denseOffsets[id] = offset + 1;
+
+        int base = id * SPARSE_VALUES;
+
+        for(int i = 0; i < SPARSE_VALUES; i++)
+        {
+            if(sparse[base + i] != 0)
+                offerDense(offset, sparse[base + i]);
+
+            sparse[base + i] = 0;
+        }
+
+        return offset;
+    }
+
+    private void ensureCapacity(int id)
+    {
+        if(id < denseOffsets.length)
+            return;
+
+        int capacity = Math.max(id + 1, denseOffsets.length * 2);
+        denseOffsets = Arrays.copyOf(denseOffsets, capacity);
+        sparse = Arrays.copyOf(sparse, capacity * SPARSE_VALUES);
+    }
+}
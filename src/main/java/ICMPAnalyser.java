@@ -1,7 +1,4 @@
 import java.io.*;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Scanner;
 
@@ -16,20 +13,68 @@ public class ICMPAnalyser {
     private static String FILE_ARGUMENT_INSTRUCTION = "- Provide a pcap file to read from i.e -d file_directory -f sample_file";
 
     private static String TEMP_FOLDER_NAME = "icmp_temp";
+    private static String RANGE_FOLDER_NAME = "range";
+    private static String SAMPLE_FOLDER_NAME = "sample";
+    private static String DEDUP_FOLDER_NAME = "dedup";
+    private static String UNWRAP_FOLDER_NAME = "unwrap";
     private static String SUB_TEMP_FOLDER_NAME = "data";
 
 
-    private static DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-
     private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
 
+    //columns of the partial counts written by a worker for --partial
+    public static final String[] PARTIAL_COLUMNS = {"vlan", "type", "code", "count"};
+    public static final byte[] PARTIAL_TYPES = {ReportTable.STRING, ReportTable.STRING, ReportTable.STRING, ReportTable.LONG};
+    public static final int PARTIAL_KEY_COLUMNS = 3;
+
     public static void main(String[] args)
     {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the analysis with the given command line, as main() does, without ending the JVM so several analyses can
+     * be run one after another
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options = null;
+        TimeRange range = null;
+        PacketSampler sampler = null;
+        DuplicateFilter duplicates = null;
+        CaptureShards shard = null;
+        CaptureUnwrapper unwrapper = null;
+
+        try {
+            options = AnalyserOptions.parse(args, "index", "cache", "quiet", "unwrap", "per-vlan", "dedup");
+            range = TimeRange.parse(options);
+            sampler = PacketSampler.parse(options, "packet");
+            duplicates = DuplicateFilter.parse(options);
+            shard = CaptureShards.parse(options);
+            unwrapper = CaptureUnwrapper.parse(options);
+            ReportWriter.checkFormat(options);
+            CaptureCache.checkOptions(options);
+            Metrics.checkOptions(options);
+            ConsoleLog.configure(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printInstructions();
+            return false;
+        }
+
+        args = options.getArguments();
+
+        //set when a file or step fails, the rest of the analysis still being carried out
+        boolean failed = false;
+
         if(args.length == 0)
         {
             System.out.println("No arguments provided. Please do one of the following:");
-            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
-            System.out.println(FILE_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
         }
         else if(args.length == 2 || args.length == 4)
         {
@@ -56,146 +101,234 @@ public class ICMPAnalyser {
             else
             {
                 System.out.println("Wrong arguments provided. Please do one of the following:");
-                System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
-                System.out.println(FILE_ARGUMENT_INSTRUCTION);
-                System.exit(1);
+                printInstructions();
+                return false;
+            }
+
+            //a worker analyses only its shard of the files, in a temp folder of its own
+            String tempFolderName = folderName + "/" + TEMP_FOLDER_NAME;
+
+            if(shard != null)
+            {
+                files = shard.select(files);
+                tempFolderName += "_" + shard.getIndex();
             }
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
             //setup temp folder to temporary files during analysis
-            File tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+            File tempFolder = new File(tempFolderName);
 
             if(tempFolder.exists())
             {
-                System.out.println(DATA_DISPLAY_SEPARATOR);
-                printCurrentTime();
-                System.out.println("Deleting temp folder in : " + folderName);
+                ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                ConsoleLog.info("Deleting temp folder in : " + folderName);
                 deleteDirectory(tempFolder);
             }
 
-            tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+            tempFolder = new File(tempFolderName);
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
             if(tempFolder.mkdir())
             {
-                System.out.println("Create temp folder in : " + folderName);
+                ConsoleLog.info("Create temp folder in : " + folderName);
             }
             else
             {
-                System.out.println("Failed to make temp folder in : " + folderName);
-                System.exit(1);
+                ConsoleLog.error("Failed to make temp folder in : " + folderName);
+                ConsoleLog.flush();
+                return false;
             }
 
+            //index of the capture times, and folders for the copies of the packets within a time range, without
+            //duplicates or in a sample
+            CaptureIndex index = CaptureIndex.load(new File(folderName), options);
+            File rangeFolder = new File(tempFolder, RANGE_FOLDER_NAME);
+            File sampleFolder = new File(tempFolder, SAMPLE_FOLDER_NAME);
+            File dedupFolder = new File(tempFolder, DEDUP_FOLDER_NAME);
+            File unwrapFolder = new File(tempFolder, UNWRAP_FOLDER_NAME);
+
+            //filtered captures and ipsumdump outputs kept from earlier runs
+            CaptureCache cache = CaptureCache.load(new File(folderName), options);
+
+            //time of each tool and stage, written out as the analysis goes when asked for
+            Metrics metrics = Metrics.start("icmp", options);
+            Metrics.Stage rangeStage = metrics.stage("range");
+            Metrics.Stage sampleStage = metrics.stage("sample");
+            Metrics.Stage dedupStage = metrics.stage("dedup");
+            Metrics.Stage unwrapStage = metrics.stage("unwrap");
+
+            ConsoleLog.startProgress("Filtering captures", files);
+
             //iterate through pcap files
 
             for(File file : files)
             {
                 if(file.isFile() && !file.isHidden())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Preparing to process file : " + file.getName());
-                    filterPcapFile(folderName, file.getName(), (folderName + "/" + TEMP_FOLDER_NAME));
+                    ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                    ConsoleLog.info("Preparing to process file : " + file.getName());
+
+                    long fileStart = System.nanoTime();
+                    File capture = index.limitToRange(file, range, rangeFolder);
+
+                    rangeStage.addTime(System.nanoTime() - fileStart);
+
+                    if(capture == null)
+                    {
+                        ConsoleLog.info("No packets within the time range, skipping file : " + file.getName());
+                        ConsoleLog.fileDone(file);
+                        continue;
+                    }
+
+                    //copies of the same packets, as from two taps, are left out before sampling so they are not
+                    //counted twice
+                    if(duplicates != null)
+                    {
+                        long dedupStart = System.nanoTime();
+                        File deduped = duplicates.dedupCapture(capture, dedupFolder);
+
+                        dedupStage.addTime(System.nanoTime() - dedupStart);
+                        deleteCopy(capture, file, deduped);
+                        capture = deduped;
+
+                        if(capture == null)
+                        {
+                            ConsoleLog.error("Failed to leave out the duplicate packets of file : " + file.getName());
+                            failed = true;
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+                    }
+
+                    if(sampler != null)
+                    {
+                        long sampleStart = System.nanoTime();
+                        File sampled = sampler.sampleCapture(capture, sampleFolder);
+
+                        sampleStage.addTime(System.nanoTime() - sampleStart);
+                        deleteCopy(capture, file, sampled);
+                        capture = sampled;
+
+                        if(capture == null)
+                        {
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+                    }
+
+                    File[] captures = {capture};
+
+                    //the packets inside VLAN tags and tunnels are copied out for tcpdump to see, a copy per VLAN
+                    //when broken down by VLAN
+                    if(unwrapper != null)
+                    {
+                        long unwrapStart = System.nanoTime();
+                        captures = unwrapper.unwrapCapture(capture, unwrapFolder);
+
+                        unwrapStage.addTime(System.nanoTime() - unwrapStart);
+                        deleteCopy(capture, file, null);
+
+                        if(captures == null)
+                        {
+                            ConsoleLog.error("Failed to unwrap the packets of file : " + file.getName());
+                            failed = true;
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+                    }
+
+                    for(File unwrapped : captures)
+                    {
+                        if(!filterPcapFile(unwrapped.getParent(), unwrapped.getName(), tempFolderName, cache, metrics))
+                            failed = true;
+
+                        deleteCopy(unwrapped, file, null);
+                    }
+
+                    metrics.fileFinished(file, System.nanoTime() - fileStart);
+                    ConsoleLog.fileDone(file);
                 }
             }
 
+            index.save();
 
             //start icmp category analysis on filtered files
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
-            System.out.println("Beginning icmp message breakdown");
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.info("Beginning icmp message breakdown");
 
             files = tempFolder.listFiles();
 
-            File subTempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME + "/" + SUB_TEMP_FOLDER_NAME);
+            File subTempFolder = new File(tempFolderName + "/" + SUB_TEMP_FOLDER_NAME);
             subTempFolder.mkdir();
 
+            ConsoleLog.startProgress("Running ipsumdump", files);
+
             //apply the ipsumdump tool to each filtered pcap to generate icmp categorization data
 
             for(File file : files)
             {
                 if(file.isFile() && !file.isHidden())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Preparing anaylse ICMP messages from file : " + file.getName());
-                    generateICMPStats((folderName + "/" + TEMP_FOLDER_NAME), file.getName(), (folderName + "/" + TEMP_FOLDER_NAME + "/" + SUB_TEMP_FOLDER_NAME));
+                    ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                    ConsoleLog.info("Preparing anaylse ICMP messages from file : " + file.getName());
+                    if(!generateICMPStats(tempFolderName, file.getName(), (tempFolderName + "/" + SUB_TEMP_FOLDER_NAME), cache, metrics))
+                        failed = true;
+
+                    ConsoleLog.fileDone(file);
 
                 }
             }
 
             //read in the files with host breakdowns and tally up the counts
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
-            System.out.println("Beginning ICMP message breakdown retrieval");
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.info("Beginning ICMP message breakdown retrieval");
 
             files = subTempFolder.listFiles();
 
-            HashMap<String, HashMap<String, Integer>> ICMPCategoryMap = new HashMap<String, HashMap<String, Integer>>();
+            //counts of the messages per type and code, per VLAN
+            HashMap<String, HashMap<String, HashMap<String, Integer>>> vlanCategoryMaps =
+                    new HashMap<String, HashMap<String, HashMap<String, Integer>>>();
 
             Scanner scanner  = null;
+            Metrics.Stage parseStage = metrics.stage("parse-ipsumdump");
 
             for(File file : files)
             {
                 if(file.isFile() && !file.isHidden())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Obtaining counts from file : " + file.getName());
+                    ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                    ConsoleLog.info("Obtaining counts from file : " + file.getName());
 
                     try {
+                        long parseStart = System.nanoTime();
                         scanner = new Scanner(file);
 
-                        while(scanner.hasNextLine())
-                        {
-                            String line = scanner.nextLine();
+                        String vlan = CaptureUnwrapper.vlanOf(file.getName(), options);
 
-                            if(!line.contains("!")) {
-                                String[] strArr = line.split(" ");
+                        if(!vlanCategoryMaps.containsKey(vlan))
+                            vlanCategoryMaps.put(vlan, new HashMap<String, HashMap<String, Integer>>());
 
-                                if (!ICMPCategoryMap.containsKey(strArr[0])) {
-                                    ICMPCategoryMap.put(strArr[0], new HashMap<String, Integer>());
-                                }
+                        tallyICMPMessages(scanner, vlanCategoryMaps.get(vlan));
 
-                                if (!ICMPCategoryMap.get(strArr[0]).containsKey(strArr[1])) {
-                                    ICMPCategoryMap.get(strArr[0]).put(strArr[1], 0);
-                                }
-
-                                int currentCount = ICMPCategoryMap.get(strArr[0]).get(strArr[1]);
-                                ICMPCategoryMap.get(strArr[0]).put(strArr[1], currentCount + 1);
-                            }
-
-                        }
+                        parseStage.addTime(System.nanoTime() - parseStart);
+                        parseStage.count(0, file.length());
 
                     } catch (FileNotFoundException e) {
                         e.printStackTrace();
+                        failed = true;
                     }
                 }
             }
 
-            // write counts to file
-            String analysedDataFileName = "icmp-analysis.csv";
-
-            FileWriter writer = null;
+            ReportTable counts = new ReportTable(PARTIAL_COLUMNS, PARTIAL_TYPES);
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-
-            printCurrentTime();
-            System.out.println("Writing counts to file");
-
-            try {
-                writer = new FileWriter(analysedDataFileName);
-                printCurrentTime();
-                System.out.println("type, code, count");
-
-                //the column heads
-                writer.append("type, code, count");
-                writer.append("\n");
+            for(String vlan : vlanCategoryMaps.keySet())
+            {
+                HashMap<String, HashMap<String, Integer>> ICMPCategoryMap = vlanCategoryMaps.get(vlan);
 
                 for(String type : ICMPCategoryMap.keySet())
                 {
@@ -203,20 +336,22 @@ public class ICMPAnalyser {
 
                     for(String code : codeMap.keySet())
                     {
-                        int count = codeMap.get(code);
-
-                        System.out.println(type + ", " + code + ", " + count);
-                        writer.append(type + ", " + code + ", " + count);
-                        writer.append("\n");
+                        counts.newRow().add(vlan).add(type).add(code).add((long) codeMap.get(code));
                     }
                 }
+            }
 
-                writer.flush();
-                writer.close();
+            Metrics.Stage writeStage = metrics.stage("write");
+            long writeStart = System.nanoTime();
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            //a worker leaves its counts unscaled for the reducer to combine with the other shards
+            if(options.has("partial"))
+                PartialAggregate.write(counts, new File(options.getString("partial", null)));
+            else
+                writeReport(counts, sampler, options);
+
+            writeStage.addTime(System.nanoTime() - writeStart);
+            metrics.finish();
 
             //delete all evidence
             deleteDirectory(tempFolder);
@@ -224,8 +359,116 @@ public class ICMPAnalyser {
         else
         {
             System.out.println("More arguments provided than needed. Please do one of the following:");
-            System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
-            System.out.println(FILE_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
+        }
+
+        //every line logged is printed before the caller goes on
+        ConsoleLog.flush();
+
+        return !failed;
+    }
+
+    /**
+     * Prints the arguments and options the analyser takes
+     */
+    private static void printInstructions()
+    {
+        System.out.println(FOLDER_ARGUMENT_INSTRUCTION);
+        System.out.println(FILE_ARGUMENT_INSTRUCTION);
+        System.out.println(ReportWriter.FORMAT_OPTION_INSTRUCTION);
+        System.out.println(TimeRange.OPTION_INSTRUCTION);
+        System.out.println(PacketSampler.OPTION_INSTRUCTION);
+        System.out.println(DuplicateFilter.OPTION_INSTRUCTION);
+        System.out.println(CaptureShards.OPTION_INSTRUCTION);
+        System.out.println(CaptureCache.OPTION_INSTRUCTION);
+        System.out.println(CaptureUnwrapper.OPTION_INSTRUCTION);
+        System.out.println(Metrics.OPTION_INSTRUCTION);
+        System.out.println(ConsoleLog.OPTION_INSTRUCTION);
+    }
+
+    /**
+     * Writes the ICMP message counts to file, sampled counts being scaled up and given a confidence interval
+     * @param counts - vlan, type, code and count of the messages, as in a partial aggregate
+     * @param sampler - sampler the counts were taken with, or null if all packets were counted
+     * @param options - the options given to the analyser
+     */
+    public static void writeReport(ReportTable counts, PacketSampler sampler, AnalyserOptions options)
+    {
+        ReportTable table = null;
+        boolean perVlan = CaptureUnwrapper.isPerVlan(options);
+
+        if(sampler == null)
+            table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"type", "code", "count"}, options),
+                    CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.STRING, ReportTable.LONG}, options));
+        else
+            table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"type", "code", "count", "count low", "count high"}, options),
+                    CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.STRING, ReportTable.LONG, ReportTable.LONG,
+                            ReportTable.LONG}, options));
+
+        ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+
+        ConsoleLog.info("Writing counts to file");
+
+        ConsoleLog.debug("type, code, count");
+
+        for(int row = 0; row < counts.getRowCount(); row++)
+        {
+            String vlan = counts.getString(row, 0);
+            String type = counts.getString(row, 1);
+            String code = counts.getString(row, 2);
+            long count = counts.getLong(row, 3);
+
+            table.newRow();
+
+            if(perVlan)
+                table.add(vlan);
+
+            if(sampler == null)
+            {
+                table.add(type).add(code).add(count);
+            }
+            else
+            {
+                table.add(type).add(code).add(sampler.scale(count)).add(sampler.lowerBound(count)).add(sampler.upperBound(count));
+                count = sampler.scale(count);
+            }
+
+            ConsoleLog.row(type + ", " + code + ", " + count);
+        }
+
+        table.sort();
+        ReportWriter.write(table, "icmp-analysis", options);
+    }
+
+    /**
+     * Counts the ICMP messages of each type and code listed by ipsumdump, skipping its comment lines. A message sent
+     * in several fragments is counted once, from its first fragment
+     * @param scanner - scanner over the ipsumdump output
+     * @param ICMPCategoryMap - hashmap that keeps count of the messages per type and code
+     */
+    public static void tallyICMPMessages(Scanner scanner, HashMap<String, HashMap<String, Integer>> ICMPCategoryMap)
+    {
+        while(scanner.hasNextLine())
+        {
+            String line = scanner.nextLine();
+
+            //later fragments hold no icmp header, so ipsumdump prints - for their type
+            if(!line.contains("!") && !line.startsWith("-")) {
+                String[] strArr = line.split(" ");
+
+                if (!ICMPCategoryMap.containsKey(strArr[0])) {
+                    ICMPCategoryMap.put(strArr[0], new HashMap<String, Integer>());
+                }
+
+                if (!ICMPCategoryMap.get(strArr[0]).containsKey(strArr[1])) {
+                    ICMPCategoryMap.get(strArr[0]).put(strArr[1], 0);
+                }
+
+                int currentCount = ICMPCategoryMap.get(strArr[0]).get(strArr[1]);
+                ICMPCategoryMap.get(strArr[0]).put(strArr[1], currentCount + 1);
+            }
+
         }
     }
 
@@ -234,45 +477,74 @@ public class ICMPAnalyser {
      * @param folderName - folder containing the pcap file
      * @param fileName - the pcap file
      * @param tempFolderName - the folder in which the filtered pcap file will be written
+     * @param cache - cache the filtered file is reused from or kept in
+     * @param metrics - metrics timing the runs of tcpdump
+     * @return false if tcpdump failed on the file
      */
-    public static void filterPcapFile(String folderName, String fileName, String tempFolderName)
+    public static boolean filterPcapFile(String folderName, String fileName, String tempFolderName, CaptureCache cache,
+                                         Metrics metrics)
     {
-        String filterString = "icmp and not ((src net 192.168.0.0/16 or 10.0.0.0/8) and (dst net 192.168.0.0/16 or 10.0.0.0/8))";
+        String filterString = "icmp and " + CaptureCache.NOT_LOCAL_FILTER;
+
+        File inputFile = new File(folderName + "/" + fileName);
+        File outputFile = new File(tempFolderName + "/icmp_" + fileName);
+        String outputKey = cache.key(inputFile, "tcpdump", filterString);
+
+        if(cache.restore(outputKey, outputFile))
+        {
+            ConsoleLog.info("Reusing cached tcpdump output for file: " + fileName);
+            return true;
+        }
+
+        //a copy of the traffic left once local traffic is left out, kept by the port analysis, gives the same output
+        File notLocalFile = cache.find(cache.key(inputFile, "tcpdump", CaptureCache.NOT_LOCAL_FILTER));
 
-        ProcessBuilder processBuilder = new ProcessBuilder("tcpdump", filterString, "-r", (folderName + "/" + fileName),
-                "-w", (tempFolderName + "/icmp_" + fileName));
+        if(notLocalFile != null)
+            inputFile = notLocalFile;
+
+        ProcessBuilder processBuilder = new ProcessBuilder("tcpdump", filterString, "-r", inputFile.getPath(),
+                "-w", outputFile.getPath());
 
         try {
-            printCurrentTime();
-            System.out.println("Processing file : " + fileName);
+            ConsoleLog.info("Processing file : " + fileName);
 
+            long toolStart = System.nanoTime();
             Process process = processBuilder.start();
 
             int errorCode = process.waitFor();
 
+            metrics.stage("tcpdump").addTime(System.nanoTime() - toolStart);
+            metrics.stage("tcpdump").count(0, inputFile.length());
+
             if(errorCode == 0)
             {
-                printCurrentTime();
-                System.out.println("No error occurred on running tcpdump command for file: " + fileName);
+                ConsoleLog.info("No error occurred on running tcpdump command for file: " + fileName);
+                cache.store(outputKey, outputFile);
             }
             else
             {
-                printCurrentTime();
-                System.out.println("An error occurred while running tcpdump command for file: " + fileName);
+                ConsoleLog.error("An error occurred while running tcpdump command for file: " + fileName);
 
                 BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
                 String line = null;
 
                 while((line = bufferedReader.readLine()) != null)
                 {
-                    System.out.println(line);
+                    ConsoleLog.error(line);
                 }
+
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        return true;
     }
 
     /**
@@ -280,42 +552,64 @@ public class ICMPAnalyser {
      * @param folderName - the folder containing the pcap file
      * @param fileName - the name of the pcap file
      * @param tempFolderName - the folder in which the results file from ipsumdump will be written to
+     * @param cache - cache the results file is reused from or kept in
+     * @param metrics - metrics timing the runs of ipsumdump
+     * @return false if ipsumdump failed on the file
      */
-    public static void generateICMPStats(String folderName, String fileName, String tempFolderName)
+    public static boolean generateICMPStats(String folderName, String fileName, String tempFolderName, CaptureCache cache,
+                                            Metrics metrics)
     {
+        File outputFile = new File(tempFolderName + "/cat_" + fileName);
+        String outputKey = cache.key(new File(folderName + "/" + fileName), "ipsumdump", "--icmp-type-name", "--icmp-code-name");
+
+        if(cache.restore(outputKey, outputFile))
+        {
+            ConsoleLog.info("Reusing cached ipsumdump output for file: " + fileName);
+            return true;
+        }
+
         ProcessBuilder processBuilder = new ProcessBuilder("ipsumdump", "--icmp-type-name", "--icmp-code-name",
-                "-r", (folderName + "/" + fileName), "-o", (tempFolderName + "/cat_" + fileName));
+                "-r", (folderName + "/" + fileName), "-o", outputFile.getPath());
 
         try {
-            printCurrentTime();
-            System.out.println("Analysing file : " + fileName);
+            ConsoleLog.info("Analysing file : " + fileName);
+            long toolStart = System.nanoTime();
             Process process = processBuilder.start();
 
             int errorCode = process.waitFor();
 
+            metrics.stage("ipsumdump").addTime(System.nanoTime() - toolStart);
+            metrics.stage("ipsumdump").count(0, new File(folderName + "/" + fileName).length());
+
             if(errorCode == 0)
             {
-                printCurrentTime();
-                System.out.println("No error occurred on running ipsumdump command for file: " + fileName);
+                ConsoleLog.info("No error occurred on running ipsumdump command for file: " + fileName);
+                cache.store(outputKey, outputFile);
             }
             else
             {
-                printCurrentTime();
-                System.out.println("An error occurred while running ipsumdump command for file: " + fileName);
+                ConsoleLog.error("An error occurred while running ipsumdump command for file: " + fileName);
 
                 BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
                 String line = null;
 
                 while((line = bufferedReader.readLine()) != null)
                 {
-                    System.out.println(line);
+                    ConsoleLog.error(line);
                 }
+
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        return true;
     }
 
     /**
@@ -323,7 +617,7 @@ public class ICMPAnalyser {
      */
     public static void printCurrentTime()
     {
-        System.out.print(DATE_FORMAT.format(new Date()) + " ");
+        System.out.print(ConsoleLog.timestamp() + " ");
     }
     /**
      * Delete file or folder
@@ -359,4 +653,17 @@ public class ICMPAnalyser {
             file.delete();
         }
     }
+
+    /**
+     * Deletes a copy of a capture made by one of the stages before the tools, such as the range or sample copies,
+     * once the next stage has read it, so only one copy per capture is on disk at a time
+     * @param copy - the copy the stage read
+     * @param capture - the capture being analysed, which is never deleted
+     * @param next - the file the stage made from the copy, kept if it is the copy itself, or null
+     */
+    public static void deleteCopy(File copy, File capture, File next)
+    {
+        if(!copy.equals(capture) && !copy.equals(next))
+            copy.delete();
+    }
 }
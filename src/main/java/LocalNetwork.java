@@ -0,0 +1,34 @@
+/**
+ * <h1>Local Network</h1>
+ * In-process equivalent of the "src net 192.168.0.0/16 or 10.0.0.0/8" tcpdump filters used by the analysers
+ */
+public class LocalNetwork
+{
+    /**
+     * Checks whether an address lies in one of the local networks
+     * @param buffer - buffer holding the address
+     * @param offset - offset of the address in the buffer
+     * @param addressLength - 4 for IPv4 addresses, 16 for IPv6 addresses
+     * @return true if the address is a local IPv4 address
+     */
+    public static boolean isLocal(byte[] buffer, int offset, int addressLength)
+    {
+        if(addressLength != 4)
+            return false;
+
+        int first = buffer[offset] & 0xff;
+
+        return first == 10 || (first == 192 && (buffer[offset + 1] & 0xff) == 168);
+    }
+
+    /**
+     * Checks whether the decoded packet is local traffic i.e both its source and destination are local
+     * @param decoder - decoder holding the packet
+     * @return true if the packet does not leave the local network
+     */
+    public static boolean isLocalTraffic(PacketDecoder decoder)
+    {
+        return isLocal(decoder.getBuffer(), decoder.getSourceAddressOffset(), decoder.getAddressLength())
+                && isLocal(decoder.getBuffer(), decoder.getDestinationAddressOffset(), decoder.getAddressLength());
+    }
+}
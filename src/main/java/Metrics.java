@@ -0,0 +1,568 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>Metrics</h1>
+ * Counts the packets, bytes and time going through each stage of an analysis - reading, filtering, decoding, each
+ * aggregator, each external tool and writing the reports - along with the depth of the queues between stages, the
+ * time spent collecting garbage and how long each capture file took. The counts are written to a Prometheus text file
+ * every few seconds, for a node exporter's textfile collector to pick up, and to a JSON summary once the analysis is
+ * done.
+ * <p>
+ * Counters are striped LongAdders, so the threads of a pipeline add to them without contending on a shared value.
+ * Timing a packet costs more than counting it, so stages timed per packet only read the clock for one packet in
+ * TIMING_SAMPLE and count that packet's time that many times over. Queue depths are read by the thread writing the
+ * metrics file once a second, which also keeps the deepest depth seen.
+ * <p>
+ * Nothing is written and no thread is started unless --metrics-file or --metrics-json is given, though the counters
+ * are still kept. A worker analysing a shard adds the shard number to the names of the files it writes, so the
+ * workers of an analysis do not write over each other.
+ */
+public class Metrics
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally write the packets, bytes and time of each stage to a Prometheus text file " +
+            "every few seconds i.e --metrics-file metrics.prom --metrics-interval 10, and a summary once done i.e --metrics-json metrics.json";
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 10;
+
+    // one call in this many is timed by stages timing each packet
+    public static final int TIMING_SAMPLE = 64;
+
+    private static final String METRIC_PREFIX = "packet_analysis_";
+
+    private static final long GAUGE_SAMPLE_MILLIS = 1000;
+
+    /**
+     * A value read while the analysis runs, such as the number of packets waiting in a queue
+     */
+    public interface Gauge
+    {
+        /**
+         * @return the current value
+         */
+        long read();
+    }
+
+    /**
+     * Counts of one stage. Counting and timing are safe from any number of threads, except for startTiming and
+     * stopTiming which are meant for a stage run by one thread
+     */
+    public static class Stage
+    {
+        private String name;
+
+        private LongAdder packets = new LongAdder();
+        private LongAdder bytes = new LongAdder();
+        private LongAdder nanos = new LongAdder();
+        private LongAdder calls = new LongAdder();
+
+        // kept by the thread running the stage only
+        private int untimed = 0;
+
+        private Stage(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Counts packets going through the stage
+         * @param packetCount - number of packets
+         * @param byteCount - number of bytes of the packets
+         */
+        public void count(long packetCount, long byteCount)
+        {
+            packets.add(packetCount);
+            bytes.add(byteCount);
+        }
+
+        /**
+         * Adds the time of a call to the stage, such as one run of an external tool
+         * @param elapsedNanos - time taken in nanoseconds
+         */
+        public void addTime(long elapsedNanos)
+        {
+            nanos.add(elapsedNanos);
+            calls.increment();
+        }
+
+        /**
+         * Starts timing a call if it is one of those sampled
+         * @return the time the call started, or Long.MIN_VALUE if it is not timed
+         */
+        public long startTiming()
+        {
+            if(++untimed < TIMING_SAMPLE)
+                return Long.MIN_VALUE;
+
+            untimed = 0;
+
+            return System.nanoTime();
+        }
+
+        /**
+         * Stops timing a call, counting its time for each of the calls it was sampled for
+         * @param start - the time returned by startTiming
+         */
+        public void stopTiming(long start)
+        {
+            if(start != Long.MIN_VALUE)
+                nanos.add((System.nanoTime() - start) * TIMING_SAMPLE);
+        }
+    }
+
+    private String analysis;
+    private File prometheusFile;
+    private File jsonFile;
+    private long intervalMillis;
+
+    private long startNanos = System.nanoTime();
+    private long startGcMillis;
+    private long startGcCount;
+
+    private LinkedHashMap<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    private LinkedHashMap<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private LinkedHashMap<String, long[]> gaugeValues = new LinkedHashMap<String, long[]>();
+
+    private ArrayList<String> fileNames = new ArrayList<String>();
+    private ArrayList<long[]> fileTimes = new ArrayList<long[]>();
+
+    private Thread writerThread;
+    private volatile boolean finished = false;
+
+    private Metrics(String analysis, File prometheusFile, File jsonFile, long intervalMillis)
+    {
+        this.analysis = analysis;
+        this.prometheusFile = prometheusFile;
+        this.jsonFile = jsonFile;
+        this.intervalMillis = intervalMillis;
+
+        long[] gc = readGarbageCollection();
+        startGcMillis = gc[0];
+        startGcCount = gc[1];
+    }
+
+    /**
+     * Checks the metrics options given, so a wrong interval is found before any file is read
+     * @param options - the options given to the analyser
+     */
+    public static void checkOptions(AnalyserOptions options)
+    {
+        int interval = options.getInt("metrics-interval", DEFAULT_INTERVAL_SECONDS);
+
+        if(interval < 1)
+            throw new IllegalArgumentException("Option --metrics-interval must be at least 1 second but was : " + interval);
+    }
+
+    /**
+     * Starts keeping the metrics of an analysis, with a thread writing them every --metrics-interval seconds to the
+     * file given with --metrics-file
+     * @param analysis - name of the analysis, given as the analysis label of every metric
+     * @param options - the options given to the analyser
+     * @return the metrics
+     */
+    public static Metrics start(String analysis, AnalyserOptions options)
+    {
+        String shard = options.has("shard") ? "shard-" + options.getString("shard", null).replace('/', '-') : null;
+
+        File prometheusFile = options.has("metrics-file") ? shardFile(options.getString("metrics-file", null), shard) : null;
+        File jsonFile = options.has("metrics-json") ? shardFile(options.getString("metrics-json", null), shard) : null;
+        long intervalMillis = options.getInt("metrics-interval", DEFAULT_INTERVAL_SECONDS) * 1000L;
+
+        final Metrics metrics = new Metrics(analysis, prometheusFile, jsonFile, intervalMillis);
+
+        if(prometheusFile != null || jsonFile != null)
+        {
+            metrics.writerThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    metrics.runWriter();
+                }
+            }, "metrics-writer");
+
+            metrics.writerThread.setDaemon(true);
+            metrics.writerThread.start();
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Gets the counts of a stage, making them the first time the stage is asked for
+     * @param name - name of the stage e.g "decode"
+     * @return the stage
+     */
+    public synchronized Stage stage(String name)
+    {
+        Stage stage = stages.get(name);
+
+        if(stage == null)
+        {
+            stage = new Stage(name);
+            stages.put(name, stage);
+        }
+
+        return stage;
+    }
+
+    /**
+     * Adds a queue whose depth is read while the analysis runs
+     * @param name - name of the queue
+     * @param gauge - reads the number of items waiting in the queue
+     */
+    public synchronized void gauge(String name, Gauge gauge)
+    {
+        gauges.put(name, gauge);
+        gaugeValues.put(name, new long[2]);
+    }
+
+    /**
+     * Records the time taken to analyse a capture file
+     * @param file - the file
+     * @param elapsedNanos - time taken in nanoseconds
+     */
+    public synchronized void fileFinished(File file, long elapsedNanos)
+    {
+        fileNames.add(file.getName());
+        fileTimes.add(new long[]{elapsedNanos, file.length()});
+    }
+
+    /**
+     * Stops the writing thread and writes the metrics file and summary a last time
+     */
+    public void finish()
+    {
+        if(writerThread == null)
+            return;
+
+        finished = true;
+        writerThread.interrupt();
+
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        sampleGauges();
+
+        try {
+            if(prometheusFile != null)
+                writePrometheus();
+
+            if(jsonFile != null)
+                writeJson();
+        } catch (IOException e) {
+            ConsoleLog.error("An error occurred on writing the metrics");
+            e.printStackTrace();
+        }
+    }
+
+    private void runWriter()
+    {
+        long nextWrite = System.currentTimeMillis() + intervalMillis;
+
+        while(!finished)
+        {
+            try {
+                Thread.sleep(GAUGE_SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            sampleGauges();
+
+            if(prometheusFile != null && System.currentTimeMillis() >= nextWrite)
+            {
+                nextWrite += intervalMillis;
+
+                try {
+                    writePrometheus();
+                } catch (IOException e) {
+                    ConsoleLog.error("An error occurred on writing the metrics file : " + prometheusFile);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized void sampleGauges()
+    {
+        for(String name : gauges.keySet())
+        {
+            long[] values = gaugeValues.get(name);
+
+            values[0] = gauges.get(name).read();
+            values[1] = Math.max(values[1], values[0]);
+        }
+    }
+
+    /**
+     * Writes the metrics file under a temporary name and renames it into place, so the collector never reads half a
+     * file
+     */
+    private synchronized void writePrometheus() throws IOException
+    {
+        double uptime = (System.nanoTime() - startNanos) / 1e9;
+        String analysisLabel = "analysis=\"" + escape(analysis) + "\"";
+        StringBuilder text = new StringBuilder();
+
+        header(text, "stage_packets_total", "counter", "Packets passed through a stage.");
+        for(Stage stage : stages.values())
+        {
+            metric(text, "stage_packets_total", analysisLabel, stage, stage.packets.sum());
+        }
+
+        header(text, "stage_bytes_total", "counter", "Bytes passed through a stage.");
+        for(Stage stage : stages.values())
+        {
+            metric(text, "stage_bytes_total", analysisLabel, stage, stage.bytes.sum());
+        }
+
+        header(text, "stage_seconds_total", "counter", "Time spent in a stage, sampled for stages timing each packet.");
+        for(Stage stage : stages.values())
+        {
+            metric(text, "stage_seconds_total", analysisLabel, stage, stage.nanos.sum() / 1e9);
+        }
+
+        header(text, "stage_calls_total", "counter", "Timed calls to a stage, such as runs of an external tool.");
+        for(Stage stage : stages.values())
+        {
+            metric(text, "stage_calls_total", analysisLabel, stage, stage.calls.sum());
+        }
+
+        header(text, "stage_packets_per_second", "gauge", "Packets passed through a stage per second since the analysis started.");
+        for(Stage stage : stages.values())
+        {
+            metric(text, "stage_packets_per_second", analysisLabel, stage, stage.packets.sum() / uptime);
+        }
+
+        header(text, "stage_bytes_per_second", "gauge", "Bytes passed through a stage per second since the analysis started.");
+        for(Stage stage : stages.values())
+        {
+            metric(text, "stage_bytes_per_second", analysisLabel, stage, stage.bytes.sum() / uptime);
+        }
+
+        if(!gauges.isEmpty())
+        {
+            header(text, "queue_depth", "gauge", "Items waiting in a queue when last read.");
+            for(String name : gaugeValues.keySet())
+            {
+                line(text, "queue_depth", analysisLabel + ",queue=\"" + escape(name) + "\"", gaugeValues.get(name)[0]);
+            }
+
+            header(text, "queue_depth_max", "gauge", "Most items seen waiting in a queue.");
+            for(String name : gaugeValues.keySet())
+            {
+                line(text, "queue_depth_max", analysisLabel + ",queue=\"" + escape(name) + "\"", gaugeValues.get(name)[1]);
+            }
+        }
+
+        long[] gc = readGarbageCollection();
+
+        header(text, "gc_seconds_total", "counter", "Time spent collecting garbage since the analysis started.");
+        line(text, "gc_seconds_total", analysisLabel, (gc[0] - startGcMillis) / 1e3);
+
+        header(text, "gc_collections_total", "counter", "Garbage collections since the analysis started.");
+        line(text, "gc_collections_total", analysisLabel, gc[1] - startGcCount);
+
+        long fileNanos = 0;
+
+        for(long[] times : fileTimes)
+        {
+            fileNanos += times[0];
+        }
+
+        header(text, "files_total", "counter", "Capture files analysed.");
+        line(text, "files_total", analysisLabel, fileNames.size());
+
+        header(text, "file_seconds_total", "counter", "Time spent analysing capture files.");
+        line(text, "file_seconds_total", analysisLabel, fileNanos / 1e9);
+
+        if(!fileTimes.isEmpty())
+        {
+            header(text, "last_file_seconds", "gauge", "Time taken by the last capture file analysed.");
+            line(text, "last_file_seconds", analysisLabel, fileTimes.get(fileTimes.size() - 1)[0] / 1e9);
+        }
+
+        header(text, "uptime_seconds", "gauge", "Time since the analysis started.");
+        line(text, "uptime_seconds", analysisLabel, uptime);
+
+        writeAtomically(prometheusFile, text.toString());
+    }
+
+    private synchronized void writeJson() throws IOException
+    {
+        double uptime = (System.nanoTime() - startNanos) / 1e9;
+        long[] gc = readGarbageCollection();
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\n");
+        json.append("  \"analysis\": ").append(quote(analysis)).append(",\n");
+        json.append("  \"seconds\": ").append(number(uptime)).append(",\n");
+        json.append("  \"gc_seconds\": ").append(number((gc[0] - startGcMillis) / 1e3)).append(",\n");
+        json.append("  \"gc_collections\": ").append(gc[1] - startGcCount).append(",\n");
+
+        json.append("  \"stages\": [");
+        String separator = "\n";
+
+        for(Stage stage : stages.values())
+        {
+            long packets = stage.packets.sum();
+            long bytes = stage.bytes.sum();
+
+            json.append(separator).append("    {\"name\": ").append(quote(stage.name))
+                    .append(", \"packets\": ").append(packets)
+                    .append(", \"bytes\": ").append(bytes)
+                    .append(", \"seconds\": ").append(number(stage.nanos.sum() / 1e9))
+                    .append(", \"calls\": ").append(stage.calls.sum())
+                    .append(", \"packets_per_second\": ").append(number(packets / uptime))
+                    .append(", \"bytes_per_second\": ").append(number(bytes / uptime)).append("}");
+            separator = ",\n";
+        }
+
+        json.append(stages.isEmpty() ? "],\n" : "\n  ],\n");
+
+        json.append("  \"queues\": [");
+        separator = "\n";
+
+        for(String name : gaugeValues.keySet())
+        {
+            json.append(separator).append("    {\"name\": ").append(quote(name))
+                    .append(", \"max_depth\": ").append(gaugeValues.get(name)[1]).append("}");
+            separator = ",\n";
+        }
+
+        json.append(gaugeValues.isEmpty() ? "],\n" : "\n  ],\n");
+
+        json.append("  \"files\": [");
+        separator = "\n";
+
+        for(int i = 0; i < fileNames.size(); i++)
+        {
+            long[] times = fileTimes.get(i);
+            double seconds = times[0] / 1e9;
+
+            json.append(separator).append("    {\"name\": ").append(quote(fileNames.get(i)))
+                    .append(", \"bytes\": ").append(times[1])
+                    .append(", \"seconds\": ").append(number(seconds))
+                    .append(", \"bytes_per_second\": ").append(number(seconds > 0 ? times[1] / seconds : 0)).append("}");
+            separator = ",\n";
+        }
+
+        json.append(fileNames.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+
+        writeAtomically(jsonFile, json.toString());
+    }
+
+    private void header(StringBuilder text, String name, String type, String help)
+    {
+        text.append("# HELP ").append(METRIC_PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(METRIC_PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private void metric(StringBuilder text, String name, String analysisLabel, Stage stage, double value)
+    {
+        line(text, name, analysisLabel + ",stage=\"" + escape(stage.name) + "\"", value);
+    }
+
+    private void line(StringBuilder text, String name, String labels, double value)
+    {
+        text.append(METRIC_PREFIX).append(name).append('{').append(labels).append("} ").append(number(value)).append('\n');
+    }
+
+    /**
+     * @return the value without a fraction when it is whole, so counts are not written as 12.0
+     */
+    private static String number(double value)
+    {
+        if(value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * @param fileName - name of a file written by a worker
+     * @param shard - the worker's shard as written into file names, or null if not a worker
+     * @return the file, with the shard put before its extension so a textfile collector still picks it up
+     */
+    public static File shardFile(String fileName, String shard)
+    {
+        if(shard == null)
+            return new File(fileName);
+
+        int extension = fileName.lastIndexOf('.');
+
+        if(extension <= fileName.lastIndexOf(File.separatorChar) + 1)
+            return new File(fileName + "." + shard);
+
+        return new File(fileName.substring(0, extension) + "." + shard + fileName.substring(extension));
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+
+        for(char character : value.toCharArray())
+        {
+            if(character == '"' || character == '\\')
+                quoted.append('\\').append(character);
+            else if(character < 0x20)
+                quoted.append(String.format("\\u%04x", (int) character));
+            else
+                quoted.append(character);
+        }
+
+        return quoted.append('"').toString();
+    }
+
+    private static void writeAtomically(File file, String contents) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temporary = new File(parent, "." + file.getName() + ".tmp");
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(temporary));
+
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+
+        if(!temporary.renameTo(file))
+            throw new IOException("Could not rename " + temporary + " to " + file);
+    }
+
+    /**
+     * @return the milliseconds spent collecting garbage and the number of collections, over all collectors
+     */
+    private static long[] readGarbageCollection()
+    {
+        long millis = 0;
+        long count = 0;
+
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            millis += Math.max(collector.getCollectionTime(), 0);
+            count += Math.max(collector.getCollectionCount(), 0);
+        }
+
+        return new long[]{millis, count};
+    }
+}
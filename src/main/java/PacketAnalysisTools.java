@@ -0,0 +1,342 @@
+import java.io.*;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * <h1>Packet Analysis Tools</h1>
+ * Single entry point to every analyser, so several analyses can be run one after another in one JVM instead of paying
+ * for a JVM start, class loading and warm up in each. Takes the analysis as a subcommand followed by that analyser's
+ * usual arguments, or a job file of such command lines to run in turn. The classes loaded by all the analysers can be
+ * listed with load-classes, which is what the class data sharing archive of the build is dumped from.
+ */
+public class PacketAnalysisTools
+{
+    private static String COMMAND_ARGUMENT_INSTRUCTION = "- Provide the analysis to run followed by its usual arguments i.e " +
+            "icmp, port, domain, dns, bandwidth or shard e.g domain -d sample_folder, or generate to write captures of made up " +
+            "traffic e.g generate output_folder, or flows to print the flow records written with --flow-export e.g flows flows.bin";
+    private static String BATCH_ARGUMENT_INSTRUCTION = "- Or provide a job file with one analysis and its arguments per line to run in turn " +
+            "i.e batch jobs.txt, optionally carrying on after a failed job i.e --keep-going";
+    private static String LOAD_CLASSES_INSTRUCTION = "- Or load every class of the tools without running anything, as done to dump " +
+            "a class data sharing archive i.e load-classes";
+
+    private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
+
+    public static void main(String[] args)
+    {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs a subcommand
+     * @param args - the subcommand followed by its arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        if(args.length == 0)
+        {
+            System.out.println("No arguments provided. Please do the following:");
+            printInstructions();
+            return false;
+        }
+
+        String command = args[0];
+        String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
+
+        if(command.equals("icmp"))
+            return ICMPAnalyser.run(commandArgs);
+        else if(command.equals("port"))
+            return PortAnalyser.run(commandArgs);
+        else if(command.equals("domain"))
+            return DomainAnalyser.run(commandArgs);
+        else if(command.equals("dns"))
+            return DNSAnalyser.run(commandArgs);
+        else if(command.equals("bandwidth"))
+            return BandwidthAnalyzer.run(commandArgs);
+        else if(command.equals("shard"))
+            return ShardCoordinator.run(commandArgs);
+        else if(command.equals("generate"))
+            return CaptureGenerator.run(commandArgs);
+        else if(command.equals("flows"))
+            return FlowRecordReader.run(commandArgs);
+        else if(command.equals("batch"))
+            return runBatch(commandArgs);
+        else if(command.equals("load-classes"))
+            return loadClasses();
+
+        System.out.println("Unknown analysis : " + command + ". Please do the following:");
+        printInstructions();
+        return false;
+    }
+
+    /**
+     * Runs the jobs of a job file in turn
+     * @param args - the job file, optionally followed by --keep-going
+     * @return false if the job file could not be read or any job failed
+     */
+    public static boolean runBatch(String[] args)
+    {
+        boolean keepGoing = args.length == 2 && args[1].equals("--keep-going");
+
+        if(args.length != 1 && !keepGoing)
+        {
+            System.out.println("Wrong arguments provided. Please do the following:");
+            System.out.println(BATCH_ARGUMENT_INSTRUCTION);
+            return false;
+        }
+
+        ArrayList<String[]> jobs;
+
+        try {
+            jobs = readJobs(new File(args[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+
+        int failures = 0;
+
+        for(int job = 0; job < jobs.size(); job++)
+        {
+            String[] jobArgs = jobs.get(job);
+            String commandLine = joinArguments(jobArgs);
+
+            System.out.println(DATA_DISPLAY_SEPARATOR);
+            printCurrentTime();
+            System.out.println("Starting job " + (job + 1) + " of " + jobs.size() + " : " + commandLine);
+
+            long startTime = System.nanoTime();
+            boolean succeeded;
+
+            //a job throwing is reported like any other failed job, leaving the batch to decide whether to go on
+            try {
+                succeeded = !jobArgs[0].equals("batch") && run(jobArgs);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                succeeded = false;
+            }
+
+            long seconds = (System.nanoTime() - startTime) / 1000000000L;
+
+            System.out.println(DATA_DISPLAY_SEPARATOR);
+            printCurrentTime();
+
+            if(succeeded)
+            {
+                System.out.println("Finished job " + (job + 1) + " in " + seconds + " seconds : " + commandLine);
+            }
+            else
+            {
+                System.out.println("Job " + (job + 1) + " failed after " + seconds + " seconds : " + commandLine);
+                failures++;
+
+                if(!keepGoing)
+                    break;
+            }
+        }
+
+        System.out.println(DATA_DISPLAY_SEPARATOR);
+        System.out.println("Batch finished with " + failures + " failed jobs");
+
+        return failures == 0;
+    }
+
+    /**
+     * Reads a job file. Each line holds a subcommand and its arguments separated by spaces, with double quotes around
+     * an argument containing spaces. Blank lines and lines starting with # are left out
+     * @param jobFile - the job file
+     * @return the command line of each job
+     * @throws IOException on failing to read the file
+     * @throws IllegalArgumentException on a line with an unclosed quote
+     */
+    public static ArrayList<String[]> readJobs(File jobFile) throws IOException
+    {
+        ArrayList<String[]> jobs = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(jobFile));
+
+        try {
+            String line;
+            int lineNumber = 0;
+
+            while((line = reader.readLine()) != null)
+            {
+                lineNumber++;
+                line = line.trim();
+
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] jobArgs = splitArguments(line);
+
+                if(jobArgs == null)
+                    throw new IllegalArgumentException("Unclosed quote on line " + lineNumber + " of job file : " + jobFile);
+
+                jobs.add(jobArgs);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Splits a job line into arguments
+     * @param line - the line
+     * @return the arguments, or null if a quote was not closed
+     */
+    private static String[] splitArguments(String line)
+    {
+        ArrayList<String> arguments = new ArrayList<String>();
+        StringBuilder argument = new StringBuilder();
+        boolean quoted = false;
+        boolean started = false;
+
+        for(int i = 0; i < line.length(); i++)
+        {
+            char character = line.charAt(i);
+
+            if(character == '"')
+            {
+                quoted = !quoted;
+                started = true;
+            }
+            else if(Character.isWhitespace(character) && !quoted)
+            {
+                if(started)
+                    arguments.add(argument.toString());
+
+                argument.setLength(0);
+                started = false;
+            }
+            else
+            {
+                argument.append(character);
+                started = true;
+            }
+        }
+
+        if(quoted)
+            return null;
+
+        if(started)
+            arguments.add(argument.toString());
+
+        return arguments.toArray(new String[arguments.size()]);
+    }
+
+    private static String joinArguments(String[] arguments)
+    {
+        StringBuilder joined = new StringBuilder();
+
+        for(String argument : arguments)
+        {
+            if(joined.length() > 0)
+                joined.append(' ');
+
+            joined.append(argument.contains(" ") ? "\"" + argument + "\"" : argument);
+        }
+
+        return joined.toString();
+    }
+
+    /**
+     * Loads every class of the tools, from the jar or class folder this class was loaded from, without running any of
+     * them. Run under -XX:ArchiveClassesAtExit so the archive holds the classes of all the analysers
+     * @return false if the classes could not be found
+     */
+    public static boolean loadClasses()
+    {
+        ArrayList<String> classNames = new ArrayList<String>();
+
+        try {
+            File source = new File(PacketAnalysisTools.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+
+            if(source.isDirectory())
+            {
+                listClasses(source, "", classNames);
+            }
+            else
+            {
+                JarFile jar = new JarFile(source);
+
+                try {
+                    Enumeration<JarEntry> entries = jar.entries();
+
+                    while(entries.hasMoreElements())
+                    {
+                        String name = entries.nextElement().getName();
+
+                        if(name.endsWith(".class") && !name.startsWith("META-INF/"))
+                            classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                    }
+                } finally {
+                    jar.close();
+                }
+            }
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        int loaded = 0;
+
+        for(String className : classNames)
+        {
+            try {
+                Class.forName(className, false, PacketAnalysisTools.class.getClassLoader());
+                loaded++;
+            } catch (ClassNotFoundException e) {
+                System.out.println("Failed to load class : " + className);
+            } catch (LinkageError e) {
+                System.out.println("Failed to load class : " + className);
+            }
+        }
+
+        System.out.println("Loaded " + loaded + " of " + classNames.size() + " classes");
+
+        return loaded == classNames.size();
+    }
+
+    private static void listClasses(File folder, String packagePrefix, ArrayList<String> classNames)
+    {
+        File[] files = folder.listFiles();
+
+        if(files == null)
+            return;
+
+        for(File file : files)
+        {
+            if(file.isDirectory())
+                listClasses(file, packagePrefix + file.getName() + ".", classNames);
+            else if(file.getName().endsWith(".class"))
+                classNames.add(packagePrefix + file.getName().substring(0, file.getName().length() - ".class".length()));
+        }
+    }
+
+    private static void printInstructions()
+    {
+        System.out.println(COMMAND_ARGUMENT_INSTRUCTION);
+        System.out.println(BATCH_ARGUMENT_INSTRUCTION);
+        System.out.println(LOAD_CLASSES_INSTRUCTION);
+    }
+
+    /**
+     * Prints the current system time
+     */
+    public static void printCurrentTime()
+    {
+        ICMPAnalyser.printCurrentTime();
+    }
+}
@@ -0,0 +1,641 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Packet Decoder</h1>
+ * Decodes the ethernet, IP and TCP/UDP headers of a packet held in a buffer. Decoded fields are kept in the decoder and
+ * addresses and payloads are referenced by offset into the packet buffer so no copies are made.
+ * <p>
+ * Besides ethernet, packets of raw IP and linux cooked (SLL and SLL2) captures are decoded. 802.1Q and QinQ tags, GRE
+ * tunnels and VXLAN tunnels on their usual port are peeled off a layer at a time, at most MAX_LAYERS of them, so the
+ * fields decoded are those of the innermost IP packet. The VLAN of the innermost tag outside any tunnel is kept.
+ * <p>
+ * IPv4 fragments and IPv6 packets with a fragment header are decoded along with where the fragment lies in its
+ * datagram. Only the first fragment holds the transport header, so later fragments are left without ports and their
+ * whole data is taken as the payload; FragmentTracker gives them the ports of their first fragment.
+ */
+public class PacketDecoder
+{
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+    public static final int PROTOCOL_ICMPV6 = 58;
+
+    // VLAN of a packet without tags
+    public static final int NO_VLAN = -1;
+
+    private static final int PROTOCOL_GRE = 47;
+
+    // IPv6 extension headers skipped to reach the transport header
+    private static final int IPV6_HOP_BY_HOP = 0;
+    private static final int IPV6_ROUTING = 43;
+    private static final int IPV6_FRAGMENT = 44;
+    private static final int IPV6_DESTINATION_OPTIONS = 60;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86dd;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88a8;
+    private static final int ETHERTYPE_QINQ_OLD = 0x9100;
+    private static final int ETHERTYPE_TRANSPARENT_ETHERNET = 0x6558;
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int SLL_HEADER_LENGTH = 16;
+    private static final int SLL2_HEADER_LENGTH = 20;
+    private static final int VXLAN_PORT = 4789;
+
+    // most VLAN tags and tunnels peeled off a packet, so a crafted packet cannot keep the decoder looping
+    private static final int MAX_LAYERS = 8;
+    private static final int MAX_EXTENSION_HEADERS = 8;
+
+    private byte[] buffer;
+
+    private int vlanId;
+    private int tunnelDepth;
+    private int networkOffset;
+    private int networkEnd;
+
+    private int ipVersion;
+    private int protocol;
+    private int addressLength;
+    private int sourceAddressOffset;
+    private int destinationAddressOffset;
+
+    private int transportOffset;
+
+    private int fragmentId;
+    private int fragmentOffset;
+    private int fragmentLength;
+    private boolean moreFragments;
+
+    private int sourcePort;
+    private int destinationPort;
+    private long sequenceNumber;
+    private int tcpFlags;
+
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * Decodes the headers of the provided packet
+     * @param linkType - link layer type of the capture the packet came from
+     * @param buffer - buffer holding the packet
+     * @param offset - offset of the packet in the buffer
+     * @param length - number of captured bytes of the packet
+     * @return true if an IPv4 or IPv6 packet was decoded, false otherwise
+     */
+    public boolean decode(int linkType, byte[] buffer, int offset, int length)
+    {
+        this.buffer = buffer;
+
+        ipVersion = 0;
+        protocol = -1;
+        sourcePort = -1;
+        destinationPort = -1;
+        sequenceNumber = 0;
+        tcpFlags = 0;
+        payloadOffset = offset;
+        payloadLength = 0;
+        transportOffset = offset;
+        vlanId = NO_VLAN;
+        tunnelDepth = 0;
+
+        int end = offset + length;
+        int etherType;
+        int position;
+
+        if(linkType == PcapReader.LINKTYPE_ETHERNET)
+        {
+            if(length < ETHERNET_HEADER_LENGTH)
+                return false;
+
+            etherType = readShort(buffer, offset + 12);
+            position = offset + ETHERNET_HEADER_LENGTH;
+        }
+        else if(linkType == PcapReader.LINKTYPE_LINUX_SLL)
+        {
+            if(length < SLL_HEADER_LENGTH)
+                return false;
+
+            etherType = readShort(buffer, offset + 14);
+            position = offset + SLL_HEADER_LENGTH;
+        }
+        else if(linkType == PcapReader.LINKTYPE_LINUX_SLL2)
+        {
+            if(length < SLL2_HEADER_LENGTH)
+                return false;
+
+            etherType = readShort(buffer, offset);
+            position = offset + SLL2_HEADER_LENGTH;
+        }
+        else if(linkType == PcapReader.LINKTYPE_RAW)
+        {
+            if(length < 1)
+                return false;
+
+            etherType = (buffer[offset] & 0xf0) == 0x60 ? ETHERTYPE_IPV6 : ETHERTYPE_IPV4;
+            position = offset;
+        }
+        else
+        {
+            return false;
+        }
+
+        // each pass peels a VLAN tag, an ethernet header or an IP header, stopping at an IP packet not carrying a tunnel
+        for(int layer = 0; ; layer++)
+        {
+            if(layer == MAX_LAYERS)
+                return false;
+
+            if(etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ || etherType == ETHERTYPE_QINQ_OLD)
+            {
+                if(end - position < 4)
+                    return false;
+
+                if(tunnelDepth == 0)
+                    vlanId = readShort(buffer, position) & 0x0fff;
+
+                etherType = readShort(buffer, position + 2);
+                position += 4;
+                continue;
+            }
+
+            if(etherType == ETHERTYPE_TRANSPARENT_ETHERNET)
+            {
+                if(end - position < ETHERNET_HEADER_LENGTH)
+                    return false;
+
+                etherType = readShort(buffer, position + 12);
+                position += ETHERNET_HEADER_LENGTH;
+                continue;
+            }
+
+            int transport = decodeNetwork(etherType, position, end);
+
+            if(transport < 0)
+                return false;
+
+            end = networkEnd;
+
+            // a later fragment has no transport header to read, nor a tunnel header to peel
+            if(fragmentOffset > 0)
+            {
+                position = transport;
+                break;
+            }
+
+            if(protocol == PROTOCOL_GRE)
+            {
+                int greLength = greHeaderLength(transport, end);
+
+                // a tunnel carrying anything but IP or ethernet is left as a GRE packet
+                if(greLength > 0 && isCarried(readShort(buffer, transport + 2)))
+                {
+                    etherType = readShort(buffer, transport + 2);
+                    position = transport + greLength;
+                    tunnelDepth++;
+                    continue;
+                }
+            }
+            else if(protocol == PROTOCOL_UDP && end - transport >= 16 + ETHERNET_HEADER_LENGTH
+                    && readShort(buffer, transport + 2) == VXLAN_PORT && (buffer[transport + 8] & 0x08) != 0)
+            {
+                // the UDP header and the VXLAN header with its network identifier flag set, then the inner frame
+                etherType = ETHERTYPE_TRANSPARENT_ETHERNET;
+                position = transport + 16;
+                tunnelDepth++;
+                continue;
+            }
+
+            position = transport;
+            break;
+        }
+
+        transportOffset = Math.min(position, end);
+
+        // the whole of a later fragment is payload
+        if(fragmentOffset == 0 && protocol == PROTOCOL_TCP && end - position >= 20)
+        {
+            int headerLength = ((buffer[position + 12] & 0xf0) >> 4) * 4;
+
+            sourcePort = readShort(buffer, position);
+            destinationPort = readShort(buffer, position + 2);
+            sequenceNumber = readInt(buffer, position + 4) & 0xffffffffL;
+            tcpFlags = buffer[position + 13] & 0xff;
+
+            position += Math.max(20, headerLength);
+        }
+        else if(fragmentOffset == 0 && protocol == PROTOCOL_UDP && end - position >= 8)
+        {
+            sourcePort = readShort(buffer, position);
+            destinationPort = readShort(buffer, position + 2);
+
+            position += 8;
+        }
+
+        payloadOffset = Math.min(position, end);
+        payloadLength = end - payloadOffset;
+
+        return true;
+    }
+
+    /**
+     * Decodes an IPv4 or IPv6 header, setting networkEnd to the end of the IP packet
+     * @return offset of the transport header, or -1 if there is no IP header of the type at the position
+     */
+    private int decodeNetwork(int etherType, int position, int end)
+    {
+        networkOffset = position;
+        fragmentId = 0;
+        fragmentOffset = 0;
+        fragmentLength = 0;
+        moreFragments = false;
+
+        if(etherType == ETHERTYPE_IPV4)
+        {
+            if(end - position < 20)
+                return -1;
+
+            int headerLength = (buffer[position] & 0x0f) * 4;
+            int totalLength = readShort(buffer, position + 2);
+
+            if(headerLength < 20 || end - position < headerLength)
+                return -1;
+
+            ipVersion = 4;
+            protocol = buffer[position + 9] & 0xff;
+            addressLength = 4;
+            sourceAddressOffset = position + 12;
+            destinationAddressOffset = position + 16;
+
+            int fragmentField = readShort(buffer, position + 6);
+
+            fragmentId = readShort(buffer, position + 4);
+            fragmentOffset = (fragmentField & 0x1fff) * 8;
+            fragmentLength = totalLength - headerLength;
+            moreFragments = (fragmentField & 0x2000) != 0;
+
+            // ignore ethernet padding beyond the end of the IP packet
+            if(totalLength >= headerLength && position + totalLength < end)
+                end = position + totalLength;
+
+            networkEnd = end;
+
+            return position + headerLength;
+        }
+        else if(etherType == ETHERTYPE_IPV6)
+        {
+            if(end - position < 40)
+                return -1;
+
+            int payload = readShort(buffer, position + 4);
+            int nextHeader = buffer[position + 6] & 0xff;
+            int transport = position + 40;
+
+            ipVersion = 6;
+            addressLength = 16;
+            sourceAddressOffset = position + 8;
+            destinationAddressOffset = position + 24;
+
+            if(position + 40 + payload < end)
+                end = position + 40 + payload;
+
+            // extension headers are skipped, the fragment header giving where the fragment lies in its datagram
+            for(int header = 0; header < MAX_EXTENSION_HEADERS && end - transport >= 8; header++)
+            {
+                if(nextHeader == IPV6_FRAGMENT)
+                {
+                    int fragmentField = readShort(buffer, transport + 2);
+
+                    fragmentId = readInt(buffer, transport + 4);
+                    fragmentOffset = fragmentField & 0xfff8;
+                    moreFragments = (fragmentField & 0x0001) != 0;
+
+                    nextHeader = buffer[transport] & 0xff;
+                    transport += 8;
+                }
+                else if(nextHeader == IPV6_HOP_BY_HOP || nextHeader == IPV6_ROUTING || nextHeader == IPV6_DESTINATION_OPTIONS)
+                {
+                    nextHeader = buffer[transport] & 0xff;
+                    transport += ((buffer[transport + 1] & 0xff) + 1) * 8;
+                }
+                else
+                {
+                    break;
+                }
+            }
+
+            protocol = nextHeader;
+            fragmentLength = position + 40 + payload - transport;
+            networkEnd = end;
+
+            return transport;
+        }
+
+        return -1;
+    }
+
+    private static boolean isCarried(int etherType)
+    {
+        return etherType == ETHERTYPE_IPV4 || etherType == ETHERTYPE_IPV6 || etherType == ETHERTYPE_TRANSPARENT_ETHERNET
+                || etherType == ETHERTYPE_VLAN;
+    }
+
+    /**
+     * @return length of the GRE header at the position, or 0 if it is not a version 0 header without routing
+     */
+    private int greHeaderLength(int position, int end)
+    {
+        if(end - position < 4)
+            return 0;
+
+        int flags = readShort(buffer, position);
+
+        if((flags & 0x4007) != 0)
+            return 0;
+
+        // checksum, key and sequence number fields are each present when their flag is set
+        int headerLength = 4 + ((flags & 0x8000) != 0 ? 4 : 0) + ((flags & 0x2000) != 0 ? 4 : 0) + ((flags & 0x1000) != 0 ? 4 : 0);
+
+        return end - position >= headerLength ? headerLength : 0;
+    }
+
+    /**
+     * Hash of the source address, destination address, protocol and ports of the decoded packet
+     * @return 64 bit hash identifying the packet's flow in its direction of travel
+     */
+    public long directionalFlowHash()
+    {
+        return flowHash(sourceAddressOffset, destinationAddressOffset, sourcePort, destinationPort);
+    }
+
+    /**
+     * Hash of the packet's flow as seen travelling in the opposite direction, so that a reply hashes the same as the
+     * packet it replies to does with directionalFlowHash()
+     * @return 64 bit hash identifying the reverse direction of the packet's flow
+     */
+    public long reverseFlowHash()
+    {
+        return flowHash(destinationAddressOffset, sourceAddressOffset, destinationPort, sourcePort);
+    }
+
+    private long flowHash(int fromAddressOffset, int toAddressOffset, int fromPort, int toPort)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < addressLength; i++)
+        {
+            hash = (hash ^ (buffer[fromAddressOffset + i] & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (buffer[toAddressOffset + i] & 0xff)) * 0x100000001b3L;
+        }
+
+        hash = (hash ^ protocol) * 0x100000001b3L;
+        hash = (hash ^ fromPort) * 0x100000001b3L;
+        hash = (hash ^ toPort) * 0x100000001b3L;
+
+        return hash;
+    }
+
+    /**
+     * Formats an address from the packet buffer in its textual form
+     * @param addressOffset - offset of the address in the buffer
+     * @return the dotted IPv4 address or the IPv6 address in hex groups
+     */
+    public String formatAddress(int addressOffset)
+    {
+        byte[] text = new byte[39];
+        int length = formatAddress(addressOffset, text);
+
+        return new String(text, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes an address from the packet buffer in its textual form without allocating
+     * @param addressOffset - offset of the address in the buffer
+     * @param out - array of at least 39 bytes to write the text into
+     * @return the number of bytes written
+     */
+    public int formatAddress(int addressOffset, byte[] out)
+    {
+        int length = 0;
+
+        if(addressLength == 4)
+        {
+            for(int i = 0; i < 4; i++)
+            {
+                if(i > 0)
+                    out[length++] = '.';
+
+                int octet = buffer[addressOffset + i] & 0xff;
+
+                if(octet >= 100)
+                    out[length++] = (byte) ('0' + octet / 100);
+
+                if(octet >= 10)
+                    out[length++] = (byte) ('0' + (octet / 10) % 10);
+
+                out[length++] = (byte) ('0' + octet % 10);
+            }
+        }
+        else
+        {
+            for(int i = 0; i < 16; i += 2)
+            {
+                if(i > 0)
+                    out[length++] = ':';
+
+                int group = readShort(buffer, addressOffset + i);
+                boolean started = false;
+
+                for(int shift = 12; shift >= 0; shift -= 4)
+                {
+                    int digit = (group >> shift) & 0x0f;
+
+                    if(digit != 0 || started || shift == 0)
+                    {
+                        out[length++] = (byte) (digit < 10 ? '0' + digit : 'a' + digit - 10);
+                        started = true;
+                    }
+                }
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Reads an unsigned big endian 16 bit value
+     * @param buffer - the buffer to read from
+     * @param offset - offset of the value
+     * @return the value
+     */
+    public static int readShort(byte[] buffer, int offset)
+    {
+        return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+    }
+
+    /**
+     * Reads a big endian 32 bit value
+     * @param buffer - the buffer to read from
+     * @param offset - offset of the value
+     * @return the value
+     */
+    public static int readInt(byte[] buffer, int offset)
+    {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    /**
+     * Gives the decoded packet the ports of another packet, as FragmentTracker does for the later fragments of a
+     * datagram whose first fragment it has seen
+     * @param sourcePort - the source port
+     * @param destinationPort - the destination port
+     */
+    public void setPorts(int sourcePort, int destinationPort)
+    {
+        this.sourcePort = sourcePort;
+        this.destinationPort = destinationPort;
+    }
+
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * @return the VLAN of the packet's innermost tag outside any tunnel, or NO_VLAN if it has none
+     */
+    public int getVlanId()
+    {
+        return vlanId;
+    }
+
+    /**
+     * @return number of GRE and VXLAN tunnels the decoded IP packet was carried in
+     */
+    public int getTunnelDepth()
+    {
+        return tunnelDepth;
+    }
+
+    /**
+     * @return offset of the innermost IP header in the buffer
+     */
+    public int getNetworkOffset()
+    {
+        return networkOffset;
+    }
+
+    /**
+     * @return offset just past the end of the innermost IP packet in the buffer
+     */
+    public int getNetworkEnd()
+    {
+        return networkEnd;
+    }
+
+    /**
+     * @return offset of the transport header of the innermost IP packet in the buffer, or of the data of a later
+     * fragment
+     */
+    public int getTransportOffset()
+    {
+        return transportOffset;
+    }
+
+    /**
+     * @return true if the decoded IP packet is a fragment of a larger datagram
+     */
+    public boolean isFragment()
+    {
+        return fragmentOffset > 0 || moreFragments;
+    }
+
+    /**
+     * @return identification shared by the fragments of the decoded packet's datagram
+     */
+    public int getFragmentId()
+    {
+        return fragmentId;
+    }
+
+    /**
+     * @return offset in bytes of the fragment's data within its datagram, 0 for the first fragment and for packets
+     * which are not fragments
+     */
+    public int getFragmentOffset()
+    {
+        return fragmentOffset;
+    }
+
+    /**
+     * @return number of bytes of the datagram carried by the fragment, as given by its IP header
+     */
+    public int getFragmentLength()
+    {
+        return fragmentLength;
+    }
+
+    /**
+     * @return true if more fragments of the datagram follow this one
+     */
+    public boolean hasMoreFragments()
+    {
+        return moreFragments;
+    }
+
+    public int getIpVersion()
+    {
+        return ipVersion;
+    }
+
+    public int getProtocol()
+    {
+        return protocol;
+    }
+
+    public int getAddressLength()
+    {
+        return addressLength;
+    }
+
+    public int getSourceAddressOffset()
+    {
+        return sourceAddressOffset;
+    }
+
+    public int getDestinationAddressOffset()
+    {
+        return destinationAddressOffset;
+    }
+
+    public int getSourcePort()
+    {
+        return sourcePort;
+    }
+
+    public int getDestinationPort()
+    {
+        return destinationPort;
+    }
+
+    public long getSequenceNumber()
+    {
+        return sequenceNumber;
+    }
+
+    public int getTcpFlags()
+    {
+        return tcpFlags;
+    }
+
+    public int getPayloadOffset()
+    {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength()
+    {
+        return payloadLength;
+    }
+}
@@ -0,0 +1,339 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>Packet Pipeline</h1>
+ * Hands the packets read from captures over to the stages counting them, each stage running on a thread of its own
+ * so reading and the slowest stage overlap instead of adding up. Packets are copied into a ring of slots made up
+ * front, each slot's buffer being reused for every packet passing through it, so no objects are made per packet.
+ * <p>
+ * The reading thread and the stages coordinate through sequence numbers only: the reader publishes the sequence of
+ * the last packet it copied in, and each stage publishes the sequence of the last packet it is done with. The reader
+ * waits before reusing a slot a stage has not finished with, so a lagging stage slows reading down rather than
+ * packets being dropped or buffered without limit. A stage takes every packet published since it last looked in one
+ * batch, publishing its progress a few times per batch. Waiting is done by spinning, then yielding, then parking
+ * for a short while, without any locks.
+ */
+public class PacketPipeline
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally set how many packets may wait between reading and counting i.e " +
+            "--pipeline-slots 4096, 0 counting them on the reading thread";
+
+    public static final int DEFAULT_SLOTS = 4096;
+
+    /**
+     * A stage counting packets. Packets are given to a stage in the order they were published, always from the same
+     * thread, and the buffer holding a packet is only valid until process returns
+     */
+    public interface Stage
+    {
+        /**
+         * Counts a packet
+         * @param linkType - link layer type of the capture the packet came from
+         * @param buffer - buffer holding the packet
+         * @param offset - offset of the packet in the buffer
+         * @param length - number of captured bytes of the packet
+         * @param originalLength - length of the packet on the wire
+         * @param timestamp - capture time of the packet in microseconds
+         */
+        void process(int linkType, byte[] buffer, int offset, int length, int originalLength, long timestamp);
+    }
+
+    // slot buffers fit a full ethernet frame, growing once for a slot given a larger packet
+    private static final int INITIAL_SLOT_CAPACITY = 2048;
+
+    // a stage publishes its progress after this many packets of a batch, so the reader can reuse slots sooner
+    private static final int PROGRESS_INTERVAL = 256;
+
+    private static final int SPIN_TRIES = 200;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 50000;
+
+    // a sequence is kept in the middle of an array of its own so no other value shares its cache line
+    private static final int SEQUENCE_INDEX = 7;
+    private static final int SEQUENCE_ARRAY_LENGTH = 15;
+
+    private Stage[] stages;
+
+    private int slotCount;
+    private int mask;
+    private byte[][] buffers;
+    private int[] lengths;
+    private int[] originalLengths;
+    private int[] linkTypes;
+    private long[] timestamps;
+
+    private AtomicLongArray published = newSequence();
+    private AtomicLongArray[] consumed;
+
+    private volatile boolean finished = false;
+    private volatile Throwable failure = null;
+
+    private Thread[] threads;
+
+    // kept by the reading thread only
+    private long nextSequence = 0;
+    private long slowestConsumed = -1;
+
+    /**
+     * Creates a pipeline
+     * @param slots - number of packets which may wait for the slowest stage, rounded up to a power of two, or 0 to
+     *              have the reading thread pass each packet to the stages itself
+     * @param stages - the stages counting the packets
+     */
+    public PacketPipeline(int slots, Stage... stages)
+    {
+        this.stages = stages;
+
+        if(slots <= 0)
+            return;
+
+        slotCount = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+        mask = slotCount - 1;
+
+        buffers = new byte[slotCount][];
+        lengths = new int[slotCount];
+        originalLengths = new int[slotCount];
+        linkTypes = new int[slotCount];
+        timestamps = new long[slotCount];
+
+        for(int slot = 0; slot < slotCount; slot++)
+        {
+            buffers[slot] = new byte[INITIAL_SLOT_CAPACITY];
+        }
+
+        consumed = new AtomicLongArray[stages.length];
+        threads = new Thread[stages.length];
+
+        for(int stage = 0; stage < stages.length; stage++)
+        {
+            consumed[stage] = newSequence();
+
+            final int stageIndex = stage;
+
+            threads[stage] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runStage(stageIndex);
+                }
+            }, "packet-stage-" + stage);
+
+            threads[stage].setDaemon(true);
+            threads[stage].start();
+        }
+    }
+
+    /**
+     * Reads the number of slots given with --pipeline-slots
+     * @param options - the options given to the analyser
+     * @return the number of slots, 0 for none
+     */
+    public static int parseSlots(AnalyserOptions options)
+    {
+        int slots = options.getInt("pipeline-slots", DEFAULT_SLOTS);
+
+        if(slots < 0 || slots > (1 << 24))
+            throw new IllegalArgumentException("Option --pipeline-slots must be between 0 and " + (1 << 24) + " but was : " + slots);
+
+        return slots;
+    }
+
+    /**
+     * Passes a packet on to the stages, waiting while the slot it goes into is still in use
+     * @param linkType - link layer type of the capture the packet came from
+     * @param buffer - buffer holding the packet, which is copied so it can be reused once this returns
+     * @param offset - offset of the packet in the buffer
+     * @param length - number of captured bytes of the packet
+     * @param originalLength - length of the packet on the wire
+     * @param timestamp - capture time of the packet in microseconds
+     * @throws IllegalStateException if a stage has failed
+     */
+    public void publish(int linkType, byte[] buffer, int offset, int length, int originalLength, long timestamp)
+    {
+        if(threads == null)
+        {
+            for(Stage stage : stages)
+            {
+                stage.process(linkType, buffer, offset, length, originalLength, timestamp);
+            }
+
+            return;
+        }
+
+        // a failed stage no longer holds the reader back, so the failure is looked for with every packet
+        checkFailure();
+
+        long sequence = nextSequence;
+
+        // the slot was last used by the packet a ring before this one
+        if(sequence - slotCount > slowestConsumed)
+            slowestConsumed = waitForStages(sequence - slotCount);
+
+        int slot = (int) sequence & mask;
+
+        if(buffers[slot].length < length)
+            buffers[slot] = new byte[Integer.highestOneBit(length - 1) << 1];
+
+        System.arraycopy(buffer, offset, buffers[slot], 0, length);
+        lengths[slot] = length;
+        originalLengths[slot] = originalLength;
+        linkTypes[slot] = linkType;
+        timestamps[slot] = timestamp;
+
+        // the slot's contents are written before the sequence is seen by the stages
+        published.lazySet(SEQUENCE_INDEX, sequence);
+        nextSequence = sequence + 1;
+    }
+
+    /**
+     * Reads how many packets are waiting for the slowest stage. Safe to call from any thread, though the packets
+     * may have moved on by the time it returns
+     * @return number of packets published which a stage has not finished with, 0 when packets are not queued
+     */
+    public long getQueueDepth()
+    {
+        if(threads == null)
+            return 0;
+
+        long slowest = Long.MAX_VALUE;
+
+        for(AtomicLongArray stageConsumed : consumed)
+        {
+            slowest = Math.min(slowest, stageConsumed.get(SEQUENCE_INDEX));
+        }
+
+        return Math.max(published.get(SEQUENCE_INDEX) - slowest, 0);
+    }
+
+    /**
+     * Waits for the stages to finish the packets published so far and stops their threads. The pipeline cannot be
+     * used afterwards
+     * @throws IllegalStateException if a stage has failed
+     */
+    public void finish()
+    {
+        if(threads == null)
+            return;
+
+        finished = true;
+
+        for(Thread thread : threads)
+        {
+            boolean interrupted = false;
+
+            while(thread.isAlive())
+            {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Waits until every stage is done with a sequence
+     * @param sequence - the sequence
+     * @return the sequence of the slowest stage
+     */
+    private long waitForStages(long sequence)
+    {
+        int tries = 0;
+
+        while(true)
+        {
+            long slowest = Long.MAX_VALUE;
+
+            for(AtomicLongArray stageConsumed : consumed)
+            {
+                slowest = Math.min(slowest, stageConsumed.get(SEQUENCE_INDEX));
+            }
+
+            if(slowest >= sequence)
+                return slowest;
+
+            checkFailure();
+            idle(tries++);
+        }
+    }
+
+    private void runStage(int stageIndex)
+    {
+        Stage stage = stages[stageIndex];
+        AtomicLongArray stageConsumed = consumed[stageIndex];
+        long next = 0;
+        int tries = 0;
+
+        try {
+            while(true)
+            {
+                long available = published.get(SEQUENCE_INDEX);
+
+                if(available < next)
+                {
+                    // finished is only set after the last packet was published, so it is read before checking again
+                    if(finished && published.get(SEQUENCE_INDEX) < next)
+                        return;
+
+                    idle(tries++);
+                    continue;
+                }
+
+                tries = 0;
+
+                for(; next <= available; next++)
+                {
+                    int slot = (int) next & mask;
+
+                    stage.process(linkTypes[slot], buffers[slot], 0, lengths[slot], originalLengths[slot], timestamps[slot]);
+
+                    if((next & (PROGRESS_INTERVAL - 1)) == 0)
+                        stageConsumed.lazySet(SEQUENCE_INDEX, next);
+                }
+
+                stageConsumed.lazySet(SEQUENCE_INDEX, available);
+            }
+        } catch (Throwable e) {
+            failure = e;
+
+            // the reader no longer waits for a failed stage, finding the failure on its next publish instead
+            stageConsumed.set(SEQUENCE_INDEX, Long.MAX_VALUE);
+        }
+    }
+
+    private void checkFailure()
+    {
+        if(failure != null)
+            throw new IllegalStateException("A packet stage failed", failure);
+    }
+
+    /**
+     * Waits a little longer each try, first spinning, then yielding and then parking
+     * @param tries - number of tries made so far
+     */
+    private static void idle(int tries)
+    {
+        if(tries < SPIN_TRIES)
+            return;
+        else if(tries < SPIN_TRIES + YIELD_TRIES)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    private static AtomicLongArray newSequence()
+    {
+        AtomicLongArray sequence = new AtomicLongArray(SEQUENCE_ARRAY_LENGTH);
+        sequence.set(SEQUENCE_INDEX, -1);
+
+        return sequence;
+    }
+}
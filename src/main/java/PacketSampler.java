@@ -0,0 +1,283 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <h1>Packet Sampler</h1>
+ * Picks about one in every N packets for the --sample mode of the analysers. Packets are either picked at random,
+ * from a fixed seed so runs repeat, or by flow, where a hash of the addresses, protocol and ports picks whole flows in
+ * both directions. Counts taken from the sample are scaled back up by N and given a 95% confidence interval from the
+ * variance of the sampling: the binomial variance of the items counted when they are picked on their own, or the
+ * spread of the per-flow counts when whole flows are picked.
+ */
+public class PacketSampler
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally analyse a sample of one in N packets for quicker approximate counts " +
+            "with confidence intervals i.e --sample 10, picking single packets or whole flows with --sample-by packet or flow";
+
+    private static final double Z_95 = 1.96;
+
+    private int rate;
+    private boolean byFlow;
+    private long state = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Creates a sampler
+     * @param rate - N, the sampler picking one in N packets or flows
+     * @param byFlow - whether to pick whole flows rather than single packets
+     */
+    public PacketSampler(int rate, boolean byFlow)
+    {
+        if(rate < 1)
+            throw new IllegalArgumentException("Sample rate must be at least 1 but was : " + rate);
+
+        this.rate = rate;
+        this.byFlow = byFlow;
+    }
+
+    /**
+     * Reads the sampling given with --sample and --sample-by
+     * @param options - the options given to the analyser
+     * @param defaultSampleBy - "packet" or "flow", used when --sample-by is not given
+     * @return the sampler, or null if --sample was not given
+     */
+    public static PacketSampler parse(AnalyserOptions options, String defaultSampleBy)
+    {
+        if(!options.has("sample"))
+            return null;
+
+        String sampleBy = options.getString("sample-by", defaultSampleBy);
+
+        if(!sampleBy.equals("packet") && !sampleBy.equals("flow"))
+            throw new IllegalArgumentException("Option --sample-by expects packet or flow but was : " + sampleBy);
+
+        return new PacketSampler(options.getInt("sample", 1), sampleBy.equals("flow"));
+    }
+
+    /**
+     * Decides on the next packet when sampling single packets. Only the record header is needed, so readers can
+     * skip the packets left out without reading them.
+     * @return true if the packet is in the sample, always true when sampling by flow
+     */
+    public boolean acceptRecord()
+    {
+        if(byFlow || rate == 1)
+            return true;
+
+        return drawPacket();
+    }
+
+    /**
+     * Picks one in N packets at random, whatever flow they are in
+     * @return true if the packet is in the sample
+     */
+    private boolean drawPacket()
+    {
+        // xorshift64* generator
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+
+        return Long.remainderUnsigned(state * 0x2545f4914f6cdd1dL, rate) == 0;
+    }
+
+    /**
+     * Decides on a decoded packet when sampling by flow
+     * @param decoder - decoder holding the packet
+     * @return true if the packet's flow is in the sample, always true when sampling single packets
+     */
+    public boolean acceptPacket(PacketDecoder decoder)
+    {
+        if(!byFlow || rate == 1)
+            return true;
+
+        // the smaller of the two directional hashes is the same for both directions of a flow
+        long hash = Math.min(decoder.directionalFlowHash(), decoder.reverseFlowHash()) * 0x9e3779b97f4a7c15L;
+
+        return Long.remainderUnsigned(hash ^ (hash >>> 32), rate) == 0;
+    }
+
+    /**
+     * Copies the sampled packets of a capture into a new capture, for tools which read whole files
+     * @param file - the capture file
+     * @param folder - folder to write the copy into
+     * @return the copy, the capture itself when every packet is sampled, or null if the copy could not be made
+     */
+    public File sampleCapture(File file, File folder)
+    {
+        if(rate == 1)
+            return file;
+
+        folder.mkdirs();
+        File output = new File(folder, file.getName());
+
+        PcapReader reader = null;
+        PacketDecoder decoder = new PacketDecoder();
+        OutputStream outputStream = null;
+
+        try {
+            reader = new PcapReader(file);
+            reader.setSampler(this);
+
+            outputStream = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+
+            // the file header is copied as it is so the byte order and time resolution stay the same
+            reader.writeHeader(outputStream);
+
+            while(reader.next())
+            {
+                // packets which cannot be decoded have no flow and are sampled as single packets
+                if(byFlow && !(decoder.decode(reader.getLinkType(), reader.getBuffer(), reader.getPacketOffset(), reader.getCapturedLength())
+                        ? acceptPacket(decoder) : drawPacket()))
+                    continue;
+
+                reader.writeRecord(outputStream);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            output = null;
+        } finally {
+            closeQuietly(reader);
+            closeQuietly(outputStream);
+        }
+
+        return output;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return N, the sampler picking one in N packets or flows
+     */
+    public int getRate()
+    {
+        return rate;
+    }
+
+    public boolean isByFlow()
+    {
+        return byFlow;
+    }
+
+    /**
+     * @param sampled - a count taken from the sample
+     * @return the estimated count over all packets
+     */
+    public long scale(long sampled)
+    {
+        return sampled * rate;
+    }
+
+    /**
+     * @param sampled - number of sampled packets, requests or flows counted, each picked on its own
+     * @return lower end of the 95% confidence interval of the estimated count
+     */
+    public long lowerBound(long sampled)
+    {
+        return lowerBound(sampled, sampled);
+    }
+
+    /**
+     * @param sampled - number of sampled packets, requests or flows counted, each picked on its own
+     * @return upper end of the 95% confidence interval of the estimated count
+     */
+    public long upperBound(long sampled)
+    {
+        return upperBound(sampled, sampled);
+    }
+
+    /**
+     * @param sampled - number of items counted
+     * @param sampledSquares - sum over the sampled flows of the square of each flow's count, equal to sampled when
+     * each item was picked on its own
+     * @return lower end of the 95% confidence interval of the estimated count
+     */
+    public long lowerBound(long sampled, long sampledSquares)
+    {
+        return Math.max(sampled, Math.round(scale(sampled) - countHalfWidth(sampledSquares)));
+    }
+
+    /**
+     * @param sampled - number of items counted
+     * @param sampledSquares - sum over the sampled flows of the square of each flow's count, equal to sampled when
+     * each item was picked on its own
+     * @return upper end of the 95% confidence interval of the estimated count
+     */
+    public long upperBound(long sampled, long sampledSquares)
+    {
+        return Math.round(scale(sampled) + countHalfWidth(sampledSquares));
+    }
+
+    /**
+     * Each flow was picked with probability 1/N, so the scaled count, N times the sum of the sampled flows' counts
+     * x, has variance (N - 1) times the sum of x^2 over all flows, estimated by N(N - 1) times that sum over the
+     * sampled flows. An item picked on its own is a flow of one
+     */
+    private double countHalfWidth(long sampledSquares)
+    {
+        return Z_95 * Math.sqrt((double) sampledSquares * rate * (rate - 1));
+    }
+
+    /**
+     * @param sampledBytes - number of bytes in the sampled packets
+     * @param sampledPackets - number of sampled packets the bytes came from
+     * @return lower end of the 95% confidence interval of the estimated bytes
+     */
+    public long byteLowerBound(long sampledBytes, long sampledPackets)
+    {
+        return Math.round(sampledBytes * lowerFactor(sampledPackets));
+    }
+
+    /**
+     * @param sampledBytes - number of bytes in the sampled packets
+     * @param sampledPackets - number of sampled packets the bytes came from
+     * @return upper end of the 95% confidence interval of the estimated bytes
+     */
+    public long byteUpperBound(long sampledBytes, long sampledPackets)
+    {
+        return Math.round(sampledBytes * upperFactor(sampledPackets));
+    }
+
+    /**
+     * @param sampledPackets - number of sampled packets a total such as bytes came from
+     * @return factor giving the lower end of the 95% confidence interval when applied to the sampled total
+     */
+    public double lowerFactor(long sampledPackets)
+    {
+        return Math.max(1, rate - factorHalfWidth(sampledPackets));
+    }
+
+    /**
+     * @param sampledPackets - number of sampled packets a total such as bytes came from
+     * @return factor giving the upper end of the 95% confidence interval when applied to the sampled total
+     */
+    public double upperFactor(long sampledPackets)
+    {
+        return rate + factorHalfWidth(sampledPackets);
+    }
+
+    /**
+     * Treats each sampled packet as being of the average sampled size, giving the scaled total a relative standard
+     * error of sqrt((N - 1) / packets)
+     */
+    private double factorHalfWidth(long sampledPackets)
+    {
+        if(sampledPackets <= 0)
+            return 0;
+
+        return Z_95 * Math.sqrt((double) (rate - 1) * rate / sampledPackets);
+    }
+}
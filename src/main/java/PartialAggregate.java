@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <h1>Partial Aggregate</h1>
+ * Counts made by one worker over a shard of the capture files, before any sampled counts are scaled, kept so a reducer
+ * can combine the shards into the usual reports. A partial aggregate is a table in the columnar report format whose
+ * columns are fixed for each analyser: key columns of text first, followed by counts which are summed across shards.
+ * The format only changes along with the columnar format's version, so partial aggregates may come from any worker
+ * running the same release, local or not.
+ */
+public class PartialAggregate
+{
+    /**
+     * Writes a partial aggregate
+     * @param table - the counts, with the analyser's partial columns
+     * @param file - the file to write
+     */
+    public static void write(ReportTable table, File file)
+    {
+        try {
+            ReportWriter.writeColumnar(table, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a partial aggregate, checking it has the columns expected
+     * @param file - the file to read
+     * @param columnNames - the analyser's partial column names
+     * @param columnTypes - the analyser's partial column types
+     * @return the counts
+     * @throws IOException on failing to read the file or finding other columns
+     */
+    public static ReportTable read(File file, String[] columnNames, byte[] columnTypes) throws IOException
+    {
+        ReportTable table = ReportReader.readColumnar(file);
+
+        boolean matches = table.getColumnCount() == columnNames.length;
+
+        for(int column = 0; matches && column < columnNames.length; column++)
+        {
+            matches = table.getColumnName(column).equals(columnNames[column]) && table.getColumnType(column) == columnTypes[column];
+        }
+
+        if(!matches)
+            throw new IOException("Partial aggregate does not have the expected columns : " + file);
+
+        return table;
+    }
+
+    /**
+     * Combines partial aggregates, summing the counts of rows with the same keys
+     * @param files - the partial aggregates
+     * @param columnNames - the analyser's partial column names
+     * @param columnTypes - the analyser's partial column types, text keys followed by long counts
+     * @param keyColumns - number of key columns, zero keeping every row as it is
+     * @return the combined counts, in no particular order
+     * @throws IOException on failing to read a partial aggregate
+     */
+    public static ReportTable reduce(File[] files, String[] columnNames, byte[] columnTypes, int keyColumns) throws IOException
+    {
+        ReportTable reduced = new ReportTable(columnNames, columnTypes);
+
+        // keys joined by a character which cannot appear in them, and the summed counts of each
+        HashMap<String, long[]> sums = new HashMap<String, long[]>();
+        ArrayList<String[]> keys = new ArrayList<String[]>();
+
+        for(File file : files)
+        {
+            ReportTable table = read(file, columnNames, columnTypes);
+
+            for(int row = 0; row < table.getRowCount(); row++)
+            {
+                if(keyColumns == 0)
+                {
+                    copyRow(table, row, reduced);
+                    continue;
+                }
+
+                String[] key = new String[keyColumns];
+                StringBuilder joinedKey = new StringBuilder();
+
+                for(int column = 0; column < keyColumns; column++)
+                {
+                    key[column] = table.getString(row, column);
+                    joinedKey.append(key[column]).append('\0');
+                }
+
+                long[] sum = sums.get(joinedKey.toString());
+
+                if(sum == null)
+                {
+                    sum = new long[columnNames.length - keyColumns];
+                    sums.put(joinedKey.toString(), sum);
+                    keys.add(key);
+                }
+
+                for(int column = keyColumns; column < columnNames.length; column++)
+                {
+                    sum[column - keyColumns] += table.getLong(row, column);
+                }
+            }
+        }
+
+        for(String[] key : keys)
+        {
+            StringBuilder joinedKey = new StringBuilder();
+            reduced.newRow();
+
+            for(String part : key)
+            {
+                joinedKey.append(part).append('\0');
+                reduced.add(part);
+            }
+
+            for(long sum : sums.get(joinedKey.toString()))
+            {
+                reduced.add(sum);
+            }
+        }
+
+        return reduced;
+    }
+
+    private static void copyRow(ReportTable source, int row, ReportTable target)
+    {
+        target.newRow();
+
+        for(int column = 0; column < source.getColumnCount(); column++)
+        {
+            byte type = source.getColumnType(column);
+
+            if(type == ReportTable.STRING)
+                target.add(source.getString(row, column));
+            else if(type == ReportTable.LONG)
+                target.add(source.getLong(row, column));
+            else
+                target.add(source.getDouble(row, column));
+        }
+    }
+}
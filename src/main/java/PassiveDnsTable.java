@@ -0,0 +1,363 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Passive DNS Table</h1>
+ * Maps IP addresses to the names clients looked up to reach them, learnt from the DNS responses seen in a capture.
+ * The table holds a fixed number of addresses in preallocated arrays and evicts the least recently used address when
+ * full, so memory use does not grow with the capture.
+ */
+public class PassiveDnsTable
+{
+    // IPv4 addresses are keyed with this in place of the upper half of an IPv6 address
+    private static final long IPV4_KEY_HIGH = 0xffffffffffffffffL;
+
+    private static final int MAX_CHAIN_LENGTH = 8;
+
+    private int capacity;
+    private int size = 0;
+
+    // open addressing index of entry number plus one, zero marking an empty slot
+    private int[] slots;
+    private int mask;
+
+    private long[] keysHigh;
+    private long[] keysLow;
+    private String[] names;
+
+    // least recently used order, head being the most recent
+    private int[] previous;
+    private int[] next;
+    private int head = -1;
+    private int tail = -1;
+
+    private byte[][] chainNames = new byte[MAX_CHAIN_LENGTH][DnsMessageParser.MAX_NAME_LENGTH];
+    private int[] chainLengths = new int[MAX_CHAIN_LENGTH];
+    private byte[] nameScratch = new byte[DnsMessageParser.MAX_NAME_LENGTH];
+
+    /**
+     * Creates a table
+     * @param capacity - number of addresses to hold before evicting
+     */
+    public PassiveDnsTable(int capacity)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Passive DNS table must hold at least 1 address but was : " + capacity);
+
+        this.capacity = capacity;
+
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+
+        keysHigh = new long[capacity];
+        keysLow = new long[capacity];
+        names = new String[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+    }
+
+    /**
+     * Records the addresses in a parsed DNS response against the name asked for in its question, following any CNAME
+     * records from that name to the A and AAAA records
+     * @param parser - parser holding a DNS message
+     */
+    public void learn(DnsMessageParser parser)
+    {
+        if(!parser.isResponse() || parser.getResponseCode() != 0 || parser.getParsedAnswerCount() == 0)
+            return;
+
+        int questionLength = parser.readName(parser.getQuestionNameOffset(), chainNames[0]);
+
+        if(questionLength <= 0)
+            return;
+
+        chainLengths[0] = questionLength;
+        int chainSize = 1;
+
+        // collect the names the question is an alias of, in whatever order the records came
+        boolean grown = true;
+
+        while(grown && chainSize < MAX_CHAIN_LENGTH)
+        {
+            grown = false;
+
+            for(int i = 0; i < parser.getParsedAnswerCount() && chainSize < MAX_CHAIN_LENGTH; i++)
+            {
+                if(parser.getAnswerType(i) != DnsMessageParser.TYPE_CNAME)
+                    continue;
+
+                int ownerLength = parser.readName(parser.getAnswerNameOffset(i), nameScratch);
+
+                if(ownerLength <= 0 || !inChain(nameScratch, ownerLength, chainSize))
+                    continue;
+
+                int targetLength = parser.readName(parser.getAnswerDataOffset(i), chainNames[chainSize]);
+
+                if(targetLength > 0 && !inChain(chainNames[chainSize], targetLength, chainSize))
+                {
+                    chainLengths[chainSize] = targetLength;
+                    chainSize++;
+                    grown = true;
+                }
+            }
+        }
+
+        String questionName = null;
+
+        for(int i = 0; i < parser.getParsedAnswerCount(); i++)
+        {
+            int type = parser.getAnswerType(i);
+            int dataLength = parser.getAnswerDataLength(i);
+
+            if(!(type == DnsMessageParser.TYPE_A && dataLength == 4) && !(type == DnsMessageParser.TYPE_AAAA && dataLength == 16))
+                continue;
+
+            int ownerLength = parser.readName(parser.getAnswerNameOffset(i), nameScratch);
+
+            if(ownerLength <= 0 || !inChain(nameScratch, ownerLength, chainSize))
+                continue;
+
+            if(questionName == null)
+                questionName = new String(chainNames[0], 0, questionLength, StandardCharsets.US_ASCII);
+
+            put(keyHigh(parser.getBuffer(), parser.getAnswerDataOffset(i), dataLength),
+                    keyLow(parser.getBuffer(), parser.getAnswerDataOffset(i), dataLength), questionName);
+        }
+    }
+
+    private boolean inChain(byte[] name, int length, int chainSize)
+    {
+        for(int i = 0; i < chainSize; i++)
+        {
+            if(chainLengths[i] != length)
+                continue;
+
+            boolean equal = true;
+
+            for(int j = 0; j < length && equal; j++)
+            {
+                equal = chainNames[i][j] == name[j];
+            }
+
+            if(equal)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Looks up the name for an address held in a buffer
+     * @param buffer - buffer holding the address
+     * @param offset - offset of the address
+     * @param addressLength - 4 for IPv4 addresses, 16 for IPv6 addresses
+     * @return the name looked up for the address or null if none was seen
+     */
+    public String get(byte[] buffer, int offset, int addressLength)
+    {
+        return get(keyHigh(buffer, offset, addressLength), keyLow(buffer, offset, addressLength));
+    }
+
+    /**
+     * Looks up the name for an IPv4 address given in dotted form e.g from an http Host header
+     * @param text - buffer holding the address text
+     * @param offset - offset of the text
+     * @param length - length of the text
+     * @return the name looked up for the address or null if none was seen or the text is not an IPv4 address
+     */
+    public String getByAddressText(byte[] text, int offset, int length)
+    {
+        long address = 0;
+        int octet = -1;
+        int dots = 0;
+
+        for(int i = offset; i < offset + length; i++)
+        {
+            byte b = text[i];
+
+            if(b >= '0' && b <= '9')
+            {
+                octet = (octet < 0 ? 0 : octet * 10) + (b - '0');
+
+                if(octet > 255)
+                    return null;
+            }
+            else if(b == '.' && octet >= 0 && dots < 3)
+            {
+                address = (address << 8) | octet;
+                octet = -1;
+                dots++;
+            }
+            else
+            {
+                return null;
+            }
+        }
+
+        if(dots != 3 || octet < 0)
+            return null;
+
+        return get(IPV4_KEY_HIGH, (address << 8) | octet);
+    }
+
+    private static long keyHigh(byte[] buffer, int offset, int addressLength)
+    {
+        return addressLength == 4 ? IPV4_KEY_HIGH : readLong(buffer, offset);
+    }
+
+    private static long keyLow(byte[] buffer, int offset, int addressLength)
+    {
+        return addressLength == 4 ? (PacketDecoder.readInt(buffer, offset) & 0xffffffffL) : readLong(buffer, offset + 8);
+    }
+
+    private static long readLong(byte[] buffer, int offset)
+    {
+        return ((long) PacketDecoder.readInt(buffer, offset) << 32) | (PacketDecoder.readInt(buffer, offset + 4) & 0xffffffffL);
+    }
+
+    private static int hash(long high, long low)
+    {
+        long hash = (high * 0x9e3779b97f4a7c15L) ^ (low * 0xc2b2ae3d27d4eb4fL);
+
+        return (int) (hash ^ (hash >>> 29));
+    }
+
+    /**
+     * Finds the index table slot holding a key or the empty slot where it would go
+     */
+    private int findSlot(long high, long low)
+    {
+        int slot = hash(high, low) & mask;
+
+        while(slots[slot] != 0)
+        {
+            int entry = slots[slot] - 1;
+
+            if(keysHigh[entry] == high && keysLow[entry] == low)
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private String get(long high, long low)
+    {
+        int slot = findSlot(high, low);
+
+        if(slots[slot] == 0)
+            return null;
+
+        int entry = slots[slot] - 1;
+        moveToFront(entry);
+
+        return names[entry];
+    }
+
+    private void put(long high, long low, String name)
+    {
+        int slot = findSlot(high, low);
+
+        if(slots[slot] != 0)
+        {
+            int entry = slots[slot] - 1;
+            names[entry] = name;
+            moveToFront(entry);
+            return;
+        }
+
+        int entry;
+
+        if(size == capacity)
+        {
+            // reuse the least recently used entry
+            entry = tail;
+            removeSlot(findSlot(keysHigh[entry], keysLow[entry]));
+            unlink(entry);
+
+            slot = findSlot(high, low);
+        }
+        else
+        {
+            entry = size++;
+        }
+
+        keysHigh[entry] = high;
+        keysLow[entry] = low;
+        names[entry] = name;
+        slots[slot] = entry + 1;
+
+        linkFront(entry);
+    }
+
+    /**
+     * Empties an index slot, shifting back later keys of the same probe run so lookups still find them
+     */
+    private void removeSlot(int slot)
+    {
+        slots[slot] = 0;
+
+        int current = (slot + 1) & mask;
+
+        while(slots[current] != 0)
+        {
+            int entry = slots[current] - 1;
+            int home = hash(keysHigh[entry], keysLow[entry]) & mask;
+
+            // move the key back if its home slot is not between the gap and its current slot
+            if(((current - home) & mask) >= ((current - slot) & mask))
+            {
+                slots[slot] = slots[current];
+                slots[current] = 0;
+                slot = current;
+            }
+
+            current = (current + 1) & mask;
+        }
+    }
+
+    private void moveToFront(int entry)
+    {
+        if(entry == head)
+            return;
+
+        unlink(entry);
+        linkFront(entry);
+    }
+
+    private void unlink(int entry)
+    {
+        if(previous[entry] >= 0)
+            next[previous[entry]] = next[entry];
+        else
+            head = next[entry];
+
+        if(next[entry] >= 0)
+            previous[next[entry]] = previous[entry];
+        else
+            tail = previous[entry];
+    }
+
+    private void linkFront(int entry)
+    {
+        previous[entry] = -1;
+        next[entry] = head;
+
+        if(head >= 0)
+            previous[head] = entry;
+
+        head = entry;
+
+        if(tail < 0)
+            tail = entry;
+    }
+
+    /**
+     * @return number of addresses held
+     */
+    public int size()
+    {
+        return size;
+    }
+}
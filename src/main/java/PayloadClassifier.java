@@ -0,0 +1,269 @@
+/**
+ * <h1>Payload Classifier</h1>
+ * Names the application protocol of a flow from the first bytes of its payloads, whatever ports it uses. Each
+ * signature looks only at the start of a payload - the request line of a text protocol, the greeting of a server, the
+ * record header of TLS or the fixed fields of a binary header - so a payload is classified without being copied or
+ * parsed further. Signatures which could be mistaken for random bytes, such as a DNS header, also check that the
+ * lengths they hold fit the payload.
+ */
+public class PayloadClassifier
+{
+    public static final int UNKNOWN = 0;
+    public static final int TLS = 1;
+    public static final int HTTP = 2;
+    public static final int SSH = 3;
+    public static final int DNS = 4;
+    public static final int QUIC = 5;
+    public static final int BITTORRENT = 6;
+    public static final int SMTP = 7;
+    public static final int FTP = 8;
+    public static final int POP3 = 9;
+    public static final int IMAP = 10;
+    public static final int SIP = 11;
+    public static final int STUN = 12;
+    public static final int RTSP = 13;
+
+    // names of the applications, by number, as written to the reports
+    public static final String[] NAMES = {"unknown", "tls", "http", "ssh", "dns", "quic", "bittorrent", "smtp", "ftp", "pop3",
+            "imap", "sip", "stun", "rtsp"};
+
+    private static final byte[][] HTTP_PREFIXES = {
+            "GET ".getBytes(), "POST ".getBytes(), "HEAD ".getBytes(), "PUT ".getBytes(), "DELETE ".getBytes(),
+            "OPTIONS ".getBytes(), "CONNECT ".getBytes(), "PATCH ".getBytes(), "TRACE ".getBytes(), "HTTP/1.".getBytes()
+    };
+
+    private static final byte[][] SIP_PREFIXES = {
+            "INVITE sip:".getBytes(), "REGISTER sip:".getBytes(), "OPTIONS sip:".getBytes(), "ACK sip:".getBytes(),
+            "BYE sip:".getBytes(), "CANCEL sip:".getBytes(), "SUBSCRIBE sip:".getBytes(), "NOTIFY sip:".getBytes(),
+            "SIP/2.0 ".getBytes()
+    };
+
+    private static final byte[][] RTSP_PREFIXES = {
+            "RTSP/1.0 ".getBytes(), "DESCRIBE rtsp:".getBytes(), "OPTIONS rtsp:".getBytes(), "SETUP rtsp:".getBytes(),
+            "PLAY rtsp:".getBytes()
+    };
+
+    private static final byte[] SSH_PREFIX = "SSH-".getBytes();
+    private static final byte[] BITTORRENT_HANDSHAKE = "\u0013BitTorrent protocol".getBytes();
+    private static final byte[] BITTORRENT_DHT = "d1:".getBytes();
+    private static final byte[] BITTORRENT_DHT_ID = "2:id20:".getBytes();
+    private static final byte[] POP3_GREETING = "+OK".getBytes();
+    private static final byte[] IMAP_GREETING = "* OK".getBytes();
+    private static final byte[] SERVER_GREETING = "220".getBytes();
+    private static final byte[][] SMTP_COMMANDS = {"EHLO ".getBytes(), "HELO ".getBytes()};
+    private static final byte[][] FTP_COMMANDS = {"USER ".getBytes(), "AUTH TLS".getBytes()};
+
+    private static final int STUN_MAGIC_COOKIE = 0x2112a442;
+
+    private static final int QUIC_VERSION_1 = 0x00000001;
+    private static final int QUIC_VERSION_2 = 0x6b3343cf;
+
+    // a greeting is only searched this far for the name of the protocol
+    private static final int GREETING_SEARCH_LENGTH = 128;
+
+    /**
+     * Classifies a payload
+     * @param protocol - PacketDecoder.PROTOCOL_TCP or PacketDecoder.PROTOCOL_UDP
+     * @param buffer - buffer holding the payload
+     * @param offset - offset of the payload in the buffer
+     * @param length - length of the payload
+     * @return the application, or UNKNOWN if no signature matches
+     */
+    public int classify(int protocol, byte[] buffer, int offset, int length)
+    {
+        if(length <= 0)
+            return UNKNOWN;
+
+        if(protocol == PacketDecoder.PROTOCOL_TCP)
+            return classifyStream(buffer, offset, length);
+        else if(protocol == PacketDecoder.PROTOCOL_UDP)
+            return classifyDatagram(buffer, offset, length);
+
+        return UNKNOWN;
+    }
+
+    private int classifyStream(byte[] buffer, int offset, int length)
+    {
+        if(isTlsRecord(buffer, offset, length))
+            return TLS;
+
+        int first = buffer[offset] & 0xff;
+
+        // the text protocols all start with a letter, digit or sign, so other payloads skip the string matching
+        if(first == 0x13)
+            return startsWith(buffer, offset, length, BITTORRENT_HANDSHAKE) ? BITTORRENT : UNKNOWN;
+
+        if(first < '*' || first > 'Z')
+            return isDnsMessage(buffer, offset + 2, length - 2, true) ? DNS : UNKNOWN;
+
+        if(startsWithAny(buffer, offset, length, HTTP_PREFIXES))
+            return HTTP;
+
+        if(startsWith(buffer, offset, length, SSH_PREFIX))
+            return SSH;
+
+        if(startsWithAny(buffer, offset, length, RTSP_PREFIXES))
+            return RTSP;
+
+        if(startsWithAny(buffer, offset, length, SIP_PREFIXES))
+            return SIP;
+
+        if(startsWithAny(buffer, offset, length, SMTP_COMMANDS))
+            return SMTP;
+
+        if(startsWithAny(buffer, offset, length, FTP_COMMANDS))
+            return FTP;
+
+        if(startsWith(buffer, offset, length, POP3_GREETING))
+            return POP3;
+
+        if(startsWith(buffer, offset, length, IMAP_GREETING))
+            return IMAP;
+
+        // mail and file transfer servers both greet with 220, most naming their protocol in the greeting
+        if(startsWith(buffer, offset, length, SERVER_GREETING))
+        {
+            int end = offset + Math.min(length, GREETING_SEARCH_LENGTH);
+
+            for(int i = offset + 3; i + 3 <= end; i++)
+            {
+                int c0 = buffer[i] & 0xdf;
+                int c1 = buffer[i + 1] & 0xdf;
+                int c2 = buffer[i + 2] & 0xdf;
+
+                if(c0 == 'F' && c1 == 'T' && c2 == 'P')
+                    return FTP;
+
+                if(c0 == 'M' && c1 == 'T' && c2 == 'P')
+                    return SMTP;
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    private int classifyDatagram(byte[] buffer, int offset, int length)
+    {
+        int first = buffer[offset] & 0xff;
+
+        // QUIC long headers carry the version right after the first byte
+        if((first & 0xc0) == 0xc0 && length >= 5)
+        {
+            int version = PacketDecoder.readInt(buffer, offset + 1);
+
+            if(version == QUIC_VERSION_1 || version == QUIC_VERSION_2 || (version >>> 8) == 0xff0000)
+                return QUIC;
+        }
+
+        // STUN messages start with two zero bits, and have the magic cookie and a length of whole words
+        if((first & 0xc0) == 0 && length >= 20 && PacketDecoder.readInt(buffer, offset + 4) == STUN_MAGIC_COOKIE
+                && PacketDecoder.readShort(buffer, offset + 2) == length - 20)
+            return STUN;
+
+        if(startsWith(buffer, offset, length, BITTORRENT_DHT) && indexOf(buffer, offset, Math.min(length, 16), BITTORRENT_DHT_ID) >= 0)
+            return BITTORRENT;
+
+        if(startsWithAny(buffer, offset, length, SIP_PREFIXES))
+            return SIP;
+
+        if(isDnsMessage(buffer, offset, length, false))
+            return DNS;
+
+        return UNKNOWN;
+    }
+
+    /**
+     * @return true if the payload starts with a TLS handshake, alert or application data record of SSL 3 to TLS 1.3
+     */
+    private static boolean isTlsRecord(byte[] buffer, int offset, int length)
+    {
+        if(length < 5)
+            return false;
+
+        int type = buffer[offset] & 0xff;
+
+        if(type < 21 || type > 23 || buffer[offset + 1] != 3 || (buffer[offset + 2] & 0xff) > 4)
+            return false;
+
+        int recordLength = PacketDecoder.readShort(buffer, offset + 3);
+
+        return recordLength > 0 && recordLength <= 16384 + 2048;
+    }
+
+    /**
+     * Checks a DNS header and that the first question name is made of labels within the payload
+     * @param stream - true for DNS over TCP, where the message follows its length
+     */
+    private static boolean isDnsMessage(byte[] buffer, int offset, int length, boolean stream)
+    {
+        if(length < 17)
+            return false;
+
+        if(stream && PacketDecoder.readShort(buffer, offset - 2) < length)
+            return false;
+
+        int flags = PacketDecoder.readShort(buffer, offset + 2);
+
+        // standard query or its response, with the reserved bit clear and a single question
+        if(((flags >>> 11) & 0xf) != 0 || (flags & 0x40) != 0 || PacketDecoder.readShort(buffer, offset + 4) != 1)
+            return false;
+
+        if(PacketDecoder.readShort(buffer, offset + 6) > 256 || PacketDecoder.readShort(buffer, offset + 8) > 256
+                || PacketDecoder.readShort(buffer, offset + 10) > 256)
+            return false;
+
+        int position = offset + 12;
+        int end = offset + length;
+
+        while(position < end)
+        {
+            int labelLength = buffer[position] & 0xff;
+
+            if(labelLength == 0)
+                return position + 5 <= end;
+
+            if(labelLength > 63)
+                return false;
+
+            position += labelLength + 1;
+        }
+
+        return false;
+    }
+
+    private static boolean startsWithAny(byte[] buffer, int offset, int length, byte[][] prefixes)
+    {
+        for(byte[] prefix : prefixes)
+        {
+            if(startsWith(buffer, offset, length, prefix))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix)
+    {
+        if(length < prefix.length)
+            return false;
+
+        for(int i = 0; i < prefix.length; i++)
+        {
+            if(buffer[offset + i] != prefix[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, int offset, int length, byte[] pattern)
+    {
+        for(int i = 0; i + pattern.length <= length; i++)
+        {
+            if(startsWith(buffer, offset + i, length - i, pattern))
+                return i;
+        }
+
+        return -1;
+    }
+}
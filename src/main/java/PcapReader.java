@@ -0,0 +1,697 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <h1>Pcap Reader</h1>
+ * Reads the packet records of a libpcap or pcapng capture file into a reusable buffer. Packets are exposed as an offset
+ * and length into that buffer so they can be scanned in place without copying or allocating per packet.
+ * <p>
+ * In a pcapng file each packet takes the link type and time resolution of the interface it was captured on. The
+ * section header and interface descriptions before the first packet are read on opening, so records can be seeked to
+ * directly; interfaces described after the first packet are picked up when reading from the start.
+ */
+public class PcapReader implements Closeable
+{
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    private static final int GLOBAL_HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    private static final int OBSOLETE_PACKET_BLOCK = 2;
+    private static final int SIMPLE_PACKET_BLOCK = 3;
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+
+    private static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+    private static final int TIMESTAMP_RESOLUTION_OPTION = 9;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    private static final int MAX_RECORD_LENGTH = 1 << 18;
+
+    private FileChannel channel;
+    private ByteBuffer byteBuffer;
+    private byte[] buffer;
+
+    // valid bytes are between bufferStart and bufferEnd
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+
+    // file position of the first byte held in the buffer
+    private long bufferFilePosition = 0;
+
+    private boolean swapped;
+    private boolean nanosecondResolution;
+    private int linkType;
+    private int snapLength;
+
+    // pcapng files only, with the link type, snapshot length and timestamp units per second of each interface
+    private boolean pcapng;
+    private int interfaceCount = 0;
+    private int[] interfaceLinkTypes = new int[1];
+    private int[] interfaceSnapLengths = new int[1];
+    private long[] interfaceUnitsPerSecond = new long[1];
+
+    // the file's header, written before the records of a copy
+    private byte[] header;
+
+    // the current record as stored in the file, held in the buffer
+    private int recordOffset;
+    private int recordLength;
+
+    private int packetOffset;
+    private int capturedLength;
+    private int originalLength;
+    private long timestampMicros;
+    private long recordPosition;
+
+    // reading stops at this file position, and the index builder is fed each record when set
+    private long endPosition = Long.MAX_VALUE;
+    private boolean endOfFile = false;
+    private CaptureIndex.Builder indexBuilder;
+    private PacketSampler sampler;
+
+    /**
+     * Opens a capture file and reads its global header
+     * @param file - the pcap file to read
+     * @throws IOException - if the file cannot be read or is not a pcap file
+     */
+    public PcapReader(File file) throws IOException
+    {
+        channel = new FileInputStream(file).getChannel();
+        buffer = new byte[DEFAULT_BUFFER_SIZE];
+        byteBuffer = ByteBuffer.wrap(buffer);
+
+        if(!fill(GLOBAL_HEADER_LENGTH))
+        {
+            close();
+            throw new EOFException("File too short to be a pcap file : " + file.getName());
+        }
+
+        int magic = readInt(bufferStart, false);
+
+        if(magic == SECTION_HEADER_BLOCK)
+        {
+            pcapng = true;
+
+            try {
+                readLeadingBlocks(file);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+
+            return;
+        }
+        else if(magic == 0xa1b2c3d4 || magic == 0xa1b23c4d)
+        {
+            swapped = false;
+        }
+        else if(magic == 0xd4c3b2a1 || magic == 0x4d3cb2a1)
+        {
+            swapped = true;
+        }
+        else
+        {
+            close();
+            throw new IOException("Unrecognised pcap magic number in file : " + file.getName());
+        }
+
+        nanosecondResolution = (magic == 0xa1b23c4d || magic == 0x4d3cb2a1);
+        snapLength = readInt(bufferStart + 16, swapped);
+        linkType = readInt(bufferStart + 20, swapped) & 0x0fffffff;
+
+        header = Arrays.copyOfRange(buffer, bufferStart, bufferStart + GLOBAL_HEADER_LENGTH);
+        bufferStart += GLOBAL_HEADER_LENGTH;
+    }
+
+    /**
+     * Reads the blocks of a pcapng file up to its first packet, keeping them as the file's header
+     * @param file - the pcapng file
+     * @throws IOException - if the file cannot be read or a block is corrupt
+     */
+    private void readLeadingBlocks(File file) throws IOException
+    {
+        ByteArrayOutputStream leadingBlocks = new ByteArrayOutputStream();
+
+        while(fill(8))
+        {
+            int blockType = readInt(bufferStart, swapped);
+
+            if(blockType == ENHANCED_PACKET_BLOCK || blockType == SIMPLE_PACKET_BLOCK || blockType == OBSOLETE_PACKET_BLOCK)
+                break;
+
+            int blockLength = readBlockLength();
+
+            if(!fill(blockLength))
+                break;
+
+            readOtherBlock(blockType);
+            leadingBlocks.write(buffer, bufferStart, blockLength);
+            bufferStart += blockLength;
+        }
+
+        if(interfaceCount == 0 && leadingBlocks.size() == 0)
+            throw new EOFException("File too short to be a pcapng file : " + file.getName());
+
+        header = leadingBlocks.toByteArray();
+        linkType = interfaceLinkTypes[0];
+        snapLength = interfaceSnapLengths[0];
+    }
+
+    /**
+     * Advances to the next packet record in the file
+     * @return true if a packet was read, false at the end of the file
+     * @throws IOException - if the file cannot be read or a record is corrupt
+     */
+    public boolean next() throws IOException
+    {
+        if(pcapng)
+            return nextBlock();
+
+        while(true)
+        {
+            if(bufferFilePosition + bufferStart >= endPosition)
+                return false;
+
+            if(!fill(RECORD_HEADER_LENGTH))
+            {
+                endOfFile = true;
+                return false;
+            }
+
+            long seconds = readInt(bufferStart, swapped) & 0xffffffffL;
+            long fraction = readInt(bufferStart + 4, swapped) & 0xffffffffL;
+            int inclusiveLength = readInt(bufferStart + 8, swapped);
+            int wireLength = readInt(bufferStart + 12, swapped);
+
+            if(inclusiveLength < 0 || inclusiveLength > MAX_RECORD_LENGTH)
+                throw new IOException("Corrupt pcap record with captured length : " + inclusiveLength);
+
+            recordPosition = bufferFilePosition + bufferStart;
+            timestampMicros = seconds * 1000000L + (nanosecondResolution ? fraction / 1000L : fraction);
+
+            if(indexBuilder != null)
+                indexBuilder.add(recordPosition, timestampMicros);
+
+            // packets left out of the sample are passed over without being read
+            if(sampler != null && !sampler.acceptRecord())
+            {
+                skip(RECORD_HEADER_LENGTH + inclusiveLength);
+                continue;
+            }
+
+            if(!fill(RECORD_HEADER_LENGTH + inclusiveLength))
+            {
+                endOfFile = true;
+                return false;
+            }
+
+            capturedLength = inclusiveLength;
+            originalLength = wireLength;
+            packetOffset = bufferStart + RECORD_HEADER_LENGTH;
+            recordOffset = bufferStart;
+            recordLength = RECORD_HEADER_LENGTH + inclusiveLength;
+
+            bufferStart = packetOffset + inclusiveLength;
+
+            return true;
+        }
+    }
+
+    /**
+     * Advances to the next packet block of a pcapng file, taking in the section headers and interface descriptions
+     * on the way
+     * @return true if a packet was read, false at the end of the file
+     * @throws IOException - if the file cannot be read or a block is corrupt
+     */
+    private boolean nextBlock() throws IOException
+    {
+        while(true)
+        {
+            if(bufferFilePosition + bufferStart >= endPosition)
+                return false;
+
+            if(!fill(8))
+            {
+                endOfFile = true;
+                return false;
+            }
+
+            int blockType = readInt(bufferStart, swapped);
+
+            if(blockType != ENHANCED_PACKET_BLOCK && blockType != SIMPLE_PACKET_BLOCK && blockType != OBSOLETE_PACKET_BLOCK)
+            {
+                int blockLength = readBlockLength();
+
+                if(!fill(blockLength))
+                {
+                    endOfFile = true;
+                    return false;
+                }
+
+                readOtherBlock(blockType);
+                bufferStart += blockLength;
+                continue;
+            }
+
+            int blockLength = readBlockLength();
+            int headerLength = blockType == SIMPLE_PACKET_BLOCK ? 12 : 28;
+
+            if(blockLength < headerLength + 4 || !fill(headerLength))
+            {
+                endOfFile = true;
+                return false;
+            }
+
+            recordPosition = bufferFilePosition + bufferStart;
+
+            int interfaceId;
+            int inclusiveLength;
+            int wireLength;
+
+            if(blockType == SIMPLE_PACKET_BLOCK)
+            {
+                // the captured length is only implied by the snapshot length of the first interface
+                interfaceId = 0;
+                wireLength = readInt(bufferStart + 8, swapped);
+                inclusiveLength = Math.min(wireLength, blockLength - headerLength - 4);
+
+                if(interfaceSnapLengths[0] > 0)
+                    inclusiveLength = Math.min(inclusiveLength, interfaceSnapLengths[0]);
+
+                timestampMicros = 0;
+            }
+            else
+            {
+                interfaceId = blockType == OBSOLETE_PACKET_BLOCK ? readShort(bufferStart + 8) : readInt(bufferStart + 8, swapped);
+                inclusiveLength = readInt(bufferStart + 20, swapped);
+                wireLength = readInt(bufferStart + 24, swapped);
+
+                long timestamp = ((readInt(bufferStart + 12, swapped) & 0xffffffffL) << 32) | (readInt(bufferStart + 16, swapped) & 0xffffffffL);
+
+                if(interfaceId < 0 || interfaceId >= interfaceCount)
+                    throw new IOException("Pcapng packet block of undescribed interface : " + interfaceId);
+
+                long unitsPerSecond = interfaceUnitsPerSecond[interfaceId];
+
+                if(unitsPerSecond % 1000000L == 0)
+                    timestampMicros = timestamp / (unitsPerSecond / 1000000L);
+                else
+                    timestampMicros = (timestamp / unitsPerSecond) * 1000000L + (timestamp % unitsPerSecond) * 1000000L / unitsPerSecond;
+            }
+
+            if(inclusiveLength < 0 || inclusiveLength > blockLength - headerLength - 4)
+                throw new IOException("Corrupt pcapng packet block with captured length : " + inclusiveLength);
+
+            if(indexBuilder != null)
+                indexBuilder.add(recordPosition, timestampMicros);
+
+            // packets left out of the sample are passed over without being read
+            if(sampler != null && !sampler.acceptRecord())
+            {
+                skip(blockLength);
+                continue;
+            }
+
+            if(!fill(blockLength))
+            {
+                endOfFile = true;
+                return false;
+            }
+
+            linkType = interfaceLinkTypes[interfaceId];
+            capturedLength = inclusiveLength;
+            originalLength = wireLength;
+            packetOffset = bufferStart + headerLength;
+            recordOffset = bufferStart;
+            recordLength = blockLength;
+
+            bufferStart += blockLength;
+
+            return true;
+        }
+    }
+
+    /**
+     * Reads the length of the pcapng block at bufferStart
+     * @return the length of the block
+     * @throws IOException - if the length is not that of a valid block
+     */
+    private int readBlockLength() throws IOException
+    {
+        if(readInt(bufferStart, swapped) == SECTION_HEADER_BLOCK)
+        {
+            // a section header sets the byte order of everything up to the next one, its own length included
+            if(!fill(12))
+                throw new EOFException("Truncated pcapng section header");
+
+            int byteOrderMagic = readInt(bufferStart + 8, false);
+
+            if(byteOrderMagic == BYTE_ORDER_MAGIC)
+                swapped = false;
+            else if(byteOrderMagic == Integer.reverseBytes(BYTE_ORDER_MAGIC))
+                swapped = true;
+            else
+                throw new IOException("Unrecognised pcapng byte order magic : " + Integer.toHexString(byteOrderMagic));
+        }
+
+        int blockLength = readInt(bufferStart + 4, swapped);
+
+        if(blockLength < 12 || (blockLength & 3) != 0 || blockLength > MAX_RECORD_LENGTH + 64)
+            throw new IOException("Corrupt pcapng block with length : " + blockLength);
+
+        return blockLength;
+    }
+
+    /**
+     * Takes in a pcapng block other than a packet, held whole in the buffer from bufferStart
+     * @param blockType - type of the block
+     */
+    private void readOtherBlock(int blockType)
+    {
+        if(blockType == SECTION_HEADER_BLOCK)
+        {
+            // interface ids start again in each section
+            interfaceCount = 0;
+        }
+        else if(blockType == INTERFACE_DESCRIPTION_BLOCK)
+        {
+            int blockLength = readInt(bufferStart + 4, swapped);
+
+            if(interfaceCount == interfaceLinkTypes.length)
+            {
+                interfaceLinkTypes = Arrays.copyOf(interfaceLinkTypes, interfaceCount * 2);
+                interfaceSnapLengths = Arrays.copyOf(interfaceSnapLengths, interfaceCount * 2);
+                interfaceUnitsPerSecond = Arrays.copyOf(interfaceUnitsPerSecond, interfaceCount * 2);
+            }
+
+            interfaceLinkTypes[interfaceCount] = readShort(bufferStart + 8);
+            interfaceSnapLengths[interfaceCount] = readInt(bufferStart + 12, swapped);
+            interfaceUnitsPerSecond[interfaceCount] = readUnitsPerSecond(bufferStart + 16, bufferStart + blockLength - 4);
+            interfaceCount++;
+        }
+    }
+
+    /**
+     * Finds the timestamp resolution among the options of an interface description, microseconds by default
+     * @param offset - offset of the first option in the buffer
+     * @param end - offset just past the last option
+     * @return the number of timestamp units per second
+     */
+    private long readUnitsPerSecond(int offset, int end)
+    {
+        while(offset + 4 <= end)
+        {
+            int code = readShort(offset);
+            int length = readShort(offset + 2);
+
+            if(code == 0)
+                break;
+
+            if(code == TIMESTAMP_RESOLUTION_OPTION && length == 1 && offset + 5 <= end)
+            {
+                int resolution = buffer[offset + 4] & 0xff;
+                int exponent = Math.min(resolution & 0x7f, (resolution & 0x80) != 0 ? 62 : 18);
+
+                // the top bit picks a negative power of two rather than of ten
+                if((resolution & 0x80) != 0)
+                    return 1L << exponent;
+
+                long unitsPerSecond = 1;
+
+                for(int i = 0; i < exponent; i++)
+                {
+                    unitsPerSecond *= 10;
+                }
+
+                return unitsPerSecond;
+            }
+
+            // option values are padded to 32 bits
+            offset += 4 + ((length + 3) & ~3);
+        }
+
+        return 1000000L;
+    }
+
+    /**
+     * Moves past bytes from bufferStart onwards, leaving them unread if they are not in the buffer yet
+     * @param length - number of bytes to move past
+     * @throws IOException - if the file cannot be read
+     */
+    private void skip(int length) throws IOException
+    {
+        if(bufferEnd - bufferStart >= length)
+            bufferStart += length;
+        else
+            seek(bufferFilePosition + bufferStart + length);
+    }
+
+    /**
+     * Moves to a record boundary in the file, such as one taken from getRecordPosition() or a capture index
+     * @param position - file offset of a record header
+     * @throws IOException - if the file cannot be read
+     */
+    public void seek(long position) throws IOException
+    {
+        channel.position(position);
+
+        bufferFilePosition = position;
+        bufferStart = 0;
+        bufferEnd = 0;
+        endOfFile = false;
+    }
+
+    /**
+     * Makes next() stop before the record starting at or beyond the given file offset
+     * @param position - file offset to stop at
+     */
+    public void setEndPosition(long position)
+    {
+        endPosition = position;
+    }
+
+    /**
+     * Feeds every record read from here on to an index builder
+     * @param builder - the builder, or null to stop feeding one
+     */
+    public void setIndexBuilder(CaptureIndex.Builder builder)
+    {
+        indexBuilder = builder;
+    }
+
+    /**
+     * Makes next() pass over the packets the sampler leaves out, reading only their record headers
+     * @param sampler - the sampler, or null to return every packet
+     */
+    public void setSampler(PacketSampler sampler)
+    {
+        this.sampler = sampler;
+    }
+
+    /**
+     * @return the index builder fed by this reader, or null if there is none
+     */
+    public CaptureIndex.Builder getIndexBuilder()
+    {
+        return indexBuilder;
+    }
+
+    /**
+     * @return true once next() has found the end of the file
+     */
+    public boolean isEndOfFile()
+    {
+        return endOfFile;
+    }
+
+    /**
+     * Ensures that at least the required number of bytes are held in the buffer from bufferStart onwards
+     * @param required - the number of bytes needed
+     * @return true if the bytes are available, false if the file ended first
+     * @throws IOException - if the file cannot be read
+     */
+    private boolean fill(int required) throws IOException
+    {
+        if(bufferEnd - bufferStart >= required)
+            return true;
+
+        // move the unread bytes to the front of the buffer
+        int remaining = bufferEnd - bufferStart;
+
+        if(required > buffer.length)
+        {
+            byte[] larger = new byte[Math.max(required, buffer.length * 2)];
+            System.arraycopy(buffer, bufferStart, larger, 0, remaining);
+            buffer = larger;
+            byteBuffer = ByteBuffer.wrap(buffer);
+        }
+        else
+        {
+            System.arraycopy(buffer, bufferStart, buffer, 0, remaining);
+        }
+
+        bufferFilePosition += bufferStart;
+        bufferStart = 0;
+        bufferEnd = remaining;
+
+        while(bufferEnd < required)
+        {
+            byteBuffer.limit(buffer.length);
+            byteBuffer.position(bufferEnd);
+
+            int read = channel.read(byteBuffer);
+
+            if(read < 0)
+                return false;
+
+            bufferEnd += read;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a 32 bit integer from the buffer
+     * @param offset - offset of the integer in the buffer
+     * @param littleEndian - whether the integer is stored least significant byte first
+     * @return the integer
+     */
+    private int readInt(int offset, boolean littleEndian)
+    {
+        int b0 = buffer[offset] & 0xff;
+        int b1 = buffer[offset + 1] & 0xff;
+        int b2 = buffer[offset + 2] & 0xff;
+        int b3 = buffer[offset + 3] & 0xff;
+
+        if(littleEndian)
+            return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+        else
+            return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    /**
+     * Reads a 16 bit integer from the buffer in the file's byte order
+     * @param offset - offset of the integer in the buffer
+     * @return the integer
+     */
+    private int readShort(int offset)
+    {
+        int b0 = buffer[offset] & 0xff;
+        int b1 = buffer[offset + 1] & 0xff;
+
+        return swapped ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    /**
+     * Writes the file's header: the global header of a pcap file, or the blocks before the first packet of a pcapng
+     * file. Written before records from writeRecord(), this makes a capture of its own with the same byte order,
+     * time resolution and interfaces
+     * @param output - stream to write to
+     * @throws IOException - if the header cannot be written
+     */
+    public void writeHeader(OutputStream output) throws IOException
+    {
+        output.write(header);
+    }
+
+    /**
+     * Writes the current packet's record as it is stored in the file
+     * @param output - stream to write to
+     * @throws IOException - if the record cannot be written
+     */
+    public void writeRecord(OutputStream output) throws IOException
+    {
+        output.write(buffer, recordOffset, recordLength);
+    }
+
+    /**
+     * @return true if the file is in the pcapng format rather than the libpcap one
+     */
+    public boolean isPcapng()
+    {
+        return pcapng;
+    }
+
+    /**
+     * @return the buffer holding the current packet
+     */
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * @return offset of the current packet within the buffer
+     */
+    public int getPacketOffset()
+    {
+        return packetOffset;
+    }
+
+    /**
+     * @return number of bytes of the current packet held in the buffer
+     */
+    public int getCapturedLength()
+    {
+        return capturedLength;
+    }
+
+    /**
+     * @return length of the current packet as it was on the wire
+     */
+    public int getOriginalLength()
+    {
+        return originalLength;
+    }
+
+    /**
+     * @return timestamp of the current packet in microseconds since the epoch
+     */
+    public long getTimestampMicros()
+    {
+        return timestampMicros;
+    }
+
+    /**
+     * @return file offset of the current packet's record header
+     */
+    public long getRecordPosition()
+    {
+        return recordPosition;
+    }
+
+    /**
+     * @return the link layer type of the current packet, or of the file's first interface before any packet is read
+     */
+    public int getLinkType()
+    {
+        return linkType;
+    }
+
+    /**
+     * @return the snapshot length recorded in the file header, or of the first interface of a pcapng file
+     */
+    public int getSnapLength()
+    {
+        return snapLength;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -4,7 +4,8 @@ import java.util.HashMap;
 
 /**
  * <h1>Port Analyser</h1>
- * Gives breakdown of TCP/UDP ports utilised from pcap files
+ * Gives breakdown of TCP/UDP ports utilised from pcap files, the bytes of each service being split further by the
+ * application protocol found in the payloads of its flows
  * @author Michael Kyeyune
  * @since 2016-04-28
  */
@@ -16,14 +17,72 @@ public class PortAnalyser
     private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
 
     private static String TEMP_FOLDER_NAME = "ports_temp";
+    private static String RANGE_FOLDER_NAME = "range";
+    private static String SAMPLE_FOLDER_NAME = "sample";
+    private static String DEDUP_FOLDER_NAME = "dedup";
+    private static String UNWRAP_FOLDER_NAME = "unwrap";
+
+    //positions of the byte and packet counts kept per service
+    private static int BYTES_INDEX = 0;
+    private static int PACKETS_INDEX = 1;
+
+    //number of flows classified at once by application
+    private static int FLOW_TABLE_SIZE = 65536;
+
+    //columns of the partial counts written by a worker for --partial
+    public static final String[] PARTIAL_COLUMNS = {"vlan", "protocol", "service", "application", "bytes", "packets"};
+    public static final byte[] PARTIAL_TYPES = {ReportTable.STRING, ReportTable.STRING, ReportTable.STRING, ReportTable.STRING,
+            ReportTable.LONG, ReportTable.LONG};
+    public static final int PARTIAL_KEY_COLUMNS = 4;
 
     public static void main(String[] args)
     {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the analysis with the given command line, as main() does, without ending the JVM so several analyses can
+     * be run one after another
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options = null;
+        TimeRange range = null;
+        PacketSampler sampler = null;
+        DuplicateFilter duplicates = null;
+        CaptureShards shard = null;
+        CaptureUnwrapper unwrapper = null;
+
+        try {
+            options = AnalyserOptions.parse(args, "index", "cache", "quiet", "unwrap", "per-vlan", "dedup", "histograms");
+            range = TimeRange.parse(options);
+            sampler = PacketSampler.parse(options, "packet");
+            duplicates = DuplicateFilter.parse(options);
+            shard = CaptureShards.parse(options);
+            unwrapper = CaptureUnwrapper.parse(options);
+            ReportWriter.checkFormat(options);
+            CaptureCache.checkOptions(options);
+            Metrics.checkOptions(options);
+            ConsoleLog.configure(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printInstructions();
+            return false;
+        }
+
+        args = options.getArguments();
+
+        //set when a file or step fails, the rest of the analysis still being carried out
+        boolean failed = false;
+
         if(args.length == 0)
         {
             System.out.println("No arguments provided. Please do one of the following:");
-            System.out.println(FOlDER_ARGUMENT_INSTRUCTION);
-            System.out.println(FILE_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
         }
         else if(args.length == 2 || args.length == 4)
         {
@@ -50,118 +109,364 @@ public class PortAnalyser
             else
             {
                 System.out.println("Wrong arguments provided. Please do one of the following:");
-                System.out.println(FOlDER_ARGUMENT_INSTRUCTION);
-                System.out.println(FILE_ARGUMENT_INSTRUCTION);
-                System.exit(1);
+                printInstructions();
+                return false;
+            }
+
+            //a worker analyses only its shard of the files, in a temp folder of its own
+            String tempFolderName = folderName + "/" + TEMP_FOLDER_NAME;
+
+            if(shard != null)
+            {
+                files = shard.select(files);
+                tempFolderName += "_" + shard.getIndex();
             }
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
             //temp folder for temporary files during analysis
-            File tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+            File tempFolder = new File(tempFolderName);
 
             if(tempFolder.exists())
             {
-                System.out.println(DATA_DISPLAY_SEPARATOR);
-                printCurrentTime();
-                System.out.println("Deleting temp folder in : " + folderName);
+                ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                ConsoleLog.info("Deleting temp folder in : " + folderName);
                 deleteDirectory(tempFolder);
             }
 
-            tempFolder = new File(folderName + "/" + TEMP_FOLDER_NAME);
+            tempFolder = new File(tempFolderName);
 
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
 
             if(tempFolder.mkdir())
             {
-                System.out.println("Create temp folder in : " + folderName);
+                ConsoleLog.info("Create temp folder in : " + folderName);
             }
             else
             {
-                System.out.println("Failed to make temp folder in : " + folderName);
-                System.exit(1);
+                ConsoleLog.error("Failed to make temp folder in : " + folderName);
+                ConsoleLog.flush();
+                return false;
             }
 
+            //index of the capture times, and folders for the copies of the packets within a time range, without
+            //duplicates or in a sample
+            CaptureIndex index = CaptureIndex.load(new File(folderName), options);
+            File rangeFolder = new File(tempFolder, RANGE_FOLDER_NAME);
+            File sampleFolder = new File(tempFolder, SAMPLE_FOLDER_NAME);
+            File dedupFolder = new File(tempFolder, DEDUP_FOLDER_NAME);
+            File unwrapFolder = new File(tempFolder, UNWRAP_FOLDER_NAME);
+
+            //filtered captures and tcpdstat outputs kept from earlier runs
+            CaptureCache cache = CaptureCache.load(new File(folderName), options);
+
+            //time of each tool and stage, written out as the analysis goes when asked for
+            Metrics metrics = Metrics.start("port", options);
+            Metrics.Stage rangeStage = metrics.stage("range");
+            Metrics.Stage sampleStage = metrics.stage("sample");
+            Metrics.Stage dedupStage = metrics.stage("dedup");
+            Metrics.Stage unwrapStage = metrics.stage("unwrap");
+
+            ConsoleLog.startProgress("Filtering captures", files);
+
             //iterate through the pcap files applying tcpdump to each to filter out local traffic
 
             for(File file : files)
             {
                 if(file.isFile() && !file.isHidden())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Preparing to process file : " + file.getName());
+                    ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                    ConsoleLog.info("Preparing to process file : " + file.getName());
+
+                    long fileStart = System.nanoTime();
+                    File capture = index.limitToRange(file, range, rangeFolder);
+
+                    rangeStage.addTime(System.nanoTime() - fileStart);
+
+                    if(capture == null)
+                    {
+                        ConsoleLog.info("No packets within the time range, skipping file : " + file.getName());
+                        ConsoleLog.fileDone(file);
+                        continue;
+                    }
+
+                    //copies of the same packets, as from two taps, are left out before sampling so they are not
+                    //counted twice
+                    if(duplicates != null)
+                    {
+                        long dedupStart = System.nanoTime();
+                        File deduped = duplicates.dedupCapture(capture, dedupFolder);
+
+                        dedupStage.addTime(System.nanoTime() - dedupStart);
+                        ICMPAnalyser.deleteCopy(capture, file, deduped);
+                        capture = deduped;
+
+                        if(capture == null)
+                        {
+                            ConsoleLog.error("Failed to leave out the duplicate packets of file : " + file.getName());
+                            failed = true;
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+                    }
+
+                    if(sampler != null)
+                    {
+                        long sampleStart = System.nanoTime();
+                        File sampled = sampler.sampleCapture(capture, sampleFolder);
+
+                        sampleStage.addTime(System.nanoTime() - sampleStart);
+                        ICMPAnalyser.deleteCopy(capture, file, sampled);
+                        capture = sampled;
+
+                        if(capture == null)
+                        {
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+                    }
+
+                    File[] captures = {capture};
+
+                    //the packets inside VLAN tags and tunnels are copied out for tcpdump to see, a copy per VLAN
+                    //when broken down by VLAN
+                    if(unwrapper != null)
+                    {
+                        long unwrapStart = System.nanoTime();
+                        captures = unwrapper.unwrapCapture(capture, unwrapFolder);
+
+                        unwrapStage.addTime(System.nanoTime() - unwrapStart);
+                        ICMPAnalyser.deleteCopy(capture, file, null);
+
+                        if(captures == null)
+                        {
+                            ConsoleLog.error("Failed to unwrap the packets of file : " + file.getName());
+                            failed = true;
+                            ConsoleLog.fileDone(file);
+                            continue;
+                        }
+                    }
+
+                    for(File unwrapped : captures)
+                    {
+                        if(!generateFilteredFiles(unwrapped.getParent(), unwrapped.getName(), tempFolderName, cache, metrics))
+                            failed = true;
+
+                        ICMPAnalyser.deleteCopy(unwrapped, file, null);
+                    }
 
-                    generateFilteredFiles(folderName, file.getName(), folderName + "/" + TEMP_FOLDER_NAME);
+                    metrics.fileFinished(file, System.nanoTime() - fileStart);
+                    ConsoleLog.fileDone(file);
                 }
             }
 
+            index.save();
+
             //start analysis on generated files
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            System.out.println(DATA_DISPLAY_SEPARATOR);
-            printCurrentTime();
-            System.out.println("Carrying out analysis on files");
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+            ConsoleLog.info("Carrying out analysis on files");
 
             files = tempFolder.listFiles();
 
-            //hash map to keep track of the ports, services and bytes for each
-            HashMap<String, HashMap<String, Long>> portCounterMap = new HashMap<String, HashMap<String, Long>>();
+            //hash maps to keep track of the ports, services and the bytes and packets for each, per VLAN
+            HashMap<String, HashMap<String, HashMap<String, long[]>>> vlanCounterMaps =
+                    new HashMap<String, HashMap<String, HashMap<String, long[]>>>();
+
+            //applications found in the payloads of the flows of each service, per VLAN
+            HashMap<String, ApplicationAggregator> vlanApplications = new HashMap<String, ApplicationAggregator>();
+
+            //the flows classified, written out as binary records when asked for
+            FlowRecordWriter flowWriter = null;
+
+            try {
+                flowWriter = FlowRecordWriter.open(options);
+            } catch (IOException e) {
+                ConsoleLog.error("Failed to open the flow export, carrying on without it : " + options.getString("flow-export", null));
+                failed = true;
+                e.printStackTrace();
+            }
+
+            //lengths of the packets classified and the time between them, when asked for
+            TrafficHistograms histograms = options.has("histograms") ? new TrafficHistograms() : null;
+
+            ConsoleLog.startProgress("Running tcpdstat", files);
 
             //apply tcpdstat to each filtered pcap file to obtain port stats
             for(File file : files)
             {
                 if(file.isFile() && !file.isHidden())
                 {
-                    System.out.println(DATA_DISPLAY_SEPARATOR);
-                    printCurrentTime();
-                    System.out.println("Preparing to analyse file : " + file.getName());
+                    ConsoleLog.print(DATA_DISPLAY_SEPARATOR);
+                    ConsoleLog.info("Preparing to analyse file : " + file.getName());
 
-                    analyseFilteredFiles(portCounterMap, (folderName + "/" + TEMP_FOLDER_NAME), file.getName());
+                    String vlan = CaptureUnwrapper.vlanOf(file.getName(), options);
+
+                    if(!vlanCounterMaps.containsKey(vlan))
+                    {
+                        vlanCounterMaps.put(vlan, new HashMap<String, HashMap<String, long[]>>());
+                        vlanApplications.put(vlan, new ApplicationAggregator(FLOW_TABLE_SIZE));
+
+                        if(flowWriter != null)
+                            vlanApplications.get(vlan).exportFlows(flowWriter);
+                    }
+
+                    if(!analyseFilteredFiles(vlanCounterMaps.get(vlan), tempFolderName, file.getName(), cache, metrics))
+                        failed = true;
+                    if(!classifyFilteredFile(vlanApplications.get(vlan), histograms, file, metrics))
+                        failed = true;
+                    ConsoleLog.fileDone(file);
                 }
             }
 
-            String analysedFileName = "port-analysis.csv";
+            if(flowWriter != null)
+            {
+                try {
+                    try {
+                        for(ApplicationAggregator applications : vlanApplications.values())
+                        {
+                            applications.finish();
+                        }
+                    } finally {
+                        flowWriter.close();
+                    }
 
-            FileWriter writer = null;
+                    ConsoleLog.info("Exported " + flowWriter.getRecords() + " flows");
+                } catch (IOException e) {
+                    ConsoleLog.error("An error occurred on exporting the flows");
+                    failed = true;
+                    e.printStackTrace();
+                }
+            }
 
-            //write the results obtained to file
-            try {
-                writer = new FileWriter(analysedFileName);
+            ReportTable counts = new ReportTable(PARTIAL_COLUMNS, PARTIAL_TYPES);
 
-                //the column heads
-                writer.append("protocol, service, bytes");
-                writer.append("\n");
+            for(String vlan : vlanCounterMaps.keySet())
+            {
+                HashMap<String, HashMap<String, long[]>> portCounterMap = vlanCounterMaps.get(vlan);
+                ApplicationAggregator applications = vlanApplications.get(vlan);
 
-                HashMap<String, Long> serviceCounter = null;
                 for(String protocol : portCounterMap.keySet())
                 {
-                    serviceCounter = portCounterMap.get(protocol);
+                    HashMap<String, long[]> serviceCounter = portCounterMap.get(protocol);
 
                     for(String service : serviceCounter.keySet())
                     {
-                        long byteCount = serviceCounter.get(service);
+                        //the bytes and packets tcpdstat gives a service are split over the applications found in it
+                        long[][] split = applications.split(protocol, service, serviceCounter.get(service)[BYTES_INDEX],
+                                serviceCounter.get(service)[PACKETS_INDEX]);
+
+                        boolean added = false;
 
-                        writer.append(protocol + ", " + service + ", " + byteCount);
-                        writer.append("\n");
+                        for(int application = PayloadClassifier.NAMES.length - 1; application >= 0; application--)
+                        {
+                            //a service without any bytes still gets its unknown row, as it had before
+                            if(split[BYTES_INDEX][application] == 0 && split[PACKETS_INDEX][application] == 0
+                                    && (added || application != PayloadClassifier.UNKNOWN))
+                                continue;
+
+                            added = true;
+                            counts.newRow().add(vlan).add(protocol).add(service).add(PayloadClassifier.NAMES[application])
+                                    .add(split[BYTES_INDEX][application]).add(split[PACKETS_INDEX][application]);
+                        }
                     }
                 }
-
-                writer.flush();
-                writer.close();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
 
+            Metrics.Stage writeStage = metrics.stage("write");
+            long writeStart = System.nanoTime();
+
+            //a worker leaves its counts unscaled for the reducer to combine with the other shards
+            if(options.has("partial"))
+                PartialAggregate.write(counts, new File(options.getString("partial", null)));
+            else
+                writeReport(counts, sampler, options);
+
+            if(histograms != null)
+                histograms.write("port-histograms", sampler, options);
+
+            writeStage.addTime(System.nanoTime() - writeStart);
+            metrics.finish();
+
             //delete the temporary folder
             deleteDirectory(tempFolder);
         }
         else
         {
             System.out.println("More arguments provided than needed. Please do one of the following:");
-            System.out.println(FOlDER_ARGUMENT_INSTRUCTION);
-            System.out.println(FILE_ARGUMENT_INSTRUCTION);
+            printInstructions();
+            return false;
         }
+
+        //every line logged is printed before the caller goes on
+        ConsoleLog.flush();
+
+        return !failed;
+    }
+
+    /**
+     * Prints the arguments and options the analyser takes
+     */
+    private static void printInstructions()
+    {
+        System.out.println(FOlDER_ARGUMENT_INSTRUCTION);
+        System.out.println(FILE_ARGUMENT_INSTRUCTION);
+        System.out.println(ReportWriter.FORMAT_OPTION_INSTRUCTION);
+        System.out.println(TimeRange.OPTION_INSTRUCTION);
+        System.out.println(PacketSampler.OPTION_INSTRUCTION);
+        System.out.println(DuplicateFilter.OPTION_INSTRUCTION);
+        System.out.println(CaptureShards.OPTION_INSTRUCTION);
+        System.out.println(CaptureCache.OPTION_INSTRUCTION);
+        System.out.println(CaptureUnwrapper.OPTION_INSTRUCTION);
+        System.out.println(FlowRecordWriter.OPTION_INSTRUCTION);
+        System.out.println(TrafficHistograms.OPTION_INSTRUCTION);
+        System.out.println(Metrics.OPTION_INSTRUCTION);
+        System.out.println(ConsoleLog.OPTION_INSTRUCTION);
+    }
+
+    /**
+     * Writes the bytes used per service to file, sampled bytes being scaled up and given a confidence interval
+     * @param counts - vlan, protocol, service, application, bytes and packets of the services, as in a partial aggregate
+     * @param sampler - sampler the counts were taken with, or null if all packets were counted
+     * @param options - the options given to the analyser
+     */
+    public static void writeReport(ReportTable counts, PacketSampler sampler, AnalyserOptions options)
+    {
+        ReportTable table = null;
+        boolean perVlan = CaptureUnwrapper.isPerVlan(options);
+
+        if(sampler == null)
+            table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"protocol", "service", "application", "bytes"}, options),
+                    CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.STRING, ReportTable.STRING, ReportTable.LONG},
+                            options));
+        else
+            table = new ReportTable(CaptureUnwrapper.reportColumns(new String[]{"protocol", "service", "application", "bytes",
+                    "bytes low", "bytes high"}, options), CaptureUnwrapper.reportTypes(new byte[]{ReportTable.STRING, ReportTable.STRING,
+                    ReportTable.STRING, ReportTable.LONG, ReportTable.LONG, ReportTable.LONG}, options));
+
+        for(int row = 0; row < counts.getRowCount(); row++)
+        {
+            String vlan = counts.getString(row, 0);
+            String protocol = counts.getString(row, 1);
+            String service = counts.getString(row, 2);
+            String application = counts.getString(row, 3);
+            long byteCount = counts.getLong(row, 4);
+            long packetCount = counts.getLong(row, 5);
+
+            table.newRow();
+
+            if(perVlan)
+                table.add(vlan);
+
+            if(sampler == null)
+                table.add(protocol).add(service).add(application).add(byteCount);
+            else
+                table.add(protocol).add(service).add(application).add(sampler.scale(byteCount))
+                        .add(sampler.byteLowerBound(byteCount, packetCount)).add(sampler.byteUpperBound(byteCount, packetCount));
+        }
+
+        table.sort();
+        ReportWriter.write(table, "port-analysis", options);
     }
 
     /**
@@ -169,192 +474,312 @@ public class PortAnalyser
      * @param folderName - the folder with pcap file to filter
      * @param fileName - the pcap file to filter
      * @param tempFolderName - the folder where the filtered pcap file will be written into
+     * @param cache - cache the filtered file is reused from or kept in
+     * @param metrics - metrics timing the runs of tcpdump
+     * @return false if tcpdump failed on the file
      */
-    public static void generateFilteredFiles(String folderName, String fileName, String tempFolderName)
+    public static boolean generateFilteredFiles(String folderName, String fileName, String tempFolderName, CaptureCache cache,
+                                                Metrics metrics)
     {
-        String filterString = "not ((src net 192.168.0.0/16 or 10.0.0.0/8) and (dst net 192.168.0.0/16 or 10.0.0.0/8))";
+        String filterString = CaptureCache.NOT_LOCAL_FILTER;
+
+        File outputFile = new File(tempFolderName + "/temp_" + fileName);
+        String outputKey = cache.key(new File(folderName + "/" + fileName), "tcpdump", filterString);
+
+        if(cache.restore(outputKey, outputFile))
+        {
+            ConsoleLog.info("Reusing cached tcpdump output for file: " + folderName + "/" + fileName);
+            return true;
+        }
 
         ProcessBuilder processBuilder = new ProcessBuilder("tcpdump", filterString, "-r", (folderName + "/" + fileName),
-                "-w", (tempFolderName + "/temp_" + fileName));
+                "-w", outputFile.getPath());
 
         try {
-            printCurrentTime();
-            System.out.println("Processing file : " + fileName);
+            ConsoleLog.info("Processing file : " + fileName);
 
+            long toolStart = System.nanoTime();
             Process process = processBuilder.start();
 
             int errorCode = process.waitFor();
 
-            printCurrentTime();
-
+            metrics.stage("tcpdump").addTime(System.nanoTime() - toolStart);
+            metrics.stage("tcpdump").count(0, new File(folderName + "/" + fileName).length());
             if(errorCode == 0)
             {
-                System.out.println("No error occurred on running tcpdump command for file: " + folderName + "/" + fileName);
+                ConsoleLog.info("No error occurred on running tcpdump command for file: " + folderName + "/" + fileName);
+                cache.store(outputKey, outputFile);
             }
             else
             {
-                System.out.println("An error occurred on running tcpdump command for file: " + folderName + "/" + fileName);
+                ConsoleLog.error("An error occurred on running tcpdump command for file: " + folderName + "/" + fileName);
 
                 BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
                 String line = null;
 
                 while((line = bufferedReader.readLine()) != null)
                 {
-                    System.out.println(line);
+                    ConsoleLog.error(line);
                 }
+
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        return true;
     }
 
     /**
      * Applies the tcpdstat tool to a pcap file to get stats about the bytes used by ports
-     * @param portCounterMap - hashmap that keeps count of bytes per port
+     * @param portCounterMap - hashmap that keeps count of bytes and packets per port
      * @param folderName - folder containing the pcap file
      * @param fileName - the pcap file which is to analysed
+     * @param cache - cache the tcpdstat output is reused from or kept in
+     * @param metrics - metrics timing the runs of tcpdstat and the reading of their output
+     * @return false if tcpdstat failed on the file
      */
-    public static void analyseFilteredFiles(HashMap<String, HashMap<String, Long>> portCounterMap ,String folderName, String fileName)
+    public static boolean analyseFilteredFiles(HashMap<String, HashMap<String, long[]>> portCounterMap ,String folderName, String fileName,
+                                               CaptureCache cache, Metrics metrics)
     {
         ProcessBuilder processBuilder = new ProcessBuilder("tcpdstat", (folderName + "/" + fileName));
 
-        try {
-            printCurrentTime();
-            System.out.println("Analysing file : " + fileName);
-            Process process = processBuilder.start();
-
-            int errorCode = process.waitFor();
+        //tcpdstat prints the file name, so it is part of the key
+        String outputKey = cache.key(new File(folderName + "/" + fileName), "tcpdstat", fileName);
+        byte[] output = cache.restoreOutput(outputKey);
 
-            BufferedReader bufferedReader = null;
-            String line = null;
+        try {
+            ConsoleLog.info("Analysing file : " + fileName);
 
-            printCurrentTime();
+            Process process = null;
+            int errorCode = 0;
 
-            if(errorCode == 0)
+            if(output == null)
             {
-                System.out.println("No error occurred on running tcpdstat command for file : " + fileName);
+                long toolStart = System.nanoTime();
+                process = processBuilder.start();
 
-                printCurrentTime();
-                System.out.println("Obtaining breakdown of results");
+                //read the output before waiting so a long output cannot fill the pipe
+                output = CaptureCache.readFully(process.getInputStream());
+                errorCode = process.waitFor();
 
-                bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                metrics.stage("tcpdstat").addTime(System.nanoTime() - toolStart);
+                metrics.stage("tcpdstat").count(0, new File(folderName + "/" + fileName).length());
 
-                boolean inProtocolSection = false;
-                int lineCounter = 1;
+                if(errorCode == 0)
+                    cache.storeOutput(outputKey, output);
+            }
 
-                printCurrentTime();
-                System.out.println("protocol, service, bytes");
+            BufferedReader bufferedReader = null;
+            String line = null;
+            if(errorCode == 0)
+            {
+                if(process == null)
+                    ConsoleLog.info("Reusing cached tcpdstat output for file : " + fileName);
+                else
+                    ConsoleLog.info("No error occurred on running tcpdstat command for file : " + fileName);
 
-                boolean isTCPBreakdown = false;
-                boolean isUDPBreakdown = false;
+                ConsoleLog.info("Obtaining breakdown of results");
 
-                String currentProtocol = null;
+                bufferedReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output)));
 
-                while((line = bufferedReader.readLine()) != null)
-                {
-                    if(line.equals("### Protocol Breakdown ###"))
-                        inProtocolSection = true;
-                    else if(line.equals(">>>>"))
-                        inProtocolSection = false;
+                ConsoleLog.debug("protocol, service, bytes");
 
-                    if(inProtocolSection)
-                    {
-                        // the actual protocol breakdown past the table boundary
-                        if(lineCounter >= 5)
-                        {
-                            String tempLine = line.replaceAll("\\(\\s+", "(");
-
-                            String[] strArr = tempLine.split("\\s+");
-
-                            if(strArr[0].equals("[2]"))
-                            {
-                                currentProtocol = null;
-                                isTCPBreakdown = false;
-                                isUDPBreakdown = false;
-                            }
-
-                            // do processing in here
-                            if(isTCPBreakdown || isUDPBreakdown)
-                            {
-                                String serviceName = strArr[1];
-                                String serviceBytes = strArr[4];
-
-                                System.out.println(currentProtocol + ", " + serviceName + ", " + serviceBytes);
-
-                                if(!portCounterMap.containsKey(currentProtocol))
-                                {
-                                    portCounterMap.put(currentProtocol, new HashMap<String, Long>());
-                                }
-
-                                HashMap<String, Long> serviceCounterMap = portCounterMap.get(currentProtocol);
-
-                                if(!serviceCounterMap.containsKey(serviceName))
-                                {
-                                    serviceCounterMap.put(serviceName, 0L);
-                                }
-
-                                long currentServiceCount = serviceCounterMap.get(serviceName);
-                                long serviceCountToAdd = Long.parseLong(serviceBytes);
-
-                                serviceCounterMap.put(serviceName, (serviceCountToAdd + currentServiceCount));
-                            }
-
-                            // tcp breakdown to follow
-                            if(strArr[1].equals("tcp"))
-                            {
-                                currentProtocol = "tcp";
-                                isTCPBreakdown = true;
-                                isUDPBreakdown = false;
-                            }
-                            else if(strArr[1].equals("udp"))
-                            {
-                                currentProtocol = "udp";
-                                isUDPBreakdown = true;
-                                isTCPBreakdown = false;
-                            }
-                            else if(strArr[1].equals("other"))
-                            {
-                                currentProtocol = null;
-                                isTCPBreakdown = false;
-                                isUDPBreakdown = false;
-                            }
+                long parseStart = System.nanoTime();
 
+                readProtocolBreakdown(bufferedReader, portCounterMap, true);
 
-                        }
-                        lineCounter++;
-                    }
-                }
+                metrics.stage("parse-tcpdstat").addTime(System.nanoTime() - parseStart);
+                metrics.stage("parse-tcpdstat").count(0, output.length);
             }
             else
             {
-                printCurrentTime();
-                System.out.println("An error occurred on running tcpdstat command for file : " + fileName);
+                ConsoleLog.error("An error occurred on running tcpdstat command for file : " + fileName);
 
                 bufferedReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
 
                 while((line = bufferedReader.readLine()) != null)
                 {
-                    System.out.println(line);
+                    ConsoleLog.error(line);
                 }
+
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        return true;
     }
 
+    /**
+     * Reads a filtered pcap file, classifying the application of each tcp and udp flow from its payloads and counting
+     * its packets in the histograms when kept
+     * @param applications - aggregator keeping the bytes and packets per service and application
+     * @param histograms - histograms the packets are counted in, or null if not kept
+     * @param file - the filtered pcap file
+     * @param metrics - metrics counting and timing the packets classified
+     * @return false if the file could not be read
+     */
+    public static boolean classifyFilteredFile(ApplicationAggregator applications, TrafficHistograms histograms, File file, Metrics metrics)
+    {
+        Metrics.Stage classifyStage = metrics.stage("classify");
+        PacketDecoder decoder = new PacketDecoder();
+        PcapReader reader = null;
+
+        try {
+            ConsoleLog.info("Classifying applications for file : " + file.getName());
+
+            reader = new PcapReader(file);
+
+            long classifyStart = System.nanoTime();
+
+            if(histograms != null)
+                histograms.startFile();
+
+            while(reader.next())
+            {
+                classifyStage.count(1, reader.getCapturedLength());
+
+                if(!decoder.decode(reader.getLinkType(), reader.getBuffer(), reader.getPacketOffset(), reader.getCapturedLength()))
+                    continue;
+
+                applications.process(decoder, reader.getTimestampMicros(), reader.getOriginalLength());
+
+                if(histograms != null)
+                    histograms.record(decoder, reader.getTimestampMicros(), reader.getOriginalLength());
+            }
+
+            classifyStage.addTime(System.nanoTime() - classifyStart);
+        } catch (IOException e) {
+            ConsoleLog.error("An error occurred on classifying applications for file : " + file.getName());
+            e.printStackTrace();
+            return false;
+        } finally {
+            if(reader != null)
+            {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return true;
+    }
 
     /**
-     * Prints the current system time
+     * Reads the tcp and udp services of the protocol breakdown printed by tcpdstat, adding their bytes and packets to
+     * the counts
+     * @param bufferedReader - reader of the tcpdstat output
+     * @param portCounterMap - hashmap that keeps count of bytes and packets per port
+     * @param printServices - whether to print each service as it is read
+     * @throws IOException on failing to read the output
      */
-    public static void printCurrentTime()
+    public static void readProtocolBreakdown(BufferedReader bufferedReader, HashMap<String, HashMap<String, long[]>> portCounterMap,
+                                             boolean printServices) throws IOException
     {
-        ICMPAnalyser.printCurrentTime();
+        String line = null;
+
+        boolean inProtocolSection = false;
+        int lineCounter = 1;
+
+        boolean isTCPBreakdown = false;
+        boolean isUDPBreakdown = false;
+
+        String currentProtocol = null;
+
+        while((line = bufferedReader.readLine()) != null)
+        {
+            if(line.equals("### Protocol Breakdown ###"))
+                inProtocolSection = true;
+            else if(line.equals(">>>>"))
+                inProtocolSection = false;
+
+            if(inProtocolSection)
+            {
+                // the actual protocol breakdown past the table boundary
+                if(lineCounter >= 5)
+                {
+                    String tempLine = line.replaceAll("\\(\\s+", "(");
+
+                    String[] strArr = tempLine.split("\\s+");
+
+                    if(strArr[0].equals("[2]"))
+                    {
+                        currentProtocol = null;
+                        isTCPBreakdown = false;
+                        isUDPBreakdown = false;
+                    }
+
+                    // do processing in here
+                    if(isTCPBreakdown || isUDPBreakdown)
+                    {
+                        String serviceName = strArr[1];
+                        String servicePackets = strArr[2];
+                        String serviceBytes = strArr[4];
+
+                        if(printServices)
+                            ConsoleLog.row(currentProtocol + ", " + serviceName + ", " + serviceBytes);
+
+                        if(!portCounterMap.containsKey(currentProtocol))
+                        {
+                            portCounterMap.put(currentProtocol, new HashMap<String, long[]>());
+                        }
+
+                        HashMap<String, long[]> serviceCounterMap = portCounterMap.get(currentProtocol);
+
+                        if(!serviceCounterMap.containsKey(serviceName))
+                        {
+                            serviceCounterMap.put(serviceName, new long[2]);
+                        }
+
+                        long[] serviceCounts = serviceCounterMap.get(serviceName);
+
+                        serviceCounts[BYTES_INDEX] += Long.parseLong(serviceBytes);
+                        serviceCounts[PACKETS_INDEX] += Long.parseLong(servicePackets);
+                    }
+
+                    // tcp breakdown to follow
+                    if(strArr[1].equals("tcp"))
+                    {
+                        currentProtocol = "tcp";
+                        isTCPBreakdown = true;
+                        isUDPBreakdown = false;
+                    }
+                    else if(strArr[1].equals("udp"))
+                    {
+                        currentProtocol = "udp";
+                        isUDPBreakdown = true;
+                        isTCPBreakdown = false;
+                    }
+                    else if(strArr[1].equals("other"))
+                    {
+                        currentProtocol = null;
+                        isTCPBreakdown = false;
+                        isUDPBreakdown = false;
+                    }
+
+
+                }
+                lineCounter++;
+            }
+        }
     }
 
+
     /**
      * Deletes provided file or folder
      * @param file - file or folder to delete
@@ -0,0 +1,293 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * <h1>Public Suffix List</h1>
+ * Resolves host names to their registrable domain using the rules of the public suffix list, so that
+ * www.bbc.co.uk collapses to *.bbc.co.uk rather than *.co.uk. The rules are loaded once from the bundled
+ * public_suffix_list.dat into a trie of labels read from right to left, which is then walked over the host name in
+ * place without splitting it or using regular expressions.
+ */
+public class PublicSuffixList
+{
+    private static final String LIST_RESOURCE = "/public_suffix_list.dat";
+
+    private static PublicSuffixList defaultList;
+
+    private Node root;
+
+    /**
+     * Builds the trie from the rules in the provided list
+     * @param inputStream - stream of the list in public_suffix_list.dat format
+     * @throws IOException - if the list cannot be read
+     */
+    public PublicSuffixList(InputStream inputStream) throws IOException
+    {
+        BuilderNode builder = new BuilderNode();
+
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String line = null;
+
+        while((line = bufferedReader.readLine()) != null)
+        {
+            line = line.trim();
+
+            if(line.isEmpty() || line.startsWith("//"))
+                continue;
+
+            // only the first whitespace delimited token of a line is the rule
+            int space = line.indexOf(' ');
+            String rule = space < 0 ? line : line.substring(0, space);
+
+            boolean exception = rule.startsWith("!");
+
+            if(exception)
+                rule = rule.substring(1);
+
+            try {
+                rule = IDN.toASCII(rule, IDN.ALLOW_UNASSIGNED).toLowerCase();
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+
+            String[] labels = rule.split("\\.");
+
+            BuilderNode node = builder;
+
+            for(int i = labels.length - 1; i >= 0; i--)
+            {
+                node = node.child(labels[i]);
+            }
+
+            if(exception)
+                node.exception = true;
+            else
+                node.rule = true;
+        }
+
+        bufferedReader.close();
+
+        root = builder.build();
+    }
+
+    /**
+     * @return the list loaded from the public_suffix_list.dat bundled with the tools
+     */
+    public static synchronized PublicSuffixList getDefault()
+    {
+        if(defaultList == null)
+        {
+            InputStream inputStream = PublicSuffixList.class.getResourceAsStream(LIST_RESOURCE);
+
+            if(inputStream == null)
+                throw new IllegalStateException("Missing bundled resource : " + LIST_RESOURCE);
+
+            try {
+                defaultList = new PublicSuffixList(inputStream);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read bundled resource : " + LIST_RESOURCE, e);
+            }
+        }
+
+        return defaultList;
+    }
+
+    /**
+     * Collapses a host name to its registrable domain
+     * @param host - the host name e.g www.bbc.co.uk
+     * @return the registrable domain in lower case prefixed by "*." e.g *.bbc.co.uk
+     */
+    public String collapse(String host)
+    {
+        return "*." + host.substring(registrableDomainStart(host)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Finds where the registrable domain of a host name starts i.e the public suffix plus one more label. Hosts that
+     * are themselves public suffixes or single labels are returned whole.
+     * @param host - the host name, compared regardless of case and ignoring a trailing dot
+     * @return index in the host name of the first character of its registrable domain
+     */
+    public int registrableDomainStart(CharSequence host)
+    {
+        int end = host.length();
+
+        if(end > 0 && host.charAt(end - 1) == '.')
+            end--;
+
+        Node node = root;
+
+        // a host matching no rule has its last label as its public suffix
+        int suffixLabels = 1;
+        int matchedLabels = 0;
+
+        int labelEnd = end;
+
+        while(labelEnd > 0 && node != null)
+        {
+            int labelStart = labelEnd;
+
+            while(labelStart > 0 && host.charAt(labelStart - 1) != '.')
+                labelStart--;
+
+            if(node.wildcard)
+                suffixLabels = Math.max(suffixLabels, matchedLabels + 1);
+
+            Node child = node.find(host, labelStart, labelEnd);
+
+            if(child == null)
+                break;
+
+            matchedLabels++;
+
+            // an exception rule makes the label part of the registrable domain
+            if(child.exception)
+            {
+                suffixLabels = matchedLabels - 1;
+                break;
+            }
+
+            if(child.rule)
+                suffixLabels = Math.max(suffixLabels, matchedLabels);
+
+            node = child;
+            labelEnd = labelStart - 1;
+        }
+
+        // walk back to the start of the label before the public suffix
+        int labels = 0;
+        int position = end;
+
+        while(position > 0)
+        {
+            if(host.charAt(position - 1) == '.')
+            {
+                labels++;
+
+                if(labels == suffixLabels + 1)
+                    return position;
+            }
+
+            position--;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Trie node used while the list is being read
+     */
+    private static class BuilderNode
+    {
+        private TreeMap<String, BuilderNode> children = new TreeMap<String, BuilderNode>();
+        private boolean rule;
+        private boolean exception;
+
+        private BuilderNode child(String label)
+        {
+            BuilderNode node = children.get(label);
+
+            if(node == null)
+            {
+                node = new BuilderNode();
+                children.put(label, node);
+            }
+
+            return node;
+        }
+
+        private Node build()
+        {
+            Node node = new Node();
+            node.rule = rule;
+            node.exception = exception;
+
+            ArrayList<String> labels = new ArrayList<String>();
+            ArrayList<Node> nodes = new ArrayList<Node>();
+
+            for(String label : children.keySet())
+            {
+                if(label.equals("*"))
+                {
+                    node.wildcard = true;
+                    continue;
+                }
+
+                labels.add(label);
+                nodes.add(children.get(label).build());
+            }
+
+            node.labels = labels.toArray(new String[labels.size()]);
+            node.children = nodes.toArray(new Node[nodes.size()]);
+
+            return node;
+        }
+    }
+
+    /**
+     * Trie node holding its children's labels in sorted order for binary search
+     */
+    private static class Node
+    {
+        private String[] labels;
+        private Node[] children;
+        private boolean rule;
+        private boolean exception;
+        private boolean wildcard;
+
+        /**
+         * Finds the child for a label of a host name
+         * @param host - the host name
+         * @param start - index of the label's first character
+         * @param end - index just past the label's last character
+         * @return the child node or null if there is none
+         */
+        private Node find(CharSequence host, int start, int end)
+        {
+            int low = 0;
+            int high = labels.length - 1;
+
+            while(low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                int comparison = compare(labels[middle], host, start, end);
+
+                if(comparison < 0)
+                    low = middle + 1;
+                else if(comparison > 0)
+                    high = middle - 1;
+                else
+                    return children[middle];
+            }
+
+            return null;
+        }
+
+        private static int compare(String label, CharSequence host, int start, int end)
+        {
+            int length = Math.min(label.length(), end - start);
+
+            for(int i = 0; i < length; i++)
+            {
+                char c = host.charAt(start + i);
+
+                if(c >= 'A' && c <= 'Z')
+                    c += 'a' - 'A';
+
+                int difference = label.charAt(i) - c;
+
+                if(difference != 0)
+                    return difference;
+            }
+
+            return label.length() - (end - start);
+        }
+    }
+}
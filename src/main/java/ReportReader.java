@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Report Reader</h1>
+ * Loads reports written in the columnar format by ReportWriter back into report tables
+ */
+public class ReportReader
+{
+    /**
+     * Reads a columnar report
+     * @param file - the columnar file
+     * @return table holding the report rows in the order they were written
+     * @throws IOException on failing to read the file or if it is not a columnar report
+     */
+    public static ReportTable readColumnar(File file) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+        try {
+            if(input.readInt() != ReportWriter.MAGIC)
+                throw new IOException("Not a columnar report : " + file.getName());
+
+            int version = input.readInt();
+
+            if(version != ReportWriter.VERSION)
+                throw new IOException("Unsupported columnar report version " + version + " : " + file.getName());
+
+            int columnCount = input.readInt();
+            String[] columnNames = new String[columnCount];
+            byte[] columnTypes = new byte[columnCount];
+
+            for(int column = 0; column < columnCount; column++)
+            {
+                columnNames[column] = input.readUTF();
+                columnTypes[column] = input.readByte();
+            }
+
+            ReportTable table = new ReportTable(columnNames, columnTypes);
+
+            int rows;
+
+            while((rows = input.readInt()) > 0)
+            {
+                Object[] values = new Object[columnCount];
+
+                for(int column = 0; column < columnCount; column++)
+                {
+                    byte[] chunk = new byte[input.readInt()];
+                    input.readFully(chunk);
+
+                    int[] position = {0};
+
+                    if(columnTypes[column] == ReportTable.STRING)
+                        values[column] = readStringChunk(chunk, position, rows);
+                    else if(columnTypes[column] == ReportTable.LONG)
+                        values[column] = readLongChunk(chunk, position, rows);
+                    else
+                        values[column] = readDoubleChunk(chunk, rows);
+                }
+
+                for(int row = 0; row < rows; row++)
+                {
+                    table.newRow();
+
+                    for(int column = 0; column < columnCount; column++)
+                    {
+                        if(columnTypes[column] == ReportTable.STRING)
+                            table.add(((String[]) values[column])[row]);
+                        else if(columnTypes[column] == ReportTable.LONG)
+                            table.add(((long[]) values[column])[row]);
+                        else
+                            table.add(((double[]) values[column])[row]);
+                    }
+                }
+            }
+
+            return table;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String[] readStringChunk(byte[] chunk, int[] position, int rows)
+    {
+        String[] dictionary = new String[(int) readVarLong(chunk, position) + 1];
+
+        for(int entry = 1; entry < dictionary.length; entry++)
+        {
+            int length = (int) readVarLong(chunk, position);
+
+            dictionary[entry] = new String(chunk, position[0], length, StandardCharsets.UTF_8);
+            position[0] += length;
+        }
+
+        String[] values = new String[rows];
+
+        for(int row = 0; row < rows; row++)
+        {
+            values[row] = dictionary[(int) readVarLong(chunk, position)];
+        }
+
+        return values;
+    }
+
+    private static long[] readLongChunk(byte[] chunk, int[] position, int rows)
+    {
+        long[] values = new long[rows];
+        long previous = 0;
+
+        for(int row = 0; row < rows; row++)
+        {
+            long encoded = readVarLong(chunk, position);
+
+            previous += (encoded >>> 1) ^ -(encoded & 1);
+            values[row] = previous;
+        }
+
+        return values;
+    }
+
+    private static double[] readDoubleChunk(byte[] chunk, int rows)
+    {
+        double[] values = new double[rows];
+
+        for(int row = 0; row < rows; row++)
+        {
+            long bits = 0;
+
+            for(int i = 0; i < 8; i++)
+            {
+                bits = (bits << 8) | (chunk[row * 8 + i] & 0xff);
+            }
+
+            values[row] = Double.longBitsToDouble(bits);
+        }
+
+        return values;
+    }
+
+    private static long readVarLong(byte[] chunk, int[] position)
+    {
+        long value = 0;
+        int shift = 0;
+        byte current;
+
+        do {
+            current = chunk[position[0]++];
+            value |= (long) (current & 0x7f) << shift;
+            shift += 7;
+        } while((current & 0x80) != 0);
+
+        return value;
+    }
+}
@@ -0,0 +1,293 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <h1>Report Table</h1>
+ * Typed, column oriented holder for the rows of an analysis report. Values are appended a row at a time into
+ * primitive or string arrays per column, and the rows can be put into a deterministic sorted order before they are
+ * written out as CSV or in the columnar binary format.
+ */
+public class ReportTable
+{
+    public static final byte STRING = 1;
+    public static final byte LONG = 2;
+    public static final byte DOUBLE = 3;
+
+    private String[] columnNames;
+    private byte[] columnTypes;
+
+    private String[][] stringColumns;
+    private long[][] longColumns;
+    private double[][] doubleColumns;
+
+    private int rowCount = 0;
+    private int capacity = 64;
+    private int currentColumn = -1;
+
+    /**
+     * Creates an empty table
+     * @param columnNames - names of the columns, as written in a CSV header
+     * @param columnTypes - type of each column, one of STRING, LONG or DOUBLE
+     */
+    public ReportTable(String[] columnNames, byte[] columnTypes)
+    {
+        if(columnNames.length != columnTypes.length)
+            throw new IllegalArgumentException("Column names and types differ in number");
+
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+
+        stringColumns = new String[columnNames.length][];
+        longColumns = new long[columnNames.length][];
+        doubleColumns = new double[columnNames.length][];
+
+        for(int column = 0; column < columnTypes.length; column++)
+        {
+            if(columnTypes[column] == STRING)
+                stringColumns[column] = new String[capacity];
+            else if(columnTypes[column] == LONG)
+                longColumns[column] = new long[capacity];
+            else if(columnTypes[column] == DOUBLE)
+                doubleColumns[column] = new double[capacity];
+            else
+                throw new IllegalArgumentException("Unknown column type : " + columnTypes[column]);
+        }
+    }
+
+    /**
+     * Starts a new row, whose values are then given in column order with the add methods
+     * @return this table
+     */
+    public ReportTable newRow()
+    {
+        if(currentColumn >= 0 && currentColumn < columnNames.length)
+            throw new IllegalStateException("Previous row has " + currentColumn + " of " + columnNames.length + " values");
+
+        if(rowCount == capacity)
+            grow();
+
+        rowCount++;
+        currentColumn = 0;
+
+        return this;
+    }
+
+    public ReportTable add(String value)
+    {
+        stringColumns[nextColumn(STRING)][rowCount - 1] = value;
+        return this;
+    }
+
+    public ReportTable add(long value)
+    {
+        longColumns[nextColumn(LONG)][rowCount - 1] = value;
+        return this;
+    }
+
+    public ReportTable add(double value)
+    {
+        doubleColumns[nextColumn(DOUBLE)][rowCount - 1] = value;
+        return this;
+    }
+
+    private int nextColumn(byte type)
+    {
+        if(currentColumn < 0 || currentColumn >= columnNames.length)
+            throw new IllegalStateException("No value expected, start a new row first");
+
+        if(columnTypes[currentColumn] != type)
+            throw new IllegalStateException("Column " + columnNames[currentColumn] + " does not hold type " + type);
+
+        return currentColumn++;
+    }
+
+    /**
+     * Removes all rows, keeping the columns' space for reuse
+     */
+    public void clear()
+    {
+        if(currentColumn >= 0 && currentColumn < columnNames.length)
+            throw new IllegalStateException("Last row has " + currentColumn + " of " + columnNames.length + " values");
+
+        for(String[] strings : stringColumns)
+        {
+            if(strings != null)
+                Arrays.fill(strings, 0, rowCount, null);
+        }
+
+        rowCount = 0;
+        currentColumn = -1;
+    }
+
+    private void grow()
+    {
+        capacity *= 2;
+
+        for(int column = 0; column < columnTypes.length; column++)
+        {
+            if(stringColumns[column] != null)
+                stringColumns[column] = Arrays.copyOf(stringColumns[column], capacity);
+            else if(longColumns[column] != null)
+                longColumns[column] = Arrays.copyOf(longColumns[column], capacity);
+            else
+                doubleColumns[column] = Arrays.copyOf(doubleColumns[column], capacity);
+        }
+    }
+
+    /**
+     * Key for sort() ordering rows by a column from smallest to largest
+     * @param column - the column
+     * @return the sort key
+     */
+    public static int ascending(int column)
+    {
+        return column + 1;
+    }
+
+    /**
+     * Key for sort() ordering rows by a column from largest to smallest
+     * @param column - the column
+     * @return the sort key
+     */
+    public static int descending(int column)
+    {
+        return -(column + 1);
+    }
+
+    /**
+     * Sorts the rows by the given keys, then by the remaining columns from left to right, so that reports come out
+     * the same however their rows were gathered
+     * @param keys - sort keys made with ascending() and descending(), none sorting by all columns in order
+     */
+    public void sort(int... keys)
+    {
+        final int[] order = new int[columnTypes.length];
+        final boolean[] reversed = new boolean[columnTypes.length];
+        boolean[] used = new boolean[columnTypes.length];
+        int position = 0;
+
+        for(int key : keys)
+        {
+            int column = Math.abs(key) - 1;
+
+            if(!used[column])
+            {
+                used[column] = true;
+                reversed[position] = key < 0;
+                order[position++] = column;
+            }
+        }
+
+        for(int column = 0; column < columnTypes.length; column++)
+        {
+            if(!used[column])
+                order[position++] = column;
+        }
+
+        Integer[] rows = new Integer[rowCount];
+
+        for(int row = 0; row < rowCount; row++)
+        {
+            rows[row] = row;
+        }
+
+        Arrays.sort(rows, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer first, Integer second)
+            {
+                for(int i = 0; i < order.length; i++)
+                {
+                    int column = order[i];
+                    int comparison;
+
+                    if(columnTypes[column] == STRING)
+                        comparison = compareStrings(stringColumns[column][first], stringColumns[column][second]);
+                    else if(columnTypes[column] == LONG)
+                        comparison = Long.compare(longColumns[column][first], longColumns[column][second]);
+                    else
+                        comparison = Double.compare(doubleColumns[column][first], doubleColumns[column][second]);
+
+                    if(comparison != 0)
+                        return reversed[i] ? -comparison : comparison;
+                }
+
+                return 0;
+            }
+        });
+
+        for(int column = 0; column < columnTypes.length; column++)
+        {
+            if(stringColumns[column] != null)
+            {
+                String[] sorted = new String[capacity];
+
+                for(int row = 0; row < rowCount; row++)
+                    sorted[row] = stringColumns[column][rows[row]];
+
+                stringColumns[column] = sorted;
+            }
+            else if(longColumns[column] != null)
+            {
+                long[] sorted = new long[capacity];
+
+                for(int row = 0; row < rowCount; row++)
+                    sorted[row] = longColumns[column][rows[row]];
+
+                longColumns[column] = sorted;
+            }
+            else
+            {
+                double[] sorted = new double[capacity];
+
+                for(int row = 0; row < rowCount; row++)
+                    sorted[row] = doubleColumns[column][rows[row]];
+
+                doubleColumns[column] = sorted;
+            }
+        }
+    }
+
+    private static int compareStrings(String first, String second)
+    {
+        if(first == null || second == null)
+            return first == null ? (second == null ? 0 : -1) : 1;
+
+        return first.compareTo(second);
+    }
+
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    public int getColumnCount()
+    {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int column)
+    {
+        return columnNames[column];
+    }
+
+    public byte getColumnType(int column)
+    {
+        return columnTypes[column];
+    }
+
+    public String getString(int row, int column)
+    {
+        return stringColumns[column][row];
+    }
+
+    public long getLong(int row, int column)
+    {
+        return longColumns[column][row];
+    }
+
+    public double getDouble(int row, int column)
+    {
+        return doubleColumns[column][row];
+    }
+}
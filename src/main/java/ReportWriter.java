@@ -0,0 +1,429 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * <h1>Report Writer</h1>
+ * Writes report tables through buffered streams, as CSV and/or as a compact typed columnar file chosen with the
+ * --output-format option.
+ * <p>
+ * The columnar file starts with the magic "PKTC", a format version and the column names and types, followed by row
+ * groups of up to 65536 rows. Each row group gives its row count and then one chunk per column, prefixed by the
+ * chunk's length in bytes so a reader can skip columns it does not need. Long columns hold zigzag varint deltas from
+ * the previous row, double columns hold 8 byte values and string columns hold a dictionary of the group's distinct
+ * values followed by a varint dictionary index per row, index 0 standing for a missing value. A row count of zero
+ * ends the file.
+ * <p>
+ * Reports can be written from a whole table with write(), or opened with open() and have their rows appended a table
+ * at a time.
+ */
+public class ReportWriter implements Closeable
+{
+    public static final String FORMAT_OPTION_INSTRUCTION = "- Optionally choose the report format i.e --output-format csv, columnar or both, " +
+            "and the folder to write reports to i.e --output-dir reports";
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_COLUMNAR = "columnar";
+    public static final String FORMAT_BOTH = "both";
+
+    public static final String CSV_EXTENSION = ".csv";
+    public static final String COLUMNAR_EXTENSION = ".pktc";
+
+    public static final int MAGIC = 0x504b5443;
+    public static final int VERSION = 1;
+    public static final int ROW_GROUP_SIZE = 1 << 16;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private String[] columnNames;
+    private byte[] columnTypes;
+
+    private Writer csvWriter;
+    private DataOutputStream columnarOutput;
+
+    // each chunk is put together in memory first so its length can be written ahead of it
+    private ByteArrayOutputStream chunk;
+
+    /**
+     * Opens report files and writes their headers
+     * @param csvFile - CSV file to write, or null for none
+     * @param columnarFile - columnar file to write, or null for none
+     * @param columnNames - names of the columns
+     * @param columnTypes - type of each column
+     * @throws IOException on failing to write the files
+     */
+    private ReportWriter(File csvFile, File columnarFile, String[] columnNames, byte[] columnTypes) throws IOException
+    {
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+
+        try {
+            if(csvFile != null)
+                openCsv(csvFile);
+
+            if(columnarFile != null)
+                openColumnar(columnarFile);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a report in the format chosen with --output-format, csv by default, into the folder given with --output-dir
+     * @param table - the report rows
+     * @param reportName - file name of the report without its extension e.g "domain-analysis"
+     * @param options - the options given to the analyser
+     */
+    public static void write(ReportTable table, String reportName, AnalyserOptions options)
+    {
+        ReportWriter writer = null;
+
+        try {
+            writer = open(reportName, table, options);
+            writer.append(table);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(writer != null)
+                writer.closeQuietly();
+        }
+    }
+
+    /**
+     * Opens a report in the format chosen with --output-format for its rows to be appended a table at a time, so
+     * reports larger than memory can be written
+     * @param reportName - file name of the report without its extension e.g "domain-analysis"
+     * @param columns - table whose column names and types the report has
+     * @param options - the options given to the analyser
+     * @return the writer, to be closed once all rows are appended
+     * @throws IOException on failing to write the files
+     */
+    public static ReportWriter open(String reportName, ReportTable columns, AnalyserOptions options) throws IOException
+    {
+        String format = options.getString("output-format", FORMAT_CSV);
+
+        //reports go to the working directory unless given a folder
+        File folder = null;
+
+        if(options.has("output-dir"))
+        {
+            folder = new File(options.getString("output-dir", null));
+            folder.mkdirs();
+        }
+
+        File csvFile = format.equals(FORMAT_CSV) || format.equals(FORMAT_BOTH) ? new File(folder, reportName + CSV_EXTENSION) : null;
+        File columnarFile = format.equals(FORMAT_COLUMNAR) || format.equals(FORMAT_BOTH) ? new File(folder, reportName + COLUMNAR_EXTENSION) : null;
+
+        return new ReportWriter(csvFile, columnarFile, columnNames(columns), columnTypes(columns));
+    }
+
+    /**
+     * Opens a columnar file for its rows to be appended a table at a time, whatever the --output-format
+     * @param file - the file to write
+     * @param columns - table whose column names and types the file has
+     * @return the writer, to be closed once all rows are appended
+     * @throws IOException on failing to write the file
+     */
+    public static ReportWriter openColumnar(File file, ReportTable columns) throws IOException
+    {
+        return new ReportWriter(null, file, columnNames(columns), columnTypes(columns));
+    }
+
+    /**
+     * Checks that a format given with --output-format is known
+     * @param options - the options given to the analyser
+     */
+    public static void checkFormat(AnalyserOptions options)
+    {
+        String format = options.getString("output-format", FORMAT_CSV);
+
+        if(!format.equals(FORMAT_CSV) && !format.equals(FORMAT_COLUMNAR) && !format.equals(FORMAT_BOTH))
+            throw new IllegalArgumentException("Unknown output format : " + format);
+    }
+
+    /**
+     * Writes a report as CSV with a header row, values separated by ", "
+     * @param table - the report rows
+     * @param file - the file to write
+     * @throws IOException on failing to write the file
+     */
+    public static void writeCsv(ReportTable table, File file) throws IOException
+    {
+        ReportWriter writer = new ReportWriter(file, null, columnNames(table), columnTypes(table));
+
+        try {
+            writer.append(table);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a report in the columnar format
+     * @param table - the report rows
+     * @param file - the file to write
+     * @throws IOException on failing to write the file
+     */
+    public static void writeColumnar(ReportTable table, File file) throws IOException
+    {
+        ReportWriter writer = new ReportWriter(null, file, columnNames(table), columnTypes(table));
+
+        try {
+            writer.append(table);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Appends the rows of a table, which must have the report's columns. Each call starts new row groups in the
+     * columnar file, so tables of ROW_GROUP_SIZE rows give the same file as writing all rows at once.
+     * @param table - the rows to append
+     * @throws IOException on failing to write the files
+     */
+    public void append(ReportTable table) throws IOException
+    {
+        if(table.getColumnCount() != columnTypes.length)
+            throw new IllegalArgumentException("Table has " + table.getColumnCount() + " columns but the report has " + columnTypes.length);
+
+        if(csvWriter != null)
+            appendCsv(table);
+
+        if(columnarOutput != null)
+            appendColumnar(table);
+    }
+
+    /**
+     * Ends the report files
+     * @throws IOException on failing to write the files
+     */
+    @Override
+    public void close() throws IOException
+    {
+        IOException failure = null;
+
+        if(csvWriter != null)
+        {
+            try {
+                csvWriter.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            csvWriter = null;
+        }
+
+        if(columnarOutput != null)
+        {
+            try {
+                columnarOutput.writeInt(0);
+                columnarOutput.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            columnarOutput = null;
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+
+    /**
+     * Ends the report files, printing any failure
+     */
+    public void closeQuietly()
+    {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String[] columnNames(ReportTable table)
+    {
+        String[] names = new String[table.getColumnCount()];
+
+        for(int column = 0; column < names.length; column++)
+        {
+            names[column] = table.getColumnName(column);
+        }
+
+        return names;
+    }
+
+    private static byte[] columnTypes(ReportTable table)
+    {
+        byte[] types = new byte[table.getColumnCount()];
+
+        for(int column = 0; column < types.length; column++)
+        {
+            types[column] = table.getColumnType(column);
+        }
+
+        return types;
+    }
+
+    private void openCsv(File file) throws IOException
+    {
+        csvWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+
+        //the column heads
+        for(int column = 0; column < columnNames.length; column++)
+        {
+            if(column > 0)
+                csvWriter.write(", ");
+
+            csvWriter.write(columnNames[column]);
+        }
+
+        csvWriter.write('\n');
+    }
+
+    private void appendCsv(ReportTable table) throws IOException
+    {
+        for(int row = 0; row < table.getRowCount(); row++)
+        {
+            for(int column = 0; column < table.getColumnCount(); column++)
+            {
+                if(column > 0)
+                    csvWriter.write(", ");
+
+                byte type = table.getColumnType(column);
+
+                if(type == ReportTable.STRING)
+                    csvWriter.write(String.valueOf(table.getString(row, column)));
+                else if(type == ReportTable.LONG)
+                    csvWriter.write(Long.toString(table.getLong(row, column)));
+                else
+                    csvWriter.write(Double.toString(table.getDouble(row, column)));
+            }
+
+            csvWriter.write('\n');
+        }
+    }
+
+    private void openColumnar(File file) throws IOException
+    {
+        columnarOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        chunk = new ByteArrayOutputStream(BUFFER_SIZE);
+
+        columnarOutput.writeInt(MAGIC);
+        columnarOutput.writeInt(VERSION);
+        columnarOutput.writeInt(columnNames.length);
+
+        for(int column = 0; column < columnNames.length; column++)
+        {
+            columnarOutput.writeUTF(columnNames[column]);
+            columnarOutput.writeByte(columnTypes[column]);
+        }
+    }
+
+    private void appendColumnar(ReportTable table) throws IOException
+    {
+        for(int start = 0; start < table.getRowCount(); start += ROW_GROUP_SIZE)
+        {
+            int end = Math.min(start + ROW_GROUP_SIZE, table.getRowCount());
+
+            columnarOutput.writeInt(end - start);
+
+            for(int column = 0; column < table.getColumnCount(); column++)
+            {
+                chunk.reset();
+
+                byte type = table.getColumnType(column);
+
+                if(type == ReportTable.STRING)
+                    writeStringChunk(table, column, start, end, chunk);
+                else if(type == ReportTable.LONG)
+                    writeLongChunk(table, column, start, end, chunk);
+                else
+                    writeDoubleChunk(table, column, start, end, chunk);
+
+                columnarOutput.writeInt(chunk.size());
+                chunk.writeTo(columnarOutput);
+            }
+        }
+    }
+
+    private static void writeLongChunk(ReportTable table, int column, int start, int end, ByteArrayOutputStream chunk)
+    {
+        long previous = 0;
+
+        for(int row = start; row < end; row++)
+        {
+            long value = table.getLong(row, column);
+            long delta = value - previous;
+
+            writeVarLong(chunk, (delta << 1) ^ (delta >> 63));
+            previous = value;
+        }
+    }
+
+    private static void writeDoubleChunk(ReportTable table, int column, int start, int end, ByteArrayOutputStream chunk)
+    {
+        for(int row = start; row < end; row++)
+        {
+            long bits = Double.doubleToLongBits(table.getDouble(row, column));
+
+            for(int shift = 56; shift >= 0; shift -= 8)
+            {
+                chunk.write((int) (bits >>> shift));
+            }
+        }
+    }
+
+    private static void writeStringChunk(ReportTable table, int column, int start, int end, ByteArrayOutputStream chunk)
+    {
+        HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+        String[] entries = new String[end - start];
+        int[] indexes = new int[end - start];
+
+        for(int row = start; row < end; row++)
+        {
+            String value = table.getString(row, column);
+
+            if(value == null)
+                continue;
+
+            Integer index = dictionary.get(value);
+
+            if(index == null)
+            {
+                index = dictionary.size() + 1;
+                dictionary.put(value, index);
+                entries[index - 1] = value;
+            }
+
+            indexes[row - start] = index;
+        }
+
+        writeVarLong(chunk, dictionary.size());
+
+        for(int entry = 0; entry < dictionary.size(); entry++)
+        {
+            byte[] bytes = entries[entry].getBytes(StandardCharsets.UTF_8);
+
+            writeVarLong(chunk, bytes.length);
+            chunk.write(bytes, 0, bytes.length);
+        }
+
+        for(int index : indexes)
+        {
+            writeVarLong(chunk, index);
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream chunk, long value)
+    {
+        while((value & ~0x7fL) != 0)
+        {
+            chunk.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        chunk.write((int) value);
+    }
+}
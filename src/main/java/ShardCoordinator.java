@@ -0,0 +1,287 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <h1>Shard Coordinator</h1>
+ * Runs an analyser over a folder of pcap files with several worker processes. The capture files are split into shards
+ * of about equal size, a worker JVM is started on this machine for each shard and writes the unscaled partial counts of
+ * its shard, and the partial counts are then reduced into the analyser's usual report. Workers are only handed their
+ * shard number, the analyser's options and where to write, so the same partial aggregates could come from workers
+ * elsewhere.
+ */
+public class ShardCoordinator
+{
+    private static String ANALYSER_ARGUMENT_INSTRUCTION = "- Provide the analysis to run and the folder to read pcap files from i.e " +
+            "-icmp, -port, -domain, -uplink or -downlink sample_folder";
+    private static String WORKER_OPTION_INSTRUCTION = "- Optionally set the number of worker processes i.e --workers 4, the heap of each " +
+            "i.e --worker-heap 2g and the folder for their partial counts and logs i.e --partial-dir partials; any other " +
+            "options are passed on to the analyser";
+
+    private static String PARTIAL_FOLDER_NAME = "shard_partials";
+
+    private static String DATA_DISPLAY_SEPARATOR = "======================================================================";
+
+    //options of the coordinator itself, which are not passed on to the workers
+    private static List<String> COORDINATOR_OPTIONS = Arrays.asList("workers", "worker-heap", "partial-dir", "shard", "partial");
+
+    //options of the analysers which take no value
+    private static String[] SWITCHES = {"offline", "index", "cache", "quiet", "unwrap", "per-vlan", "dedup", "histograms"};
+
+    public static void main(String[] args)
+    {
+        if(!run(args))
+            System.exit(1);
+    }
+
+    /**
+     * Runs the analysis with the given command line, as main() does, without ending the JVM so several analyses can
+     * be run one after another
+     * @param args - the command line arguments
+     * @return false if the arguments were wrong or the analysis could not be carried out
+     */
+    public static boolean run(String[] args)
+    {
+        AnalyserOptions options = null;
+        PacketSampler sampler = null;
+
+        try {
+            options = AnalyserOptions.parse(args, SWITCHES);
+
+            //the analysers' options are checked here so a mistake is not found by every worker
+            TimeRange.parse(options);
+            SpillingHostCounter.parseBudget(options);
+            ReportWriter.checkFormat(options);
+            CaptureCache.checkOptions(options);
+
+            String[] arguments = options.getArguments();
+            sampler = PacketSampler.parse(options, arguments.length > 0 && arguments[0].equals("-domain") ? "flow" : "packet");
+
+            if(options.getInt("workers", 1) < 1)
+                throw new IllegalArgumentException("Option --workers must be at least 1");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(WORKER_OPTION_INSTRUCTION);
+            return false;
+        }
+
+        String[] arguments = options.getArguments();
+
+        if(arguments.length != 2 || !Arrays.asList("-icmp", "-port", "-domain", "-uplink", "-downlink").contains(arguments[0]))
+        {
+            System.out.println("Wrong arguments provided. Please do the following:");
+            System.out.println(ANALYSER_ARGUMENT_INSTRUCTION);
+            System.out.println(WORKER_OPTION_INSTRUCTION);
+            return false;
+        }
+
+        String analysis = arguments[0];
+        String folderName = arguments[1];
+        int workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+
+        File partialFolder = new File(options.getString("partial-dir", folderName + "/" + PARTIAL_FOLDER_NAME));
+
+        if(partialFolder.exists())
+            ICMPAnalyser.deleteDirectory(partialFolder);
+
+        if(!partialFolder.mkdirs())
+        {
+            System.out.println("Failed to make folder for partial counts : " + partialFolder);
+            return false;
+        }
+
+        //shards without files are not given a worker
+        ArrayList<ArrayList<File>> shards = CaptureShards.plan(new File(folderName).listFiles(), workers);
+        ArrayList<Process> processes = new ArrayList<Process>();
+        ArrayList<File> partials = new ArrayList<File>();
+        ArrayList<File> logs = new ArrayList<File>();
+
+        for(int shard = 1; shard <= workers; shard++)
+        {
+            if(shards.get(shard - 1).isEmpty())
+                continue;
+
+            File partial = new File(partialFolder, "part-" + shard + ReportWriter.COLUMNAR_EXTENSION);
+            File log = new File(partialFolder, "worker-" + shard + ".log");
+
+            List<String> command = workerCommand(analysis, folderName, args, options);
+            command.add("--shard");
+            command.add(shard + "/" + workers);
+            command.add("--partial");
+            command.add(partial.getPath());
+
+            System.out.println(DATA_DISPLAY_SEPARATOR);
+            printCurrentTime();
+            System.out.println("Starting worker " + shard + " of " + workers + " on " + shards.get(shard - 1).size() + " files, logging to : " + log);
+
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(log);
+
+            try {
+                processes.add(processBuilder.start());
+                partials.add(partial);
+                logs.add(log);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        //wait for every worker, a single failure leaving the partial counts and logs in place for a look
+        boolean failed = false;
+
+        for(int worker = 0; worker < processes.size(); worker++)
+        {
+            try {
+                int errorCode = processes.get(worker).waitFor();
+
+                printCurrentTime();
+
+                if(errorCode == 0 && partials.get(worker).isFile())
+                {
+                    System.out.println("No error occurred in worker writing : " + partials.get(worker).getName());
+                }
+                else
+                {
+                    System.out.println("An error occurred in worker writing : " + partials.get(worker).getName() + ", see " + logs.get(worker));
+                    failed = true;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+
+        if(failed)
+            return false;
+
+        System.out.println(DATA_DISPLAY_SEPARATOR);
+        printCurrentTime();
+        System.out.println("Reducing the partial counts of " + partials.size() + " workers");
+
+        try {
+            reduce(analysis, partials.toArray(new File[partials.size()]), sampler, options);
+        } catch (IOException e) {
+            printCurrentTime();
+            System.out.println("An error occurred on reducing the partial counts in : " + partialFolder);
+            e.printStackTrace();
+            return false;
+        }
+
+        ICMPAnalyser.deleteDirectory(partialFolder);
+
+        return true;
+    }
+
+    /**
+     * Makes the command starting a worker JVM on this machine, running the analyser with the options given to the
+     * coordinator apart from its own
+     * @param analysis - the analysis to run e.g "-icmp"
+     * @param folderName - folder of the pcap files
+     * @param args - the coordinator's command line
+     * @param options - the coordinator's options
+     * @return the command, to which the shard and partial options are added
+     */
+    public static List<String> workerCommand(String analysis, String folderName, String[] args, AnalyserOptions options)
+    {
+        ArrayList<String> command = new ArrayList<String>();
+
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+
+        if(options.has("worker-heap"))
+            command.add("-Xmx" + options.getString("worker-heap", null));
+
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+
+        if(analysis.equals("-icmp"))
+            command.add("ICMPAnalyser");
+        else if(analysis.equals("-port"))
+            command.add("PortAnalyser");
+        else if(analysis.equals("-domain"))
+            command.add("DomainAnalyser");
+        else
+            command.add("BandwidthAnalyzer");
+
+        if(analysis.equals("-uplink") || analysis.equals("-downlink"))
+            command.add(analysis);
+        else
+            command.add("-d");
+
+        command.add(folderName);
+
+        for(int i = 0; i < args.length; i++)
+        {
+            if(!args[i].startsWith("--") || args[i].length() <= 2)
+                continue;
+
+            String name = args[i].substring(2);
+            boolean hasValue = !Arrays.asList(SWITCHES).contains(name);
+
+            if(!COORDINATOR_OPTIONS.contains(name))
+            {
+                command.add(args[i]);
+
+                if(hasValue)
+                    command.add(args[i + 1]);
+            }
+
+            if(hasValue)
+                i++;
+        }
+
+        return command;
+    }
+
+    /**
+     * Combines the partial counts of the workers into the analyser's report
+     * @param analysis - the analysis run e.g "-icmp"
+     * @param partials - the workers' partial aggregates
+     * @param sampler - sampler the counts were taken with, or null if all packets were counted
+     * @param options - the options given to the coordinator
+     * @throws IOException on failing to read a partial aggregate or write the report
+     */
+    public static void reduce(String analysis, File[] partials, PacketSampler sampler, AnalyserOptions options) throws IOException
+    {
+        if(analysis.equals("-icmp"))
+        {
+            ICMPAnalyser.writeReport(PartialAggregate.reduce(partials, ICMPAnalyser.PARTIAL_COLUMNS, ICMPAnalyser.PARTIAL_TYPES,
+                    ICMPAnalyser.PARTIAL_KEY_COLUMNS), sampler, options);
+        }
+        else if(analysis.equals("-port"))
+        {
+            PortAnalyser.writeReport(PartialAggregate.reduce(partials, PortAnalyser.PARTIAL_COLUMNS, PortAnalyser.PARTIAL_TYPES,
+                    PortAnalyser.PARTIAL_KEY_COLUMNS), sampler, options);
+
+            if(options.has("histograms"))
+                TrafficHistograms.reduce(partials, "port-histograms", sampler, options);
+        }
+        else if(analysis.equals("-domain"))
+        {
+            DomainAnalyser.reducePartials(partials, sampler, options);
+        }
+        else
+        {
+            //each file's row is complete, so the rows are only put together
+            String[] columnNames = BandwidthAnalyzer.reportColumns(sampler, options);
+            byte[] columnTypes = new byte[columnNames.length];
+            Arrays.fill(columnTypes, ReportTable.STRING);
+
+            BandwidthAnalyzer.writeReport(PartialAggregate.reduce(partials, columnNames, columnTypes, 0),
+                    analysis.equals("-uplink"), options);
+
+            if(options.has("histograms"))
+                TrafficHistograms.reduce(partials, analysis.substring(1) + "-histograms", sampler, options);
+        }
+    }
+
+    /**
+     * Prints the current system time
+     */
+    public static void printCurrentTime()
+    {
+        ICMPAnalyser.printCurrentTime();
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * <h1>Spilling Host Counter</h1>
+ * Counts host names, with extra value columns and distinct client sketches, within a memory budget. Once the arrays
+ * of the counter pass the budget its hosts are written out in name order as a run in a scratch folder and counting
+ * starts afresh, so only a budget's worth of hosts is held however many distinct hosts the data has. When counting is
+ * finished the runs are read back together in a k-way merge, the records of a host in different runs being summed as
+ * they come up, and the hosts are returned one at a time in name order.
+ * <p>
+ * A run starts with its number of records. Each record holds the name's length and bytes, its count, its values and
+ * its client sketch as written by HyperLogLogCounters.
+ */
+public class SpillingHostCounter implements Closeable
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally keep the host tables within a heap budget in MB i.e --memory-budget 256, " +
+            "spilling sorted runs to a scratch folder i.e --scratch-dir /tmp and merging them at the end";
+
+    public static final long NO_BUDGET = Long.MAX_VALUE;
+
+    // most runs read at once, more being merged into fewer runs first
+    private static final int MAX_MERGE_WIDTH = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private int valueColumns;
+    private long budget;
+    private long spillThreshold;
+    private File scratchFolder;
+
+    private HostCounter counter;
+    private HyperLogLogCounters clients = new HyperLogLogCounters();
+    private ArrayList<File> runs = new ArrayList<File>();
+
+    // hosts held in memory are returned in this order when nothing was spilled
+    private int[] sortedIds;
+    private int position = 0;
+
+    private PriorityQueue<RunReader> queue;
+
+    private byte[] key = new byte[256];
+    private int keyLength;
+    private long count;
+    private long[] values;
+    private HyperLogLogCounters currentClients = new HyperLogLogCounters();
+
+    /**
+     * Creates a counter
+     * @param valueColumns - number of extra values kept per host
+     * @param budget - bytes the counter may hold before spilling, NO_BUDGET never spilling
+     * @param scratchFolder - folder to write runs into
+     */
+    public SpillingHostCounter(int valueColumns, long budget, File scratchFolder)
+    {
+        this.valueColumns = valueColumns;
+        this.budget = budget;
+        this.scratchFolder = scratchFolder;
+
+        spillThreshold = budget;
+        counter = new HostCounter(valueColumns);
+        values = new long[valueColumns];
+    }
+
+    /**
+     * Reads the budget given with --memory-budget
+     * @param options - the options given to the analyser
+     * @return the budget in bytes, or NO_BUDGET if the option was not given
+     */
+    public static long parseBudget(AnalyserOptions options)
+    {
+        if(!options.has("memory-budget"))
+            return NO_BUDGET;
+
+        long megabytes = options.getLong("memory-budget", 0);
+
+        if(megabytes < 1)
+            throw new IllegalArgumentException("Option --memory-budget must be at least 1 MB but was : " + megabytes);
+
+        return megabytes << 20;
+    }
+
+    /**
+     * @param options - the options given to the analyser
+     * @return the folder given with --scratch-dir, or the system's temporary folder
+     */
+    public static File parseScratchFolder(AnalyserOptions options)
+    {
+        return new File(options.getString("scratch-dir", System.getProperty("java.io.tmpdir")));
+    }
+
+    public int add(byte[] buffer, int offset, int length, long delta)
+    {
+        return counter.add(buffer, offset, length, delta);
+    }
+
+    public int add(CharSequence host, long delta)
+    {
+        return counter.add(host, delta);
+    }
+
+    /**
+     * Adds to the count of a host name held by another counter, such as one returned by spill()
+     * @param source - counter holding the name
+     * @param sourceId - id of the name in the source counter
+     * @param delta - amount to add to the count
+     * @return the id of the name in this counter
+     */
+    public int addKey(HostCounter source, int sourceId, long delta)
+    {
+        return counter.addKey(source, sourceId, delta);
+    }
+
+    public void addValue(int id, int column, long delta)
+    {
+        counter.addValue(id, column, delta);
+    }
+
+    /**
+     * Records a client against a host
+     * @param id - id of the host
+     * @param valueHash - hash of the client as made by HyperLogLogCounters.hashAddress()
+     */
+    public void offer(int id, int valueHash)
+    {
+        clients.offer(id, valueHash);
+    }
+
+    /**
+     * Merges clients of another set of sketches into a host
+     * @param source - sketches to merge from
+     * @param sourceId - id in the source sketches
+     * @param id - id of the host
+     */
+    public void mergeClients(HyperLogLogCounters source, int sourceId, int id)
+    {
+        clients.merge(source, sourceId, id);
+    }
+
+    /**
+     * @return true if the hosts held have passed the budget and should be spilled
+     */
+    public boolean isOverBudget()
+    {
+        return counter.estimateMemory() + clients.estimateMemory() > spillThreshold;
+    }
+
+    /**
+     * Writes the hosts held out as a run and starts counting afresh. Ids given out before are no longer valid, the
+     * counter returned letting callers carry hosts they still refer to over with addKey().
+     * @return the counter holding the hosts spilled, for reading their names
+     */
+    public HostCounter spill()
+    {
+        HostCounter spilled = counter;
+
+        try {
+            scratchFolder.mkdirs();
+            File run = File.createTempFile("hosts-", ".run", scratchFolder);
+            run.deleteOnExit();
+
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+
+            try {
+                int[] ids = counter.sortedIds();
+
+                output.writeInt(ids.length);
+
+                for(int id : ids)
+                {
+                    counter.writeKey(id, output);
+                    output.writeLong(counter.getCount(id));
+
+                    for(int column = 0; column < valueColumns; column++)
+                    {
+                        output.writeLong(counter.getValue(id, column));
+                    }
+
+                    clients.write(id, output);
+                }
+            } finally {
+                output.close();
+            }
+
+            runs.add(run);
+        } catch (IOException e) {
+            // keep counting in memory past the budget rather than losing the hosts
+            e.printStackTrace();
+            spillThreshold = NO_BUDGET;
+            return null;
+        }
+
+        counter = new HostCounter(valueColumns);
+        clients = new HyperLogLogCounters();
+
+        return spilled;
+    }
+
+    /**
+     * Called after the hosts still referred to have been carried over from a spill. If they alone take up most of
+     * the budget, spilling waits for them to double so it does not happen on every check.
+     */
+    public void afterSpill()
+    {
+        spillThreshold = Math.max(budget, (counter.estimateMemory() + clients.estimateMemory()) * 2);
+    }
+
+    /**
+     * Ends counting and prepares to return the hosts in name order with next()
+     * @throws IOException on failing to write or read the runs
+     */
+    public void finish() throws IOException
+    {
+        if(runs.isEmpty())
+        {
+            sortedIds = counter.sortedIds();
+            return;
+        }
+
+        if(counter.size() > 0 && spill() == null)
+            throw new IOException("Failed to spill the last hosts to : " + scratchFolder);
+
+        counter = null;
+        clients = null;
+
+        while(runs.size() > MAX_MERGE_WIDTH)
+        {
+            ArrayList<File> group = new ArrayList<File>(runs.subList(0, MAX_MERGE_WIDTH));
+            runs.subList(0, MAX_MERGE_WIDTH).clear();
+            runs.add(mergeRuns(group));
+        }
+
+        queue = openRuns(runs);
+    }
+
+    /**
+     * Merges runs into a single run, deleting them
+     * @param group - the runs to merge
+     * @return the merged run
+     * @throws IOException on failing to write or read the runs
+     */
+    private File mergeRuns(ArrayList<File> group) throws IOException
+    {
+        File run = File.createTempFile("hosts-", ".run", scratchFolder);
+        run.deleteOnExit();
+
+        queue = openRuns(group);
+
+        // the record count is written once known
+        RandomAccessFile countFile = null;
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+        int records = 0;
+
+        try {
+            output.writeInt(0);
+
+            while(nextMerged())
+            {
+                output.writeShort(keyLength);
+                output.write(key, 0, keyLength);
+                output.writeLong(count);
+
+                for(int column = 0; column < valueColumns; column++)
+                {
+                    output.writeLong(values[column]);
+                }
+
+                currentClients.write(0, output);
+                records++;
+            }
+        } finally {
+            output.close();
+        }
+
+        try {
+            countFile = new RandomAccessFile(run, "rw");
+            countFile.writeInt(records);
+        } finally {
+            if(countFile != null)
+                countFile.close();
+        }
+
+        for(File file : group)
+        {
+            file.delete();
+        }
+
+        return run;
+    }
+
+    private PriorityQueue<RunReader> openRuns(ArrayList<File> files) throws IOException
+    {
+        PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(Math.max(1, files.size()), new Comparator<RunReader>()
+        {
+            @Override
+            public int compare(RunReader first, RunReader second)
+            {
+                return HostCounter.compareKeys(first.key, 0, first.keyLength, second.key, 0, second.keyLength);
+            }
+        });
+
+        for(File file : files)
+        {
+            RunReader reader = new RunReader(file);
+
+            if(reader.advance())
+                readers.add(reader);
+            else
+                reader.close();
+        }
+
+        return readers;
+    }
+
+    /**
+     * Moves to the next host in name order
+     * @return true if there is a host, false once all hosts have been returned
+     * @throws IOException on failing to read the runs
+     */
+    public boolean next() throws IOException
+    {
+        if(queue != null)
+            return nextMerged();
+
+        if(position == sortedIds.length)
+            return false;
+
+        int id = sortedIds[position++];
+
+        currentClients.clear();
+        currentClients.merge(clients, id, 0);
+
+        count = counter.getCount(id);
+
+        for(int column = 0; column < valueColumns; column++)
+        {
+            values[column] = counter.getValue(id, column);
+        }
+
+        keyLength = counter.getKeyLength(id);
+        ensureKeyCapacity(keyLength);
+        counter.copyKey(id, key, 0);
+
+        return true;
+    }
+
+    /**
+     * Sums the records of the smallest name left in the runs being merged
+     */
+    private boolean nextMerged() throws IOException
+    {
+        if(queue.isEmpty())
+            return false;
+
+        RunReader reader = queue.peek();
+
+        keyLength = reader.keyLength;
+        ensureKeyCapacity(keyLength);
+        System.arraycopy(reader.key, 0, key, 0, keyLength);
+        count = 0;
+
+        for(int column = 0; column < valueColumns; column++)
+        {
+            values[column] = 0;
+        }
+
+        currentClients.clear();
+
+        while(reader != null && HostCounter.compareKeys(reader.key, 0, reader.keyLength, key, 0, keyLength) == 0)
+        {
+            queue.poll();
+
+            count += reader.count;
+
+            for(int column = 0; column < valueColumns; column++)
+            {
+                values[column] += reader.values[column];
+            }
+
+            currentClients.read(reader.input, 0);
+
+            if(reader.advance())
+                queue.add(reader);
+            else
+                reader.close();
+
+            reader = queue.peek();
+        }
+
+        return true;
+    }
+
+    private void ensureKeyCapacity(int length)
+    {
+        if(key.length < length)
+            key = new byte[Math.max(length, key.length * 2)];
+    }
+
+    /**
+     * @return name of the current host
+     */
+    public String getKey()
+    {
+        return new String(key, 0, keyLength, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return count of the current host
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @param column - index of the value column
+     * @return the value of the current host
+     */
+    public long getValue(int column)
+    {
+        return values[column];
+    }
+
+    /**
+     * @return sketches holding the clients of the current host under id 0
+     */
+    public HyperLogLogCounters getClients()
+    {
+        return currentClients;
+    }
+
+    /**
+     * @return number of runs spilled
+     */
+    public int getRunCount()
+    {
+        return runs.size();
+    }
+
+    /**
+     * Closes and deletes any runs left
+     */
+    @Override
+    public void close()
+    {
+        if(queue != null)
+        {
+            for(RunReader reader : queue)
+            {
+                reader.close();
+            }
+
+            queue.clear();
+        }
+
+        for(File run : runs)
+        {
+            run.delete();
+        }
+
+        runs.clear();
+    }
+
+    /**
+     * Reads the records of a run one at a time, holding the name, count and values of the current record. Its client
+     * sketch is left in the stream to be merged straight from it.
+     */
+    private class RunReader
+    {
+        private DataInputStream input;
+        private int remaining;
+
+        private byte[] key = new byte[256];
+        private int keyLength;
+        private long count;
+        private long[] values = new long[valueColumns];
+
+        private RunReader(File run) throws IOException
+        {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+            remaining = input.readInt();
+        }
+
+        /**
+         * Reads the next record, the client sketch of the previous one having been read
+         * @return true if there was a record, false at the end of the run
+         */
+        private boolean advance() throws IOException
+        {
+            if(remaining == 0)
+                return false;
+
+            remaining--;
+            keyLength = input.readUnsignedShort();
+
+            if(key.length < keyLength)
+                key = new byte[keyLength];
+
+            input.readFully(key, 0, keyLength);
+            count = input.readLong();
+
+            for(int column = 0; column < valueColumns; column++)
+            {
+                values[column] = input.readLong();
+            }
+
+            return true;
+        }
+
+        private void close()
+        {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.net.InetAddress;
+
+/**
+ * <h1>System Host Resolver</h1>
+ * Resolves addresses with reverse DNS lookups through the system resolver
+ */
+public class SystemHostResolver implements HostResolver
+{
+    @Override
+    public String resolve(String address) throws Exception
+    {
+        InetAddress inetAddress = InetAddress.getByName(address);
+        String host = inetAddress.getCanonicalHostName();
+
+        //the address is handed back when there is no name for it
+        if(host.equals(inetAddress.getHostAddress()) || host.equals(address))
+            return null;
+
+        return host;
+    }
+}
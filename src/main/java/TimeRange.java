@@ -0,0 +1,99 @@
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * <h1>Time Range</h1>
+ * Time span given to an analyser with --from and --to, packets captured at or after the start and before the end
+ * being analysed. Times are given in local time as "yyyy-MM-dd HH:mm:ss" or "yyyy-MM-ddTHH:mm:ss", or as seconds
+ * since the epoch.
+ */
+public class TimeRange
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally analyse only the packets captured within a time range i.e " +
+            "--from \"2016-05-10 14:05:00\" --to \"2016-05-10 14:20:00\", using the capture index built with --index " +
+            "every --index-interval 16 MB to skip files and jump into them";
+
+    private static DateTimeFormatter SPACE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private long fromMicros;
+    private long toMicros;
+
+    /**
+     * Creates a range
+     * @param fromMicros - start of the range in microseconds since the epoch, inclusive
+     * @param toMicros - end of the range in microseconds since the epoch, exclusive
+     */
+    public TimeRange(long fromMicros, long toMicros)
+    {
+        this.fromMicros = fromMicros;
+        this.toMicros = toMicros;
+    }
+
+    /**
+     * Reads the range given with --from and --to, either of which may be left out to leave that side open
+     * @param options - the options given to the analyser
+     * @return the range, or null if neither option was given
+     */
+    public static TimeRange parse(AnalyserOptions options)
+    {
+        if(!options.has("from") && !options.has("to"))
+            return null;
+
+        long from = options.has("from") ? parseTime(options.getString("from", null)) : Long.MIN_VALUE;
+        long to = options.has("to") ? parseTime(options.getString("to", null)) : Long.MAX_VALUE;
+
+        if(from >= to)
+            throw new IllegalArgumentException("Option --from must be before --to");
+
+        return new TimeRange(from, to);
+    }
+
+    /**
+     * @param time - local date and time, or seconds since the epoch
+     * @return the time in microseconds since the epoch
+     */
+    private static long parseTime(String time)
+    {
+        try {
+            if(time.matches("\\d+"))
+                return Long.parseLong(time) * 1000000L;
+
+            LocalDateTime dateTime = time.indexOf('T') >= 0 ? LocalDateTime.parse(time) : LocalDateTime.parse(time, SPACE_FORMAT);
+
+            return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() * 1000L;
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Unrecognised time : " + time);
+        }
+    }
+
+    /**
+     * @param timestamp - packet time in microseconds since the epoch
+     * @return true if the time falls within the range
+     */
+    public boolean contains(long timestamp)
+    {
+        return timestamp >= fromMicros && timestamp < toMicros;
+    }
+
+    /**
+     * @param first - earliest packet time of a capture in microseconds since the epoch
+     * @param last - latest packet time of a capture in microseconds since the epoch
+     * @return true if any part of the capture's time span falls within the range
+     */
+    public boolean overlaps(long first, long last)
+    {
+        return last >= fromMicros && first < toMicros;
+    }
+
+    public long getFromMicros()
+    {
+        return fromMicros;
+    }
+
+    public long getToMicros()
+    {
+        return toMicros;
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <h1>Traffic Histograms</h1>
+ * Histograms of the lengths of packets and of the time between them, for each direction and protocol. The buckets are
+ * fixed, so counting a packet is one increment of a long array for each histogram: lengths fall in buckets of 32
+ * bytes up to 1536, the last bucket holding anything longer, and the times between packets in buckets doubling in
+ * width from a microsecond, the last holding gaps of over an hour. The histograms of the workers of a sharded analysis
+ * are combined by adding their counts.
+ * <p>
+ * The time between packets is taken within each direction and protocol, so it is the gap a shaper for that traffic
+ * would see. Gaps are not taken across files, nor for packets out of time order.
+ */
+public class TrafficHistograms
+{
+    public static final String OPTION_INSTRUCTION = "- Optionally write histograms of packet lengths and of the time between packets " +
+            "per direction and protocol i.e --histograms";
+
+    public static final String[] DIRECTIONS = {"uplink", "downlink"};
+    public static final String[] PROTOCOLS = {"tcp", "udp", "icmp", "other"};
+    public static final String[] HISTOGRAMS = {"length (bytes)", "inter-arrival (us)"};
+
+    public static final String[] PARTIAL_COLUMNS = {"direction", "protocol", "histogram", "bucket", "packets"};
+    public static final byte[] PARTIAL_TYPES = {ReportTable.STRING, ReportTable.STRING, ReportTable.STRING, ReportTable.LONG,
+            ReportTable.LONG};
+
+    private static final int LENGTH_HISTOGRAM = 0;
+    private static final int GAP_HISTOGRAM = 1;
+
+    // lengths in buckets of 1 << LENGTH_SHIFT bytes, and gaps in buckets of up to 1 << (GAP_BUCKETS - 2) microseconds
+    private static final int LENGTH_SHIFT = 5;
+    private static final int LENGTH_BUCKETS = 49;
+    private static final int GAP_BUCKETS = 34;
+
+    private static final int SERIES = DIRECTIONS.length * PROTOCOLS.length;
+
+    private long[] lengthCounts = new long[SERIES * LENGTH_BUCKETS];
+    private long[] gapCounts = new long[SERIES * GAP_BUCKETS];
+
+    // capture time of the last packet of each direction and protocol, -1 before the first of a file
+    private long[] lastArrivals = new long[SERIES];
+
+    public TrafficHistograms()
+    {
+        startFile();
+    }
+
+    /**
+     * Forgets the last packet of each direction and protocol, so no gap is counted between the last packet of one
+     * file and the first of the next
+     */
+    public void startFile()
+    {
+        for(int series = 0; series < SERIES; series++)
+        {
+            lastArrivals[series] = -1;
+        }
+    }
+
+    /**
+     * Counts a decoded packet. Packets sent from the local network are uplink, all others downlink
+     * @param decoder - decoder holding the packet
+     * @param timestamp - capture time of the packet in microseconds
+     * @param wireLength - length of the packet on the wire
+     */
+    public void record(PacketDecoder decoder, long timestamp, int wireLength)
+    {
+        int direction = LocalNetwork.isLocal(decoder.getBuffer(), decoder.getSourceAddressOffset(), decoder.getAddressLength()) ? 0 : 1;
+        int protocol;
+
+        switch(decoder.getProtocol())
+        {
+            case PacketDecoder.PROTOCOL_TCP: protocol = 0; break;
+            case PacketDecoder.PROTOCOL_UDP: protocol = 1; break;
+            case PacketDecoder.PROTOCOL_ICMP: case PacketDecoder.PROTOCOL_ICMPV6: protocol = 2; break;
+            default: protocol = 3;
+        }
+
+        int series = direction * PROTOCOLS.length + protocol;
+
+        lengthCounts[series * LENGTH_BUCKETS + Math.min(wireLength >>> LENGTH_SHIFT, LENGTH_BUCKETS - 1)]++;
+
+        long gap = timestamp - lastArrivals[series];
+
+        // a gap of 0 goes in the first bucket and one of 2^(n-1) up to 2^n - 1 microseconds in bucket n
+        if(lastArrivals[series] >= 0 && gap >= 0)
+            gapCounts[series * GAP_BUCKETS + Math.min(64 - Long.numberOfLeadingZeros(gap), GAP_BUCKETS - 1)]++;
+
+        lastArrivals[series] = Math.max(lastArrivals[series], timestamp);
+    }
+
+    /**
+     * Adds the counts of a partial aggregate to these
+     * @param table - counts with the partial columns
+     */
+    public void merge(ReportTable table)
+    {
+        for(int row = 0; row < table.getRowCount(); row++)
+        {
+            int direction = indexOf(DIRECTIONS, table.getString(row, 0));
+            int protocol = indexOf(PROTOCOLS, table.getString(row, 1));
+            int histogram = indexOf(HISTOGRAMS, table.getString(row, 2));
+            int bucket = (int) table.getLong(row, 3);
+            int series = direction * PROTOCOLS.length + protocol;
+
+            if(histogram == LENGTH_HISTOGRAM)
+                lengthCounts[series * LENGTH_BUCKETS + bucket] += table.getLong(row, 4);
+            else
+                gapCounts[series * GAP_BUCKETS + bucket] += table.getLong(row, 4);
+        }
+    }
+
+    private static int indexOf(String[] names, String name)
+    {
+        for(int i = 0; i < names.length; i++)
+        {
+            if(names[i].equals(name))
+                return i;
+        }
+
+        throw new IllegalArgumentException("Unknown histogram key : " + name);
+    }
+
+    /**
+     * @return the counts as a partial aggregate, every bucket of each direction and protocol with any packets
+     */
+    public ReportTable toPartial()
+    {
+        ReportTable table = new ReportTable(PARTIAL_COLUMNS, PARTIAL_TYPES);
+
+        for(int series = 0; series < SERIES; series++)
+        {
+            if(!hasPackets(series))
+                continue;
+
+            String direction = DIRECTIONS[series / PROTOCOLS.length];
+            String protocol = PROTOCOLS[series % PROTOCOLS.length];
+
+            for(int bucket = 0; bucket < LENGTH_BUCKETS; bucket++)
+            {
+                table.newRow().add(direction).add(protocol).add(HISTOGRAMS[LENGTH_HISTOGRAM]).add(bucket)
+                        .add(lengthCounts[series * LENGTH_BUCKETS + bucket]);
+            }
+
+            for(int bucket = 0; bucket < GAP_BUCKETS; bucket++)
+            {
+                table.newRow().add(direction).add(protocol).add(HISTOGRAMS[GAP_HISTOGRAM]).add(bucket)
+                        .add(gapCounts[series * GAP_BUCKETS + bucket]);
+            }
+        }
+
+        return table;
+    }
+
+    private boolean hasPackets(int series)
+    {
+        for(int bucket = 0; bucket < LENGTH_BUCKETS; bucket++)
+        {
+            if(lengthCounts[series * LENGTH_BUCKETS + bucket] > 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the smallest length or gap in a bucket, each bucket running up to the next one's
+     */
+    private static long bucketStart(int histogram, int bucket)
+    {
+        if(histogram == LENGTH_HISTOGRAM)
+            return (long) bucket << LENGTH_SHIFT;
+
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * Writes the histograms as a report, or as a partial aggregate next to the analyser's own when given --partial
+     * @param reportName - file name of the report without its extension e.g "port-histograms"
+     * @param sampler - sampler the packets were picked with, or null if all packets were counted
+     * @param options - the options given to the analyser
+     */
+    public void write(String reportName, PacketSampler sampler, AnalyserOptions options)
+    {
+        if(options.has("partial"))
+        {
+            PartialAggregate.write(toPartial(), partialFile(new File(options.getString("partial", null))));
+            return;
+        }
+
+        ReportTable partial = toPartial();
+        ReportTable table = new ReportTable(new String[]{"direction", "protocol", "histogram", "from", "packets"},
+                new byte[]{ReportTable.STRING, ReportTable.STRING, ReportTable.STRING, ReportTable.LONG, ReportTable.LONG});
+
+        for(int row = 0; row < partial.getRowCount(); row++)
+        {
+            int histogram = indexOf(HISTOGRAMS, partial.getString(row, 2));
+            long packets = partial.getLong(row, 4);
+
+            // a sample's lengths are scaled up like other counts, while its gaps are those between sampled packets
+            if(sampler != null && histogram == LENGTH_HISTOGRAM)
+                packets = sampler.scale(packets);
+
+            table.newRow().add(partial.getString(row, 0)).add(partial.getString(row, 1)).add(partial.getString(row, 2))
+                    .add(bucketStart(histogram, (int) partial.getLong(row, 3))).add(packets);
+        }
+
+        ReportWriter.write(table, reportName, options);
+    }
+
+    /**
+     * Combines the histograms written by the workers of a sharded analysis into a report
+     * @param partials - the workers' partial aggregates of their analyser's counts
+     * @param reportName - file name of the report without its extension
+     * @param sampler - sampler the packets were picked with, or null if all packets were counted
+     * @param options - the options given to the coordinator
+     * @throws IOException on failing to read the workers' histograms
+     */
+    public static void reduce(File[] partials, String reportName, PacketSampler sampler, AnalyserOptions options) throws IOException
+    {
+        TrafficHistograms histograms = new TrafficHistograms();
+
+        for(File partial : partials)
+        {
+            histograms.merge(PartialAggregate.read(partialFile(partial), PARTIAL_COLUMNS, PARTIAL_TYPES));
+        }
+
+        histograms.write(reportName, sampler, options);
+    }
+
+    /**
+     * @param partial - partial aggregate of an analyser's counts
+     * @return the partial aggregate of the histograms written alongside it
+     */
+    public static File partialFile(File partial)
+    {
+        String name = partial.getName();
+        int dot = name.lastIndexOf('.');
+
+        if(dot < 0)
+            return new File(partial.getParentFile(), name + "-histograms");
+
+        return new File(partial.getParentFile(), name.substring(0, dot) + "-histograms" + name.substring(dot));
+    }
+}
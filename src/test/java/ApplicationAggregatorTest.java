@@ -0,0 +1,78 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the pending bytes of a flow whose two directions fall under different services are moved to the
+ * service each direction was counted in once the flow is classified
+ */
+public class ApplicationAggregatorTest
+{
+    private static final int CLIENT = FrameBuilder.address(10, 0, 0, 1);
+    private static final int SERVER = FrameBuilder.address(93, 184, 216, 34);
+
+    private byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+    private PacketDecoder decoder = new PacketDecoder();
+
+    private long[] clientCounts = new long[2];
+    private long[] serverCounts = new long[2];
+
+    @Test
+    public void twoWayPort80FlowsKeepEachDirectionUnderItsService()
+    {
+        ApplicationAggregator applications = new ApplicationAggregator(4096);
+        byte[] request = FrameBuilder.httpRequest("example.com");
+        byte[] response = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+        long timestamp = 1000000;
+
+        for(int flow = 0; flow < 100; flow++)
+        {
+            int clientPort = 40000 + flow;
+
+            // the handshake is held as pending under http(c) one way and http(s) the other
+            send(applications, CLIENT, SERVER, clientPort, 80, null, 0, timestamp++);
+            send(applications, SERVER, CLIENT, 80, clientPort, null, 0, timestamp++);
+            send(applications, CLIENT, SERVER, clientPort, 80, null, 0, timestamp++);
+
+            send(applications, CLIENT, SERVER, clientPort, 80, request, request.length, timestamp++);
+            send(applications, SERVER, CLIENT, 80, clientPort, response, response.length, timestamp++);
+            send(applications, SERVER, CLIENT, 80, clientPort, null, 1000, timestamp++);
+        }
+
+        checkSplit(applications.split("tcp", "http(c)", clientCounts[0], clientCounts[1]), clientCounts);
+        checkSplit(applications.split("tcp", "http(s)", serverCounts[0], serverCounts[1]), serverCounts);
+    }
+
+    /**
+     * Checks that every byte and packet of a service went to http, as tcpdstat counted them
+     */
+    private static void checkSplit(long[][] split, long[] counts)
+    {
+        for(int application = 0; application < PayloadClassifier.NAMES.length; application++)
+        {
+            assertTrue(split[0][application] >= 0);
+            assertTrue(split[1][application] >= 0);
+        }
+
+        assertEquals(counts[0], split[0][PayloadClassifier.HTTP]);
+        assertEquals(counts[1], split[1][PayloadClassifier.HTTP]);
+        assertEquals(0, split[0][PayloadClassifier.UNKNOWN]);
+        assertEquals(0, split[1][PayloadClassifier.UNKNOWN]);
+    }
+
+    private void send(ApplicationAggregator applications, int source, int destination, int sourcePort, int destinationPort,
+                      byte[] payload, int payloadLength, long timestamp)
+    {
+        int length = FrameBuilder.tcp(frame, source, destination, sourcePort, destinationPort, timestamp,
+                FrameBuilder.TCP_ACK, payload, payloadLength);
+
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, frame, 0, length));
+        applications.process(decoder, timestamp, length);
+
+        // tcpdstat counts packets from port 80 as http(s) and packets to it as http(c)
+        long[] counts = sourcePort == 80 ? serverCounts : clientCounts;
+        counts[0] += length;
+        counts[1]++;
+    }
+}
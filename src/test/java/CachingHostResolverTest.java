@@ -0,0 +1,135 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that lookups stuck in the resolver only cost their own timeout, and that results evicted from memory are
+ * found again in the cache file
+ */
+public class CachingHostResolverTest
+{
+    // addresses starting with this never resolve, as when the system resolver hangs
+    private static final String STUCK_PREFIX = "10.9.";
+
+    private CountDownLatch release = new CountDownLatch(1);
+    private AtomicInteger lookups = new AtomicInteger();
+    private File cacheFile;
+
+    private HostResolver delegate = new HostResolver()
+    {
+        @Override
+        public String resolve(String address) throws Exception
+        {
+            lookups.incrementAndGet();
+
+            // the wait is not given up on interrupt, like a lookup in the system resolver
+            if(address.startsWith(STUCK_PREFIX))
+            {
+                while(release.getCount() > 0)
+                {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                }
+            }
+
+            return "host-" + address;
+        }
+    };
+
+    @Before
+    public void createCacheFile() throws IOException
+    {
+        cacheFile = File.createTempFile("dns-cache", ".txt");
+        cacheFile.delete();
+    }
+
+    @After
+    public void releaseLookups()
+    {
+        release.countDown();
+        cacheFile.delete();
+    }
+
+    @Test
+    public void stuckLookupsDoNotHoldUpTheOthers()
+    {
+        CachingHostResolver resolver = new CachingHostResolver(delegate, cacheFile, 4, 200, 1000,
+                TimeUnit.DAYS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+        try {
+            ArrayList<String> addresses = new ArrayList<String>();
+
+            for(int i = 0; i < 4; i++)
+            {
+                addresses.add(STUCK_PREFIX + "0." + i);
+            }
+
+            for(int i = 0; i < 40; i++)
+            {
+                addresses.add("10.1.0." + i);
+            }
+
+            long start = System.nanoTime();
+            HashMap<String, String> results = resolver.resolveAll(addresses);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // the stuck lookups time out once, side by side, while the others go on in new threads
+            assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2000);
+            assertNull(results.get(STUCK_PREFIX + "0.0"));
+            assertEquals("host-10.1.0.39", results.get("10.1.0.39"));
+
+            // a later batch is not queued behind the threads still stuck
+            start = System.nanoTime();
+            assertEquals("host-10.2.0.1", resolver.resolve("10.2.0.1"));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void resultsEvictedFromMemoryAreReadFromTheCacheFile()
+    {
+        CachingHostResolver resolver = new CachingHostResolver(delegate, cacheFile, 2, 1000, 2,
+                TimeUnit.DAYS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+        try {
+            for(int i = 0; i < 10; i++)
+            {
+                resolver.resolve("10.3.0." + i);
+            }
+
+            assertEquals(10, lookups.get());
+            assertEquals("host-10.3.0.0", resolver.resolve("10.3.0.0"));
+            assertEquals(10, lookups.get());
+        } finally {
+            resolver.close();
+        }
+
+        // a new run finds the results in the file the last one left
+        CachingHostResolver next = new CachingHostResolver(delegate, cacheFile, 2, 1000, 2,
+                TimeUnit.DAYS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+        try {
+            assertEquals("host-10.3.0.5", next.resolve("10.3.0.5"));
+            assertEquals(10, lookups.get());
+        } finally {
+            next.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that copies of a packet taken elsewhere on its path are dropped within the window, and that packets which
+ * only look alike are kept
+ */
+public class DuplicateFilterTest
+{
+    private static final long WINDOW = 100000;
+
+    private static final int CLIENT = FrameBuilder.address(10, 0, 0, 5);
+    private static final int SERVER = FrameBuilder.address(93, 184, 216, 34);
+
+    private static final int IPV4_OFFSET = FrameBuilder.ETHERNET_HEADER_LENGTH;
+
+    private DuplicateFilter filter = new DuplicateFilter(WINDOW);
+    private PacketDecoder decoder = new PacketDecoder();
+
+    @Test
+    public void copyFromAnotherTapIsDropped()
+    {
+        byte[] packet = segment(1);
+        byte[] copy = packet.clone();
+
+        // another hop: other mac addresses, one less TTL and so another IP checksum
+        copy[0] = 0x0a;
+        copy[IPV4_OFFSET + 8]--;
+        copy[IPV4_OFFSET + 11]++;
+
+        assertFalse(isDuplicate(packet, 1000));
+        assertTrue(isDuplicate(copy, 1200));
+        assertEquals(1, filter.getDuplicates());
+    }
+
+    @Test
+    public void packetsDifferingInIdentificationAreKept()
+    {
+        byte[] packet = segment(1);
+        byte[] next = packet.clone();
+        next[IPV4_OFFSET + 5] = 1;
+
+        assertFalse(isDuplicate(packet, 1000));
+        assertFalse(isDuplicate(next, 1000));
+        assertFalse(isDuplicate(segment(2), 1000));
+    }
+
+    @Test
+    public void copiesAreComparedOverTheLastWindowOnly()
+    {
+        byte[] packet = segment(1);
+
+        // a copy in the next window is still dropped
+        assertFalse(isDuplicate(packet, 0));
+        assertTrue(isDuplicate(packet, WINDOW + 10));
+
+        // two windows on, the packets before are forgotten
+        assertFalse(isDuplicate(packet, 4 * WINDOW));
+    }
+
+    @Test
+    public void copyReadAfterLaterPacketsIsDropped()
+    {
+        byte[] packet = segment(1);
+
+        // the first tap's file runs half a window past the packet before the second tap's file starts again
+        assertFalse(isDuplicate(packet, 10));
+        assertFalse(isDuplicate(segment(2), WINDOW + WINDOW / 2));
+        assertTrue(isDuplicate(packet, 20));
+    }
+
+    @Test
+    public void ipv6PacketsOtherThanFragmentsAreKept()
+    {
+        byte[] packet = new byte[48];
+
+        // an IPv6 UDP datagram, a retransmission of which would look the same as a tap's copy
+        packet[0] = 0x60;
+        packet[5] = 8;
+        packet[6] = (byte) PacketDecoder.PROTOCOL_UDP;
+        packet[23] = 1;
+        packet[39] = 2;
+
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_RAW, packet, 0, packet.length));
+        assertFalse(filter.isDuplicate(decoder, 0));
+        assertFalse(filter.isDuplicate(decoder, 1));
+    }
+
+    private boolean isDuplicate(byte[] packet, long timestamp)
+    {
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, packet, 0, packet.length));
+
+        return filter.isDuplicate(decoder, timestamp);
+    }
+
+    private static byte[] segment(long sequenceNumber)
+    {
+        byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+        int length = FrameBuilder.tcp(frame, CLIENT, SERVER, 50000, 443, sequenceNumber, FrameBuilder.TCP_ACK, null, 100);
+
+        return Arrays.copyOf(frame, length);
+    }
+}
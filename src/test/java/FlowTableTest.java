@@ -0,0 +1,114 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that flows keep their slots and values while in the table, and that a full window gives up the flow seen
+ * least recently
+ */
+public class FlowTableTest
+{
+    @Test
+    public void flowKeepsItsSlotAndValues()
+    {
+        FlowTable table = new FlowTable(1000);
+
+        assertEquals(1024, table.getCapacity());
+
+        int slot = table.findOrAdd(42, 1);
+        int other = table.findOrAdd(43, 1);
+
+        assertTrue(slot != other);
+        assertEquals(-1, table.getHostId(slot));
+        assertEquals(FlowTable.UNCLASSIFIED, table.getApplication(slot));
+
+        table.addBytes(slot, true, 100);
+        table.addBytes(slot, false, 1500);
+        table.setHostId(slot, 7);
+
+        assertEquals(0, table.addRequest(slot));
+        assertEquals(1, table.addRequest(slot));
+
+        assertEquals(slot, table.findOrAdd(42, 2));
+        assertEquals(100, table.getBytesUp(slot));
+        assertEquals(1500, table.getBytesDown(slot));
+        assertEquals(2, table.getPackets(slot));
+        assertEquals(7, table.getHostId(slot));
+        assertEquals(0, table.getPackets(other));
+    }
+
+    @Test
+    public void zeroKeyIsAFlowLikeAnyOther()
+    {
+        FlowTable table = new FlowTable(16);
+        int slot = table.findOrAdd(0, 1);
+
+        assertTrue(table.isUsed(slot));
+        assertEquals(slot, table.findOrAdd(0, 2));
+    }
+
+    @Test
+    public void fullWindowEvictsTheFlowSeenLeastRecently()
+    {
+        final FlowTable table = new FlowTable(16);
+        final ArrayList<Long> evictedBytes = new ArrayList<Long>();
+
+        table.setEvictionListener(new FlowTable.EvictionListener()
+        {
+            @Override
+            public void evicted(int slot)
+            {
+                evictedBytes.add(table.getBytesUp(slot));
+            }
+        });
+
+        // keys with equal halves all have the same home slot, so sixteen of them fill the window
+        int[] slots = new int[17];
+
+        for(int flow = 1; flow <= 16; flow++)
+        {
+            slots[flow] = table.findOrAdd(collidingKey(flow), flow);
+            table.addBytes(slots[flow], true, flow);
+        }
+
+        assertEquals(0, table.getEvictions());
+
+        // the first flow is seen again, leaving the second as the one seen least recently
+        table.findOrAdd(collidingKey(1), 17);
+        slots[0] = table.findOrAdd(collidingKey(17), 18);
+
+        assertEquals(1, table.getEvictions());
+        assertEquals(1, evictedBytes.size());
+        assertEquals(2L, (long) evictedBytes.get(0));
+        assertEquals(slots[2], slots[0]);
+        assertEquals(0, table.getBytesUp(slots[0]));
+
+        assertEquals(slots[1], table.findOrAdd(collidingKey(1), 19));
+        assertEquals(1, table.getBytesUp(slots[1]));
+        assertEquals(1, table.getEvictions());
+    }
+
+    @Test
+    public void inspectionsAreCountedPerDirectionUpToFifteen()
+    {
+        FlowTable table = new FlowTable(16);
+        int slot = table.findOrAdd(42, 1);
+
+        for(int i = 1; i <= 20; i++)
+        {
+            assertEquals(Math.min(i, 15), table.addInspection(slot, false));
+        }
+
+        assertEquals(0, table.getInspections(slot, true));
+        assertEquals(1, table.addInspection(slot, true));
+        assertEquals(15, table.getInspections(slot, false));
+    }
+
+    private static long collidingKey(int flow)
+    {
+        return ((long) flow << 32) | flow;
+    }
+}
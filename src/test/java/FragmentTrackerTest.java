@@ -0,0 +1,112 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that later fragments are given the ports of their datagram's first fragment while the datagram is tracked,
+ * and only then
+ */
+public class FragmentTrackerTest
+{
+    private static final long TIMEOUT = 30000000;
+
+    private static final int CLIENT = FrameBuilder.address(10, 0, 0, 5);
+    private static final int SERVER = FrameBuilder.address(93, 184, 216, 34);
+
+    // each fragment carries 40 bytes of the datagram, the first of them holding the UDP header
+    private static final int FRAGMENT_DATA = 40;
+
+    private FragmentTracker tracker = new FragmentTracker(64, TIMEOUT);
+    private PacketDecoder decoder = new PacketDecoder();
+
+    @Test
+    public void laterFragmentsGetThePortsOfTheFirst()
+    {
+        assertTrue(track(fragment(7, 0, true), 0));
+        assertEquals(40000, decoder.getSourcePort());
+
+        assertTrue(track(fragment(7, 1, true), 1));
+        assertEquals(40000, decoder.getSourcePort());
+        assertEquals(53, decoder.getDestinationPort());
+
+        assertTrue(track(fragment(7, 2, false), 2));
+        assertEquals(53, decoder.getDestinationPort());
+
+        assertEquals(3, tracker.getFragments());
+        assertEquals(0, tracker.getUnattributed());
+    }
+
+    @Test
+    public void completedDatagramIsLetGo()
+    {
+        track(fragment(7, 0, true), 0);
+        track(fragment(7, 1, false), 1);
+
+        // the whole datagram was seen, so a fragment of the same id is of another datagram
+        assertFalse(track(fragment(7, 1, false), 2));
+        assertEquals(-1, decoder.getSourcePort());
+        assertEquals(1, tracker.getUnattributed());
+    }
+
+    @Test
+    public void laterFragmentBeforeTheFirstIsLeftWithoutPorts()
+    {
+        assertFalse(track(fragment(9, 1, false), 0));
+        assertEquals(-1, decoder.getSourcePort());
+
+        // the first still gives its ports to the fragments after it
+        assertTrue(track(fragment(9, 0, true), 1));
+        assertEquals(1, tracker.getUnattributed());
+    }
+
+    @Test
+    public void datagramNotCompletedInTimeIsTakenAsLost()
+    {
+        track(fragment(11, 0, true), 0);
+
+        assertFalse(track(fragment(11, 1, false), TIMEOUT + 1));
+        assertEquals(1, tracker.getUnattributed());
+    }
+
+    @Test
+    public void packetsOtherThanFragmentsAreLeftAlone()
+    {
+        byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+        int length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 32);
+
+        assertTrue(track(Arrays.copyOf(frame, length), 0));
+        assertEquals(0, tracker.getFragments());
+    }
+
+    private boolean track(byte[] packet, long timestamp)
+    {
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, packet, 0, packet.length));
+
+        return tracker.track(decoder, timestamp);
+    }
+
+    /**
+     * @param id - IP identification of the datagram
+     * @param index - number of the fragment within its datagram
+     * @param moreFragments - whether fragments follow
+     * @return an IPv4 fragment of a UDP datagram from port 40000 to 53
+     */
+    private static byte[] fragment(int id, int index, boolean moreFragments)
+    {
+        byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+        int length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, FRAGMENT_DATA - FrameBuilder.UDP_HEADER_LENGTH);
+        int ipv4 = FrameBuilder.ETHERNET_HEADER_LENGTH;
+        int field = (moreFragments ? 0x2000 : 0) | (index * FRAGMENT_DATA / 8);
+
+        frame[ipv4 + 4] = (byte) (id >>> 8);
+        frame[ipv4 + 5] = (byte) id;
+        frame[ipv4 + 6] = (byte) (field >>> 8);
+        frame[ipv4 + 7] = (byte) field;
+
+        return Arrays.copyOf(frame, length);
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * <h1>Frame Builder</h1>
+ * Writes ethernet frames carrying IPv4 TCP, UDP and ICMP packets, along with the http requests, TLS ClientHellos and
+ * DNS messages the analysers look into, for the tests and benchmarks to make packets without a network. Frames are
+ * written into a buffer given by the caller so one buffer can be reused for every packet. The IPv4 header checksum is
+ * filled in; transport checksums are left at zero, as in captures taken with checksum offloading.
+ */
+public class FrameBuilder
+{
+    public static final int ETHERNET_HEADER_LENGTH = 14;
+    public static final int IPV4_HEADER_LENGTH = 20;
+    public static final int TCP_HEADER_LENGTH = 20;
+    public static final int UDP_HEADER_LENGTH = 8;
+    public static final int ICMP_HEADER_LENGTH = 8;
+
+    public static final int MAX_FRAME_LENGTH = ETHERNET_HEADER_LENGTH + 65535;
+
+    public static final int TCP_ACK = 0x10;
+    public static final int TCP_PUSH = 0x08;
+
+    private static final int PROTOCOL_ICMP = 1;
+
+    /**
+     * Writes a TCP segment
+     * @param frame - buffer to write the frame into, at offset 0
+     * @param source - source IPv4 address
+     * @param destination - destination IPv4 address
+     * @param sourcePort - source port
+     * @param destinationPort - destination port
+     * @param sequenceNumber - TCP sequence number
+     * @param flags - TCP flags e.g TCP_ACK | TCP_PUSH
+     * @param payload - bytes to carry, or null for a payload of zeros
+     * @param payloadLength - number of payload bytes
+     * @return length of the frame
+     */
+    public static int tcp(byte[] frame, int source, int destination, int sourcePort, int destinationPort, long sequenceNumber,
+                          int flags, byte[] payload, int payloadLength)
+    {
+        int position = ipv4(frame, source, destination, PacketDecoder.PROTOCOL_TCP, TCP_HEADER_LENGTH + payloadLength);
+
+        writeShort(frame, position, sourcePort);
+        writeShort(frame, position + 2, destinationPort);
+        writeInt(frame, position + 4, (int) sequenceNumber);
+        writeInt(frame, position + 8, 0);
+        frame[position + 12] = (byte) ((TCP_HEADER_LENGTH / 4) << 4);
+        frame[position + 13] = (byte) flags;
+        writeShort(frame, position + 14, 65535);
+        writeInt(frame, position + 16, 0);
+
+        return writePayload(frame, position + TCP_HEADER_LENGTH, payload, payloadLength);
+    }
+
+    /**
+     * Writes a UDP datagram
+     * @param frame - buffer to write the frame into, at offset 0
+     * @param source - source IPv4 address
+     * @param destination - destination IPv4 address
+     * @param sourcePort - source port
+     * @param destinationPort - destination port
+     * @param payload - bytes to carry, or null for a payload of zeros
+     * @param payloadLength - number of payload bytes
+     * @return length of the frame
+     */
+    public static int udp(byte[] frame, int source, int destination, int sourcePort, int destinationPort, byte[] payload,
+                          int payloadLength)
+    {
+        int position = ipv4(frame, source, destination, PacketDecoder.PROTOCOL_UDP, UDP_HEADER_LENGTH + payloadLength);
+
+        writeShort(frame, position, sourcePort);
+        writeShort(frame, position + 2, destinationPort);
+        writeShort(frame, position + 4, UDP_HEADER_LENGTH + payloadLength);
+        writeShort(frame, position + 6, 0);
+
+        return writePayload(frame, position + UDP_HEADER_LENGTH, payload, payloadLength);
+    }
+
+    /**
+     * Writes an ICMP message
+     * @param frame - buffer to write the frame into, at offset 0
+     * @param source - source IPv4 address
+     * @param destination - destination IPv4 address
+     * @param type - ICMP type e.g 8 for an echo request
+     * @param code - ICMP code
+     * @param payloadLength - number of payload bytes following the ICMP header, all zeros
+     * @return length of the frame
+     */
+    public static int icmp(byte[] frame, int source, int destination, int type, int code, int payloadLength)
+    {
+        int position = ipv4(frame, source, destination, PROTOCOL_ICMP, ICMP_HEADER_LENGTH + payloadLength);
+
+        frame[position] = (byte) type;
+        frame[position + 1] = (byte) code;
+        writeShort(frame, position + 2, 0);
+        writeInt(frame, position + 4, 0);
+
+        return writePayload(frame, position + ICMP_HEADER_LENGTH, null, payloadLength);
+    }
+
+    /**
+     * @param host - host name asked for
+     * @return an http GET request for the host
+     */
+    public static byte[] httpRequest(String host)
+    {
+        return ("GET /index.html HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: Mozilla/5.0\r\nAccept: */*\r\n\r\n").getBytes();
+    }
+
+    /**
+     * @param host - host name asked for
+     * @return a TLS record holding a ClientHello naming the host in its server name indication
+     */
+    public static byte[] clientHello(String host)
+    {
+        byte[] name = host.getBytes();
+        int extensionLength = 2 + 1 + 2 + name.length;
+        int helloLength = 2 + 32 + 1 + 2 + 2 + 1 + 1 + 2 + 4 + extensionLength;
+        byte[] record = new byte[5 + 4 + helloLength];
+        int position = 0;
+
+        // handshake record of TLS 1.0, as ClientHellos are sent
+        record[position++] = 22;
+        record[position++] = 3;
+        record[position++] = 1;
+        writeShort(record, position, 4 + helloLength);
+        position += 2;
+
+        record[position++] = 1;
+        record[position++] = 0;
+        writeShort(record, position, helloLength);
+        position += 2;
+
+        // TLS 1.2 client version and a random of zeros
+        record[position++] = 3;
+        record[position++] = 3;
+        position += 32;
+
+        // no session id, one cipher suite and null compression
+        record[position++] = 0;
+        writeShort(record, position, 2);
+        position += 2;
+        writeShort(record, position, 0x1301);
+        position += 2;
+        record[position++] = 1;
+        record[position++] = 0;
+
+        // the server name extension alone
+        writeShort(record, position, 4 + extensionLength);
+        position += 2;
+        writeShort(record, position, 0);
+        position += 2;
+        writeShort(record, position, extensionLength);
+        position += 2;
+        writeShort(record, position, 1 + 2 + name.length);
+        position += 2;
+        record[position++] = 0;
+        writeShort(record, position, name.length);
+        position += 2;
+
+        System.arraycopy(name, 0, record, position, name.length);
+
+        return record;
+    }
+
+    /**
+     * @param host - host name asked about
+     * @param id - id of the DNS message
+     * @param response - true for a response with one A record, false for the query
+     * @param answerAddress - IPv4 address given in the answer of a response
+     * @return a DNS message asking for the A record of the host
+     */
+    public static byte[] dnsMessage(String host, int id, boolean response, int answerAddress)
+    {
+        byte[] name = host.getBytes();
+        byte[] message = new byte[12 + name.length + 2 + 4 + (response ? 16 : 0)];
+
+        writeShort(message, 0, id);
+        writeShort(message, 2, response ? 0x8180 : 0x0100);
+        writeShort(message, 4, 1);
+        writeShort(message, 6, response ? 1 : 0);
+
+        // the name as labels, each preceded by its length
+        int position = 12;
+        int labelStart = 0;
+
+        for(int i = 0; i <= name.length; i++)
+        {
+            if(i == name.length || name[i] == '.')
+            {
+                message[position++] = (byte) (i - labelStart);
+                System.arraycopy(name, labelStart, message, position, i - labelStart);
+                position += i - labelStart;
+                labelStart = i + 1;
+            }
+        }
+
+        message[position++] = 0;
+        writeShort(message, position, 1);
+        writeShort(message, position + 2, 1);
+        position += 4;
+
+        if(response)
+        {
+            // the answer names the question with a compression pointer
+            writeShort(message, position, 0xc00c);
+            writeShort(message, position + 2, 1);
+            writeShort(message, position + 4, 1);
+            writeInt(message, position + 6, 300);
+            writeShort(message, position + 10, 4);
+            writeInt(message, position + 12, answerAddress);
+        }
+
+        return message;
+    }
+
+    /**
+     * Makes an IPv4 address from its four parts
+     * @return the address
+     */
+    public static int address(int first, int second, int third, int fourth)
+    {
+        return (first << 24) | (second << 16) | (third << 8) | fourth;
+    }
+
+    /**
+     * Writes the ethernet and IPv4 headers
+     * @return offset of the transport header
+     */
+    private static int ipv4(byte[] frame, int source, int destination, int protocol, int transportLength)
+    {
+        // locally administered mac addresses
+        writeInt(frame, 0, 0x02000000);
+        writeShort(frame, 4, 1);
+        writeInt(frame, 6, 0x02000000);
+        writeShort(frame, 10, 2);
+        writeShort(frame, 12, 0x0800);
+
+        int position = ETHERNET_HEADER_LENGTH;
+
+        frame[position] = 0x45;
+        frame[position + 1] = 0;
+        writeShort(frame, position + 2, IPV4_HEADER_LENGTH + transportLength);
+        writeInt(frame, position + 4, 0x4000);
+        frame[position + 8] = 64;
+        frame[position + 9] = (byte) protocol;
+        writeShort(frame, position + 10, 0);
+        writeInt(frame, position + 12, source);
+        writeInt(frame, position + 16, destination);
+
+        int sum = 0;
+
+        for(int i = 0; i < IPV4_HEADER_LENGTH; i += 2)
+        {
+            sum += PacketDecoder.readShort(frame, position + i);
+        }
+
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum += sum >>> 16;
+        writeShort(frame, position + 10, ~sum);
+
+        return position + IPV4_HEADER_LENGTH;
+    }
+
+    private static int writePayload(byte[] frame, int position, byte[] payload, int payloadLength)
+    {
+        if(payload == null)
+        {
+            for(int i = position; i < position + payloadLength; i++)
+            {
+                frame[i] = 0;
+            }
+        }
+        else
+        {
+            System.arraycopy(payload, 0, frame, position, payloadLength);
+        }
+
+        return position + payloadLength;
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value)
+    {
+        writeShort(buffer, offset, value >>> 16);
+        writeShort(buffer, offset + 2, value);
+    }
+}
@@ -0,0 +1,115 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the host names read from http requests and TLS ClientHellos, whole, split over segments and cut short
+ */
+public class HostNameScannerTest
+{
+    private static final long FLOW = 0x1234567890abcdefL;
+
+    private HostNameScanner scanner = new HostNameScanner();
+
+    @Test
+    public void readsHttpHostHeader()
+    {
+        assertHost("example.com", scan(FrameBuilder.httpRequest("example.com")));
+        assertHost("example.com", scan("POST /form HTTP/1.1\r\nAccept: */*\r\nHOST:  example.com:8080 \r\n\r\n".getBytes()));
+        assertHost("2001:db8::1", scan("GET / HTTP/1.1\r\nHost: [2001:db8::1]:8080\r\n\r\n".getBytes()));
+    }
+
+    @Test
+    public void requestsWithoutHostOrMethodAreTold()
+    {
+        assertEquals(HostNameScanner.NO_HOST, scan("GET / HTTP/1.0\r\nAccept: */*\r\n\r\n".getBytes()));
+        assertEquals(HostNameScanner.NO_HOST, scan("GET / HTTP/1.1\r\nHost: :80\r\n\r\n".getBytes()));
+        assertEquals(HostNameScanner.NOT_FOUND, scan("HTTP/1.1 200 OK\r\nHost: example.com\r\n\r\n".getBytes()));
+        assertEquals(HostNameScanner.NOT_FOUND, scanner.scan(FLOW, 1, new byte[8], 0, 0));
+    }
+
+    @Test
+    public void readsClientHelloServerName()
+    {
+        assertHost("www.example.co.uk", scan(FrameBuilder.clientHello("www.example.co.uk")));
+    }
+
+    @Test
+    public void requestSplitOverSegmentsIsJoined()
+    {
+        byte[] httpRequest = FrameBuilder.httpRequest("split.example.com");
+        byte[] clientHello = FrameBuilder.clientHello("split.example.com");
+
+        // an http request is known from its method, and is complete once the Host line has ended
+        int hostLineEnd = new String(httpRequest).indexOf("\nUser-Agent");
+
+        for(byte[] request : new byte[][]{httpRequest, clientHello})
+        {
+            int firstSplit = request == httpRequest ? "GET ".length() : 1;
+            int lastSplit = request == httpRequest ? hostLineEnd : request.length - 1;
+
+            for(int split = firstSplit; split <= lastSplit; split++)
+            {
+                long sequenceNumber = 0xffffffffL - split / 2;
+
+                // the first segment is scanned in place and held until the rest arrives
+                assertEquals("split at " + split, HostNameScanner.INCOMPLETE,
+                        scanner.scan(FLOW, sequenceNumber, request, 0, split));
+
+                byte[] rest = Arrays.copyOfRange(request, split, request.length);
+                assertHost("split.example.com", scanner.scan(FLOW, (sequenceNumber + split) & 0xffffffffL, rest, 0, rest.length));
+            }
+        }
+    }
+
+    @Test
+    public void segmentOutOfSequenceIsNotJoined()
+    {
+        byte[] request = FrameBuilder.httpRequest("example.com");
+        byte[] rest = Arrays.copyOfRange(request, 20, request.length);
+
+        assertEquals(HostNameScanner.INCOMPLETE, scanner.scan(FLOW, 1000, request, 0, 20));
+
+        // a segment out of sequence is scanned on its own and what was held is dropped, so the segment which did follow
+        // finds nothing to join
+        assertEquals(HostNameScanner.NOT_FOUND, scanner.scan(FLOW, 1000 + 20 + 5, rest, 0, rest.length));
+        assertEquals(HostNameScanner.NOT_FOUND, scanner.scan(FLOW, 1020, rest, 0, rest.length));
+    }
+
+    @Test
+    public void cutShortClientHelloIsNotReadPastItsEnd()
+    {
+        byte[] hello = FrameBuilder.clientHello("example.com");
+
+        // every byte of the ClientHello in turn is set so any length it is part of claims more bytes than there are
+        for(int field = 0; field < hello.length; field++)
+        {
+            byte[] corrupt = hello.clone();
+            corrupt[field] = (byte) 0xff;
+
+            for(int captured = 1; captured <= corrupt.length; captured++)
+            {
+                // each on a flow of its own, so nothing is joined, and from an array of exactly its bytes so a read
+                // past them throws
+                int result = scanner.scan(field * 100000L + captured, 1, Arrays.copyOf(corrupt, captured), 0, captured);
+
+                if(result == HostNameScanner.HOST_FOUND)
+                    assertTrue(scanner.getHostOffset() + scanner.getHostLength() <= captured);
+            }
+        }
+    }
+
+    private int scan(byte[] payload)
+    {
+        return scanner.scan(FLOW, 1, payload, 0, payload.length);
+    }
+
+    private void assertHost(String host, int result)
+    {
+        assertEquals(HostNameScanner.HOST_FOUND, result);
+        assertEquals(host, new String(scanner.getHostBuffer(), scanner.getHostOffset(), scanner.getHostLength()));
+    }
+}
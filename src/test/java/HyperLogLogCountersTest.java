@@ -0,0 +1,133 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the distinct counts held exactly and estimated by the sketches, and that merging and writing out sketches
+ * loses nothing
+ */
+public class HyperLogLogCountersTest
+{
+    // four standard errors of a sketch of 256 registers
+    private static final double TOLERANCE = 4 * 0.065;
+
+    @Test
+    public void smallCountsAreExact()
+    {
+        HyperLogLogCounters counters = new HyperLogLogCounters();
+
+        for(int value = 0; value < 4; value++)
+        {
+            counters.offer(3, hash(value));
+            counters.offer(3, hash(value));
+        }
+
+        assertEquals(4, counters.estimate(3));
+        assertEquals(0, counters.estimate(2));
+        assertEquals(0, counters.estimate(1 << 20));
+    }
+
+    @Test
+    public void largeCountsAreEstimatedWithinTheStandardError()
+    {
+        HyperLogLogCounters counters = new HyperLogLogCounters();
+
+        // ids past the initial arrays, each seen by a different number of values
+        int[] counts = {5, 100, 1000, 50000};
+
+        for(int id = 0; id < counts.length; id++)
+        {
+            for(int value = 0; value < counts[id]; value++)
+            {
+                counters.offer(2000 + id, hash(id * 1000000 + value));
+            }
+        }
+
+        for(int id = 0; id < counts.length; id++)
+        {
+            assertClose(counts[id], counters.estimate(2000 + id));
+        }
+    }
+
+    @Test
+    public void mergeCountsTheUnion()
+    {
+        HyperLogLogCounters hosts = new HyperLogLogCounters();
+        HyperLogLogCounters domains = new HyperLogLogCounters();
+
+        // two hosts sharing half their clients, and a third seen by two clients only
+        for(int client = 0; client < 20000; client++)
+        {
+            hosts.offer(0, hash(client));
+            hosts.offer(1, hash(client + 10000));
+        }
+
+        hosts.offer(2, hash(1));
+        hosts.offer(2, hash(5));
+
+        for(int host = 0; host < 3; host++)
+        {
+            domains.merge(hosts, host, 7);
+        }
+
+        assertClose(30000, domains.estimate(7));
+
+        domains.merge(hosts, 2, 8);
+        assertEquals(2, domains.estimate(8));
+    }
+
+    @Test
+    public void writtenCountersReadBackTheSame() throws IOException
+    {
+        HyperLogLogCounters counters = new HyperLogLogCounters();
+
+        for(int value = 0; value < 3; value++)
+        {
+            counters.offer(0, hash(value));
+        }
+
+        for(int value = 0; value < 5000; value++)
+        {
+            counters.offer(1, hash(value));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        for(int id = 0; id < 3; id++)
+        {
+            counters.write(id, output);
+        }
+
+        HyperLogLogCounters read = new HyperLogLogCounters();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        for(int id = 0; id < 3; id++)
+        {
+            read.read(input, id);
+            assertEquals(counters.estimate(id), read.estimate(id));
+        }
+
+        counters.clear();
+        assertEquals(0, counters.estimate(1));
+    }
+
+    private static void assertClose(long expected, long estimate)
+    {
+        assertTrue("estimated " + estimate + " of " + expected, Math.abs(estimate - expected) <= expected * TOLERANCE);
+    }
+
+    private static int hash(int value)
+    {
+        byte[] address = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+
+        return HyperLogLogCounters.hashAddress(address, 0, 4);
+    }
+}
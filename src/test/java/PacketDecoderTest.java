@@ -0,0 +1,333 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the fields decoded from whole packets, and that cut short or malformed packets are rejected or decoded only
+ * as far as their bytes go. Packets are decoded from arrays of exactly their captured bytes, so a read past the end
+ * throws rather than going unnoticed.
+ */
+public class PacketDecoderTest
+{
+    private static final int CLIENT = FrameBuilder.address(192, 168, 1, 20);
+    private static final int SERVER = FrameBuilder.address(93, 184, 216, 34);
+
+    private static final int IPV4_OFFSET = FrameBuilder.ETHERNET_HEADER_LENGTH;
+
+    private static final int IPV6_HOP_BY_HOP = 0;
+    private static final int IPV6_FRAGMENT = 44;
+
+    private PacketDecoder decoder = new PacketDecoder();
+    private byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+
+    @Test
+    public void decodesTcpSegment()
+    {
+        byte[] request = FrameBuilder.httpRequest("example.com");
+        int length = FrameBuilder.tcp(frame, CLIENT, SERVER, 50000, 80, 0xfffffff0L, FrameBuilder.TCP_ACK | FrameBuilder.TCP_PUSH,
+                request, request.length);
+
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, Arrays.copyOf(frame, length), 0, length));
+        assertEquals(4, decoder.getIpVersion());
+        assertEquals(PacketDecoder.PROTOCOL_TCP, decoder.getProtocol());
+        assertEquals("192.168.1.20", decoder.formatAddress(decoder.getSourceAddressOffset()));
+        assertEquals("93.184.216.34", decoder.formatAddress(decoder.getDestinationAddressOffset()));
+        assertEquals(50000, decoder.getSourcePort());
+        assertEquals(80, decoder.getDestinationPort());
+        assertEquals(0xfffffff0L, decoder.getSequenceNumber());
+        assertEquals(FrameBuilder.TCP_ACK | FrameBuilder.TCP_PUSH, decoder.getTcpFlags());
+        assertEquals(length - request.length, decoder.getPayloadOffset());
+        assertEquals(request.length, decoder.getPayloadLength());
+        assertEquals(PacketDecoder.NO_VLAN, decoder.getVlanId());
+        assertFalse(decoder.isFragment());
+    }
+
+    @Test
+    public void replyHashesAsTheRequestReversed()
+    {
+        decoder.decode(PcapReader.LINKTYPE_ETHERNET, frame, 0, FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 30));
+        long request = decoder.directionalFlowHash();
+
+        decoder.decode(PcapReader.LINKTYPE_ETHERNET, frame, 0, FrameBuilder.udp(frame, SERVER, CLIENT, 53, 40000, null, 60));
+
+        assertEquals(request, decoder.reverseFlowHash());
+        assertFalse(request == decoder.directionalFlowHash());
+    }
+
+    @Test
+    public void ethernetPaddingIsNotPayload()
+    {
+        int length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 4);
+
+        // short frames are padded to the ethernet minimum of 60 bytes
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, Arrays.copyOf(frame, 60), 0, 60));
+        assertEquals(length, decoder.getNetworkEnd());
+        assertEquals(4, decoder.getPayloadLength());
+    }
+
+    @Test
+    public void cutShortIpv4PacketsAreNotReadPastTheirEnd()
+    {
+        byte[] hello = FrameBuilder.clientHello("example.com");
+
+        for(int kind = 0; kind < 3; kind++)
+        {
+            int length;
+
+            if(kind == 0)
+                length = FrameBuilder.tcp(frame, CLIENT, SERVER, 50000, 443, 1, FrameBuilder.TCP_ACK, hello, hello.length);
+            else if(kind == 1)
+                length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 40);
+            else
+                length = FrameBuilder.icmp(frame, CLIENT, SERVER, 8, 0, 56);
+
+            byte[] whole = Arrays.copyOf(frame, length);
+
+            for(int captured = 0; captured <= length; captured++)
+            {
+                // the IPv4 header is needed whole, the transport header only for its ports
+                boolean decoded = decodeCut(PcapReader.LINKTYPE_ETHERNET, whole, captured);
+                assertEquals("captured " + captured, captured >= IPV4_OFFSET + FrameBuilder.IPV4_HEADER_LENGTH, decoded);
+            }
+        }
+    }
+
+    @Test
+    public void cutShortIpv6PacketsAreNotReadPastTheirEnd()
+    {
+        byte[] packet = ipv6(IPV6_HOP_BY_HOP, concat(hopByHop(IPV6_FRAGMENT), fragmentHeader(PacketDecoder.PROTOCOL_UDP, 0, true, 7),
+                udpHeader(5353, 5353, 24), new byte[16]));
+
+        for(int captured = 0; captured <= packet.length; captured++)
+        {
+            assertEquals("captured " + captured, captured >= 40, decodeCut(PcapReader.LINKTYPE_RAW, packet, captured));
+        }
+    }
+
+    @Test
+    public void decodesIpv6ExtensionHeaders()
+    {
+        byte[] packet = ipv6(IPV6_HOP_BY_HOP, concat(hopByHop(IPV6_FRAGMENT), fragmentHeader(PacketDecoder.PROTOCOL_UDP, 0, true, 0x12345678),
+                udpHeader(40000, 53, 20), new byte[12]));
+
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_RAW, packet, 0, packet.length));
+        assertEquals(6, decoder.getIpVersion());
+        assertEquals(PacketDecoder.PROTOCOL_UDP, decoder.getProtocol());
+        assertEquals("2001:db8:0:0:0:0:0:1", decoder.formatAddress(decoder.getSourceAddressOffset()));
+        assertEquals(40 + 8 + 8, decoder.getTransportOffset());
+        assertEquals(40000, decoder.getSourcePort());
+        assertEquals(53, decoder.getDestinationPort());
+        assertEquals(12, decoder.getPayloadLength());
+        assertTrue(decoder.isFragment());
+        assertTrue(decoder.hasMoreFragments());
+        assertEquals(0x12345678, decoder.getFragmentId());
+    }
+
+    @Test
+    public void extensionHeaderRunningPastThePacketIsNotFollowed()
+    {
+        // a hop-by-hop header claiming 1608 bytes in a packet of 64
+        byte[] header = hopByHop(PacketDecoder.PROTOCOL_UDP);
+        header[1] = (byte) 200;
+
+        byte[] packet = ipv6(IPV6_HOP_BY_HOP, concat(header, udpHeader(40000, 53, 16), new byte[8]));
+
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_RAW, packet, 0, packet.length));
+        assertEquals(-1, decoder.getSourcePort());
+        assertEquals(packet.length, decoder.getTransportOffset());
+        assertEquals(0, decoder.getPayloadLength());
+    }
+
+    @Test
+    public void ipv4HeaderLengthOutsideThePacketIsRejected()
+    {
+        int length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 20);
+        byte[] packet = Arrays.copyOf(frame, length);
+
+        // shorter than the fixed header
+        packet[IPV4_OFFSET] = 0x44;
+        assertFalse(decoder.decode(PcapReader.LINKTYPE_ETHERNET, packet, 0, packet.length));
+
+        // 60 bytes of header in a packet of 48
+        packet[IPV4_OFFSET] = 0x4f;
+        assertFalse(decoder.decode(PcapReader.LINKTYPE_ETHERNET, packet, 0, packet.length));
+    }
+
+    @Test
+    public void tcpDataOffsetPastThePacketLeavesNoPayload()
+    {
+        int length = FrameBuilder.tcp(frame, CLIENT, SERVER, 50000, 80, 1, FrameBuilder.TCP_ACK, null, 4);
+        byte[] packet = Arrays.copyOf(frame, length);
+
+        // a data offset of 60 bytes over a 20 byte header and 4 bytes of payload
+        packet[IPV4_OFFSET + FrameBuilder.IPV4_HEADER_LENGTH + 12] = (byte) 0xf0;
+
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, packet, 0, packet.length));
+        assertEquals(80, decoder.getDestinationPort());
+        assertEquals(length, decoder.getPayloadOffset());
+        assertEquals(0, decoder.getPayloadLength());
+    }
+
+    @Test
+    public void vlanTagsArePeeledUpToTheLayerLimit()
+    {
+        int length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 20);
+
+        // the innermost tag gives the VLAN
+        byte[] tagged = vlanTagged(Arrays.copyOf(frame, length), 2);
+        assertTrue(decoder.decode(PcapReader.LINKTYPE_ETHERNET, tagged, 0, tagged.length));
+        assertEquals(101, decoder.getVlanId());
+        assertEquals(53, decoder.getDestinationPort());
+
+        // a crafted packet cannot keep the decoder peeling tags
+        byte[] deep = vlanTagged(Arrays.copyOf(frame, length), 8);
+        assertFalse(decoder.decode(PcapReader.LINKTYPE_ETHERNET, deep, 0, deep.length));
+
+        for(int captured = 0; captured <= tagged.length; captured++)
+        {
+            decodeCut(PcapReader.LINKTYPE_ETHERNET, tagged, captured);
+        }
+    }
+
+    @Test
+    public void packetsOtherThanIpAreRejected()
+    {
+        int length = FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 20);
+        byte[] packet = Arrays.copyOf(frame, length);
+
+        assertFalse(decoder.decode(12345, packet, 0, packet.length));
+
+        // an ARP ethertype
+        packet[12] = 0x08;
+        packet[13] = 0x06;
+        assertFalse(decoder.decode(PcapReader.LINKTYPE_ETHERNET, packet, 0, packet.length));
+    }
+
+    /**
+     * Decodes the first bytes of a packet from an array holding only those bytes
+     * @return whether the packet was decoded
+     */
+    private boolean decodeCut(int linkType, byte[] packet, int captured)
+    {
+        byte[] cut = Arrays.copyOf(packet, captured);
+        boolean decoded = decoder.decode(linkType, cut, 0, captured);
+
+        if(decoded)
+        {
+            assertTrue(decoder.getTransportOffset() <= captured);
+            assertTrue(decoder.getPayloadLength() >= 0);
+            assertTrue(decoder.getPayloadOffset() + decoder.getPayloadLength() <= captured);
+
+            // the hashes read the addresses
+            decoder.directionalFlowHash();
+        }
+
+        return decoded;
+    }
+
+    /**
+     * @return an IPv6 packet from 2001:db8::1 to 2001:db8::2 carrying the bytes given
+     */
+    private static byte[] ipv6(int nextHeader, byte[] payload)
+    {
+        byte[] packet = new byte[40 + payload.length];
+
+        packet[0] = 0x60;
+        packet[4] = (byte) (payload.length >>> 8);
+        packet[5] = (byte) payload.length;
+        packet[6] = (byte) nextHeader;
+        packet[7] = 64;
+
+        for(int address = 8; address < 40; address += 16)
+        {
+            packet[address] = 0x20;
+            packet[address + 1] = 0x01;
+            packet[address + 2] = 0x0d;
+            packet[address + 3] = (byte) 0xb8;
+            packet[address + 15] = (byte) (address == 8 ? 1 : 2);
+        }
+
+        System.arraycopy(payload, 0, packet, 40, payload.length);
+
+        return packet;
+    }
+
+    private static byte[] hopByHop(int nextHeader)
+    {
+        byte[] header = new byte[8];
+        header[0] = (byte) nextHeader;
+
+        return header;
+    }
+
+    private static byte[] fragmentHeader(int nextHeader, int offset, boolean moreFragments, int id)
+    {
+        byte[] header = new byte[8];
+        int field = offset | (moreFragments ? 1 : 0);
+
+        header[0] = (byte) nextHeader;
+        header[2] = (byte) (field >>> 8);
+        header[3] = (byte) field;
+        header[4] = (byte) (id >>> 24);
+        header[5] = (byte) (id >>> 16);
+        header[6] = (byte) (id >>> 8);
+        header[7] = (byte) id;
+
+        return header;
+    }
+
+    private static byte[] udpHeader(int sourcePort, int destinationPort, int length)
+    {
+        return new byte[]{(byte) (sourcePort >>> 8), (byte) sourcePort, (byte) (destinationPort >>> 8), (byte) destinationPort,
+                (byte) (length >>> 8), (byte) length, 0, 0};
+    }
+
+    /**
+     * @return the ethernet frame with 802.1Q tags inserted after its addresses, of VLAN 100 and up from the outermost
+     */
+    private static byte[] vlanTagged(byte[] frame, int tags)
+    {
+        byte[] tagged = new byte[frame.length + 4 * tags];
+
+        System.arraycopy(frame, 0, tagged, 0, 12);
+
+        for(int i = 0; i < tags; i++)
+        {
+            int vlan = 100 + i;
+
+            tagged[12 + 4 * i] = (byte) 0x81;
+            tagged[13 + 4 * i] = 0;
+            tagged[14 + 4 * i] = (byte) (vlan >>> 8);
+            tagged[15 + 4 * i] = (byte) vlan;
+        }
+
+        System.arraycopy(frame, 12, tagged, 12 + 4 * tags, frame.length - 12);
+
+        return tagged;
+    }
+
+    private static byte[] concat(byte[]... parts)
+    {
+        int length = 0;
+
+        for(byte[] part : parts)
+        {
+            length += part.length;
+        }
+
+        byte[] joined = new byte[length];
+        int position = 0;
+
+        for(byte[] part : parts)
+        {
+            System.arraycopy(part, 0, joined, position, part.length);
+            position += part.length;
+        }
+
+        return joined;
+    }
+}
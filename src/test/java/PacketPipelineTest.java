@@ -0,0 +1,43 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the reader finds out about a failed stage while still publishing, not only once it finishes
+ */
+public class PacketPipelineTest
+{
+    @Test
+    public void failedStageStopsThePublisher() throws InterruptedException
+    {
+        final RuntimeException stageFailure = new RuntimeException("stage failed");
+
+        PacketPipeline pipeline = new PacketPipeline(16, new PacketPipeline.Stage()
+        {
+            @Override
+            public void process(int linkType, byte[] buffer, int offset, int length, int originalLength, long timestamp)
+            {
+                throw stageFailure;
+            }
+        });
+
+        byte[] packet = new byte[64];
+        long published = 0;
+
+        try {
+            // the stage fails on the first packet, so the publisher must see it long before a million packets
+            for(; published < 1000000; published++)
+            {
+                pipeline.publish(1, packet, 0, packet.length, packet.length, published);
+
+                if(published == 0)
+                    Thread.sleep(100);
+            }
+
+            fail("Published " + published + " packets past a failed stage");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() == stageFailure);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that counts taken from a sampled capture scale back to the counts of the whole capture
+ */
+public class PacketSamplerTest
+{
+    private static final int RATE = 4;
+
+    private File folder;
+
+    @Before
+    public void createFolder() throws IOException
+    {
+        folder = File.createTempFile("sampler", "");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @After
+    public void deleteFolder()
+    {
+        deleteRecursively(folder);
+    }
+
+    @Test
+    public void flowSampleOfIpAndOtherPacketsScalesToTheTotal() throws IOException
+    {
+        File capture = new File(folder, "mixed.pcap");
+        byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+        long packets = 0;
+
+        CaptureWriter writer = new CaptureWriter(capture, false, 65535);
+
+        try {
+            // 5000 flows of four packets, each followed by an ARP request which has no flow
+            for(int flow = 0; flow < 5000; flow++)
+            {
+                int client = FrameBuilder.address(10, 0, flow >>> 8, flow & 0xff);
+                int server = FrameBuilder.address(93, 184, 216, 34);
+
+                for(int i = 0; i < 4; i++)
+                {
+                    int length = i % 2 == 0 ? FrameBuilder.udp(frame, client, server, 40000, 53, null, 32)
+                            : FrameBuilder.udp(frame, server, client, 53, 40000, null, 64);
+
+                    writer.write(frame, 0, length, packets * 1000);
+                    writer.write(frame, 0, arpRequest(frame), packets * 1000 + 500);
+                    packets += 2;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        PacketSampler sampler = new PacketSampler(RATE, true);
+        File sample = sampler.sampleCapture(capture, new File(folder, "sample"));
+        long sampled = countPackets(sample);
+
+        // an undecodable packet kept every time would scale to far more than were captured
+        long estimate = sampler.scale(sampled);
+        assertTrue("estimated " + estimate + " of " + packets, Math.abs(estimate - packets) < packets / 20);
+    }
+
+    @Test
+    public void singlePacketSampleScalesToTheTotal() throws IOException
+    {
+        PacketSampler sampler = new PacketSampler(RATE, false);
+        long sampled = 0;
+
+        for(int i = 0; i < 100000; i++)
+        {
+            if(sampler.acceptRecord())
+                sampled++;
+        }
+
+        assertTrue(sampler.lowerBound(sampled) <= 100000 && 100000 <= sampler.upperBound(sampled));
+        assertEquals(sampled * RATE, sampler.scale(sampled));
+    }
+
+    @Test
+    public void everyPacketIsKeptAtRateOne()
+    {
+        PacketSampler sampler = new PacketSampler(1, true);
+        File file = new File(folder, "capture.pcap");
+
+        assertTrue(sampler.acceptRecord());
+        assertEquals(file, sampler.sampleCapture(file, folder));
+        assertEquals(10, sampler.lowerBound(10));
+        assertEquals(10, sampler.upperBound(10));
+    }
+
+    /**
+     * Writes an ethernet frame carrying an ARP request, which the decoder has no flow for
+     * @return the frame length
+     */
+    private static int arpRequest(byte[] frame)
+    {
+        for(int i = 0; i < 42; i++)
+        {
+            frame[i] = 0;
+        }
+
+        // broadcast destination, ARP ethertype, then ethernet and IPv4 with their lengths and the request opcode
+        for(int i = 0; i < 6; i++)
+        {
+            frame[i] = (byte) 0xff;
+        }
+
+        frame[12] = 0x08;
+        frame[13] = 0x06;
+        frame[15] = 1;
+        frame[16] = 0x08;
+        frame[18] = 6;
+        frame[19] = 4;
+        frame[21] = 1;
+
+        return 42;
+    }
+
+    private static long countPackets(File file) throws IOException
+    {
+        PcapReader reader = new PcapReader(file);
+        long packets = 0;
+
+        try {
+            while(reader.next())
+            {
+                packets++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        return packets;
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,238 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that packets written into libpcap and pcapng files are read back as they were, and that files cut short or
+ * not captures at all are handled
+ */
+public class PcapReaderTest
+{
+    private static final int CLIENT = FrameBuilder.address(10, 0, 0, 5);
+    private static final int SERVER = FrameBuilder.address(93, 184, 216, 34);
+
+    private static final long START = 1700000000123456L;
+
+    private File capture;
+
+    @Before
+    public void createCapture() throws IOException
+    {
+        capture = File.createTempFile("reader", ".pcap");
+    }
+
+    @After
+    public void deleteCapture()
+    {
+        capture.delete();
+    }
+
+    @Test
+    public void packetsAreReadBackAsWritten() throws IOException
+    {
+        for(boolean pcapng : new boolean[]{false, true})
+        {
+            byte[][] packets = writeCapture(pcapng, 65535);
+            PcapReader reader = new PcapReader(capture);
+
+            try {
+                assertEquals(pcapng, reader.isPcapng());
+                assertEquals(PcapReader.LINKTYPE_ETHERNET, reader.getLinkType());
+
+                for(int i = 0; i < packets.length; i++)
+                {
+                    assertTrue(reader.next());
+                    assertEquals(START + i * 1500L, reader.getTimestampMicros());
+                    assertEquals(packets[i].length, reader.getOriginalLength());
+                    assertArrayEquals(packets[i], read(reader));
+                }
+
+                assertFalse(reader.next());
+                assertTrue(reader.isEndOfFile());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void snapLengthCutsPacketsButKeepsTheirLength() throws IOException
+    {
+        for(boolean pcapng : new boolean[]{false, true})
+        {
+            byte[][] packets = writeCapture(pcapng, 60);
+            PcapReader reader = new PcapReader(capture);
+
+            try {
+                assertEquals(60, reader.getSnapLength());
+
+                for(byte[] packet : packets)
+                {
+                    assertTrue(reader.next());
+                    assertEquals(Math.min(packet.length, 60), reader.getCapturedLength());
+                    assertEquals(packet.length, reader.getOriginalLength());
+                    assertArrayEquals(Arrays.copyOf(packet, reader.getCapturedLength()), read(reader));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void recordIsReadAgainFromItsPosition() throws IOException
+    {
+        for(boolean pcapng : new boolean[]{false, true})
+        {
+            byte[][] packets = writeCapture(pcapng, 65535);
+            PcapReader reader = new PcapReader(capture);
+
+            try {
+                reader.next();
+                reader.next();
+                long position = reader.getRecordPosition();
+
+                while(reader.next());
+
+                reader.seek(position);
+                assertTrue(reader.next());
+                assertArrayEquals(packets[1], read(reader));
+
+                // reading stops before the record at the end position
+                reader.seek(position);
+                reader.setEndPosition(position + 1);
+                assertTrue(reader.next());
+                assertFalse(reader.next());
+                assertFalse(reader.isEndOfFile());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void fileCutShortEndsAtItsLastWholeRecord() throws IOException
+    {
+        for(boolean pcapng : new boolean[]{false, true})
+        {
+            byte[][] packets = writeCapture(pcapng, 65535);
+
+            // the last record loses its final bytes, as a capture still being written would
+            RandomAccessFile file = new RandomAccessFile(capture, "rw");
+
+            try {
+                file.setLength(file.length() - 10);
+            } finally {
+                file.close();
+            }
+
+            PcapReader reader = new PcapReader(capture);
+            int read = 0;
+
+            try {
+                while(reader.next())
+                {
+                    read++;
+                }
+            } finally {
+                reader.close();
+            }
+
+            assertEquals(packets.length - 1, read);
+        }
+    }
+
+    @Test
+    public void fileOtherThanACaptureIsRejected() throws IOException
+    {
+        FileOutputStream output = new FileOutputStream(capture);
+
+        try {
+            output.write("not a capture, only text long enough for a header".getBytes());
+        } finally {
+            output.close();
+        }
+
+        try {
+            new PcapReader(capture).close();
+            fail("Read a text file as a capture");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(capture.getName()));
+        }
+    }
+
+    @Test
+    public void recordClaimingTooManyBytesIsRejected() throws IOException
+    {
+        writeCapture(false, 65535);
+
+        // the captured length of the first record
+        RandomAccessFile file = new RandomAccessFile(capture, "rw");
+
+        try {
+            file.seek(24 + 8);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+
+        PcapReader reader = new PcapReader(capture);
+
+        try {
+            reader.next();
+            fail("Read a record longer than any packet");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Corrupt pcap record"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a request and a response of each protocol, of lengths that leave a pcapng block padded by every amount
+     * @return the packets written
+     */
+    private byte[][] writeCapture(boolean pcapng, int snapLength) throws IOException
+    {
+        byte[][] packets = new byte[8][];
+        byte[] frame = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+
+        for(int i = 0; i < 4; i++)
+        {
+            packets[2 * i] = Arrays.copyOf(frame, FrameBuilder.udp(frame, CLIENT, SERVER, 40000, 53, null, 20 + i));
+            packets[2 * i + 1] = Arrays.copyOf(frame, FrameBuilder.tcp(frame, SERVER, CLIENT, 443, 50000, i,
+                    FrameBuilder.TCP_ACK, null, 1400 + i));
+        }
+
+        CaptureWriter writer = new CaptureWriter(capture, pcapng, snapLength);
+
+        try {
+            for(int i = 0; i < packets.length; i++)
+            {
+                writer.write(packets[i], 0, packets[i].length, START + i * 1500L);
+            }
+        } finally {
+            writer.close();
+        }
+
+        return packets;
+    }
+
+    private static byte[] read(PcapReader reader)
+    {
+        return Arrays.copyOfRange(reader.getBuffer(), reader.getPacketOffset(),
+                reader.getPacketOffset() + reader.getCapturedLength());
+    }
+}